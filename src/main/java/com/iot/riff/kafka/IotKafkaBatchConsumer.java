@@ -0,0 +1,78 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.util.IotTelemetryJson;
+import io.micronaut.configuration.kafka.annotation.ErrorStrategy;
+import io.micronaut.configuration.kafka.annotation.ErrorStrategyValue;
+import io.micronaut.configuration.kafka.annotation.KafkaListener;
+import io.micronaut.configuration.kafka.annotation.OffsetStrategy;
+import io.micronaut.configuration.kafka.annotation.Topic;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Requires;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Consumes telemetry a poll at a time, used instead of {@link IotKafkaConsumer} when
+ * {@code telemetry.consumer.mode} is {@code BATCH}.
+ * <p>
+ * Each poll of up to {@code maxRecords} records is validated and stored with one unordered
+ * insert. The broker answers a fetch once it holds {@code minBytes} or {@code maxWait} has
+ * passed, which bounds how long a quiet partition delays its readings. Offsets are committed
+ * only after the insert succeeds; if it fails the poll is redelivered after
+ * {@code retryDelay}, so a retried batch may store readings that were written before the
+ * failure once more.
+ */
+@Slf4j
+@Requires(property = "telemetry.consumer.mode", value = "BATCH")
+@KafkaListener(groupId = "iot-data-processor", batch = true, offsetStrategy = OffsetStrategy.SYNC,
+        errorStrategy = @ErrorStrategy(value = ErrorStrategyValue.RETRY_ON_ERROR,
+                retryDelay = "${telemetry.consumer.batch.retryDelay:1s}",
+                retryCountValue = "${telemetry.consumer.batch.retryCount:2147483647}",
+                handleAllExceptions = true),
+        properties = {
+                @Property(name = ConsumerConfig.MAX_POLL_RECORDS_CONFIG,
+                        value = "${telemetry.consumer.batch.maxRecords:500}"),
+                @Property(name = ConsumerConfig.FETCH_MIN_BYTES_CONFIG,
+                        value = "${telemetry.consumer.batch.minBytes:65536}"),
+                @Property(name = ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG,
+                        value = "${telemetry.consumer.batch.maxWaitMs:100}")
+        })
+public class IotKafkaBatchConsumer {
+
+    private final IotDeviceDataService iotDeviceDataService;
+    private final IotTelemetryJson iotTelemetryJson;
+
+    public IotKafkaBatchConsumer(IotDeviceDataService iotDeviceDataService, IotTelemetryJson iotTelemetryJson) {
+        this.iotDeviceDataService = iotDeviceDataService;
+        this.iotTelemetryJson = iotTelemetryJson;
+    }
+
+    @Topic("iot-device-data")
+    public void receive(List<ConsumerRecord<String, byte[]>> records) {
+        List<TelemetryReading> readings = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            TelemetryReading reading = toReading(record);
+            if (reading != null) {
+                readings.add(reading);
+            }
+        }
+        // Lookup and write failures are thrown so the poll is retried instead of committed
+        int stored = iotDeviceDataService.processTelemetryBatch(readings);
+        log.debug("Consumed Kafka batch: records={}, stored={}", records.size(), stored);
+    }
+
+    private TelemetryReading toReading(ConsumerRecord<String, byte[]> record) {
+        try {
+            return IotKafkaRecords.toReading(record, iotTelemetryJson);
+        } catch (Exception e) {
+            log.error("Dropping unparseable record {}-{}@{}", record.topic(), record.partition(), record.offset(), e);
+            return null;
+        }
+    }
+}
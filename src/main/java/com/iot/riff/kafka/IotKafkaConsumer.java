@@ -1,56 +1,53 @@
 package com.iot.riff.kafka;
 
-import io.micronaut.configuration.kafka.annotation.KafkaKey;
+import com.iot.riff.service.util.IotTelemetryJson;
+import io.micronaut.configuration.kafka.annotation.ErrorStrategy;
+import io.micronaut.configuration.kafka.annotation.ErrorStrategyValue;
 import io.micronaut.configuration.kafka.annotation.KafkaListener;
+import io.micronaut.configuration.kafka.annotation.OffsetStrategy;
 import io.micronaut.configuration.kafka.annotation.Topic;
-import io.micronaut.core.type.Argument;
+import io.micronaut.context.annotation.Requires;
 import lombok.extern.slf4j.Slf4j;
-
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Consumes telemetry one record at a time, the default {@code telemetry.consumer.mode}.
+ * <p>
+ * A record that fails to be stored is moved to a retry or dead-letter topic by
+ * {@link IotKafkaFailureRouter}. Offsets are committed once a poll's records are handled; if
+ * moving a record fails as well, the exception escapes and the record is polled again after
+ * {@code retryDelay} instead of being committed past.
+ */
 @Slf4j
-@KafkaListener(groupId = "iot-data-processor")
+@Requires(property = "telemetry.consumer.mode", value = "RECORD", defaultValue = "RECORD")
+@KafkaListener(groupId = "iot-data-processor", offsetStrategy = OffsetStrategy.SYNC,
+        errorStrategy = @ErrorStrategy(value = ErrorStrategyValue.RETRY_ON_ERROR,
+                retryDelay = "${telemetry.consumer.record.retryDelay:1s}",
+                retryCountValue = "${telemetry.consumer.record.retryCount:2147483647}",
+                handleAllExceptions = true))
 public class IotKafkaConsumer {
 
     private final com.iot.riff.service.IotDeviceDataService iotDeviceDataService;
-    private final io.micronaut.serde.ObjectMapper objectMapper;
+    private final IotTelemetryJson iotTelemetryJson;
+    private final IotKafkaFailureRouter iotKafkaFailureRouter;
 
     public IotKafkaConsumer(com.iot.riff.service.IotDeviceDataService iotDeviceDataService,
-            io.micronaut.serde.ObjectMapper objectMapper) {
+            IotTelemetryJson iotTelemetryJson,
+            IotKafkaFailureRouter iotKafkaFailureRouter) {
         this.iotDeviceDataService = iotDeviceDataService;
-        this.objectMapper = objectMapper;
+        this.iotTelemetryJson = iotTelemetryJson;
+        this.iotKafkaFailureRouter = iotKafkaFailureRouter;
     }
 
     @Topic("iot-device-data")
-    public void receive(@KafkaKey String deviceId, String message) {
-        log.info("Consumed Kafka message: key={}, value={}", deviceId, message);
+    public void receive(ConsumerRecord<String, byte[]> record) {
+        log.debug("Consumed Kafka message: key={}, bytes={}", record.key(), record.value().length);
         try {
-            // Message structure from processor: {deviceId, topic, payload}
-            java.util.Map<String, Object> messageMap = objectMapper.readValue(message,
-                    Argument.mapOf(String.class, Object.class));
-
-            // "payload" is likely a string JSON from the device or just a string.
-            // The domain "telemetryPayload" implies a structured Map.
-            // Let's try to parse "payload" as a Map if it's a string, or put it as is.
-            Object payloadObj = messageMap.get("payload");
-            java.util.Map<String, Object> telemetryPayload;
-
-            if (payloadObj instanceof String) {
-                try {
-                    telemetryPayload = objectMapper.readValue((String) payloadObj,
-                            Argument.mapOf(String.class, Object.class));
-                } catch (Exception e) {
-                    // Not a JSON object, maybe raw value
-                    telemetryPayload = java.util.Map.of("raw", payloadObj);
-                }
-            } else if (payloadObj instanceof java.util.Map) {
-                telemetryPayload = (java.util.Map<String, Object>) payloadObj;
-            } else {
-                telemetryPayload = java.util.Map.of("value", payloadObj);
-            }
-
-            iotDeviceDataService.processTelemetry(deviceId, telemetryPayload);
-
+            iotDeviceDataService.ingestTelemetry(IotKafkaRecords.toReading(record, iotTelemetryJson));
         } catch (Exception e) {
-            log.error("Error processing message", e);
+            // Moved to a retry or dead-letter topic rather than lost; should that fail too the
+            // exception escapes, so the record is polled again rather than committed
+            iotKafkaFailureRouter.route(record, e);
         }
     }
 }
@@ -0,0 +1,183 @@
+package com.iot.riff.kafka;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Inspects and replays the telemetry dead-letter topic written by {@link IotKafkaFailureRouter}.
+ * <p>
+ * Progress is kept as the committed offsets of the {@code iot-dlq-replay} group: records before
+ * them have been replayed, records after them are pending. Each call uses its own short-lived
+ * consumer, so nothing connects to Kafka until a tool asks.
+ */
+@Slf4j
+@Singleton
+public class IotKafkaDeadLetters {
+
+    static final String REPLAY_GROUP_ID = "iot-dlq-replay";
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private final IotKafkaProducer iotKafkaProducer;
+    private final String bootstrapServers;
+
+    public IotKafkaDeadLetters(IotKafkaProducer iotKafkaProducer,
+            @Property(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092") String bootstrapServers) {
+        this.iotKafkaProducer = iotKafkaProducer;
+        this.bootstrapServers = bootstrapServers;
+    }
+
+    /**
+     * Counts the dead letters not replayed yet, reading up to {@code scanLimit} of them to group by failure code.
+     */
+    public Summary inspect(int scanLimit) {
+        try (Consumer<String, byte[]> consumer = newConsumer()) {
+            Map<TopicPartition, Long> end = assignPending(consumer);
+            long total = 0;
+            long pending = 0;
+            Map<TopicPartition, Long> beginning = consumer.beginningOffsets(end.keySet());
+            for (Map.Entry<TopicPartition, Long> partition : end.entrySet()) {
+                total += partition.getValue() - beginning.get(partition.getKey());
+                pending += partition.getValue() - consumer.position(partition.getKey());
+            }
+            Map<String, Long> reasons = new TreeMap<>();
+            List<ConsumerRecord<String, byte[]>> sample = read(consumer, end, scanLimit);
+            for (ConsumerRecord<String, byte[]> record : sample) {
+                reasons.merge(header(record, IotKafkaHeaders.FAILURE_CODE), 1L, Long::sum);
+            }
+            return new Summary(total, pending, sample.size(), reasons);
+        }
+    }
+
+    /**
+     * Sends up to {@code limit} pending dead letters back to {@code iot-device-data} with their failure headers
+     * removed, and records them as replayed once the broker has acknowledged them all.
+     *
+     * @return the number of records replayed
+     */
+    public int replay(int limit) {
+        try (Consumer<String, byte[]> consumer = newConsumer()) {
+            Map<TopicPartition, Long> end = assignPending(consumer);
+            List<ConsumerRecord<String, byte[]>> records = read(consumer, end, limit);
+            List<CompletableFuture<?>> sends = new ArrayList<>(records.size());
+            Map<TopicPartition, OffsetAndMetadata> replayed = new HashMap<>();
+            for (ConsumerRecord<String, byte[]> record : records) {
+                RecordHeaders headers = new RecordHeaders(record.headers().toArray());
+                headers.remove(IotKafkaHeaders.FAILURE_CODE);
+                headers.remove(IotKafkaHeaders.FAILURE_REASON);
+                headers.remove(IotKafkaHeaders.ATTEMPT);
+                headers.remove(IotKafkaHeaders.FAILED_AT);
+                headers.remove(IotKafkaHeaders.RETRY_AT);
+                sends.add(iotKafkaProducer.sendAsync(record.key(), record.value(), headers));
+                replayed.put(new TopicPartition(record.topic(), record.partition()),
+                        new OffsetAndMetadata(record.offset() + 1));
+            }
+            CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).join();
+            if (!replayed.isEmpty()) {
+                consumer.commitSync(replayed);
+            }
+            log.info("Replayed {} dead-lettered telemetry records", records.size());
+            return records.size();
+        }
+    }
+
+    Consumer<String, byte[]> newConsumer() {
+        Properties properties = new Properties();
+        properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG, REPLAY_GROUP_ID);
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        return new KafkaConsumer<>(properties, new StringDeserializer(), new ByteArrayDeserializer());
+    }
+
+    /**
+     * Assigns every partition of the dead-letter topic positioned at its first pending record.
+     *
+     * @return the end offset of each partition when called
+     */
+    private static Map<TopicPartition, Long> assignPending(Consumer<String, byte[]> consumer) {
+        List<TopicPartition> partitions = new ArrayList<>();
+        List<PartitionInfo> infos = consumer.partitionsFor(IotKafkaFailureRouter.DEAD_LETTER_TOPIC);
+        if (infos != null) {
+            for (PartitionInfo info : infos) {
+                partitions.add(new TopicPartition(info.topic(), info.partition()));
+            }
+        }
+        consumer.assign(partitions);
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(Set.copyOf(partitions));
+        Map<TopicPartition, Long> beginning = consumer.beginningOffsets(partitions);
+        for (TopicPartition tp : partitions) {
+            OffsetAndMetadata offset = committed.get(tp);
+            consumer.seek(tp, offset != null ? Math.max(offset.offset(), beginning.get(tp)) : beginning.get(tp));
+        }
+        return consumer.endOffsets(partitions);
+    }
+
+    /**
+     * Reads pending records up to {@code limit}, stopping at the end offsets so records dead-lettered meanwhile
+     * are left for the next call.
+     */
+    private static List<ConsumerRecord<String, byte[]>> read(Consumer<String, byte[]> consumer,
+            Map<TopicPartition, Long> end, int limit) {
+        List<ConsumerRecord<String, byte[]>> records = new ArrayList<>();
+        while (records.size() < limit && !reachedEnd(consumer, end)) {
+            var polled = consumer.poll(POLL_TIMEOUT);
+            if (polled.isEmpty()) {
+                break;
+            }
+            for (ConsumerRecord<String, byte[]> record : polled) {
+                TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+                if (records.size() < limit && record.offset() < end.get(tp)) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    private static boolean reachedEnd(Consumer<String, byte[]> consumer, Map<TopicPartition, Long> end) {
+        for (Map.Entry<TopicPartition, Long> partition : end.entrySet()) {
+            if (consumer.position(partition.getKey()) < partition.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String header(ConsumerRecord<?, ?> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return header != null ? new String(header.value(), StandardCharsets.UTF_8) : "unknown";
+    }
+
+    /**
+     * @param total   dead letters still retained by the topic
+     * @param pending dead letters not replayed yet
+     * @param scanned pending dead letters read to count {@code reasons}
+     * @param reasons scanned dead letters by failure code, {@code unknown} for those routed before codes existed
+     */
+    @Serdeable
+    public record Summary(long total, long pending, int scanned, Map<String, Long> reasons) {
+    }
+}
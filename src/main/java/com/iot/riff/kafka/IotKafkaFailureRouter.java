@@ -0,0 +1,128 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.exception.IotTelemetryRejectedException;
+import com.mongodb.MongoException;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves telemetry records that failed to be stored off the main topic instead of dropping them.
+ * <p>
+ * A record that may succeed later, such as one whose Mongo write failed, goes to retry tier
+ * {@code n} (topic {@code iot-device-data-retry-n}) after its {@code n}th failure and is consumed
+ * again once {@code telemetry.retry.delays[n-1]} has passed. A record that can never be stored,
+ * or that failed every tier, goes to {@code iot-device-data-dlq}. Both carry the original key,
+ * value and headers, including the {@code messageId} the reading is stored under, plus the
+ * {@code failureCode}, {@code failureReason}, {@code attempt} and {@code failedAt} headers, and
+ * {@code retryAt} on a retry tier. The code is one of a few stable values, such as
+ * {@code DEVICE_NOT_FOUND}, {@code SCHEMA_INVALID} or {@code STORE_FAILED}, while the reason holds the
+ * failure's message.
+ * <p>
+ * Routing waits for the broker's acknowledgement, so the failed record's offset is not committed
+ * before its copy is safe.
+ */
+@Slf4j
+@Singleton
+public class IotKafkaFailureRouter {
+
+    public static final String RETRY_TOPIC_PREFIX = "iot-device-data-retry-";
+    public static final String DEAD_LETTER_TOPIC = "iot-device-data-dlq";
+    public static final String STORE_FAILED = "STORE_FAILED";
+    public static final String PROCESSING_FAILED = "PROCESSING_FAILED";
+
+    private final IotKafkaProducer iotKafkaProducer;
+    private final List<Duration> delays;
+    private final LongAdder[] retried;
+    private final LongAdder deadLettered = new LongAdder();
+
+    public IotKafkaFailureRouter(IotKafkaProducer iotKafkaProducer,
+            @Property(name = "telemetry.retry.delays", defaultValue = "10s,1m,10m") List<Duration> delays) {
+        this.iotKafkaProducer = iotKafkaProducer;
+        this.delays = List.copyOf(delays);
+        this.retried = new LongAdder[delays.size()];
+        for (int i = 0; i < retried.length; i++) {
+            retried[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sends the failed record to its next retry tier, or to the dead-letter topic.
+     */
+    public void route(ConsumerRecord<String, byte[]> record, Exception failure) {
+        int attempt = IotKafkaHeaders.attempt(record) + 1;
+        long now = System.currentTimeMillis();
+        String reason = failure.getMessage() != null ? failure.getMessage() : failure.getClass().getName();
+
+        RecordHeaders headers = new RecordHeaders(record.headers().toArray());
+        headers.remove(IotKafkaHeaders.FAILURE_CODE);
+        headers.remove(IotKafkaHeaders.FAILURE_REASON);
+        headers.remove(IotKafkaHeaders.ATTEMPT);
+        headers.remove(IotKafkaHeaders.FAILED_AT);
+        headers.remove(IotKafkaHeaders.RETRY_AT);
+        if (headers.lastHeader(IotKafkaHeaders.MESSAGE_ID) == null) {
+            // Copies of a legacy envelope keep the id of the original record
+            headers.add(IotKafkaHeaders.MESSAGE_ID,
+                    IotKafkaHeaders.messageId(record).getBytes(StandardCharsets.UTF_8));
+        }
+        headers.add(IotKafkaHeaders.FAILURE_CODE, failureCode(failure).getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.FAILURE_REASON, reason.getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.ATTEMPT, Integer.toString(attempt).getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.FAILED_AT, Long.toString(now).getBytes(StandardCharsets.UTF_8));
+
+        String topic;
+        if (failure instanceof IotTelemetryRejectedException || attempt > delays.size()) {
+            topic = DEAD_LETTER_TOPIC;
+            deadLettered.increment();
+            log.warn("Dead-lettering record {}-{}@{} after {} attempt(s): {}", record.topic(), record.partition(),
+                    record.offset(), attempt, reason);
+        } else {
+            topic = RETRY_TOPIC_PREFIX + attempt;
+            long retryAt = now + delays.get(attempt - 1).toMillis();
+            headers.add(IotKafkaHeaders.RETRY_AT, Long.toString(retryAt).getBytes(StandardCharsets.UTF_8));
+            retried[attempt - 1].increment();
+            log.warn("Retrying record {}-{}@{} in {}: {}", record.topic(), record.partition(), record.offset(),
+                    delays.get(attempt - 1), reason);
+        }
+        iotKafkaProducer.sendTo(topic, record.key(), record.value(), headers).join();
+    }
+
+    /**
+     * Returns the stable code a failure is counted under: the reason of a rejection, {@link #STORE_FAILED}
+     * when Mongo failed, {@link #PROCESSING_FAILED} for anything else.
+     */
+    static String failureCode(Exception failure) {
+        if (failure instanceof IotTelemetryRejectedException rejected && rejected.getReason() != null) {
+            return rejected.getReason().name();
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoException) {
+                return STORE_FAILED;
+            }
+        }
+        return PROCESSING_FAILED;
+    }
+
+    public Stats stats() {
+        long[] perTier = new long[retried.length];
+        for (int i = 0; i < retried.length; i++) {
+            perTier[i] = retried[i].sum();
+        }
+        return new Stats(delays, perTier, deadLettered.sum());
+    }
+
+    /**
+     * @param retried records sent to each retry tier, in the order of {@code delays}
+     */
+    @Serdeable
+    public record Stats(List<Duration> delays, long[] retried, long deadLettered) {
+    }
+}
@@ -0,0 +1,23 @@
+package com.iot.riff.kafka;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes how many telemetry records the {@link IotKafkaFailureRouter} sent to each retry tier and to the
+ * dead-letter topic at {@code /telemetry-retries}.
+ */
+@Endpoint(id = "telemetry-retries")
+public class IotKafkaFailureRouterEndpoint {
+
+    private final IotKafkaFailureRouter iotKafkaFailureRouter;
+
+    public IotKafkaFailureRouterEndpoint(IotKafkaFailureRouter iotKafkaFailureRouter) {
+        this.iotKafkaFailureRouter = iotKafkaFailureRouter;
+    }
+
+    @Read
+    public IotKafkaFailureRouter.Stats stats() {
+        return iotKafkaFailureRouter.stats();
+    }
+}
@@ -0,0 +1,64 @@
+package com.iot.riff.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Record header names used by the passthrough ingest format, where the record
+ * value is the raw MQTT payload and the envelope fields travel as headers, and
+ * by the retry and dead-letter topics a failed record is moved to.
+ */
+public final class IotKafkaHeaders {
+
+    public static final String DEVICE_ID = "deviceId";
+    public static final String MESSAGE_ID = "messageId";
+    public static final String TOPIC = "topic";
+    public static final String QOS = "qos";
+    public static final String RECEIVED_AT = "receivedAt";
+
+    public static final String FAILURE_CODE = "failureCode";
+    public static final String FAILURE_REASON = "failureReason";
+    public static final String ATTEMPT = "attempt";
+    public static final String FAILED_AT = "failedAt";
+    public static final String RETRY_AT = "retryAt";
+
+    private IotKafkaHeaders() {
+    }
+
+    /**
+     * Returns the device id header of a passthrough record, or {@code null} for a legacy envelope.
+     */
+    public static String deviceId(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(DEVICE_ID);
+        return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Returns the id the record's telemetry is stored under: the one given at MQTT ingress, or for a legacy
+     * envelope the record's own topic, partition and offset, which a redelivery keeps.
+     */
+    public static String messageId(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(MESSAGE_ID);
+        return header != null
+                ? new String(header.value(), StandardCharsets.UTF_8)
+                : record.topic() + '-' + record.partition() + '@' + record.offset();
+    }
+
+    /**
+     * Returns how many times the record has failed so far, zero for a record that has not.
+     */
+    public static int attempt(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(ATTEMPT);
+        return header != null ? Integer.parseInt(new String(header.value(), StandardCharsets.UTF_8)) : 0;
+    }
+
+    /**
+     * Returns the epoch millisecond at which a record on a retry topic is due, zero if it has none.
+     */
+    public static long retryAt(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(RETRY_AT);
+        return header != null ? Long.parseLong(new String(header.value(), StandardCharsets.UTF_8)) : 0;
+    }
+}
@@ -0,0 +1,292 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.util.IotTelemetryJson;
+import io.micronaut.configuration.kafka.ConsumerAware;
+import io.micronaut.configuration.kafka.annotation.KafkaListener;
+import io.micronaut.configuration.kafka.annotation.OffsetStrategy;
+import io.micronaut.configuration.kafka.annotation.Topic;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.context.annotation.Requires;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes telemetry on a pool of virtual-thread lanes, used instead of {@link IotKafkaConsumer}
+ * when {@code telemetry.consumer.mode} is {@code KEY_ORDERED}.
+ * <p>
+ * Each record is hashed by device id onto one of {@code lanes} single-threaded lanes, so a
+ * device's readings are still processed in order while different devices proceed in parallel,
+ * even on a topic with few partitions. A lane validates a record, queues it for the next group
+ * write and waits for the write before taking its next record, so a device's readings are stored
+ * in order while readings from all lanes share one {@code insertMany}. At most {@code maxInFlight}
+ * records are in flight, from dispatch until they are done with; past that the poll thread waits
+ * for the lanes to catch up.
+ * <p>
+ * A partition's offset is committed only up to its lowest record still in flight, on the poll
+ * thread before each new poll is dispatched. Revoked partitions, which includes every partition
+ * when the consumer closes, are given {@code drainTimeout} to finish before their offsets are
+ * committed. Records that fail are moved to a retry or dead-letter topic by
+ * {@link IotKafkaFailureRouter}. A record that could not be moved either is processed again on its
+ * lane after {@code redispatchDelay}, holding back the lane and its partition's commits, until it is
+ * done with or its partition is revoked; the partition's next owner then receives it again from the
+ * last commit.
+ */
+@Slf4j
+@Requires(property = "telemetry.consumer.mode", value = "KEY_ORDERED")
+@KafkaListener(groupId = "iot-data-processor", batch = true, offsetStrategy = OffsetStrategy.DISABLED)
+public class IotKafkaKeyOrderedConsumer implements ConsumerAware<String, byte[]>, ConsumerRebalanceListener {
+
+    private final IotDeviceDataService iotDeviceDataService;
+    private final IotTelemetryJson iotTelemetryJson;
+    private final IotKafkaFailureRouter iotKafkaFailureRouter;
+    private final ExecutorService[] lanes;
+    private final Semaphore inFlight;
+    private final Duration drainTimeout;
+    private final Duration redispatchDelay;
+    // Only touched on the poll thread, apart from the completions removed from each partition's pending set
+    private final Map<TopicPartition, PartitionProgress> partitions = new ConcurrentHashMap<>();
+
+    private Consumer<String, byte[]> kafkaConsumer;
+
+    public IotKafkaKeyOrderedConsumer(IotDeviceDataService iotDeviceDataService,
+            IotTelemetryJson iotTelemetryJson,
+            IotKafkaFailureRouter iotKafkaFailureRouter,
+            @Property(name = "telemetry.consumer.keyOrdered.lanes", defaultValue = "64") int lanes,
+            @Property(name = "telemetry.consumer.keyOrdered.maxInFlight", defaultValue = "10000") int maxInFlight,
+            @Property(name = "telemetry.consumer.keyOrdered.drainTimeout", defaultValue = "30s") Duration drainTimeout,
+            @Property(name = "telemetry.consumer.keyOrdered.redispatchDelay", defaultValue = "1s") Duration redispatchDelay) {
+        this.iotDeviceDataService = iotDeviceDataService;
+        this.iotTelemetryJson = iotTelemetryJson;
+        this.iotKafkaFailureRouter = iotKafkaFailureRouter;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.drainTimeout = drainTimeout;
+        this.redispatchDelay = redispatchDelay;
+        this.lanes = new ExecutorService[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("kafka-lane-" + i).factory());
+        }
+    }
+
+    @Override
+    public void setKafkaConsumer(Consumer<String, byte[]> kafkaConsumer) {
+        this.kafkaConsumer = kafkaConsumer;
+    }
+
+    @Topic("iot-device-data")
+    public void receive(List<ConsumerRecord<String, byte[]>> records) throws InterruptedException {
+        // Commit what the lanes finished since the last poll before queueing more
+        commit(partitions.keySet());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            String deviceId = IotKafkaHeaders.deviceId(record);
+            String key = deviceId != null ? deviceId : record.key();
+            PartitionProgress progress = partitions.computeIfAbsent(
+                    new TopicPartition(record.topic(), record.partition()), tp -> new PartitionProgress());
+            progress.dispatched(record.offset());
+            inFlight.acquire();
+            lane(key).execute(() -> {
+                try {
+                    handle(record, progress);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> revoked) {
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        for (TopicPartition tp : revoked) {
+            PartitionProgress progress = partitions.get(tp);
+            // Records waiting to be dispatched again are not waited for, the next owner receives them
+            while (progress != null && progress.hasRunning() && System.nanoTime() - deadline < 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (TopicPartition tp : revoked) {
+            PartitionProgress progress = partitions.get(tp);
+            if (progress != null) {
+                progress.revoked = true;
+            }
+        }
+        commit(revoked);
+        revoked.forEach(partitions::remove);
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> assigned) {
+        // Progress is tracked from the first record dispatched
+    }
+
+    @PreDestroy
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            try {
+                lane.awaitTermination(drainTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Processes the record until it is done with, on its lane, so the lane's later records wait for it.
+     * A record that could not be moved to a retry or dead-letter topic either is processed again after
+     * {@code redispatchDelay}; its offset stays pending meanwhile, so it is never committed past.
+     */
+    private void handle(ConsumerRecord<String, byte[]> record, PartitionProgress progress) {
+        while (!process(record)) {
+            if (progress.revoked) {
+                // Left uncommitted for the partition's next owner
+                return;
+            }
+            progress.stalled(record.offset());
+            log.warn("Processing message {}-{}@{} again in {}", record.topic(), record.partition(), record.offset(),
+                    redispatchDelay);
+            try {
+                Thread.sleep(redispatchDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                progress.resumed(record.offset());
+            }
+            if (progress.revoked) {
+                return;
+            }
+        }
+        progress.completed(record.offset());
+    }
+
+    /**
+     * Stores the record, or moves it to a retry or dead-letter topic.
+     *
+     * @return whether the record is done with
+     */
+    private boolean process(ConsumerRecord<String, byte[]> record) {
+        try {
+            iotDeviceDataService.ingestTelemetryAsync(IotKafkaRecords.toReading(record, iotTelemetryJson)).join();
+            return true;
+        } catch (Exception e) {
+            return route(record, e);
+        }
+    }
+
+    private boolean route(ConsumerRecord<String, byte[]> record, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        try {
+            iotKafkaFailureRouter.route(record, cause instanceof Exception e ? e : new RuntimeException(cause));
+            return true;
+        } catch (Exception routing) {
+            log.error("Failed to route failed message {}-{}@{}", record.topic(), record.partition(),
+                    record.offset(), routing);
+            return false;
+        }
+    }
+
+    private ExecutorService lane(String key) {
+        int hash = key != null ? key.hashCode() : 0;
+        // Spread the hash so keys that differ only in high bits still land on different lanes
+        return lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+    }
+
+    private void commit(Collection<TopicPartition> candidates) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition tp : candidates) {
+            PartitionProgress progress = partitions.get(tp);
+            if (progress != null) {
+                long offset = progress.committable();
+                if (offset > progress.committed) {
+                    offsets.put(tp, new OffsetAndMetadata(offset));
+                }
+            }
+        }
+        if (offsets.isEmpty()) {
+            return;
+        }
+        try {
+            kafkaConsumer.commitSync(offsets);
+            offsets.forEach((tp, offset) -> {
+                PartitionProgress progress = partitions.get(tp);
+                if (progress != null) {
+                    progress.committed = offset.offset();
+                }
+            });
+        } catch (Exception e) {
+            // Retried with the next poll; a rebalance in between redelivers from the last commit
+            log.warn("Failed to commit offsets {}", offsets, e);
+        }
+    }
+
+    private static final class PartitionProgress {
+        private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+        // Pending records waiting to be dispatched again
+        private final ConcurrentSkipListSet<Long> stalled = new ConcurrentSkipListSet<>();
+        private volatile boolean revoked;
+        // Poll thread only
+        private long next = -1;
+        private long committed = -1;
+
+        void dispatched(long offset) {
+            pending.add(offset);
+            next = offset + 1;
+        }
+
+        void completed(long offset) {
+            pending.remove(offset);
+        }
+
+        void stalled(long offset) {
+            stalled.add(offset);
+        }
+
+        void resumed(long offset) {
+            stalled.remove(offset);
+        }
+
+        /**
+         * Whether a record is being processed, as opposed to only waiting to be dispatched again.
+         */
+        boolean hasRunning() {
+            return pending.size() > stalled.size();
+        }
+
+        /**
+         * Returns the offset to commit: the lowest one still in flight, or one past the last dispatched.
+         */
+        long committable() {
+            Long lowest = pending.ceiling(Long.MIN_VALUE);
+            return lowest != null ? lowest : next;
+        }
+    }
+}
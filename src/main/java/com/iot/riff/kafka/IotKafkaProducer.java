@@ -3,10 +3,33 @@ package com.iot.riff.kafka;
 import io.micronaut.configuration.kafka.annotation.KafkaClient;
 import io.micronaut.configuration.kafka.annotation.KafkaKey;
 import io.micronaut.configuration.kafka.annotation.Topic;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.header.Headers;
+
+import java.util.concurrent.CompletableFuture;
 
 @KafkaClient
 public interface IotKafkaProducer {
 
     @Topic("iot-device-data")
     void send(@KafkaKey String deviceId, String message);
+
+    /**
+     * Completes once the broker has acknowledged the record.
+     */
+    @Topic("iot-device-data")
+    CompletableFuture<RecordMetadata> sendAsync(@KafkaKey String deviceId, String message);
+
+    /**
+     * Completes once the broker has acknowledged the record.
+     */
+    @Topic("iot-device-data")
+    CompletableFuture<RecordMetadata> sendAsync(@KafkaKey String deviceId, byte[] payload, Headers headers);
+
+    /**
+     * Sends to the given topic, used to move failed records to the retry and dead-letter topics.
+     * Completes once the broker has acknowledged the record.
+     */
+    CompletableFuture<RecordMetadata> sendTo(@Topic String topic, @KafkaKey String deviceId, byte[] payload,
+            Headers headers);
 }
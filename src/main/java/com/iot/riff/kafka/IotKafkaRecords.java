@@ -0,0 +1,27 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.util.IotTelemetryJson;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Turns telemetry records into readings, shared by the consumers of every mode.
+ */
+final class IotKafkaRecords {
+
+    private IotKafkaRecords() {
+    }
+
+    /**
+     * Parses a passthrough record, or a legacy envelope when the record has no device id header.
+     */
+    static TelemetryReading toReading(ConsumerRecord<String, byte[]> record, IotTelemetryJson iotTelemetryJson) {
+        String messageId = IotKafkaHeaders.messageId(record);
+        String deviceId = IotKafkaHeaders.deviceId(record);
+        if (deviceId != null) {
+            return new TelemetryReading(messageId, deviceId, iotTelemetryJson.parsePayload(record.value()));
+        }
+        // Legacy JSON envelope, still accepted while producers migrate to passthrough
+        return new TelemetryReading(messageId, record.key(), iotTelemetryJson.parseEnvelopePayload(record.value()));
+    }
+}
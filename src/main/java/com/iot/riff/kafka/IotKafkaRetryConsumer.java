@@ -0,0 +1,111 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.util.IotTelemetryJson;
+import io.micronaut.configuration.kafka.ConsumerAware;
+import io.micronaut.configuration.kafka.ConsumerRegistry;
+import io.micronaut.configuration.kafka.annotation.KafkaListener;
+import io.micronaut.configuration.kafka.annotation.OffsetStrategy;
+import io.micronaut.configuration.kafka.annotation.Topic;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds records on the retry tiers of {@link IotKafkaFailureRouter} back through the telemetry
+ * service once they are due, without blocking on the ones that are not.
+ * <p>
+ * Every record of a tier waits the same delay, so when a partition reaches a record that is not
+ * due yet, neither is anything behind it: the partition is rewound to that record and paused
+ * until its {@code retryAt}, while other partitions and tiers carry on. Offsets are committed
+ * for the records handled in each poll. A record that fails again moves to the next tier or to
+ * the dead-letter topic.
+ */
+@Slf4j
+@KafkaListener(groupId = "iot-data-retry", clientId = IotKafkaRetryConsumer.CLIENT_ID, batch = true,
+        offsetStrategy = OffsetStrategy.DISABLED)
+public class IotKafkaRetryConsumer implements ConsumerAware<String, byte[]> {
+
+    static final String CLIENT_ID = "iot-data-retry";
+
+    private final IotDeviceDataService iotDeviceDataService;
+    private final IotTelemetryJson iotTelemetryJson;
+    private final IotKafkaFailureRouter iotKafkaFailureRouter;
+    private final ConsumerRegistry consumerRegistry;
+    private final ScheduledExecutorService resumer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofVirtual().name("kafka-retry-resumer").factory());
+
+    private Consumer<String, byte[]> kafkaConsumer;
+
+    public IotKafkaRetryConsumer(IotDeviceDataService iotDeviceDataService,
+            IotTelemetryJson iotTelemetryJson,
+            IotKafkaFailureRouter iotKafkaFailureRouter,
+            ConsumerRegistry consumerRegistry) {
+        this.iotDeviceDataService = iotDeviceDataService;
+        this.iotTelemetryJson = iotTelemetryJson;
+        this.iotKafkaFailureRouter = iotKafkaFailureRouter;
+        this.consumerRegistry = consumerRegistry;
+    }
+
+    @Override
+    public void setKafkaConsumer(Consumer<String, byte[]> kafkaConsumer) {
+        this.kafkaConsumer = kafkaConsumer;
+    }
+
+    @Topic(patterns = IotKafkaFailureRouter.RETRY_TOPIC_PREFIX + "[0-9]+")
+    public void receive(List<ConsumerRecord<String, byte[]>> records) {
+        long now = System.currentTimeMillis();
+        Map<TopicPartition, OffsetAndMetadata> handled = new HashMap<>();
+        Set<TopicPartition> waiting = new HashSet<>();
+        for (ConsumerRecord<String, byte[]> record : records) {
+            TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+            if (waiting.contains(tp)) {
+                continue;
+            }
+            long retryAt = IotKafkaHeaders.retryAt(record);
+            if (retryAt > now) {
+                waitUntil(tp, record.offset(), retryAt - now);
+                waiting.add(tp);
+                continue;
+            }
+            retry(record);
+            handled.put(tp, new OffsetAndMetadata(record.offset() + 1));
+        }
+        if (!handled.isEmpty()) {
+            kafkaConsumer.commitSync(handled);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        resumer.shutdownNow();
+    }
+
+    private void retry(ConsumerRecord<String, byte[]> record) {
+        try {
+            iotDeviceDataService.ingestTelemetry(IotKafkaRecords.toReading(record, iotTelemetryJson));
+            log.debug("Retried record {}-{}@{}", record.topic(), record.partition(), record.offset());
+        } catch (Exception e) {
+            iotKafkaFailureRouter.route(record, e);
+        }
+    }
+
+    private void waitUntil(TopicPartition tp, long offset, long delayMillis) {
+        // Rewind so the record is fetched again once the partition is resumed
+        kafkaConsumer.seek(tp, offset);
+        consumerRegistry.pause(CLIENT_ID, List.of(tp));
+        resumer.schedule(() -> consumerRegistry.resume(CLIENT_ID, List.of(tp)), delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
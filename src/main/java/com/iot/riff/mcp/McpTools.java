@@ -1,20 +1,26 @@
 package com.iot.riff.mcp;
 
+import com.iot.riff.kafka.IotKafkaDeadLetters;
+import com.iot.riff.mqtt.IotMqttTopTalkers;
+import com.iot.riff.service.IotDeviceCommandService;
 import com.iot.riff.service.IotDeviceDataService;
 import com.iot.riff.service.IotDeviceModelService;
 import com.iot.riff.service.IotDeviceService;
+import com.iot.riff.service.dal.mongo.IotTelemetryTimeSeriesMigration;
 import com.iot.riff.service.request.*;
 import com.iot.riff.service.response.*;
+import com.iot.riff.service.domain.ContinuationPage;
 import com.iot.riff.service.domain.DeviceData;
 import com.iot.riff.service.domain.IotDeviceId;
 import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.RateLimit;
 import io.micronaut.mcp.annotations.Tool;
 import io.micronaut.mcp.annotations.ToolArg;
 import jakarta.annotation.Nullable;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -27,6 +33,14 @@ public class McpTools {
         IotDeviceModelService iotDeviceModelService;
         @Inject
         IotDeviceDataService iotDeviceDataService;
+        @Inject
+        IotDeviceCommandService iotDeviceCommandService;
+        @Inject
+        IotMqttTopTalkers iotMqttTopTalkers;
+        @Inject
+        IotKafkaDeadLetters iotKafkaDeadLetters;
+        @Inject
+        IotTelemetryTimeSeriesMigration iotTelemetryTimeSeriesMigration;
 
         // Device Tools
 
@@ -47,17 +61,18 @@ public class McpTools {
                 return iotDeviceService.get(new IotDeviceGetRequest(UUID.randomUUID().toString(), new IotDeviceId(id)));
         }
 
-        @Tool(description = "Lists IoT devices with optional filters. Supports pagination and sorting to manage large numbers of devices.")
+        @Tool(description = "Lists IoT devices with optional filters. Supports pagination and sorting to manage large numbers of devices. Pass the returned continuationToken to get the next page; it is empty on the last page.")
         public IotDeviceListResponse listDevices(
                         @ToolArg(description = "Filter by device name (optional)") @Nullable String name,
                         @ToolArg(description = "Filter by device model identifier (optional)") @Nullable String iotDeviceModelId,
                         @ToolArg(description = "Maximum number of results to return") int limit,
-                        @ToolArg(description = "The page index to retrieve (0-based)") int page,
+                        @ToolArg(description = "The page index to retrieve (0-based), ignored with a continuationToken") int page,
                         @ToolArg(description = "Sort direction: 'asc' or 'desc'") String sort,
-                        @ToolArg(description = "The field name to sort by (e.g., 'created_at')") String sortBy) {
+                        @ToolArg(description = "The field name to sort by (e.g., 'created_at')") String sortBy,
+                        @ToolArg(description = "The continuationToken of the previous page, with the same sort (optional)") @Nullable String continuationToken) {
                 return iotDeviceService
                                 .list(new IotDeviceListRequest(UUID.randomUUID().toString(), name, iotDeviceModelId,
-                                                limit, page, sort, sortBy));
+                                                limit, page, sort, sortBy, continuationToken));
         }
 
         @Tool(description = "Permanently removes an IoT device from the system. Note: This action is irreversible and stops the device from connecting.")
@@ -67,6 +82,24 @@ public class McpTools {
                 return "Device " + id + " deleted successfully";
         }
 
+        @Tool(description = "Generates a new MQTT password for an IoT device in Vault. The device must reconnect with the new password.")
+        public String rotateDeviceCredentials(
+                        @ToolArg(description = "The unique identifier of the device") String id) {
+                iotDeviceService.rotateCredentials(
+                                new IotDeviceRotateCredentialsRequest(UUID.randomUUID().toString(), new IotDeviceId(id)));
+                return "Credentials for device " + id + " rotated successfully";
+        }
+
+        @Tool(description = "Sends a command to an IoT device over MQTT on topic devices/<id>/commands/<command>. Offline devices are rejected or the command is parked until they reconnect, depending on configuration.")
+        public IotDeviceCommandSendResponse sendDeviceCommand(
+                        @ToolArg(description = "The unique identifier of the device") String id,
+                        @ToolArg(description = "The command name, used as the last topic level (e.g., 'reboot')") String command,
+                        @ToolArg(description = "Command arguments, sent to the device as a JSON object (optional)") @Nullable Map<String, Object> payload,
+                        @ToolArg(description = "MQTT QoS for the command: 0 (at most once) or 1 (at least once)") int qos) {
+                return iotDeviceCommandService.send(new IotDeviceCommandSendRequest(UUID.randomUUID().toString(),
+                                new IotDeviceId(id), command, payload, qos));
+        }
+
         // Model Tools
 
         @Tool(description = "Defines a new IoT device model, which acts as a template for devices. Includes validation schemas for metadata and telemetry.")
@@ -74,9 +107,11 @@ public class McpTools {
                         @ToolArg(description = "A human-readable name for the model") String name,
                         @ToolArg(description = "A brief description of the model") String description,
                         @ToolArg(description = "JSON Schema for device metadata") Map<String, Object> metadataSchema,
-                        @ToolArg(description = "JSON Schema for telemetry payloads") Map<String, Object> telemetrySchema) {
+                        @ToolArg(description = "JSON Schema for telemetry payloads") Map<String, Object> telemetrySchema,
+                        @ToolArg(description = "PUBLISH rate limit of each device, as messagesPerSecond and burst (optional)") @Nullable RateLimit deviceRateLimit,
+                        @ToolArg(description = "PUBLISH rate limit shared by all devices of the model, as messagesPerSecond and burst (optional)") @Nullable RateLimit modelRateLimit) {
                 return iotDeviceModelService.create(new IotDeviceModelCreateRequest(UUID.randomUUID().toString(), name,
-                                description, metadataSchema, telemetrySchema));
+                                description, metadataSchema, telemetrySchema, deviceRateLimit, modelRateLimit));
         }
 
         @Tool(description = "Retrieves the configuration, including metadata and telemetry schemas, for a specific device model.")
@@ -87,16 +122,17 @@ public class McpTools {
                                                 new IotDeviceModelId(id)));
         }
 
-        @Tool(description = "Lists all available device models. Essential for discovering valid model IDs when creating new devices.")
+        @Tool(description = "Lists all available device models. Essential for discovering valid model IDs when creating new devices. Pass the returned continuationToken to get the next page; it is empty on the last page.")
         public IotDeviceModelListResponse listModels(
                         @ToolArg(description = "Filter by model name (optional)") @Nullable String name,
                         @ToolArg(description = "Maximum number of results to return") int limit,
-                        @ToolArg(description = "The page index to retrieve (0-based)") int page,
+                        @ToolArg(description = "The page index to retrieve (0-based), ignored with a continuationToken") int page,
                         @ToolArg(description = "Sort direction: 'asc' or 'desc'") String sort,
-                        @ToolArg(description = "The field name to sort by") String sortBy) {
+                        @ToolArg(description = "The field name to sort by") String sortBy,
+                        @ToolArg(description = "The continuationToken of the previous page, with the same sort (optional)") @Nullable String continuationToken) {
                 return iotDeviceModelService
                                 .list(new IotDeviceModelListRequest(UUID.randomUUID().toString(), name, limit, page,
-                                                sort, sortBy));
+                                                sort, sortBy, continuationToken));
         }
 
         @Tool(description = "Removes a device model definition. Failure occurs if any existing devices are still associated with this model.")
@@ -110,13 +146,45 @@ public class McpTools {
 
         // Data Tools
 
-        @Tool(description = "Searches historical telemetry data for a specific device within a time range. Results are paginated.")
-        public List<DeviceData> searchData(
+        @Tool(description = "Searches historical telemetry data for a specific device within a time range, newest first. Results are paginated: pass the returned continuationToken to get the next page; it is empty on the last page.")
+        public ContinuationPage<DeviceData> searchData(
                         @ToolArg(description = "The unique UUID of the device") String deviceId,
                         @ToolArg(description = "Start time in ISO-8601 format (e.g., 2023-01-01T00:00:00Z)") String start,
                         @ToolArg(description = "End time in ISO-8601 format (e.g., 2023-01-02T00:00:00Z)") String end,
                         @ToolArg(description = "Maximum number of results to return") int limit,
-                        @ToolArg(description = "The page index to retrieve (0-based)") int page) {
-                return iotDeviceDataService.searchData(deviceId, Instant.parse(start), Instant.parse(end), limit, page);
+                        @ToolArg(description = "The page index to retrieve (0-based), ignored with a continuationToken") int page,
+                        @ToolArg(description = "The continuationToken of the previous page (optional)") @Nullable String continuationToken) {
+                if (continuationToken == null && page > 0) {
+                        return new ContinuationPage<>(iotDeviceDataService.searchData(deviceId, Instant.parse(start),
+                                        Instant.parse(end), limit, page), null);
+                }
+                return iotDeviceDataService.searchData(deviceId, Instant.parse(start), Instant.parse(end), limit,
+                                continuationToken);
+        }
+
+        @Tool(description = "Lists the devices sending the most MQTT messages and payload bytes over a recent window. Counts are estimates that may be slightly high.")
+        public IotMqttTopTalkers.Window getTopTalkers(
+                        @ToolArg(description = "Window length in ISO-8601 format (e.g., PT5M), defaults to the shortest configured window (optional)") @Nullable String window,
+                        @ToolArg(description = "Maximum number of devices to return per ranking") int limit) {
+                Duration duration = window != null ? Duration.parse(window) : iotMqttTopTalkers.windows().get(0);
+                return iotMqttTopTalkers.top(duration, limit);
+        }
+
+        @Tool(description = "Summarizes the telemetry dead-letter topic: how many records it holds, how many are not replayed yet, and how many of the pending ones failed with each failure code (e.g. DEVICE_NOT_FOUND, SCHEMA_INVALID, STORE_FAILED).")
+        public IotKafkaDeadLetters.Summary getDeadLetters(
+                        @ToolArg(description = "Maximum number of pending records to read when counting failure codes") int scanLimit) {
+                return iotKafkaDeadLetters.inspect(scanLimit);
+        }
+
+        @Tool(description = "Replays pending telemetry dead letters, oldest first, by sending them back to the ingest topic. Records that fail again return to the retry tiers.")
+        public String replayDeadLetters(
+                        @ToolArg(description = "Maximum number of records to replay") int limit) {
+                return "Replayed " + iotKafkaDeadLetters.replay(limit) + " dead-lettered records";
+        }
+
+        @Tool(description = "Moves stored telemetry into the time-series layout of device_data, in batches. Requires telemetry.storage.layout TIME_SERIES; call again until it reports the migration complete. Until then searches also read the readings not moved yet.")
+        public IotTelemetryTimeSeriesMigration.Progress migrateTelemetryToTimeSeries(
+                        @ToolArg(description = "Maximum number of readings to move in this call") int limit) {
+                return iotTelemetryTimeSeriesMigration.migrate(limit);
         }
 }
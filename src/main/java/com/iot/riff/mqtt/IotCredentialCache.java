@@ -0,0 +1,118 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.exception.IotException;
+import com.iot.riff.service.util.IotLoadingCache;
+import com.iot.riff.vault.IotVaultService;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of MQTT device secrets, and the model each device belongs to, keyed by device id.
+ * <p>
+ * Loads go to the device store and Vault on a virtual-thread executor, through an
+ * {@link IotLoadingCache}: concurrent misses for the same device share one in-flight load,
+ * entries expire after a TTL, the oldest entries are evicted once the cache grows past its
+ * maximum size, and a load in flight when its device is invalidated is discarded for a
+ * fresh one, so a rotated secret is never cached stale.
+ */
+@Slf4j
+@Singleton
+public class IotCredentialCache {
+
+    private final IotDeviceDal iotDeviceDal;
+    private final IotVaultService iotVaultService;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final IotLoadingCache<String, Credentials> credentials;
+
+    @Inject
+    public IotCredentialCache(IotDeviceDal iotDeviceDal, IotVaultService iotVaultService,
+            @Property(name = "mqtt.credentialCache.ttl", defaultValue = "5m") Duration ttl,
+            @Property(name = "mqtt.credentialCache.maxSize", defaultValue = "100000") int maxSize) {
+        this(iotDeviceDal, iotVaultService, ttl, maxSize, System::nanoTime);
+    }
+
+    /**
+     * @param ticker the time in nanoseconds that entries expire by
+     */
+    IotCredentialCache(IotDeviceDal iotDeviceDal, IotVaultService iotVaultService, Duration ttl, int maxSize,
+            LongSupplier ticker) {
+        this.iotDeviceDal = iotDeviceDal;
+        this.iotVaultService = iotVaultService;
+        this.credentials = new IotLoadingCache<>(maxSize, ttl, ttl, ticker);
+    }
+
+    /**
+     * Returns the device secret, loading it at most once per device while a load is in flight.
+     * Completes with {@code null} when the device has no MQTT credentials.
+     */
+    public CompletableFuture<String> getSecret(String deviceId) {
+        return getCredentials(deviceId).thenApply(credentials -> credentials != null ? credentials.secret() : null);
+    }
+
+    /**
+     * Returns the model of the device, which is loaded along with its secret.
+     */
+    public CompletableFuture<String> getModelId(String deviceId) {
+        return getCredentials(deviceId).thenApply(credentials -> credentials != null ? credentials.modelId() : null);
+    }
+
+    private CompletableFuture<Credentials> getCredentials(String deviceId) {
+        return credentials.getAsync(deviceId,
+                id -> CompletableFuture.supplyAsync(() -> readCredentials(id), executor));
+    }
+
+    public void invalidate(String deviceId) {
+        credentials.invalidate(deviceId);
+    }
+
+    public void invalidateAll() {
+        credentials.invalidateAll();
+    }
+
+    public Stats stats() {
+        IotLoadingCache.Stats stats = credentials.stats();
+        // Devices without credentials are remembered like any other
+        return new Stats(stats.size(), stats.hits() + stats.negativeHits(), stats.misses(), stats.loadSuccesses(),
+                stats.loadFailures(), stats.averageLoadMillis(), stats.evictions());
+    }
+
+    private Credentials readCredentials(String deviceId) {
+        IotDevice iotDevice = iotDeviceDal.get(deviceId);
+        if (iotDevice == null || iotDevice.mqttConnectionDetails() == null) {
+            log.warn("No MQTT connection details found for device: {}", deviceId);
+            return null;
+        }
+        try {
+            String modelId = iotDevice.iotDeviceModelId() != null ? iotDevice.iotDeviceModelId().id() : null;
+            return new Credentials(iotVaultService.readSecret(iotDevice.mqttConnectionDetails().secretPath()), modelId);
+        } catch (Exception e) {
+            throw new IotException("Unable to read secret for device: " + deviceId, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+    private record Credentials(String secret, String modelId) {
+    }
+
+    @Serdeable
+    public record Stats(int size, long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+            double averageLoadMillis, long evictionCount) {
+    }
+}
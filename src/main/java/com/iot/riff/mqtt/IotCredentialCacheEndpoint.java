@@ -0,0 +1,22 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes hit/miss and load latency figures of the {@link IotCredentialCache} at {@code /credential-cache}.
+ */
+@Endpoint(id = "credential-cache")
+public class IotCredentialCacheEndpoint {
+
+    private final IotCredentialCache iotCredentialCache;
+
+    public IotCredentialCacheEndpoint(IotCredentialCache iotCredentialCache) {
+        this.iotCredentialCache = iotCredentialCache;
+    }
+
+    @Read
+    public IotCredentialCache.Stats stats() {
+        return iotCredentialCache.stats();
+    }
+}
@@ -0,0 +1,39 @@
+package com.iot.riff.mqtt;
+
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Verifies MQTT CONNECT credentials against the device secret stored in Vault.
+ * <p>
+ * Secrets come from the {@link IotCredentialCache}, whose loads run on a
+ * virtual-thread executor and never on a Netty event loop.
+ */
+@Slf4j
+@Singleton
+public class IotMqttAuthenticator {
+
+    private final IotCredentialCache iotCredentialCache;
+
+    public IotMqttAuthenticator(IotCredentialCache iotCredentialCache) {
+        this.iotCredentialCache = iotCredentialCache;
+    }
+
+    /**
+     * Completes with {@code true} when the password matches the device secret.
+     * Lookup failures complete with {@code false} rather than exceptionally.
+     */
+    public CompletableFuture<Boolean> authenticate(String deviceId, String password) {
+        if (deviceId == null || password == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return iotCredentialCache.getSecret(deviceId)
+                .thenApply(secret -> secret != null && secret.equals(password))
+                .exceptionally(e -> {
+                    log.error("Authentication failed for device: {} due to error", deviceId, e);
+                    return false;
+                });
+    }
+}
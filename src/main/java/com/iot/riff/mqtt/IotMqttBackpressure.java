@@ -0,0 +1,111 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pauses reading on every MQTT connection while Kafka falls behind.
+ * <p>
+ * Sends still awaiting a broker acknowledgement are counted together with their
+ * payload bytes. Crossing either high watermark fires {@link Event#PAUSE} on all
+ * registered channels, and once both drop to their low watermarks {@link Event#RESUME}
+ * is fired. Keeping the high byte watermark below the producer's {@code buffer.memory}
+ * means {@code send} never blocks the event loop on a full producer buffer.
+ * <p>
+ * The events only signal a change: they are fired from whichever thread crossed the watermark,
+ * so a channel may see them out of order and must check {@link #isPaused()} when one arrives.
+ */
+@Slf4j
+@Singleton
+public class IotMqttBackpressure {
+
+    public enum Event {
+        PAUSE, RESUME
+    }
+
+    private final long highWatermarkSends;
+    private final long lowWatermarkSends;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+
+    private final ChannelGroup channels = new DefaultChannelGroup("mqtt-publishers", GlobalEventExecutor.INSTANCE);
+    private final AtomicLong pendingSends = new AtomicLong();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean paused = new AtomicBoolean();
+
+    private volatile long pausedSince;
+    private volatile int channelsPaused;
+    private final LongAdder pauseCount = new LongAdder();
+    private final LongAdder totalPausedNanos = new LongAdder();
+    private final LongAdder totalChannelPausedNanos = new LongAdder();
+
+    public IotMqttBackpressure(
+            @Property(name = "mqtt.backpressure.highWatermarkSends", defaultValue = "10000") long highWatermarkSends,
+            @Property(name = "mqtt.backpressure.lowWatermarkSends", defaultValue = "5000") long lowWatermarkSends,
+            @Property(name = "mqtt.backpressure.highWatermarkBytes", defaultValue = "16777216") long highWatermarkBytes,
+            @Property(name = "mqtt.backpressure.lowWatermarkBytes", defaultValue = "8388608") long lowWatermarkBytes) {
+        this.highWatermarkSends = highWatermarkSends;
+        this.lowWatermarkSends = lowWatermarkSends;
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = lowWatermarkBytes;
+    }
+
+    /**
+     * Tracks the channel until it closes so it can be paused and resumed.
+     */
+    public void register(Channel channel) {
+        channels.add(channel);
+    }
+
+    public boolean isPaused() {
+        return paused.get();
+    }
+
+    public void onSend(int bytes) {
+        long sends = pendingSends.incrementAndGet();
+        long buffered = pendingBytes.addAndGet(bytes);
+        if ((sends > highWatermarkSends || buffered > highWatermarkBytes) && paused.compareAndSet(false, true)) {
+            pausedSince = System.nanoTime();
+            channelsPaused = channels.size();
+            pauseCount.increment();
+            log.warn("Kafka backpressure: pausing {} MQTT connections, pending sends: {}, pending bytes: {}",
+                    channelsPaused, sends, buffered);
+            channels.forEach(channel -> channel.pipeline().fireUserEventTriggered(Event.PAUSE));
+        }
+    }
+
+    public void onComplete(int bytes) {
+        long sends = pendingSends.decrementAndGet();
+        long buffered = pendingBytes.addAndGet(-bytes);
+        if (sends <= lowWatermarkSends && buffered <= lowWatermarkBytes && paused.compareAndSet(true, false)) {
+            long pausedNanos = System.nanoTime() - pausedSince;
+            totalPausedNanos.add(pausedNanos);
+            totalChannelPausedNanos.add(pausedNanos * channelsPaused);
+            log.info("Kafka backpressure: resuming MQTT connections after {} ms", pausedNanos / 1_000_000);
+            channels.forEach(channel -> channel.pipeline().fireUserEventTriggered(Event.RESUME));
+        }
+    }
+
+    public Stats stats() {
+        long currentPausedNanos = paused.get() ? System.nanoTime() - pausedSince : 0;
+        return new Stats(paused.get(), pendingSends.get(), pendingBytes.get(), channels.size(), pauseCount.sum(),
+                (totalPausedNanos.sum() + currentPausedNanos) / 1_000_000,
+                (totalChannelPausedNanos.sum() + currentPausedNanos * (paused.get() ? channelsPaused : 0))
+                        / 1_000_000);
+    }
+
+    @Serdeable
+    public record Stats(boolean paused, long pendingSends, long pendingBytes, int connections, long pauseCount,
+            long totalPausedMillis, long totalChannelPausedMillis) {
+    }
+}
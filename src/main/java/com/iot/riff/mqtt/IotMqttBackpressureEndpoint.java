@@ -0,0 +1,22 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes pending Kafka sends and how long MQTT connections were paused at {@code /mqtt-backpressure}.
+ */
+@Endpoint(id = "mqtt-backpressure")
+public class IotMqttBackpressureEndpoint {
+
+    private final IotMqttBackpressure iotMqttBackpressure;
+
+    public IotMqttBackpressureEndpoint(IotMqttBackpressure iotMqttBackpressure) {
+        this.iotMqttBackpressure = iotMqttBackpressure;
+    }
+
+    @Read
+    public IotMqttBackpressure.Stats stats() {
+        return iotMqttBackpressure.stats();
+    }
+}
@@ -1,6 +1,7 @@
 package com.iot.riff.mqtt;
 
 import io.micronaut.context.annotation.Property;
+import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
 @Singleton
@@ -8,14 +9,40 @@ public class IotMqttConfig {
     private final String host;
     private final int port;
     private final String secretPath;
+    private final int inflightWindow;
+    private final IotMqttTransport transport;
+    private final boolean reusePort;
+    private final int acceptors;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int backlog;
 
+    @Inject
     public IotMqttConfig(@Property(name = "mqtt.host") String host,
             @Property(name = "mqtt.port") int port,
-            @Property(name = "mqtt.secretPath") String secretPath) {
+            @Property(name = "mqtt.secretPath") String secretPath,
+            @Property(name = "mqtt.inflightWindow", defaultValue = "16") int inflightWindow,
+            @Property(name = "mqtt.transport", defaultValue = "AUTO") IotMqttTransport transport,
+            @Property(name = "mqtt.reusePort", defaultValue = "false") boolean reusePort,
+            @Property(name = "mqtt.acceptors", defaultValue = "1") int acceptors,
+            @Property(name = "mqtt.bossThreads", defaultValue = "1") int bossThreads,
+            @Property(name = "mqtt.workerThreads", defaultValue = "0") int workerThreads,
+            @Property(name = "mqtt.backlog", defaultValue = "128") int backlog) {
 
         this.host = host;
         this.port = port;
         this.secretPath = secretPath;
+        this.inflightWindow = inflightWindow;
+        this.transport = transport;
+        this.reusePort = reusePort;
+        this.acceptors = acceptors;
+        this.bossThreads = bossThreads;
+        this.workerThreads = workerThreads;
+        this.backlog = backlog;
+    }
+
+    public IotMqttConfig(String host, int port, String secretPath, int inflightWindow) {
+        this(host, port, secretPath, inflightWindow, IotMqttTransport.NIO, false, 1, 1, 0, 128);
     }
 
     public String getHost() {
@@ -29,4 +56,45 @@ public class IotMqttConfig {
     public String getSecretPath() {
         return secretPath;
     }
+
+    /**
+     * Maximum number of QoS 1 PUBLISH packets per session awaiting a Kafka acknowledgement.
+     */
+    public int getInflightWindow() {
+        return inflightWindow;
+    }
+
+    public IotMqttTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Whether acceptor channels bind with {@code SO_REUSEPORT}, letting the kernel spread
+     * incoming connections across them.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Number of server channels bound to the port; only more than one when {@link #isReusePort()}.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    /**
+     * Worker event loop threads, {@code 0} for Netty's default of twice the available processors.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
 }
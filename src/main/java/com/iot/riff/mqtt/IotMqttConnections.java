@@ -0,0 +1,218 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelId;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of open MQTT connections that also reaps the dead ones.
+ * <p>
+ * A connection must send CONNECT within {@code mqtt.keepalive.connectTimeout}, and after
+ * that must not stay silent for longer than the negotiated keepalive times
+ * {@code mqtt.keepalive.factor} (1.5 per the MQTT spec). Every connection has a single
+ * timeout on one shared {@link HashedWheelTimer}; when it fires it compares against the
+ * time of the last read and either closes the connection or re-arms for the remainder, so
+ * reads never touch the timer. Connections whose reading is paused by the broker are not
+ * reaped, their PINGREQs are simply not read yet.
+ */
+@Slf4j
+@Singleton
+public class IotMqttConnections {
+
+    private static final int TOP_BUFFERED = 20;
+
+    private final long connectTimeoutNanos;
+    private final double keepAliveFactor;
+    private final Timer timer;
+    private final Map<ChannelId, Connection> connections = new ConcurrentHashMap<>();
+    private final LongAdder reapedCount = new LongAdder();
+
+    public IotMqttConnections(
+            @Property(name = "mqtt.keepalive.connectTimeout", defaultValue = "30s") Duration connectTimeout,
+            @Property(name = "mqtt.keepalive.factor", defaultValue = "1.5") double keepAliveFactor,
+            @Property(name = "mqtt.keepalive.tickDuration", defaultValue = "200ms") Duration tickDuration) {
+        this.connectTimeoutNanos = connectTimeout.toNanos();
+        this.keepAliveFactor = keepAliveFactor;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("mqtt-keepalive", true),
+                tickDuration.toMillis(), TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Tracks a newly accepted channel and starts its CONNECT timeout.
+     */
+    public Connection register(Channel channel) {
+        Connection connection = new Connection(channel);
+        connections.put(channel.id(), connection);
+        connection.schedule(connectTimeoutNanos);
+        return connection;
+    }
+
+    /**
+     * Replaces the CONNECT timeout with the keepalive negotiated by the device, {@code 0} disables it.
+     */
+    public void onConnect(Connection connection, String deviceId, int keepAliveSeconds) {
+        connection.deviceId = deviceId;
+        connection.cancel();
+        if (keepAliveSeconds > 0) {
+            connection.schedule((long) (TimeUnit.SECONDS.toNanos(keepAliveSeconds) * keepAliveFactor));
+        } else {
+            connection.idleTimeoutNanos = 0;
+        }
+    }
+
+    public void unregister(Connection connection) {
+        connection.cancel();
+        connections.remove(connection.channel.id());
+    }
+
+    public Stats stats() {
+        long pendingWriteBytes = 0;
+        long queuedInboundBytes = 0;
+        int authenticated = 0;
+        for (Connection connection : connections.values()) {
+            pendingWriteBytes += connection.pendingWriteBytes();
+            queuedInboundBytes += connection.queuedInboundBytes;
+            if (connection.deviceId != null) {
+                authenticated++;
+            }
+        }
+        List<ConnectionInfo> topBuffered = connections.values().stream()
+                .map(Connection::info)
+                .sorted(Comparator.comparingLong(ConnectionInfo::bufferedBytes).reversed())
+                .limit(TOP_BUFFERED)
+                .toList();
+        return new Stats(connections.size(), authenticated, reapedCount.sum(), pendingWriteBytes, queuedInboundBytes,
+                allocatorDirectMemory(), PlatformDependent.usedDirectMemory(), jvmDirectMemory(), topBuffered);
+    }
+
+    @PreDestroy
+    public void close() {
+        timer.stop();
+    }
+
+    private static long allocatorDirectMemory() {
+        if (ByteBufAllocator.DEFAULT instanceof ByteBufAllocatorMetricProvider provider) {
+            return provider.metric().usedDirectMemory();
+        }
+        return -1;
+    }
+
+    private static long jvmDirectMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bookkeeping of one connection; read times and queued bytes are written on its event loop.
+     */
+    public final class Connection {
+        private final Channel channel;
+        private final long connectedAt = System.currentTimeMillis();
+        private volatile String deviceId;
+        private volatile long lastReadNanos = System.nanoTime();
+        private volatile long queuedInboundBytes;
+        private volatile long idleTimeoutNanos;
+        private volatile Timeout timeout;
+
+        private Connection(Channel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Records that a packet was read, which proves the device is still there.
+         */
+        public void touch() {
+            lastReadNanos = System.nanoTime();
+        }
+
+        /**
+         * Adjusts the bytes of packets held back while reading is paused.
+         */
+        public void addQueuedInboundBytes(long bytes) {
+            queuedInboundBytes += bytes;
+        }
+
+        private void schedule(long idleNanos) {
+            idleTimeoutNanos = idleNanos;
+            timeout = timer.newTimeout(this::expire, idleNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void cancel() {
+            Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void expire(Timeout expired) {
+            if (expired.isCancelled() || !channel.isActive()) {
+                return;
+            }
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            long limit = idleTimeoutNanos;
+            if (idleNanos < limit || !channel.config().isAutoRead()) {
+                long remaining = limit - idleNanos;
+                timeout = timer.newTimeout(this::expire, remaining > 0 ? remaining : limit, TimeUnit.NANOSECONDS);
+                return;
+            }
+            reapedCount.increment();
+            log.info("Closing MQTT connection {} of device {}, silent for {} ms", channel.remoteAddress(), deviceId,
+                    TimeUnit.NANOSECONDS.toMillis(idleNanos));
+            channel.close();
+        }
+
+        private long pendingWriteBytes() {
+            ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+            return outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0;
+        }
+
+        private ConnectionInfo info() {
+            long pendingWriteBytes = pendingWriteBytes();
+            return new ConnectionInfo(String.valueOf(channel.remoteAddress()), deviceId, connectedAt,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos), pendingWriteBytes,
+                    queuedInboundBytes, pendingWriteBytes + queuedInboundBytes);
+        }
+    }
+
+    @Serdeable
+    public record ConnectionInfo(String remoteAddress, String deviceId, long connectedAt, long idleMillis,
+            long pendingWriteBytes, long queuedInboundBytes, long bufferedBytes) {
+    }
+
+    /**
+     * @param allocatorDirectMemory direct memory held by Netty's default allocator, including pooled free space
+     * @param nettyDirectMemory direct memory Netty allocated without the JDK's accounting, {@code -1} if untracked
+     * @param jvmDirectMemory direct memory of {@link java.nio.ByteBuffer}s the JDK accounts for
+     */
+    @Serdeable
+    public record Stats(int connections, int authenticatedConnections, long reapedCount, long pendingWriteBytes,
+            long queuedInboundBytes, long allocatorDirectMemory, long nettyDirectMemory, long jvmDirectMemory,
+            List<ConnectionInfo> topBufferedConnections) {
+    }
+}
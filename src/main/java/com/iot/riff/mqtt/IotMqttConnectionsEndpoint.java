@@ -0,0 +1,23 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes live connections, their buffered bytes and direct memory in use of the
+ * {@link IotMqttConnections} at {@code /mqtt-connections}.
+ */
+@Endpoint(id = "mqtt-connections")
+public class IotMqttConnectionsEndpoint {
+
+    private final IotMqttConnections iotMqttConnections;
+
+    public IotMqttConnectionsEndpoint(IotMqttConnections iotMqttConnections) {
+        this.iotMqttConnections = iotMqttConnections;
+    }
+
+    @Read
+    public IotMqttConnections.Stats stats() {
+        return iotMqttConnections.stats();
+    }
+}
@@ -0,0 +1,477 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.domain.CommandStatus;
+import com.iot.riff.service.exception.IotException;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers commands from the cloud to connected devices.
+ * <p>
+ * Authenticated connections are registered by device id. Each one gets a bounded
+ * outbound queue that any thread may fill; the first command of a burst schedules a
+ * single drain on the channel's event loop, which writes everything queued so far and
+ * flushes once, so a burst to one device costs one syscall. The drain stops while the
+ * channel is not writable or the QoS 1 in-flight window is full and resumes once it is.
+ * <p>
+ * Commands for a device that is not connected are rejected or parked, according to
+ * {@code mqtt.downlink.offlinePolicy}. Parked commands, and with the park policy also
+ * commands still queued or unacknowledged when a connection closes, are handed to the
+ * next connection of the device unless they expired first.
+ * <p>
+ * Devices connecting with {@code cleanSession=false} get a persistent session instead: their
+ * QoS 1 commands are appended to the {@link IotMqttSessionStore} whether they are online or
+ * not, read back from it as the in-flight window allows and only dropped from it once the
+ * device acknowledges them, across reconnects and restarts.
+ * <p>
+ * Every QoS 1 command counts its deliveries, and the session store remembers which stored
+ * commands were written, so any attempt after the first is sent with DUP set (MQTT 3.1.1
+ * section 4.4).
+ * <p>
+ * A command holds one reference to its payload buffer and each write sends a retained
+ * duplicate of it, so a forwarded PUBLISH shares the sender's bytes. The reference is
+ * released once the command is acknowledged, written at QoS 0, expired or dropped.
+ */
+@Slf4j
+@Singleton
+public class IotMqttDownlink {
+
+    private static final AttributeKey<Outbound> OUTBOUND = AttributeKey.valueOf("mqttOutbound");
+
+    private final IotMqttSessionStore sessionStore;
+    private final IotMqttOfflinePolicy offlinePolicy;
+    private final int queueCapacity;
+    private final int inflightWindow;
+    private final int maxParked;
+    private final long parkTtlMillis;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Command>> parked = new ConcurrentHashMap<>();
+    private final AtomicInteger parkedCount = new AtomicInteger();
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    public IotMqttDownlink(IotMqttSessionStore sessionStore,
+            @Property(name = "mqtt.downlink.offlinePolicy", defaultValue = "REJECT") IotMqttOfflinePolicy offlinePolicy,
+            @Property(name = "mqtt.downlink.queueCapacity", defaultValue = "1000") int queueCapacity,
+            @Property(name = "mqtt.downlink.inflightWindow", defaultValue = "32") int inflightWindow,
+            @Property(name = "mqtt.downlink.maxParked", defaultValue = "100000") int maxParked,
+            @Property(name = "mqtt.downlink.parkTtl", defaultValue = "1h") Duration parkTtl) {
+        this.sessionStore = sessionStore;
+        this.offlinePolicy = offlinePolicy;
+        this.queueCapacity = queueCapacity;
+        this.inflightWindow = inflightWindow;
+        this.maxParked = maxParked;
+        this.parkTtlMillis = parkTtl.toMillis();
+    }
+
+    /**
+     * Loads the persistent sessions, called before the listener accepts connections.
+     */
+    public void recoverSessions() {
+        sessionStore.open();
+    }
+
+    /**
+     * Starts or resumes the device's session, called before its CONNACK is written.
+     *
+     * @return whether a persistent session was present, for the CONNACK's session present flag
+     */
+    public boolean openSession(String deviceId, boolean cleanSession) {
+        return sessionStore.openSession(deviceId, cleanSession);
+    }
+
+    /**
+     * Routes commands for {@code deviceId} to {@code channel}, called on the channel's event
+     * loop once its CONNACK is written.
+     *
+     * @return the previous connection of the device, which the caller should close
+     */
+    public Channel register(String deviceId, Channel channel, boolean persistentSession) {
+        Outbound outbound = new Outbound(deviceId, persistentSession);
+        channel.attr(OUTBOUND).set(outbound);
+        Channel previous = channels.put(deviceId, channel);
+        deliverParked(deviceId);
+        if (persistentSession) {
+            scheduleDrain(channel, outbound);
+        }
+        return previous == channel ? null : previous;
+    }
+
+    /**
+     * Stops routing to {@code channel}, called on its event loop once it has closed.
+     */
+    public void unregister(String deviceId, Channel channel) {
+        channels.remove(deviceId, channel);
+        Outbound outbound = channel.attr(OUTBOUND).get();
+        if (outbound != null) {
+            abandon(channel, outbound);
+        }
+    }
+
+    public boolean isConnected(String deviceId) {
+        return channels.containsKey(deviceId);
+    }
+
+    /**
+     * Hands a command to the device's connection, or applies the offline policy.
+     *
+     * @throws IotException if the device is offline and the policy rejects, or a queue is full
+     */
+    public CommandStatus send(String deviceId, String topic, byte[] payload, MqttQoS qos) {
+        long expiresAt = System.currentTimeMillis() + parkTtlMillis;
+        if (qos == MqttQoS.AT_LEAST_ONCE && sessionStore.hasSession(deviceId)) {
+            return sendPersistent(deviceId, topic, payload, expiresAt);
+        }
+        Command command = new Command(topic, Unpooled.wrappedBuffer(payload), qos, expiresAt, 0, 0);
+        Channel channel = channels.get(deviceId);
+        try {
+            if (channel != null && enqueue(channel, command)) {
+                return CommandStatus.QUEUED;
+            }
+        } catch (IotException e) {
+            rejectedCount.increment();
+            command.release();
+            throw e;
+        }
+        if (offlinePolicy == IotMqttOfflinePolicy.REJECT) {
+            rejectedCount.increment();
+            command.release();
+            throw new IotException("IotDevice is not connected: " + deviceId);
+        }
+        if (!park(deviceId, command)) {
+            rejectedCount.increment();
+            command.release();
+            throw new IotException("Too many parked commands, rejecting command for: " + deviceId);
+        }
+        // The device may have connected while the command was being parked
+        if (channels.containsKey(deviceId)) {
+            deliverParked(deviceId);
+        }
+        return CommandStatus.PARKED;
+    }
+
+    /**
+     * Queues a PUBLISH another client sent to a topic {@code channel} subscribed to, with the
+     * same in-flight window and redelivery as a command. Takes over the reference to {@code payload}.
+     *
+     * @return {@code false} if the channel is no longer connected or its queue is full
+     */
+    public boolean forward(Channel channel, String topic, ByteBuf payload, MqttQoS qos) {
+        Command command = new Command(topic, payload, qos, System.currentTimeMillis() + parkTtlMillis, 0, 0);
+        boolean queued;
+        try {
+            queued = enqueue(channel, command);
+        } catch (IotException e) {
+            rejectedCount.increment();
+            queued = false;
+        }
+        if (!queued) {
+            command.release();
+        }
+        return queued;
+    }
+
+    /**
+     * Releases the in-flight slot of a QoS 1 command the device acknowledged with a PUBACK.
+     */
+    public void acknowledge(Channel channel, int packetId) {
+        Outbound outbound = channel.attr(OUTBOUND).get();
+        if (outbound == null) {
+            return;
+        }
+        Command command = outbound.inFlight.remove(packetId);
+        if (command != null) {
+            command.release();
+            if (command.seq() > 0) {
+                sessionStore.ack(outbound.deviceId, command.seq());
+            }
+            drain(channel, outbound);
+        }
+    }
+
+    /**
+     * Resumes draining once the channel's outbound buffer fell below its low water mark.
+     */
+    public void onWritable(Channel channel) {
+        Outbound outbound = channel.attr(OUTBOUND).get();
+        if (outbound != null) {
+            drain(channel, outbound);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(channels.size(), parkedCount.get(), sentCount.sum(), flushCount.sum(), rejectedCount.sum(),
+                expiredCount.sum());
+    }
+
+    private CommandStatus sendPersistent(String deviceId, String topic, byte[] payload, long expiresAt) {
+        try {
+            sessionStore.append(deviceId, topic, payload, MqttQoS.AT_LEAST_ONCE, expiresAt);
+        } catch (IotException e) {
+            rejectedCount.increment();
+            throw e;
+        }
+        Channel channel = channels.get(deviceId);
+        Outbound outbound = channel != null ? channel.attr(OUTBOUND).get() : null;
+        if (outbound != null && outbound.persistentSession && channel.isActive()) {
+            scheduleDrain(channel, outbound);
+            return CommandStatus.QUEUED;
+        }
+        return CommandStatus.PARKED;
+    }
+
+    private boolean enqueue(Channel channel, Command command) {
+        Outbound outbound = channel.attr(OUTBOUND).get();
+        if (outbound == null || !channel.isActive()) {
+            return false;
+        }
+        if (outbound.size.incrementAndGet() > queueCapacity) {
+            outbound.size.decrementAndGet();
+            throw new IotException("Outbound queue full for device: " + outbound.deviceId);
+        }
+        outbound.queue.add(command);
+        scheduleDrain(channel, outbound);
+        return true;
+    }
+
+    private void scheduleDrain(Channel channel, Outbound outbound) {
+        if (outbound.drainScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(() -> {
+                outbound.drainScheduled.set(false);
+                drain(channel, outbound);
+            });
+        }
+    }
+
+    /**
+     * Writes queued commands and flushes once, runs on the channel's event loop.
+     */
+    private void drain(Channel channel, Outbound outbound) {
+        if (!channel.isActive()) {
+            abandon(channel, outbound);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int written = 0;
+        Command command;
+        while (channel.isWritable() && outbound.inFlight.size() < inflightWindow
+                && (command = outbound.queue.poll()) != null) {
+            outbound.size.decrementAndGet();
+            if (command.expiresAt() < now) {
+                expiredCount.increment();
+                command.release();
+                continue;
+            }
+            write(channel, outbound, command);
+            written++;
+        }
+        // A persistent session's QoS 1 commands are read from the store as the window allows
+        while (outbound.persistentSession && channel.isWritable() && outbound.inFlight.size() < inflightWindow) {
+            List<IotMqttSessionStore.StoredMessage> stored = sessionStore.read(outbound.deviceId,
+                    outbound.storeCursor, inflightWindow - outbound.inFlight.size());
+            if (stored.isEmpty()) {
+                break;
+            }
+            for (IotMqttSessionStore.StoredMessage message : stored) {
+                outbound.storeCursor = message.seq();
+                write(channel, outbound, new Command(message.topic(), Unpooled.wrappedBuffer(message.payload()),
+                        message.qos(), message.expiresAt(), message.seq(), message.delivered() ? 1 : 0));
+                written++;
+            }
+        }
+        if (written > 0) {
+            channel.flush();
+            sentCount.add(written);
+            flushCount.increment();
+        }
+    }
+
+    private void write(Channel channel, Outbound outbound, Command command) {
+        int packetId = 0;
+        if (command.qos() == MqttQoS.AT_LEAST_ONCE) {
+            packetId = outbound.nextPacketId();
+            // Parked again if unacknowledged, it then goes out as a redelivery
+            outbound.inFlight.put(packetId, command.delivered());
+            if (command.seq() > 0 && command.deliveries() == 0) {
+                sessionStore.delivered(outbound.deviceId, command.seq());
+            }
+        }
+        channel.write(publish(command, packetId), channel.voidPromise());
+        if (packetId == 0) {
+            command.release();
+        }
+    }
+
+    /**
+     * Takes back what a closed connection did not deliver, parking it under the park policy.
+     * Commands of a persistent session stay in the session store instead.
+     */
+    private void abandon(Channel channel, Outbound outbound) {
+        List<Command> undelivered = new ArrayList<>();
+        for (Command command : outbound.inFlight.values()) {
+            if (command.seq() == 0) {
+                undelivered.add(command);
+            } else {
+                command.release();
+            }
+        }
+        outbound.inFlight.clear();
+        Command command;
+        while ((command = outbound.queue.poll()) != null) {
+            outbound.size.decrementAndGet();
+            undelivered.add(command);
+        }
+        if (undelivered.isEmpty()) {
+            return;
+        }
+        if (offlinePolicy == IotMqttOfflinePolicy.REJECT) {
+            rejectedCount.add(undelivered.size());
+            log.warn("Dropping {} undelivered commands for disconnected device {}", undelivered.size(),
+                    outbound.deviceId);
+            undelivered.forEach(Command::release);
+            return;
+        }
+        for (Command pending : undelivered) {
+            if (!park(outbound.deviceId, pending)) {
+                rejectedCount.increment();
+                pending.release();
+            }
+        }
+        Channel current = channels.get(outbound.deviceId);
+        if (current != null && current != channel) {
+            deliverParked(outbound.deviceId);
+        }
+    }
+
+    private boolean park(String deviceId, Command command) {
+        if (parkedCount.incrementAndGet() > maxParked) {
+            parkedCount.decrementAndGet();
+            // Devices that never come back leave expired commands behind, make room by dropping those
+            if (purgeExpired() == 0 || parkedCount.incrementAndGet() > maxParked) {
+                parkedCount.decrementAndGet();
+                return false;
+            }
+        }
+        parked.computeIfAbsent(deviceId, id -> new ConcurrentLinkedQueue<>()).add(command);
+        return true;
+    }
+
+    private int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int purged = 0;
+        for (Queue<Command> commands : parked.values()) {
+            for (Command command : commands) {
+                if (command.expiresAt() < now && commands.remove(command)) {
+                    parkedCount.decrementAndGet();
+                    expiredCount.increment();
+                    command.release();
+                    purged++;
+                }
+            }
+        }
+        return purged;
+    }
+
+    private void deliverParked(String deviceId) {
+        Queue<Command> commands = parked.remove(deviceId);
+        if (commands == null) {
+            return;
+        }
+        Command command;
+        while ((command = commands.poll()) != null) {
+            parkedCount.decrementAndGet();
+            Channel channel = channels.get(deviceId);
+            boolean queued;
+            try {
+                queued = channel != null && enqueue(channel, command);
+            } catch (IotException e) {
+                queued = false;
+            }
+            if (!queued && !park(deviceId, command)) {
+                rejectedCount.increment();
+                command.release();
+            }
+        }
+    }
+
+    private static MqttPublishMessage publish(Command command, int packetId) {
+        boolean dup = command.qos() != MqttQoS.AT_MOST_ONCE && command.deliveries() > 0;
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, dup, command.qos(), false, 0);
+        MqttPublishVariableHeader variableHeader = new MqttPublishVariableHeader(command.topic(),
+                command.qos() == MqttQoS.AT_MOST_ONCE ? -1 : packetId);
+        // The command keeps its own reference should it have to be parked and resent
+        return new MqttPublishMessage(fixedHeader, variableHeader, command.payload().retainedDuplicate());
+    }
+
+    /**
+     * @param seq        the command's sequence number in the session store, {@code 0} if it is not stored
+     * @param deliveries how many times the command was written to the device
+     */
+    private record Command(String topic, ByteBuf payload, MqttQoS qos, long expiresAt, long seq, int deliveries) {
+
+        Command delivered() {
+            return new Command(topic, payload, qos, expiresAt, seq, deliveries + 1);
+        }
+
+        void release() {
+            payload.release();
+        }
+    }
+
+    private static final class Outbound {
+        private final String deviceId;
+        private final boolean persistentSession;
+        private final Queue<Command> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        // QoS 1 commands awaiting the device's PUBACK, only touched on the event loop
+        private final Map<Integer, Command> inFlight = new LinkedHashMap<>();
+        private int lastPacketId;
+        // Sequence number of the last stored command written, only touched on the event loop
+        private long storeCursor;
+
+        private Outbound(String deviceId, boolean persistentSession) {
+            this.deviceId = deviceId;
+            this.persistentSession = persistentSession;
+        }
+
+        private int nextPacketId() {
+            do {
+                lastPacketId = lastPacketId == 0xFFFF ? 1 : lastPacketId + 1;
+            } while (inFlight.containsKey(lastPacketId));
+            return lastPacketId;
+        }
+    }
+
+    @Serdeable
+    public record Stats(int connectedDevices, int parkedCommands, long sentCount, long flushCount,
+            long rejectedCount, long expiredCount) {
+    }
+}
@@ -0,0 +1,23 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes connected devices, parked commands and flush consolidation of the {@link IotMqttDownlink}
+ * at {@code /mqtt-downlink}.
+ */
+@Endpoint(id = "mqtt-downlink")
+public class IotMqttDownlinkEndpoint {
+
+    private final IotMqttDownlink iotMqttDownlink;
+
+    public IotMqttDownlinkEndpoint(IotMqttDownlink iotMqttDownlink) {
+        this.iotMqttDownlink = iotMqttDownlink;
+    }
+
+    @Read
+    public IotMqttDownlink.Stats stats() {
+        return iotMqttDownlink.stats();
+    }
+}
@@ -0,0 +1,11 @@
+package com.iot.riff.mqtt;
+
+/**
+ * How PUBLISH payloads are written to Kafka.
+ */
+public enum IotMqttIngestMode {
+    /** Payload wrapped in a JSON envelope string together with deviceId and topic. */
+    ENVELOPE,
+    /** Raw payload bytes as the record value, envelope fields as record headers. */
+    PASSTHROUGH
+}
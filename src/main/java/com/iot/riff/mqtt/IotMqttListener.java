@@ -2,44 +2,63 @@ package com.iot.riff.mqtt;
 
 import jakarta.inject.Singleton;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.MultiThreadIoEventLoopGroup;
-import io.netty.channel.nio.NioIoHandler;
 import lombok.extern.slf4j.Slf4j;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.util.CharsetUtil;
-import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import io.netty.util.ReferenceCountUtil;
 import com.iot.riff.service.exception.IotException;
-import com.iot.riff.vault.IotVaultService;
 
 import io.micronaut.context.event.StartupEvent;
 
 import jakarta.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 @Slf4j
 public class IotMqttListener implements io.micronaut.context.event.ApplicationEventListener<StartupEvent> {
 
+    private final IotMqttConfig config;
     private final int port;
-    private final IotDeviceDal iotDeviceDal;
-    private final IotVaultService iotVaultService;
+    private final int inflightWindow;
+    private final IotMqttAuthenticator iotMqttAuthenticator;
     private final IotMqttMessageProcessor mqttMessageProcessor;
+    private final IotMqttBackpressure backpressure;
+    private final IotMqttSubscriptions subscriptions;
+    private final IotMqttDownlink downlink;
+    private final IotMqttConnections connections;
+    private final IotMqttRateLimiter rateLimiter;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private final List<Channel> serverChannels = new ArrayList<>();
 
-    public IotMqttListener(IotMqttConfig config, IotDeviceDal iotDeviceDal,
-            IotMqttMessageProcessor mqttMessageProcessor, IotVaultService iotVaultService) {
+    public IotMqttListener(IotMqttConfig config, IotMqttAuthenticator iotMqttAuthenticator,
+            IotMqttMessageProcessor mqttMessageProcessor, IotMqttBackpressure backpressure,
+            IotMqttSubscriptions subscriptions, IotMqttDownlink downlink, IotMqttConnections connections,
+            IotMqttRateLimiter rateLimiter) {
+        this.config = config;
         this.port = config.getPort();
-        this.iotDeviceDal = iotDeviceDal;
+        this.inflightWindow = config.getInflightWindow();
+        this.iotMqttAuthenticator = iotMqttAuthenticator;
         this.mqttMessageProcessor = mqttMessageProcessor;
-        this.iotVaultService = iotVaultService;
+        this.backpressure = backpressure;
+        this.subscriptions = subscriptions;
+        this.downlink = downlink;
+        this.connections = connections;
+        this.rateLimiter = rateLimiter;
     }
 
     @Override
@@ -57,6 +76,7 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
     @PreDestroy
     public void stop() {
         log.info("Stopping MQTT Listener...");
+        serverChannels.forEach(Channel::close);
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
         }
@@ -67,57 +87,159 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
     }
 
     public void start() throws Exception {
-        bossGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
-        workerGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
-
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            ChannelPipeline pipeline = ch.pipeline();
-
-                            // Add MQTT codec handlers
-                            pipeline.addLast("decoder", new MqttDecoder());
-                            pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-
-                            // Add custom MQTT message handler
-                            pipeline.addLast("handler",
-                                    new MqttMessageHandler(iotDeviceDal, mqttMessageProcessor, iotVaultService));
-                        }
-                    })
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
-
-            ChannelFuture f = b.bind(port).sync();
-            log.info("MQTT Listener started on port: {}", port);
-
-            f.channel().closeFuture().sync();
+            for (Channel channel : bind()) {
+                channel.closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             log.info("MQTT Listener interrupted");
         }
     }
 
+    /**
+     * Binds the listener and returns the server channels without waiting for them to close.
+     * <p>
+     * With {@code mqtt.reusePort} enabled, {@code mqtt.acceptors} server channels are bound to
+     * the same port so the kernel spreads accepts across them instead of funnelling every
+     * connection through a single accept queue. The boss group gets at least one thread per
+     * acceptor, whatever {@code mqtt.bossThreads} says.
+     */
+    public List<Channel> bind() throws InterruptedException {
+        downlink.recoverSessions();
+        IotMqttTransport transport = config.getTransport().resolve();
+        IoHandlerFactory ioHandlerFactory = transport.ioHandlerFactory();
+        int acceptors = 1;
+        if (config.isReusePort()) {
+            acceptors = Math.max(1, config.getAcceptors());
+        } else if (config.getAcceptors() > 1) {
+            log.warn("mqtt.acceptors={} ignored, binding several acceptors requires mqtt.reusePort",
+                    config.getAcceptors());
+        }
+        // Each acceptor needs a boss thread of its own, otherwise they share one accept loop
+        int bossThreads = Math.max(config.getBossThreads(), acceptors);
+        if (bossThreads > config.getBossThreads()) {
+            log.info("mqtt.bossThreads={} raised to {} to give each acceptor its own thread",
+                    config.getBossThreads(), bossThreads);
+        }
+        bossGroup = new MultiThreadIoEventLoopGroup(bossThreads, ioHandlerFactory);
+        workerGroup = new MultiThreadIoEventLoopGroup(config.getWorkerThreads(), ioHandlerFactory);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(transport.serverChannelClass())
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+
+                        // Add MQTT codec handlers
+                        pipeline.addLast("decoder", new MqttDecoder());
+                        pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+
+                        // Add custom MQTT message handler
+                        pipeline.addLast("handler",
+                                new MqttMessageHandler(iotMqttAuthenticator, mqttMessageProcessor));
+                    }
+                })
+                .option(ChannelOption.SO_BACKLOG, config.getBacklog())
+                .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+        if (config.isReusePort()) {
+            b.option(transport.reusePortOption(), true);
+        }
+        for (int i = 0; i < acceptors; i++) {
+            serverChannels.add(b.bind(port).sync().channel());
+        }
+        log.info("MQTT Listener started on port: {}, transport: {}, acceptors: {}", port, transport, acceptors);
+        return serverChannels;
+    }
+
     // Custom handler for MQTT messages
     private class MqttMessageHandler extends SimpleChannelInboundHandler<MqttMessage> {
 
-        private final IotDeviceDal iotDeviceDal;
+        private final IotMqttAuthenticator iotMqttAuthenticator;
         private final IotMqttMessageProcessor mqttMessageProcessor;
-        private final IotVaultService iotVaultService;
+        // Frames decoded while reading is paused; only touched on the channel's event loop
+        private final Deque<MqttMessage> pendingMessages = new ArrayDeque<>();
+        // QoS 1 PUBLISH packets awaiting a Kafka acknowledgement, in arrival order
+        private final Deque<InFlightPublish> inFlightPublishes = new ArrayDeque<>();
+        private boolean authenticating;
+        // Set while reading waits for a rate limit token
+        private boolean rateLimited;
         private String deviceId;
-
-        public MqttMessageHandler(IotDeviceDal iotDeviceDal, IotMqttMessageProcessor mqttMessageProcessor,
-                IotVaultService iotVaultService) {
-            this.iotDeviceDal = iotDeviceDal;
+        private int keepAliveSeconds;
+        // MQTT 5 clients are told why a PUBLISH was rejected in the PUBACK reason code
+        private boolean mqtt5;
+        private IotMqttConnections.Connection connection;
+
+        public MqttMessageHandler(IotMqttAuthenticator iotMqttAuthenticator,
+                IotMqttMessageProcessor mqttMessageProcessor) {
+            this.iotMqttAuthenticator = iotMqttAuthenticator;
             this.mqttMessageProcessor = mqttMessageProcessor;
-            this.iotVaultService = iotVaultService;
         }
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+            connection.touch();
+            if (isPaused()) {
+                // Hold on to the frame until reading resumes, it is released once handled
+                pendingMessages.add(ReferenceCountUtil.retain(msg));
+                connection.addQueuedInboundBytes(msg.fixedHeader().remainingLength());
+                return;
+            }
+            dispatch(ctx, msg);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            backpressure.register(ctx.channel());
+            connection = connections.register(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IotMqttBackpressure.Event) {
+                // Events fired from different threads can arrive out of order, so act on the current state
+                if (isPaused()) {
+                    ctx.channel().config().setAutoRead(false);
+                } else {
+                    drainPendingMessages(ctx);
+                }
+            } else {
+                super.userEventTriggered(ctx, evt);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releasePendingMessages();
+            if (deviceId != null) {
+                // The device resends these with DUP set, they keep the id they were produced under
+                for (InFlightPublish publish : inFlightPublishes) {
+                    if (publish.messageId != null) {
+                        mqttMessageProcessor.onUnacked(deviceId, publish.packetId(), publish.messageId);
+                    }
+                }
+            }
+            connections.unregister(connection);
+            subscriptions.unsubscribeAll(ctx.channel());
+            if (deviceId != null) {
+                downlink.unregister(deviceId, ctx.channel());
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                downlink.onWritable(ctx.channel());
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        private void dispatch(ChannelHandlerContext ctx, MqttMessage msg) {
             MqttFixedHeader fixedHeader = msg.fixedHeader();
 
             switch (fixedHeader.messageType()) {
@@ -129,6 +251,10 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
                     handlePublish(ctx, (MqttPublishMessage) msg);
                     break;
 
+                case PUBACK:
+                    downlink.acknowledge(ctx.channel(), ((MqttPubAckMessage) msg).variableHeader().messageId());
+                    break;
+
                 case SUBSCRIBE:
                     handleSubscribe(ctx, (MqttSubscribeMessage) msg);
                     break;
@@ -156,32 +282,49 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
             log.info("Client connecting: {}", clientId);
 
             String username = payload.userName();
+            boolean cleanSession = msg.variableHeader().isCleanSession();
+            keepAliveSeconds = msg.variableHeader().keepAliveTimeSeconds();
+            mqtt5 = msg.variableHeader().version() == MqttVersion.MQTT_5.protocolLevel();
             byte[] passwordBytes = payload.passwordInBytes();
             String password = passwordBytes != null ? new String(passwordBytes, CharsetUtil.UTF_8) : null;
-            this.deviceId = username;
-            boolean authenticated = false;
-            if (username != null && password != null) {
-                try {
-                    var iotDevice = iotDeviceDal.get(username);
-                    String secretFromVault = iotVaultService
-                            .readSecret(iotDevice.mqttConnectionDetails().secretPath());
-                    if (secretFromVault != null && secretFromVault.equals(password)) {
-                        authenticated = true;
-                    }
-                } catch (Exception e) {
-                    log.error("Authentication failed for client: {} due to error", clientId, e);
-                }
+
+            // Stop reading until the CONNACK is decided, the lookups run off the event loop
+            authenticating = true;
+            ctx.channel().config().setAutoRead(false);
+            iotMqttAuthenticator.authenticate(username, password)
+                    .thenAcceptAsync(authenticated -> completeConnect(ctx, clientId, username, cleanSession,
+                            authenticated), ctx.executor());
+        }
+
+        private void completeConnect(ChannelHandlerContext ctx, String clientId, String username,
+                boolean cleanSession, boolean authenticated) {
+            authenticating = false;
+            if (!ctx.channel().isActive()) {
+                releasePendingMessages();
+                return;
             }
 
             if (authenticated) {
-                log.info("Client authenticated: {}, DeviceId: {}", clientId, deviceId);
+                this.deviceId = username;
+                log.info("Client authenticated: {}, DeviceId: {}, CleanSession: {}, KeepAlive: {}s", clientId,
+                        deviceId, cleanSession, keepAliveSeconds);
+                connections.onConnect(connection, deviceId, keepAliveSeconds);
+                rateLimiter.attach(ctx.channel(), deviceId);
+                mqttMessageProcessor.onConnect(ctx.channel(), deviceId);
+                boolean sessionPresent = downlink.openSession(deviceId, cleanSession);
                 // Send CONNACK
                 MqttFixedHeader connAckFixedHeader = new MqttFixedHeader(
                         MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
                 MqttConnAckVariableHeader connAckVariableHeader = new MqttConnAckVariableHeader(
-                        MqttConnectReturnCode.CONNECTION_ACCEPTED, false);
+                        MqttConnectReturnCode.CONNECTION_ACCEPTED, sessionPresent);
                 MqttConnAckMessage connAck = new MqttConnAckMessage(connAckFixedHeader, connAckVariableHeader);
                 ctx.writeAndFlush(connAck);
+                Channel previous = downlink.register(deviceId, ctx.channel(), !cleanSession);
+                if (previous != null) {
+                    log.info("Device {} connected again, closing its previous connection", deviceId);
+                    previous.close();
+                }
+                drainPendingMessages(ctx);
             } else {
                 log.warn("Authentication failed for client: {}", clientId);
                 // Send CONNACK with failure
@@ -192,55 +335,221 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
                 MqttConnAckMessage connAck = new MqttConnAckMessage(connAckFixedHeader, connAckVariableHeader);
                 ctx.writeAndFlush(connAck);
                 ctx.close();
+                releasePendingMessages();
+            }
+        }
+
+        /**
+         * Reading pauses while a CONNECT is being authenticated, the in-flight window is full,
+         * the device is over its rate limit or Kafka is applying backpressure.
+         */
+        private boolean isPaused() {
+            return authenticating || rateLimited || inFlightPublishes.size() >= inflightWindow
+                    || backpressure.isPaused();
+        }
+
+        private void drainPendingMessages(ChannelHandlerContext ctx) {
+            MqttMessage pending;
+            // A queued CONNECT or a full in-flight window pauses the drain again
+            while (!isPaused() && (pending = pendingMessages.poll()) != null) {
+                connection.addQueuedInboundBytes(-pending.fixedHeader().remainingLength());
+                try {
+                    dispatch(ctx, pending);
+                } finally {
+                    ReferenceCountUtil.release(pending);
+                }
+            }
+            if (!isPaused()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        private void releasePendingMessages() {
+            MqttMessage pending;
+            while ((pending = pendingMessages.poll()) != null) {
+                connection.addQueuedInboundBytes(-pending.fixedHeader().remainingLength());
+                ReferenceCountUtil.release(pending);
             }
         }
 
         private void handlePublish(ChannelHandlerContext ctx, MqttPublishMessage msg) {
             String topic = msg.variableHeader().topicName();
-            String payload = msg.payload().toString(CharsetUtil.UTF_8);
             MqttQoS qos = msg.fixedHeader().qosLevel();
 
-            log.info("Received PUBLISH:");
-            log.info("  Topic: " + topic);
-            log.info("  Payload: " + payload);
-            log.info("  QoS: " + qos);
-            log.info("  DeviceId: " + deviceId);
+            // The payload stays in the ByteBuf, decoding it here would cost a copy per message
+            log.debug("Received PUBLISH - Topic: {}, QoS: {}, Bytes: {}, DeviceId: {}", topic, qos,
+                    msg.payload().readableBytes(), deviceId);
 
-            if (deviceId != null) {
-                mqttMessageProcessor.process(deviceId, topic, payload);
-            } else {
+            if (deviceId == null) {
                 log.warn("Received PUBLISH from unauthenticated or unknown device");
+                if (qos == MqttQoS.AT_LEAST_ONCE) {
+                    ctx.writeAndFlush(pubAck(msg.variableHeader().packetId()));
+                }
+                return;
+            }
+
+            long throttleNanos = rateLimiter.tryAcquire(ctx.channel());
+            if (throttleNanos > 0) {
+                onRateLimited(ctx, msg, throttleNanos);
+                return;
             }
 
-            // Send PUBACK for QoS 1
+            String rejection = mqttMessageProcessor.validate(ctx.channel(), msg.payload());
+            if (rejection != null) {
+                log.debug("Rejecting PUBLISH {} from device {}: {}", msg.variableHeader().packetId(), deviceId,
+                        rejection);
+                if (qos == MqttQoS.AT_LEAST_ONCE) {
+                    InFlightPublish publish = new InFlightPublish(msg.variableHeader().packetId());
+                    publish.rejection = rejection;
+                    inFlightPublishes.add(publish);
+                    ctx.executor().execute(() -> onProduced(ctx, publish, null));
+                }
+                return;
+            }
+
+            fanOut(topic, qos, msg.payload());
+            String messageId = messageId(msg);
+            CompletableFuture<?> produced = mqttMessageProcessor.process(deviceId, topic, qos, messageId,
+                    msg.payload());
+
+            // Send PUBACK for QoS 1 only once Kafka has acknowledged the record
             if (qos == MqttQoS.AT_LEAST_ONCE) {
-                int messageId = msg.variableHeader().packetId();
-                MqttFixedHeader pubAckFixedHeader = new MqttFixedHeader(
-                        MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
-                MqttMessageIdVariableHeader pubAckVariableHeader = MqttMessageIdVariableHeader.from(messageId);
-                MqttPubAckMessage pubAck = new MqttPubAckMessage(pubAckFixedHeader, pubAckVariableHeader);
+                InFlightPublish publish = new InFlightPublish(msg.variableHeader().packetId());
+                publish.messageId = messageId;
+                inFlightPublishes.add(publish);
+                if (isPaused()) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+                produced.whenComplete((metadata, e) -> ctx.executor().execute(() -> onProduced(ctx, publish, e)));
+            }
+        }
+
+        /**
+         * Hands an accepted PUBLISH to every subscribed connection, never above the QoS it was sent with.
+         */
+        private void fanOut(String topic, MqttQoS qos, ByteBuf payload) {
+            subscriptions.match(topic, (subscriber, granted) -> {
+                MqttQoS delivered = granted.value() < qos.value() ? granted : qos;
+                // Each subscriber reads the received bytes through its own view, no copy is made
+                if (!downlink.forward(subscriber, topic, payload.retainedDuplicate(), delivered)) {
+                    log.debug("Could not forward PUBLISH on {} to {}", topic, subscriber.remoteAddress());
+                }
+            });
+        }
+
+        private String messageId(MqttPublishMessage msg) {
+            int packetId = msg.variableHeader().packetId();
+            boolean dup = msg.fixedHeader().isDup();
+            if (dup) {
+                // Resent on this connection while the first delivery is still in flight
+                for (InFlightPublish publish : inFlightPublishes) {
+                    if (publish.packetId() == packetId && publish.messageId != null) {
+                        return publish.messageId;
+                    }
+                }
+            }
+            return mqttMessageProcessor.messageId(deviceId, packetId, dup);
+        }
 
-                ctx.writeAndFlush(pubAck);
+        private void onRateLimited(ChannelHandlerContext ctx, MqttPublishMessage msg, long throttleNanos) {
+            switch (rateLimiter.action()) {
+                case DROP -> {
+                    log.debug("Dropping PUBLISH from device {} over its rate limit", deviceId);
+                    if (msg.fixedHeader().qosLevel() == MqttQoS.AT_LEAST_ONCE) {
+                        // Acknowledged in turn with the PUBLISH packets ahead of it
+                        InFlightPublish publish = new InFlightPublish(msg.variableHeader().packetId());
+                        inFlightPublishes.add(publish);
+                        ctx.executor().execute(() -> onProduced(ctx, publish, null));
+                    }
+                }
+                case DISCONNECT -> {
+                    log.warn("Device {} exceeded its rate limit, closing connection", deviceId);
+                    ctx.close();
+                }
+                case DELAY_READ -> {
+                    // Put the message back in front and resume once the bucket has a token for it
+                    pendingMessages.addFirst(ReferenceCountUtil.retain(msg));
+                    connection.addQueuedInboundBytes(msg.fixedHeader().remainingLength());
+                    rateLimited = true;
+                    ctx.channel().config().setAutoRead(false);
+                    ctx.executor().schedule(() -> {
+                        rateLimited = false;
+                        drainPendingMessages(ctx);
+                    }, throttleNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        private void onProduced(ChannelHandlerContext ctx, InFlightPublish publish, Throwable error) {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            if (error != null) {
+                // Without a PUBACK the device resends the PUBLISH once it reconnects
+                log.warn("Kafka did not acknowledge PUBLISH {} from device {}, closing connection",
+                        publish.packetId(), deviceId);
+                ctx.close();
+                return;
+            }
+
+            // PUBACKs must follow PUBLISH order, so only acknowledged packets at the head are released
+            publish.acknowledged = true;
+            boolean written = false;
+            while (!inFlightPublishes.isEmpty() && inFlightPublishes.peek().acknowledged) {
+                ctx.write(pubAck(inFlightPublishes.poll()));
+                written = true;
+            }
+            if (written) {
+                ctx.flush();
+                drainPendingMessages(ctx);
             }
         }
 
+        /**
+         * Under MQTT 3.1.1 a rejected PUBLISH is acknowledged like any other, so the device does
+         * not resend a payload that can never be accepted.
+         */
+        private MqttMessage pubAck(InFlightPublish publish) {
+            if (publish.rejection == null || !mqtt5) {
+                return pubAck(publish.packetId());
+            }
+            MqttProperties properties = new MqttProperties();
+            properties.add(new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.REASON_STRING.value(),
+                    publish.rejection));
+            return MqttMessageBuilders.pubAck()
+                    .packetId(publish.packetId())
+                    .reasonCode(MqttReasonCodes.PubAck.PAYLOAD_FORMAT_INVALID.byteValue())
+                    .properties(properties)
+                    .build();
+        }
+
+        private MqttPubAckMessage pubAck(int messageId) {
+            MqttFixedHeader pubAckFixedHeader = new MqttFixedHeader(
+                    MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
+            MqttMessageIdVariableHeader pubAckVariableHeader = MqttMessageIdVariableHeader.from(messageId);
+            return new MqttPubAckMessage(pubAckFixedHeader, pubAckVariableHeader);
+        }
+
         private void handleSubscribe(ChannelHandlerContext ctx, MqttSubscribeMessage msg) {
             int messageId = msg.variableHeader().messageId();
 
-            log.info("Received SUBSCRIBE (messageId: " + messageId + "):");
-            for (MqttTopicSubscription subscription : msg.payload().topicSubscriptions()) {
-                log.info("  Topic: " + subscription.topicName() +
-                        ", QoS: " + subscription.qualityOfService());
+            List<MqttTopicSubscription> topicSubscriptions = msg.payload().topicSubscriptions();
+            int[] grantedQos = new int[topicSubscriptions.size()];
+            for (int i = 0; i < grantedQos.length; i++) {
+                MqttTopicSubscription subscription = topicSubscriptions.get(i);
+                MqttQoS granted = deviceId == null ? MqttQoS.FAILURE
+                        : subscriptions.subscribe(ctx.channel(), deviceId, subscription.topicName(),
+                                subscription.qualityOfService());
+                grantedQos[i] = granted.value();
+                log.debug("SUBSCRIBE (messageId: {}) - Topic: {}, requested QoS: {}, granted QoS: {}, DeviceId: {}",
+                        messageId, subscription.topicName(), subscription.qualityOfService(), granted, deviceId);
             }
 
             // Send SUBACK
             MqttFixedHeader subAckFixedHeader = new MqttFixedHeader(
                     MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
             MqttMessageIdVariableHeader subAckVariableHeader = MqttMessageIdVariableHeader.from(messageId);
-            MqttSubAckPayload subAckPayload = new MqttSubAckPayload(
-                    msg.payload().topicSubscriptions().stream()
-                            .mapToInt(s -> MqttQoS.FAILURE.value())
-                            .toArray());
+            MqttSubAckPayload subAckPayload = new MqttSubAckPayload(grantedQos);
             MqttSubAckMessage subAck = new MqttSubAckMessage(
                     subAckFixedHeader, subAckVariableHeader, subAckPayload);
 
@@ -249,6 +558,9 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
 
         private void handleUnsubscribe(ChannelHandlerContext ctx, MqttUnsubscribeMessage msg) {
             int messageId = msg.variableHeader().messageId();
+            for (String topic : msg.payload().topics()) {
+                subscriptions.unsubscribe(ctx.channel(), topic);
+            }
             // Send UNSUBACK
             MqttFixedHeader unsubAckFixedHeader = new MqttFixedHeader(
                     MqttMessageType.UNSUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
@@ -276,8 +588,25 @@ public class IotMqttListener implements io.micronaut.context.event.ApplicationEv
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            cause.printStackTrace();
+            log.error("Closing MQTT connection of device {} after an unexpected error", deviceId, cause);
             ctx.close();
         }
+
+        private static final class InFlightPublish {
+            private final int packetId;
+            private boolean acknowledged;
+            // Why edge validation rejected the payload, null when it was produced
+            private String rejection;
+            // Id the payload was produced under, null when it was not
+            private String messageId;
+
+            private InFlightPublish(int packetId) {
+                this.packetId = packetId;
+            }
+
+            int packetId() {
+                return packetId;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,22 +1,161 @@
 package com.iot.riff.mqtt;
 
+import com.iot.riff.kafka.IotKafkaHeaders;
+import io.micronaut.context.annotation.Property;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 @Singleton
 @Slf4j
 public class IotMqttMessageProcessor {
 
+    private static final int MAX_UNACKED = 100_000;
+
     private final com.iot.riff.kafka.IotKafkaProducer kafkaProducer;
     private final io.micronaut.serde.ObjectMapper objectMapper;
+    private final IotMqttBackpressure backpressure;
+    private final IotMqttIngestMode ingestMode;
+    private final IotMqttTopTalkers topTalkers;
+    private final IotMqttTelemetryValidator telemetryValidator;
+    private final boolean edgeValidation;
+    private final long retransmitTtlNanos;
+
+    // Sequence that keeps the ids of messages received in the same millisecond apart
+    private final AtomicLong sequence = new AtomicLong();
+    // Ids of QoS 1 PUBLISH packets whose connection closed before they were acknowledged, by device and packet id
+    private final ConcurrentHashMap<String, Unacked> unacked = new ConcurrentHashMap<>();
+    // The same ids in the order they were remembered, which with one TTL for all is also the order they expire in
+    private final ConcurrentLinkedQueue<Unacked> unackedOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unackedOrderSize = new AtomicInteger();
 
     public IotMqttMessageProcessor(com.iot.riff.kafka.IotKafkaProducer kafkaProducer,
-            io.micronaut.serde.ObjectMapper objectMapper) {
+            io.micronaut.serde.ObjectMapper objectMapper,
+            IotMqttBackpressure backpressure,
+            @Property(name = "mqtt.ingestMode", defaultValue = "ENVELOPE") IotMqttIngestMode ingestMode,
+            IotMqttTopTalkers topTalkers, IotMqttTelemetryValidator telemetryValidator,
+            @Property(name = "mqtt.edgeValidation.enabled", defaultValue = "false") boolean edgeValidation,
+            @Property(name = "mqtt.retransmitTtl", defaultValue = "10m") Duration retransmitTtl) {
         this.kafkaProducer = kafkaProducer;
         this.objectMapper = objectMapper;
+        this.backpressure = backpressure;
+        this.ingestMode = ingestMode;
+        this.topTalkers = topTalkers;
+        this.telemetryValidator = telemetryValidator;
+        this.edgeValidation = edgeValidation;
+        this.retransmitTtlNanos = retransmitTtl.toNanos();
+    }
+
+    /**
+     * Prepares an authenticated connection; with {@code mqtt.edgeValidation.enabled} this resolves
+     * the schema its payloads are validated against.
+     */
+    public void onConnect(Channel channel, String deviceId) {
+        if (edgeValidation) {
+            telemetryValidator.attach(channel, deviceId);
+        }
+    }
+
+    /**
+     * Checks a PUBLISH payload before it is produced, returning why it is rejected or {@code null}
+     * when it may be processed. Without {@code mqtt.edgeValidation.enabled} every payload passes and
+     * is only validated by the Kafka consumer.
+     */
+    public String validate(Channel channel, ByteBuf payload) {
+        return edgeValidation ? telemetryValidator.validate(channel, payload) : null;
+    }
+
+    /**
+     * Returns the id a PUBLISH is stored under, derived from the device id, packet id, the time it was
+     * received and a sequence. A QoS 1 PUBLISH resent with DUP set after its connection closed
+     * unacknowledged gets the id of its first delivery, within {@code mqtt.retransmitTtl}, so the
+     * consumer stores it only once.
+     */
+    public String messageId(String deviceId, int packetId, boolean dup) {
+        int id = Math.max(packetId, 0);
+        if (dup && id > 0) {
+            Unacked first = unacked.remove(deviceId + ':' + id);
+            if (first != null && System.nanoTime() - first.expiresAt() < 0) {
+                return first.messageId();
+            }
+        }
+        return deviceId + ':' + id + ':' + System.currentTimeMillis() + ':' + sequence.incrementAndGet();
+    }
+
+    /**
+     * Remembers the id of a QoS 1 PUBLISH that was not acknowledged before its connection closed, for when
+     * the device resends it. At most {@value #MAX_UNACKED} ids are kept, past that the oldest is forgotten
+     * even before {@code mqtt.retransmitTtl} and its resend is stored under a new id.
+     */
+    public void onUnacked(String deviceId, int packetId, String messageId) {
+        long now = System.nanoTime();
+        Unacked entry = new Unacked(deviceId + ':' + packetId, messageId, now + retransmitTtlNanos);
+        unacked.put(entry.key(), entry);
+        unackedOrder.offer(entry);
+        unackedOrderSize.incrementAndGet();
+        Unacked oldest;
+        // The order also holds ids already taken by a resend, so it is bounded separately from the map
+        while ((oldest = unackedOrder.peek()) != null && (now - oldest.expiresAt() >= 0
+                || unacked.size() > MAX_UNACKED || unackedOrderSize.get() > 2 * MAX_UNACKED)) {
+            Unacked evicted = unackedOrder.poll();
+            if (evicted != null) {
+                unackedOrderSize.decrementAndGet();
+                unacked.remove(evicted.key(), evicted);
+            }
+        }
+    }
+
+    int unackedSize() {
+        return unacked.size();
+    }
+
+    /**
+     * Publishes a PUBLISH payload to Kafka. The buffer is only read, ownership stays with the caller.
+     * The returned future completes once the broker has acknowledged the record.
+     */
+    public CompletableFuture<RecordMetadata> process(String deviceId, String topic, MqttQoS qos, ByteBuf payload) {
+        return process(deviceId, topic, qos, messageId(deviceId, 0, false), payload);
     }
 
-    public void process(String deviceId, String topic, String payload) {
+    /**
+     * Publishes a PUBLISH payload under the id from {@link #messageId}, which travels as a record header.
+     * The envelope ingest mode has no headers, its records are identified by their Kafka offset instead.
+     */
+    public CompletableFuture<RecordMetadata> process(String deviceId, String topic, MqttQoS qos, String messageId,
+            ByteBuf payload) {
+        topTalkers.record(deviceId, payload.readableBytes());
+        if (ingestMode == IotMqttIngestMode.ENVELOPE) {
+            return process(deviceId, topic, payload.toString(CharsetUtil.UTF_8));
+        }
+        log.debug("Processing message - DeviceId: {}, Topic: {}, Bytes: {}", deviceId, topic,
+                payload.readableBytes());
+        try {
+            // The Kafka serializer needs a heap array, this is the only copy of the payload
+            byte[] value = ByteBufUtil.getBytes(payload);
+            return send(value.length, () -> kafkaProducer.sendAsync(deviceId, value,
+                    headers(deviceId, topic, qos, messageId)));
+        } catch (Exception e) {
+            log.error("Failed to publish message to Kafka", e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<RecordMetadata> process(String deviceId, String topic, String payload) {
         log.info("Processing message - DeviceId: {}, Topic: {}, Payload: {}", deviceId, topic, payload);
         try {
             var message = java.util.Map.of(
@@ -24,9 +163,43 @@ public class IotMqttMessageProcessor {
                     "topic", topic,
                     "payload", payload);
             String jsonMessage = objectMapper.writeValueAsString(message);
-            kafkaProducer.send(deviceId, jsonMessage);
+            return send(jsonMessage.length(), () -> kafkaProducer.sendAsync(deviceId, jsonMessage));
         } catch (Exception e) {
             log.error("Failed to publish message to Kafka", e);
+            return CompletableFuture.failedFuture(e);
         }
     }
+
+    /**
+     * Counts the send against the backpressure watermarks until the broker answers.
+     */
+    private CompletableFuture<RecordMetadata> send(int bytes, Supplier<CompletableFuture<RecordMetadata>> sender) {
+        backpressure.onSend(bytes);
+        CompletableFuture<RecordMetadata> sent;
+        try {
+            sent = sender.get();
+        } catch (Exception e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        return sent.whenComplete((metadata, e) -> {
+            backpressure.onComplete(bytes);
+            if (e != null) {
+                log.error("Failed to publish message to Kafka", e);
+            }
+        });
+    }
+
+    private static RecordHeaders headers(String deviceId, String topic, MqttQoS qos, String messageId) {
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.MESSAGE_ID, messageId.getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.TOPIC, topic.getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.QOS, Integer.toString(qos.value()).getBytes(StandardCharsets.UTF_8));
+        headers.add(IotKafkaHeaders.RECEIVED_AT,
+                Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+        return headers;
+    }
+
+    private record Unacked(String key, String messageId, long expiresAt) {
+    }
 }
@@ -0,0 +1,11 @@
+package com.iot.riff.mqtt;
+
+/**
+ * What the downlink does with a command for a device that is not connected.
+ */
+public enum IotMqttOfflinePolicy {
+    /** Fail the send. */
+    REJECT,
+    /** Keep the command until the device reconnects or it expires. */
+    PARK
+}
@@ -0,0 +1,13 @@
+package com.iot.riff.mqtt;
+
+/**
+ * What the listener does with a PUBLISH that exceeds the device's or its model's rate limit.
+ */
+public enum IotMqttRateLimitAction {
+    /** Discard the message, QoS 1 messages are still acknowledged. */
+    DROP,
+    /** Close the connection. */
+    DISCONNECT,
+    /** Stop reading from the device until the bucket has a token for the message. */
+    DELAY_READ
+}
@@ -0,0 +1,202 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.RateLimit;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Limits the PUBLISH rate of each device and of all devices of a model together.
+ * <p>
+ * Every connection keeps its device bucket and its model's shared bucket in a channel
+ * attribute, so checking a PUBLISH costs an attribute read and one CAS per bucket. Limits
+ * come from the device model and fall back to {@code mqtt.rateLimit.device} and
+ * {@code mqtt.rateLimit.model}; until the model has been looked up, off the event loop,
+ * a new connection runs on the configured device limit.
+ */
+@Slf4j
+@Singleton
+public class IotMqttRateLimiter {
+
+    private static final AttributeKey<Limits> LIMITS = AttributeKey.valueOf("mqttRateLimits");
+
+    private final IotCredentialCache iotCredentialCache;
+    private final IotDeviceModelDal iotDeviceModelDal;
+    private final IotMqttRateLimitAction action;
+    private final RateLimit defaultDeviceLimit;
+    private final RateLimit defaultModelLimit;
+    private final long modelCacheTtlNanos;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, CompletableFuture<ModelLimits>> models = new ConcurrentHashMap<>();
+
+    private final LongAdder throttledCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder disconnectedCount = new LongAdder();
+    private final LongAdder delayedCount = new LongAdder();
+    private final LongAdder modelLimitsApplied = new LongAdder();
+    private final Map<String, LongAdder> throttledByModel = new ConcurrentHashMap<>();
+
+    public IotMqttRateLimiter(IotCredentialCache iotCredentialCache, IotDeviceModelDal iotDeviceModelDal,
+            @Property(name = "mqtt.rateLimit.action", defaultValue = "DROP") IotMqttRateLimitAction action,
+            @Property(name = "mqtt.rateLimit.device.messagesPerSecond", defaultValue = "0") double deviceRate,
+            @Property(name = "mqtt.rateLimit.device.burst", defaultValue = "0") int deviceBurst,
+            @Property(name = "mqtt.rateLimit.model.messagesPerSecond", defaultValue = "0") double modelRate,
+            @Property(name = "mqtt.rateLimit.model.burst", defaultValue = "0") int modelBurst,
+            @Property(name = "mqtt.rateLimit.modelCacheTtl", defaultValue = "5m") Duration modelCacheTtl) {
+        this.iotCredentialCache = iotCredentialCache;
+        this.iotDeviceModelDal = iotDeviceModelDal;
+        this.action = action;
+        this.defaultDeviceLimit = new RateLimit(deviceRate, deviceBurst);
+        this.defaultModelLimit = new RateLimit(modelRate, modelBurst);
+        this.modelCacheTtlNanos = modelCacheTtl.toNanos();
+    }
+
+    public IotMqttRateLimitAction action() {
+        return action;
+    }
+
+    /**
+     * Starts limiting an authenticated connection and looks up the limits of the device's model.
+     */
+    public void attach(Channel channel, String deviceId) {
+        IotMqttTokenBucket deviceBucket = bucket(defaultDeviceLimit);
+        channel.attr(LIMITS).set(new Limits(null, deviceBucket, null));
+        iotCredentialCache.getModelId(deviceId)
+                .thenCompose(modelId -> modelId != null ? modelLimits(modelId) : CompletableFuture.completedFuture(null))
+                .whenComplete((modelLimits, error) -> {
+                    if (error != null) {
+                        log.warn("Unable to resolve rate limits of device {}, keeping the defaults", deviceId, error);
+                    } else if (modelLimits != null && channel.isActive()) {
+                        // A device limit that did not change keeps the tokens already taken
+                        IotMqttTokenBucket bucket = deviceBucket != null
+                                && deviceBucket.rateLimit().equals(modelLimits.deviceLimit()) ? deviceBucket
+                                        : bucket(modelLimits.deviceLimit());
+                        channel.attr(LIMITS).set(new Limits(modelLimits.modelId(), bucket, modelLimits.modelBucket()));
+                        modelLimitsApplied.increment();
+                    }
+                });
+    }
+
+    /**
+     * Takes a token for one PUBLISH from the device's bucket and its model's bucket, returning
+     * {@code 0} when the message may pass or else the nanoseconds until it would.
+     */
+    public long tryAcquire(Channel channel) {
+        Limits limits = channel.attr(LIMITS).get();
+        if (limits == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long waitNanos = limits.device() != null ? limits.device().tryAcquire(now) : 0;
+        if (waitNanos == 0 && limits.model() != null) {
+            waitNanos = limits.model().tryAcquire(now);
+            if (waitNanos > 0 && limits.device() != null) {
+                limits.device().refund();
+            }
+        }
+        if (waitNanos > 0) {
+            throttledCount.increment();
+            switch (action) {
+                case DROP -> droppedCount.increment();
+                case DISCONNECT -> disconnectedCount.increment();
+                case DELAY_READ -> delayedCount.increment();
+            }
+            if (limits.modelId() != null) {
+                throttledByModel.computeIfAbsent(limits.modelId(), modelId -> new LongAdder()).increment();
+            }
+        }
+        return waitNanos;
+    }
+
+    public Stats stats() {
+        Map<String, Long> byModel = throttledByModel.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().sum()));
+        return new Stats(throttledCount.sum(), droppedCount.sum(), disconnectedCount.sum(), delayedCount.sum(),
+                modelLimitsApplied.sum(), byModel);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<ModelLimits> modelLimits(String modelId) {
+        while (true) {
+            CompletableFuture<ModelLimits> cached = models.get(modelId);
+            ModelLimits previous = null;
+            if (cached != null) {
+                if (!cached.isDone()) {
+                    return cached;
+                }
+                previous = cached.isCompletedExceptionally() ? null : cached.join();
+                if (previous != null && System.nanoTime() - previous.expiresAt() < 0) {
+                    return cached;
+                }
+            }
+            CompletableFuture<ModelLimits> loading = new CompletableFuture<>();
+            boolean installed = cached == null ? models.putIfAbsent(modelId, loading) == null
+                    : models.replace(modelId, cached, loading);
+            if (!installed) {
+                continue;
+            }
+            ModelLimits stale = previous;
+            CompletableFuture.supplyAsync(() -> loadModelLimits(modelId, stale), executor)
+                    .whenComplete((limits, error) -> {
+                        if (error != null) {
+                            // Failed lookups are not cached so the next connect retries
+                            models.remove(modelId, loading);
+                            loading.completeExceptionally(error);
+                        } else {
+                            loading.complete(limits);
+                        }
+                    });
+            return loading;
+        }
+    }
+
+    private ModelLimits loadModelLimits(String modelId, ModelLimits previous) {
+        IotDeviceModel model = iotDeviceModelDal.get(modelId);
+        RateLimit deviceLimit = model != null && model.deviceRateLimit() != null ? model.deviceRateLimit()
+                : defaultDeviceLimit;
+        RateLimit modelLimit = model != null && model.modelRateLimit() != null ? model.modelRateLimit()
+                : defaultModelLimit;
+        // Devices still holding the previous bucket keep sharing it while the limit is unchanged
+        IotMqttTokenBucket modelBucket = previous != null && previous.modelBucket() != null
+                && previous.modelBucket().rateLimit().equals(modelLimit) ? previous.modelBucket() : bucket(modelLimit);
+        return new ModelLimits(modelId, deviceLimit, modelBucket, System.nanoTime() + modelCacheTtlNanos);
+    }
+
+    private static IotMqttTokenBucket bucket(RateLimit rateLimit) {
+        return rateLimit.isUnlimited() ? null : new IotMqttTokenBucket(rateLimit);
+    }
+
+    private record Limits(String modelId, IotMqttTokenBucket device, IotMqttTokenBucket model) {
+    }
+
+    private record ModelLimits(String modelId, RateLimit deviceLimit, IotMqttTokenBucket modelBucket,
+            long expiresAt) {
+    }
+
+    /**
+     * @param modelLimitsApplied connections that switched from the configured defaults to their model's limits
+     */
+    @Serdeable
+    public record Stats(long throttledCount, long droppedCount, long disconnectedCount, long delayedCount,
+            long modelLimitsApplied, Map<String, Long> throttledByModel) {
+    }
+}
@@ -0,0 +1,22 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes the throttled PUBLISH counters of the {@link IotMqttRateLimiter} at {@code /mqtt-rate-limits}.
+ */
+@Endpoint(id = "mqtt-rate-limits")
+public class IotMqttRateLimiterEndpoint {
+
+    private final IotMqttRateLimiter iotMqttRateLimiter;
+
+    public IotMqttRateLimiterEndpoint(IotMqttRateLimiter iotMqttRateLimiter) {
+        this.iotMqttRateLimiter = iotMqttRateLimiter;
+    }
+
+    @Read
+    public IotMqttRateLimiter.Stats stats() {
+        return iotMqttRateLimiter.stats();
+    }
+}
@@ -0,0 +1,650 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.exception.IotException;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Persistent MQTT sessions ({@code cleanSession=false}) and their unacknowledged QoS 1 messages.
+ * <p>
+ * Messages live in fixed-size, memory-mapped segment files that are only ever appended to,
+ * so payloads stay off the heap; the heap only holds a small pointer per message. Every
+ * record is written first and its length last, so a record cut short by a crash is never
+ * read back. An acknowledgement flips the record's state byte in place rather than
+ * appending, which keeps a segment's live count exact: a sealed segment whose records are
+ * all acknowledged is deleted, and one that falls below {@code compactionThreshold} live
+ * records is compacted by copying the survivors into the active segment.
+ * <p>
+ * The store is called from the event loops, so nothing there waits on the file system or on
+ * other devices: each session is locked on its own, and appends only share the short copy into
+ * the active segment. A dedicated store thread keeps the next segment mapped ahead of time, so
+ * rolling over is a swap, and does all compaction and segment deletes.
+ * <p>
+ * On startup the segments are scanned to rebuild the sessions, so they survive a restart.
+ * Writes reach the page cache, not necessarily the disk, which covers a process restart
+ * but not a host crash. Only the messages are kept: subscriptions are not part of the stored
+ * session, so a client resuming one has to subscribe again.
+ * <p>
+ * Record layout: {@code int length, byte type, byte state, long seq, long expiresAt, byte qos,
+ * short deviceIdLength, deviceId, short topicLength, topic, int payloadLength, payload}. The state
+ * is live, delivered (live and written to the device at least once, so a resend is marked DUP) or
+ * acknowledged.
+ */
+@Slf4j
+@Singleton
+public class IotMqttSessionStore {
+
+    private static final byte SESSION = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte LIVE = 0;
+    private static final byte ACKNOWLEDGED = 1;
+    private static final byte DELIVERED = 2;
+    private static final int STATE_OFFSET = 5;
+    private static final int HEADER_LENGTH = 23;
+    private static final byte[] EMPTY = new byte[0];
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxMessagesPerSession;
+    private final double compactionThreshold;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Guards the active segment and its write position, held only to copy one record
+    private final Object writeLock = new Object();
+    private volatile Segment active;
+    // Mapped by the store thread ahead of the next roll
+    private volatile Segment spare;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    private volatile boolean opened;
+    private ExecutorService storeThread;
+    private final AtomicLong storeTasks = new AtomicLong();
+    private final LongAdder compactionCount = new LongAdder();
+    private final LongAdder deletedSegmentCount = new LongAdder();
+
+    public IotMqttSessionStore(
+            @Property(name = "mqtt.sessions.directory", defaultValue = "data/mqtt-sessions") String directory,
+            @Property(name = "mqtt.sessions.segmentSize", defaultValue = "67108864") int segmentSize,
+            @Property(name = "mqtt.sessions.maxMessagesPerSession", defaultValue = "10000") int maxMessagesPerSession,
+            @Property(name = "mqtt.sessions.compactionThreshold", defaultValue = "0.25") double compactionThreshold) {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.maxMessagesPerSession = maxMessagesPerSession;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * A stored QoS 1 message, its payload copied out of the segment.
+     */
+    public record StoredMessage(long seq, String topic, byte[] payload, MqttQoS qos, long expiresAt,
+            boolean delivered) {
+    }
+
+    /**
+     * Maps the segment files and rebuilds the sessions from them, once.
+     */
+    public void open() {
+        if (opened) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (opened) {
+                return;
+            }
+            try {
+                Files.createDirectories(directory);
+                List<Path> files;
+                try (Stream<Path> listing = Files.list(directory)) {
+                    files = listing.filter(path -> SEGMENT_NAME.matcher(path.getFileName().toString()).matches())
+                            .sorted(Comparator.comparingLong(IotMqttSessionStore::segmentId))
+                            .toList();
+                }
+                for (Path file : files) {
+                    recover(file);
+                }
+            } catch (IOException e) {
+                throw new IotException("Error opening MQTT session store at " + directory, e);
+            }
+            sessions.values().forEach(Session::sortBySeq);
+            active = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+            segments.put(active.id, active);
+            storeThread = Executors.newSingleThreadExecutor(
+                    Thread.ofPlatform().name("mqtt-session-store").daemon().factory());
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.live.get() == 0) {
+                    onStoreThread(() -> delete(segment));
+                }
+            }
+            onStoreThread(this::prepareSpare);
+            opened = true;
+        }
+        log.info("MQTT session store opened at {}: {} sessions, {} segments", directory, sessions.size(),
+                segments.size());
+    }
+
+    /**
+     * Starts the session of a connecting device.
+     *
+     * @return whether a persistent session was already present; a clean session discards it
+     */
+    public boolean openSession(String deviceId, boolean cleanSession) {
+        open();
+        if (cleanSession) {
+            Session session = sessions.get(deviceId);
+            if (session != null) {
+                synchronized (session) {
+                    discard(deviceId, session);
+                }
+            }
+            return false;
+        }
+        Session created = new Session();
+        synchronized (created) {
+            if (sessions.putIfAbsent(deviceId, created) != null) {
+                return true;
+            }
+            created.marker = append(SESSION, deviceId, 0, EMPTY, EMPTY, MqttQoS.AT_MOST_ONCE, Long.MAX_VALUE);
+        }
+        return false;
+    }
+
+    public boolean hasSession(String deviceId) {
+        open();
+        return sessions.containsKey(deviceId);
+    }
+
+    /**
+     * Appends a message for a device with a persistent session.
+     *
+     * @return the message's sequence number, used to acknowledge it
+     * @throws IotException if the device has no persistent session or too many pending messages
+     */
+    public long append(String deviceId, String topic, byte[] payload, MqttQoS qos, long expiresAt) {
+        open();
+        Session session = sessions.get(deviceId);
+        if (session == null) {
+            throw new IotException("No persistent MQTT session for device: " + deviceId);
+        }
+        synchronized (session) {
+            if (session.discarded) {
+                throw new IotException("No persistent MQTT session for device: " + deviceId);
+            }
+            if (session.messages.size() >= maxMessagesPerSession) {
+                throw new IotException("Too many pending messages in MQTT session of device: " + deviceId);
+            }
+            long seq = nextSeq.getAndIncrement();
+            Pointer pointer = append(MESSAGE, deviceId, seq, topic.getBytes(StandardCharsets.UTF_8), payload, qos,
+                    expiresAt);
+            session.messages.put(seq, pointer);
+            return seq;
+        }
+    }
+
+    /**
+     * Reads up to {@code max} pending messages with a sequence number above {@code afterSeq}, in order.
+     * Expired messages are acknowledged and skipped.
+     */
+    public List<StoredMessage> read(String deviceId, long afterSeq, int max) {
+        Session session = sessions.get(deviceId);
+        if (session == null || max <= 0) {
+            return List.of();
+        }
+        long now = System.currentTimeMillis();
+        List<StoredMessage> messages = new ArrayList<>();
+        synchronized (session) {
+            Iterator<Pointer> pointers = session.messages.values().iterator();
+            while (pointers.hasNext() && messages.size() < max) {
+                Pointer pointer = pointers.next();
+                if (pointer.seq <= afterSeq) {
+                    continue;
+                }
+                if (pointer.expiresAt < now) {
+                    pointers.remove();
+                    markAcknowledged(pointer);
+                    continue;
+                }
+                messages.add(readMessage(pointer));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Records that a message was written to the device, so it is resent with DUP set, also after a restart.
+     */
+    public void delivered(String deviceId, long seq) {
+        Session session = sessions.get(deviceId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            Pointer pointer = session.messages.get(seq);
+            if (pointer != null) {
+                pointer.segment.buffer.put(pointer.offset + STATE_OFFSET, DELIVERED);
+            }
+        }
+    }
+
+    /**
+     * Marks a delivered message as acknowledged, the space is reclaimed once its segment is empty.
+     */
+    public void ack(String deviceId, long seq) {
+        Session session = sessions.get(deviceId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            Pointer pointer = session.messages.remove(seq);
+            if (pointer != null) {
+                markAcknowledged(pointer);
+            }
+        }
+    }
+
+    public Stats stats() {
+        long pending = 0;
+        for (Session session : sessions.values()) {
+            synchronized (session) {
+                pending += session.messages.size();
+            }
+        }
+        long liveRecords = 0;
+        for (Segment segment : segments.values()) {
+            liveRecords += segment.live.get();
+        }
+        return new Stats(sessions.size(), pending, segments.size(), liveRecords, compactionCount.sum(),
+                deletedSegmentCount.sum());
+    }
+
+    /**
+     * Waits until the store thread is idle, including the tasks its own tasks submitted.
+     */
+    void awaitStoreThread() {
+        long submitted;
+        do {
+            submitted = storeTasks.get();
+            CompletableFuture.runAsync(() -> { }, storeThread).join();
+        } while (storeTasks.get() != submitted);
+    }
+
+    private void onStoreThread(Runnable task) {
+        storeTasks.incrementAndGet();
+        storeThread.execute(task);
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (writeLock) {
+            if (!opened) {
+                return;
+            }
+            opened = false;
+        }
+        storeThread.shutdown();
+        try {
+            storeThread.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            closeQuietly(segment);
+        }
+        Segment unused = spare;
+        if (unused != null) {
+            closeQuietly(unused);
+            deleteFile(unused);
+        }
+        spare = null;
+        segments.clear();
+        sessions.clear();
+    }
+
+    private void discard(String deviceId, Session session) {
+        for (Pointer pointer : session.messages.values()) {
+            markAcknowledged(pointer);
+        }
+        session.messages.clear();
+        if (session.marker != null) {
+            markAcknowledged(session.marker);
+        }
+        session.discarded = true;
+        sessions.remove(deviceId, session);
+    }
+
+    private Pointer append(byte type, String deviceId, long seq, byte[] topic, byte[] payload, MqttQoS qos,
+            long expiresAt) {
+        byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_LENGTH + 2 + id.length + 2 + topic.length + 4 + payload.length;
+        if (length > segmentSize) {
+            throw new IotException("MQTT message of " + length + " bytes exceeds the session segment size");
+        }
+        synchronized (writeLock) {
+            Segment segment = reserve(length);
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = segment.writePosition;
+            int position = offset + 4;
+            buffer.put(position, type);
+            buffer.put(position + 1, LIVE);
+            buffer.putLong(position + 2, seq);
+            buffer.putLong(position + 10, expiresAt);
+            buffer.put(position + 18, (byte) qos.value());
+            position = offset + HEADER_LENGTH;
+            buffer.putShort(position, (short) id.length);
+            buffer.put(position + 2, id);
+            position += 2 + id.length;
+            buffer.putShort(position, (short) topic.length);
+            buffer.put(position + 2, topic);
+            position += 2 + topic.length;
+            buffer.putInt(position, payload.length);
+            buffer.put(position + 4, payload);
+            // The length goes last, it is what makes the record visible to recovery
+            buffer.putInt(offset, length);
+            segment.writePosition += length;
+            segment.records++;
+            segment.live.incrementAndGet();
+            return new Pointer(seq, expiresAt, segment, offset);
+        }
+    }
+
+    /**
+     * Returns the active segment once it has room for {@code length} bytes, rolling over to the
+     * spare if it has not. Called holding the write lock.
+     */
+    private Segment reserve(int length) {
+        // Keep room for a zero length after the last record, it marks the end of the segment
+        if (active.writePosition + length + 4 <= active.buffer.capacity()) {
+            return active;
+        }
+        Segment sealed = active;
+        Segment next = spare;
+        spare = null;
+        if (next == null) {
+            // The store thread has not mapped it yet, only under a burst of rolls
+            next = createSegment(sealed.id + 1);
+        }
+        segments.put(next.id, next);
+        active = next;
+        onStoreThread(() -> {
+            if (sealed.live.get() == 0) {
+                delete(sealed);
+            }
+            compact();
+            prepareSpare();
+        });
+        return active;
+    }
+
+    private void prepareSpare() {
+        synchronized (writeLock) {
+            if (spare != null || !opened) {
+                return;
+            }
+        }
+        long id = active.id + 1;
+        Segment segment = createSegment(id);
+        synchronized (writeLock) {
+            if (spare == null && active.id < id && opened) {
+                spare = segment;
+                return;
+            }
+        }
+        // Rolled onto a segment of its own meanwhile, mapping the same file, which stays in use
+        closeQuietly(segment);
+    }
+
+    /**
+     * Copies the live records of sparse sealed segments into the active one and deletes them.
+     * Runs on the store thread only.
+     */
+    private void compact() {
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == active || segment.live.get() == 0
+                    || segment.live.get() >= segment.records * compactionThreshold) {
+                continue;
+            }
+            int position = 0;
+            int length;
+            while (position + 4 <= segment.buffer.capacity() && (length = segment.buffer.getInt(position)) > 0) {
+                if (segment.buffer.get(position + STATE_OFFSET) != ACKNOWLEDGED) {
+                    move(segment, position, length);
+                }
+                position += length;
+            }
+            compactionCount.increment();
+            // Every live record moved, the segment is deleted by the last move
+        }
+    }
+
+    private void move(Segment segment, int offset, int length) {
+        String deviceId = readString(segment.buffer, offset + HEADER_LENGTH);
+        Session session = sessions.get(deviceId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            Pointer pointer = find(session, segment, offset);
+            // Re-checked under the session lock, the device may have acknowledged it meanwhile
+            if (pointer == null || pointer.segment != segment || pointer.offset != offset
+                    || segment.buffer.get(offset + STATE_OFFSET) == ACKNOWLEDGED) {
+                return;
+            }
+            byte[] record = new byte[length];
+            segment.buffer.get(offset, record);
+            Segment target;
+            int targetOffset;
+            synchronized (writeLock) {
+                target = reserve(length);
+                targetOffset = target.writePosition;
+                target.buffer.put(targetOffset + 4, record, 4, length - 4);
+                target.buffer.putInt(targetOffset, length);
+                target.writePosition += length;
+                target.records++;
+                target.live.incrementAndGet();
+            }
+            markAcknowledged(pointer);
+            pointer.segment = target;
+            pointer.offset = targetOffset;
+        }
+    }
+
+    private static Pointer find(Session session, Segment segment, int offset) {
+        if (segment.buffer.get(offset + 4) == SESSION) {
+            return session.marker;
+        }
+        return session.messages.get(segment.buffer.getLong(offset + 6));
+    }
+
+    private void markAcknowledged(Pointer pointer) {
+        Segment segment = pointer.segment;
+        segment.buffer.put(pointer.offset + STATE_OFFSET, ACKNOWLEDGED);
+        if (segment.live.decrementAndGet() == 0 && segment != active) {
+            onStoreThread(() -> delete(segment));
+        }
+    }
+
+    private StoredMessage readMessage(Pointer pointer) {
+        MappedByteBuffer buffer = pointer.segment.buffer;
+        int position = pointer.offset + HEADER_LENGTH;
+        position += 2 + buffer.getShort(position);
+        String topic = readString(buffer, position);
+        position += 2 + buffer.getShort(position);
+        byte[] payload = new byte[buffer.getInt(position)];
+        buffer.get(position + 4, payload);
+        MqttQoS qos = MqttQoS.valueOf(buffer.get(pointer.offset + 22));
+        boolean delivered = buffer.get(pointer.offset + STATE_OFFSET) == DELIVERED;
+        return new StoredMessage(pointer.seq, topic, payload, qos, pointer.expiresAt, delivered);
+    }
+
+    private void recover(Path file) throws IOException {
+        Segment segment = mapSegment(segmentId(file), file, (int) Files.size(file));
+        segments.put(segment.id, segment);
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        int length;
+        while (position + 4 <= buffer.capacity() && (length = buffer.getInt(position)) > 0
+                && position + length <= buffer.capacity()) {
+            segment.records++;
+            if (buffer.get(position + STATE_OFFSET) != ACKNOWLEDGED) {
+                byte type = buffer.get(position + 4);
+                long seq = buffer.getLong(position + 6);
+                long expiresAt = buffer.getLong(position + 14);
+                String deviceId = readString(buffer, position + HEADER_LENGTH);
+                Session session = sessions.computeIfAbsent(deviceId, id -> new Session());
+                Pointer pointer = new Pointer(seq, expiresAt, segment, position);
+                if (type == SESSION) {
+                    session.marker = pointer;
+                } else {
+                    session.messages.put(seq, pointer);
+                    nextSeq.accumulateAndGet(seq + 1, Math::max);
+                }
+                segment.live.incrementAndGet();
+            }
+            position += length;
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment createSegment(long id) {
+        try {
+            return mapSegment(id, directory.resolve("segment-" + id + ".log"), segmentSize);
+        } catch (IOException e) {
+            throw new IotException("Error creating MQTT session segment " + id, e);
+        }
+    }
+
+    private Segment mapSegment(long id, Path file, int size) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(id, file, channel, buffer);
+    }
+
+    /**
+     * Deletes a sealed segment left without live records. Runs on the store thread only.
+     */
+    private void delete(Segment segment) {
+        // Skipped if the segment was deleted already, became live again through compaction, or is active
+        if (segment == active || segment.live.get() != 0 || !segments.remove(segment.id, segment)) {
+            return;
+        }
+        closeQuietly(segment);
+        if (deleteFile(segment)) {
+            deletedSegmentCount.increment();
+        }
+    }
+
+    private static boolean deleteFile(Segment segment) {
+        try {
+            return Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            log.warn("Could not delete MQTT session segment {}", segment.file, e);
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.warn("Could not close MQTT session segment {}", segment.file, e);
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer, int position) {
+        byte[] bytes = new byte[buffer.getShort(position)];
+        buffer.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long segmentId(Path file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * A device's session, its own monitor guards the fields and the state bytes of its records.
+     */
+    private static final class Session {
+        private Pointer marker;
+        private boolean discarded;
+        private final Map<Long, Pointer> messages = new LinkedHashMap<>();
+
+        private void sortBySeq() {
+            List<Map.Entry<Long, Pointer>> entries = new ArrayList<>(messages.entrySet());
+            entries.sort(Map.Entry.comparingByKey());
+            messages.clear();
+            entries.forEach(entry -> messages.put(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static final class Pointer {
+        private final long seq;
+        private final long expiresAt;
+        private Segment segment;
+        private int offset;
+
+        private Pointer(long seq, long expiresAt, Segment segment, int offset) {
+            this.seq = seq;
+            this.expiresAt = expiresAt;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // Written holding the write lock
+        private int writePosition;
+        private int records;
+        private final AtomicInteger live = new AtomicInteger();
+
+        private Segment(long id, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    @Serdeable
+    public record Stats(int sessions, long pendingMessages, int segments, long liveRecords, long compactionCount,
+            long deletedSegmentCount) {
+    }
+}
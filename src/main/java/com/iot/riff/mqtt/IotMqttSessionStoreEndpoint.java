@@ -0,0 +1,23 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes persistent session counts and segment usage of the {@link IotMqttSessionStore} at
+ * {@code /mqtt-sessions}.
+ */
+@Endpoint(id = "mqtt-sessions")
+public class IotMqttSessionStoreEndpoint {
+
+    private final IotMqttSessionStore iotMqttSessionStore;
+
+    public IotMqttSessionStoreEndpoint(IotMqttSessionStore iotMqttSessionStore) {
+        this.iotMqttSessionStore = iotMqttSessionStore;
+    }
+
+    @Read
+    public IotMqttSessionStore.Stats stats() {
+        return iotMqttSessionStore.stats();
+    }
+}
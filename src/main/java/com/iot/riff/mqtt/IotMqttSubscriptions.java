@@ -0,0 +1,160 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Subscriptions of connected MQTT clients.
+ * <p>
+ * Filters are indexed in an {@link IotMqttTopicTrie} for matching, while each channel keeps
+ * its own filters in a channel attribute so they can be dropped in one go when it closes.
+ * QoS 2 is not supported, so subscriptions are granted at most {@link MqttQoS#AT_LEAST_ONCE}.
+ * The listener hands every accepted PUBLISH to the channels {@link #match} finds for its topic.
+ * <p>
+ * A device may only subscribe under its own {@code devices/<deviceId>/} topics and to the
+ * broadcast filters shared through {@code mqtt.subscriptions.sharedFilters}, a trailing
+ * {@code #} sharing everything below it.
+ */
+@Slf4j
+@Singleton
+public class IotMqttSubscriptions {
+
+    private static final AttributeKey<Map<String, MqttQoS>> FILTERS = AttributeKey.valueOf("mqttSubscriptions");
+
+    // Reused by every match on the same thread, so a PUBLISH allocates nothing per subscriber
+    private static final FastThreadLocal<Matched> MATCHED = new FastThreadLocal<>() {
+        @Override
+        protected Matched initialValue() {
+            return new Matched();
+        }
+    };
+
+    private final IotMqttTopicTrie<Channel> trie = new IotMqttTopicTrie<>();
+    private final AtomicInteger subscribedChannels = new AtomicInteger();
+    private final List<String> sharedFilters;
+
+    public IotMqttSubscriptions(
+            @Property(name = "mqtt.subscriptions.sharedFilters", defaultValue = "broadcast/#") List<String> sharedFilters) {
+        this.sharedFilters = List.copyOf(sharedFilters);
+    }
+
+    /**
+     * Subscribes the channel of {@code deviceId} to {@code filter}.
+     *
+     * @return the granted QoS, or {@link MqttQoS#FAILURE} if the filter is invalid or not the device's to read
+     */
+    public MqttQoS subscribe(Channel channel, String deviceId, String filter, MqttQoS requested) {
+        if (!IotMqttTopicTrie.isValidFilter(filter)) {
+            log.warn("Rejecting invalid topic filter '{}' from {}", filter, channel.remoteAddress());
+            return MqttQoS.FAILURE;
+        }
+        if (!isAllowed(deviceId, filter)) {
+            log.warn("Rejecting topic filter '{}' from device {}, outside its own and the shared topics", filter,
+                    deviceId);
+            return MqttQoS.FAILURE;
+        }
+        MqttQoS granted = requested.value() > MqttQoS.AT_LEAST_ONCE.value() ? MqttQoS.AT_LEAST_ONCE : requested;
+        Map<String, MqttQoS> filters = channel.attr(FILTERS).get();
+        if (filters == null) {
+            Map<String, MqttQoS> created = new ConcurrentHashMap<>();
+            filters = channel.attr(FILTERS).setIfAbsent(created);
+            if (filters == null) {
+                filters = created;
+                subscribedChannels.incrementAndGet();
+            }
+        }
+        filters.put(filter, granted);
+        trie.subscribe(filter, channel, granted);
+        return granted;
+    }
+
+    /**
+     * @return {@code true} if the channel was subscribed to {@code filter}
+     */
+    public boolean unsubscribe(Channel channel, String filter) {
+        Map<String, MqttQoS> filters = channel.attr(FILTERS).get();
+        if (filters == null || filters.remove(filter) == null) {
+            return false;
+        }
+        return trie.unsubscribe(filter, channel);
+    }
+
+    /**
+     * Drops every subscription of the channel, called once it has closed.
+     */
+    public void unsubscribeAll(Channel channel) {
+        Map<String, MqttQoS> filters = channel.attr(FILTERS).getAndSet(null);
+        if (filters == null) {
+            return;
+        }
+        subscribedChannels.decrementAndGet();
+        filters.keySet().forEach(filter -> trie.unsubscribe(filter, channel));
+    }
+
+    /**
+     * Calls {@code visitor} once for every channel subscribed to a filter matching {@code topic},
+     * with the highest QoS granted among its matching filters, so a channel with overlapping
+     * filters gets one copy. The visitor must not match again on the same thread.
+     */
+    public void match(String topic, BiConsumer<Channel, MqttQoS> visitor) {
+        if (trie.size() == 0) {
+            return;
+        }
+        Matched matched = MATCHED.get();
+        try {
+            trie.match(topic, matched);
+            matched.channels.forEach(visitor);
+        } finally {
+            matched.channels.clear();
+        }
+    }
+
+    private boolean isAllowed(String deviceId, String filter) {
+        if (filter.startsWith("devices/" + deviceId + "/")) {
+            return true;
+        }
+        for (String shared : sharedFilters) {
+            if (filter.equals(shared)
+                    || shared.endsWith("#") && filter.startsWith(shared.substring(0, shared.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Stats stats() {
+        return new Stats(trie.size(), subscribedChannels.get());
+    }
+
+    @Serdeable
+    public record Stats(long subscriptions, int channels) {
+    }
+
+    /**
+     * Channels matched so far for one topic, keyed by identity so adding one allocates nothing.
+     */
+    private static final class Matched implements BiConsumer<Channel, MqttQoS> {
+        private final Map<Channel, MqttQoS> channels = new IdentityHashMap<>();
+
+        @Override
+        public void accept(Channel channel, MqttQoS qos) {
+            MqttQoS granted = channels.get(channel);
+            if (granted == null || granted.value() < qos.value()) {
+                channels.put(channel, qos);
+            }
+        }
+    }
+}
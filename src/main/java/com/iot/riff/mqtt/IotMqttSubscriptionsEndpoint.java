@@ -0,0 +1,22 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes the number of MQTT subscriptions and subscribed connections at {@code /mqtt-subscriptions}.
+ */
+@Endpoint(id = "mqtt-subscriptions")
+public class IotMqttSubscriptionsEndpoint {
+
+    private final IotMqttSubscriptions iotMqttSubscriptions;
+
+    public IotMqttSubscriptionsEndpoint(IotMqttSubscriptions iotMqttSubscriptions) {
+        this.iotMqttSubscriptions = iotMqttSubscriptions;
+    }
+
+    @Read
+    public IotMqttSubscriptions.Stats stats() {
+        return iotMqttSubscriptions.stats();
+    }
+}
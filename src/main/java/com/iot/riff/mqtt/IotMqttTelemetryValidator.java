@@ -0,0 +1,148 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.exception.IotException;
+import com.iot.riff.service.util.IotJsonSchemaValidator;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.ValidationMessage;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Validates PUBLISH payloads against the telemetry schema of the device's model before they
+ * are produced to Kafka.
+ * <p>
+ * The schema is resolved once per connection, off the event loop, and kept compiled in a
+ * channel attribute; compiled schemas are shared by all devices of a model for
+ * {@code mqtt.edgeValidation.schemaCacheTtl}. Until the schema is resolved, or when the model
+ * has none, payloads pass unvalidated and are still checked by the Kafka consumer.
+ */
+@Slf4j
+@Singleton
+public class IotMqttTelemetryValidator {
+
+    private static final AttributeKey<ModelSchema> SCHEMA = AttributeKey.valueOf("mqttTelemetrySchema");
+
+    private final IotCredentialCache iotCredentialCache;
+    private final IotDeviceModelDal iotDeviceModelDal;
+    private final IotJsonSchemaValidator iotJsonSchemaValidator;
+    private final long schemaCacheTtlNanos;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, CompletableFuture<ModelSchema>> models = new ConcurrentHashMap<>();
+
+    private final LongAdder validatedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder skippedCount = new LongAdder();
+    private final Map<String, LongAdder> rejectedByModel = new ConcurrentHashMap<>();
+
+    public IotMqttTelemetryValidator(IotCredentialCache iotCredentialCache, IotDeviceModelDal iotDeviceModelDal,
+            IotJsonSchemaValidator iotJsonSchemaValidator,
+            @Property(name = "mqtt.edgeValidation.schemaCacheTtl", defaultValue = "5m") Duration schemaCacheTtl) {
+        this.iotCredentialCache = iotCredentialCache;
+        this.iotDeviceModelDal = iotDeviceModelDal;
+        this.iotJsonSchemaValidator = iotJsonSchemaValidator;
+        this.schemaCacheTtlNanos = schemaCacheTtl.toNanos();
+    }
+
+    /**
+     * Looks up the telemetry schema of the device's model and keeps it on the connection.
+     */
+    public void attach(Channel channel, String deviceId) {
+        iotCredentialCache.getModelId(deviceId)
+                .thenCompose(modelId -> modelId != null ? modelSchema(modelId) : CompletableFuture.completedFuture(null))
+                .whenComplete((schema, error) -> {
+                    if (error != null) {
+                        log.warn("Unable to resolve the telemetry schema of device {}, validating downstream only",
+                                deviceId, error);
+                    } else if (schema != null && channel.isActive()) {
+                        channel.attr(SCHEMA).set(schema);
+                    }
+                });
+    }
+
+    /**
+     * Validates a payload against the connection's schema, returning why it is rejected or
+     * {@code null} when it may be produced. The buffer is only read.
+     */
+    public String validate(Channel channel, ByteBuf payload) {
+        ModelSchema schema = channel.attr(SCHEMA).get();
+        if (schema == null || schema.schema() == null) {
+            skippedCount.increment();
+            return null;
+        }
+        validatedCount.increment();
+        String reason;
+        try {
+            Set<ValidationMessage> messages = iotJsonSchemaValidator.validate(
+                    new ByteBufInputStream(payload.duplicate()), schema.schema());
+            if (messages.isEmpty()) {
+                return null;
+            }
+            reason = messages.iterator().next().getMessage();
+        } catch (IotException e) {
+            reason = "Payload is not valid JSON";
+        }
+        rejectedCount.increment();
+        rejectedByModel.computeIfAbsent(schema.modelId(), modelId -> new LongAdder()).increment();
+        return reason;
+    }
+
+    public Stats stats() {
+        Map<String, Long> byModel = rejectedByModel.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().sum()));
+        return new Stats(validatedCount.sum(), rejectedCount.sum(), skippedCount.sum(), byModel);
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<ModelSchema> modelSchema(String modelId) {
+        // Failed lookups count as stale so the next connect retries
+        return models.compute(modelId, (id, cached) -> cached != null && (!cached.isDone()
+                || !cached.isCompletedExceptionally() && System.nanoTime() - cached.join().expiresAt() < 0)
+                        ? cached
+                        : CompletableFuture.supplyAsync(() -> loadModelSchema(id), executor));
+    }
+
+    private ModelSchema loadModelSchema(String modelId) {
+        IotDeviceModel model = iotDeviceModelDal.get(modelId);
+        JsonSchema schema = model != null && model.telemetrySchema() != null && !model.telemetrySchema().isEmpty()
+                ? iotJsonSchemaValidator.getSchema(modelId, model.telemetrySchema())
+                : null;
+        return new ModelSchema(modelId, schema, System.nanoTime() + schemaCacheTtlNanos);
+    }
+
+    private record ModelSchema(String modelId, JsonSchema schema, long expiresAt) {
+    }
+
+    /**
+     * @param validatedCount  payloads checked against a schema
+     * @param rejectedCount   payloads that failed the check and were not produced
+     * @param skippedCount    payloads produced without a check, their schema unresolved or absent
+     * @param rejectedByModel rejected payloads per device model
+     */
+    @Serdeable
+    public record Stats(long validatedCount, long rejectedCount, long skippedCount,
+            Map<String, Long> rejectedByModel) {
+    }
+}
@@ -0,0 +1,23 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes the payloads validated and rejected at the edge by the {@link IotMqttTelemetryValidator}
+ * at {@code /mqtt-telemetry-validation}.
+ */
+@Endpoint(id = "mqtt-telemetry-validation")
+public class IotMqttTelemetryValidatorEndpoint {
+
+    private final IotMqttTelemetryValidator iotMqttTelemetryValidator;
+
+    public IotMqttTelemetryValidatorEndpoint(IotMqttTelemetryValidator iotMqttTelemetryValidator) {
+        this.iotMqttTelemetryValidator = iotMqttTelemetryValidator;
+    }
+
+    @Read
+    public IotMqttTelemetryValidator.Stats stats() {
+        return iotMqttTelemetryValidator.stats();
+    }
+}
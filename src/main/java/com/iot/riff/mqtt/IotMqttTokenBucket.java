@@ -0,0 +1,56 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.domain.RateLimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ * <p>
+ * Rather than a token count and a refill time the bucket keeps the time at which it is
+ * full again (the generic cell rate algorithm), so taking a token is a single CAS and a
+ * bucket shared by the event loops of every device of a model needs no lock.
+ */
+final class IotMqttTokenBucket {
+
+    private final RateLimit rateLimit;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    IotMqttTokenBucket(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rateLimit.messagesPerSecond()));
+        this.toleranceNanos = intervalNanos * (Math.max(1, rateLimit.burst()) - 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    RateLimit rateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Takes a token, returning {@code 0} on success or else the nanoseconds until one is available.
+     */
+    long tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long start = current - now > 0 ? current : now;
+            long waitNanos = start - now - toleranceNanos;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            if (fullAt.compareAndSet(current, start + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns a token taken by {@link #tryAcquire(long)} that ended up unused.
+     */
+    void refund() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+}
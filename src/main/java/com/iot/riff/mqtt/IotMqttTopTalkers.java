@@ -0,0 +1,278 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Streaming top-K of the devices sending the most PUBLISH messages and bytes.
+ * <p>
+ * Counts go into Count-Min sketches, one per {@code mqtt.topTalkers.bucketDuration} in a
+ * ring covering the longest window, so memory stays constant however many devices there
+ * are. Next to the sketches a fixed table of candidate device ids holds the heavy hitters:
+ * a device takes a free slot or replaces the candidate with the smallest estimate in its
+ * probe sequence when its own estimate is larger. Recording only adds to atomic counters
+ * and compare-and-sets references to the device id it was given, it neither locks nor
+ * allocates. The ring moves on without coordination, so increments racing with a bucket
+ * being recycled may be lost, which is within the sketch's error anyway.
+ */
+@Singleton
+public class IotMqttTopTalkers {
+
+    private static final int PROBES = 4;
+
+    private final int k;
+    private final List<Duration> windows;
+    private final long bucketNanos;
+    private final LongSupplier ticker;
+    private final long originNanos;
+    private final Dimension messages;
+    private final Dimension bytes;
+
+    @Inject
+    public IotMqttTopTalkers(@Property(name = "mqtt.topTalkers.k", defaultValue = "10") int k,
+            @Property(name = "mqtt.topTalkers.windows", defaultValue = "1m,5m,15m") List<Duration> windows,
+            @Property(name = "mqtt.topTalkers.bucketDuration", defaultValue = "10s") Duration bucketDuration,
+            @Property(name = "mqtt.topTalkers.sketchWidth", defaultValue = "1024") int sketchWidth,
+            @Property(name = "mqtt.topTalkers.sketchDepth", defaultValue = "4") int sketchDepth,
+            @Property(name = "mqtt.topTalkers.candidates", defaultValue = "256") int candidates) {
+        this(k, windows, bucketDuration, sketchWidth, sketchDepth, candidates, System::nanoTime);
+    }
+
+    /**
+     * @param ticker the time in nanoseconds that buckets rotate by
+     */
+    IotMqttTopTalkers(int k, List<Duration> windows, Duration bucketDuration, int sketchWidth, int sketchDepth,
+            int candidates, LongSupplier ticker) {
+        this.ticker = ticker;
+        this.originNanos = ticker.getAsLong();
+        this.k = k;
+        this.windows = List.copyOf(windows);
+        this.bucketNanos = bucketDuration.toNanos();
+        long longestWindow = windows.stream().mapToLong(Duration::toNanos).max().orElse(bucketNanos);
+        // One extra bucket so the one being recycled never belongs to a window
+        int buckets = (int) ((longestWindow + bucketNanos - 1) / bucketNanos) + 1;
+        int width = Integer.highestOneBit(Math.max(2, sketchWidth - 1)) << 1;
+        int slots = Integer.highestOneBit(Math.max(PROBES, candidates - 1)) << 1;
+        this.messages = new Dimension(buckets, width, sketchDepth, slots);
+        this.bytes = new Dimension(buckets, width, sketchDepth, slots);
+    }
+
+    /**
+     * Counts one PUBLISH of the device.
+     */
+    public void record(String deviceId, long payloadBytes) {
+        long epoch = epoch();
+        int hash = deviceId.hashCode();
+        messages.add(deviceId, hash, 1, epoch);
+        bytes.add(deviceId, hash, payloadBytes, epoch);
+    }
+
+    /**
+     * The top {@code mqtt.topTalkers.k} devices of every configured window.
+     */
+    public List<Window> top() {
+        List<Window> result = new ArrayList<>(windows.size());
+        for (Duration window : windows) {
+            result.add(top(window, k));
+        }
+        return result;
+    }
+
+    /**
+     * The top devices of a window, which is rounded up to whole buckets and capped at the longest configured one.
+     */
+    public Window top(Duration window, int limit) {
+        long epoch = epoch();
+        int buckets = (int) Math.min(messages.ring.length - 1,
+                Math.max(1, (window.toNanos() + bucketNanos - 1) / bucketNanos));
+        Set<String> candidates = new HashSet<>();
+        messages.collectCandidates(candidates);
+        bytes.collectCandidates(candidates);
+
+        List<TopTalker> talkers = new ArrayList<>(candidates.size());
+        for (String deviceId : candidates) {
+            int hash = deviceId.hashCode();
+            long messageCount = messages.estimate(hash, epoch, buckets);
+            if (messageCount > 0) {
+                talkers.add(new TopTalker(deviceId, messageCount, bytes.estimate(hash, epoch, buckets)));
+            }
+        }
+        List<TopTalker> byMessages = talkers.stream()
+                .sorted(Comparator.comparingLong(TopTalker::messages).reversed())
+                .limit(limit)
+                .toList();
+        List<TopTalker> byBytes = talkers.stream()
+                .sorted(Comparator.comparingLong(TopTalker::bytes).reversed())
+                .limit(limit)
+                .toList();
+        return new Window(Duration.ofNanos(buckets * bucketNanos).toString(), byMessages, byBytes);
+    }
+
+    public List<Duration> windows() {
+        return windows;
+    }
+
+    private long epoch() {
+        return (ticker.getAsLong() - originNanos) / bucketNanos;
+    }
+
+    private static int hash(int hash, int row) {
+        int h = hash * 0x9E3779B9 + row * 0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Sketch ring and candidate table for one quantity, messages or bytes.
+     */
+    private static final class Dimension {
+        private final Bucket[] ring;
+        private final AtomicReferenceArray<String> candidates;
+        private final int depth;
+
+        private Dimension(int buckets, int width, int depth, int slots) {
+            this.ring = new Bucket[buckets];
+            for (int i = 0; i < buckets; i++) {
+                ring[i] = new Bucket(width, depth);
+            }
+            this.candidates = new AtomicReferenceArray<>(slots);
+            this.depth = depth;
+        }
+
+        void add(String deviceId, int hash, long delta, long epoch) {
+            Bucket bucket = bucket(epoch);
+            long estimate = bucket.add(hash, delta);
+            admit(deviceId, hash, estimate, bucket);
+        }
+
+        private Bucket bucket(long epoch) {
+            Bucket bucket = ring[(int) (epoch % ring.length)];
+            long tag = bucket.epoch.get();
+            if (tag < epoch && bucket.epoch.compareAndSet(tag, epoch)) {
+                bucket.clear();
+            }
+            return bucket;
+        }
+
+        private void admit(String deviceId, int hash, long estimate, Bucket bucket) {
+            int mask = candidates.length() - 1;
+            int start = hash(hash, depth) & mask;
+            int victim = -1;
+            String victimId = null;
+            long victimEstimate = Long.MAX_VALUE;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = (start + probe) & mask;
+                String candidate = candidates.get(slot);
+                if (candidate == null) {
+                    if (candidates.compareAndSet(slot, null, deviceId)) {
+                        return;
+                    }
+                    candidate = candidates.get(slot);
+                }
+                if (candidate == deviceId || candidate.hashCode() == hash && candidate.equals(deviceId)) {
+                    return;
+                }
+                long candidateEstimate = bucket.estimate(candidate.hashCode());
+                if (candidateEstimate < victimEstimate) {
+                    victim = slot;
+                    victimId = candidate;
+                    victimEstimate = candidateEstimate;
+                }
+            }
+            if (estimate > victimEstimate) {
+                candidates.compareAndSet(victim, victimId, deviceId);
+            }
+        }
+
+        void collectCandidates(Set<String> into) {
+            for (int i = 0; i < candidates.length(); i++) {
+                String candidate = candidates.get(i);
+                if (candidate != null) {
+                    into.add(candidate);
+                }
+            }
+        }
+
+        long estimate(int hash, long epoch, int buckets) {
+            long total = 0;
+            for (long e = epoch - buckets + 1; e <= epoch; e++) {
+                if (e < 0) {
+                    continue;
+                }
+                Bucket bucket = ring[(int) (e % ring.length)];
+                if (bucket.epoch.get() == e) {
+                    total += bucket.estimate(hash);
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Count-Min sketch of one bucket of time, tagged with the bucket's epoch.
+     */
+    private static final class Bucket {
+        private final AtomicLong epoch = new AtomicLong();
+        private final AtomicLongArray counts;
+        private final int width;
+        private final int depth;
+
+        private Bucket(int width, int depth) {
+            this.counts = new AtomicLongArray(width * depth);
+            this.width = width;
+            this.depth = depth;
+        }
+
+        long add(int hash, long delta) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, counts.addAndGet(row * width + (hash(hash, row) & (width - 1)), delta));
+            }
+            return estimate;
+        }
+
+        long estimate(int hash) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, counts.get(row * width + (hash(hash, row) & (width - 1))));
+            }
+            return estimate;
+        }
+
+        void clear() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+    }
+
+    @Serdeable
+    public record TopTalker(String deviceId, long messages, long bytes) {
+    }
+
+    /**
+     * @param window     length of the window, whole buckets
+     * @param byMessages devices sending the most PUBLISH messages, with estimated counts
+     * @param byBytes    devices sending the most payload bytes, with estimated counts
+     */
+    @Serdeable
+    public record Window(String window, List<TopTalker> byMessages, List<TopTalker> byBytes) {
+    }
+}
@@ -0,0 +1,25 @@
+package com.iot.riff.mqtt;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+import java.util.List;
+
+/**
+ * Exposes the devices sending the most messages and bytes per window of the {@link IotMqttTopTalkers}
+ * at {@code /mqtt-top-talkers}.
+ */
+@Endpoint(id = "mqtt-top-talkers")
+public class IotMqttTopTalkersEndpoint {
+
+    private final IotMqttTopTalkers iotMqttTopTalkers;
+
+    public IotMqttTopTalkersEndpoint(IotMqttTopTalkers iotMqttTopTalkers) {
+        this.iotMqttTopTalkers = iotMqttTopTalkers;
+    }
+
+    @Read
+    public List<IotMqttTopTalkers.Window> top() {
+        return iotMqttTopTalkers.top();
+    }
+}
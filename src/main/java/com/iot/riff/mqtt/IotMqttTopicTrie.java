@@ -0,0 +1,206 @@
+package com.iot.riff.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Concurrent trie of MQTT topic filters, one node per topic level.
+ * <p>
+ * Matching a topic walks at most the exact, {@code +} and {@code #} branch of each level,
+ * so its cost grows with the topic depth rather than the number of subscriptions. It takes
+ * no locks and hands every matched subscriber straight to the caller's visitor, so nothing
+ * is allocated per subscriber.
+ * <p>
+ * Empty nodes are pruned on unsubscribe. A node is first marked for removal and only
+ * detached when it is still empty afterwards; a concurrent subscribe that lands on a
+ * marked node retries from the root so its subscription is never left on a detached node.
+ *
+ * @param <S> subscriber type, compared with {@link Object#equals(Object)}
+ */
+public class IotMqttTopicTrie<S> {
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    private final Node<S> root = new Node<>();
+    private final AtomicLong subscriptions = new AtomicLong();
+
+    /**
+     * Whether {@code filter} is a valid MQTT topic filter: non-empty, with {@code +} and
+     * {@code #} only occupying a whole level and {@code #} only as the last level.
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            String level = end < 0 ? filter.substring(start) : filter.substring(start, end);
+            if (level.length() > 1 && (level.indexOf('+') >= 0 || level.indexOf('#') >= 0)) {
+                return false;
+            }
+            if (level.equals(MULTI_LEVEL) && end >= 0) {
+                return false;
+            }
+            if (end < 0) {
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Adds or replaces the subscription of {@code subscriber} to {@code filter}.
+     *
+     * @return {@code true} if the subscriber was not yet subscribed to the filter
+     */
+    public boolean subscribe(String filter, S subscriber, MqttQoS qos) {
+        String[] levels = filter.split("/", -1);
+        Node<S>[] path = newPath(levels.length);
+        while (true) {
+            Node<S> node = root;
+            path[0] = node;
+            boolean retry = false;
+            for (int i = 0; i < levels.length; i++) {
+                node = node.children.computeIfAbsent(levels[i], level -> new Node<>());
+                if (node.removing.get()) {
+                    retry = true;
+                    break;
+                }
+                path[i + 1] = node;
+            }
+            if (retry) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean added = node.subscribers.put(subscriber, qos) == null;
+            // A prune that marked a node on the path before seeing the subscription may detach it
+            if (isDetachable(path)) {
+                if (added) {
+                    // Taken back so only the attempt that sticks counts the subscription
+                    node.subscribers.remove(subscriber, qos);
+                }
+                Thread.onSpinWait();
+                continue;
+            }
+            if (added) {
+                subscriptions.incrementAndGet();
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Removes the subscription of {@code subscriber} to {@code filter} and prunes nodes left empty.
+     *
+     * @return {@code true} if the subscriber was subscribed to the filter
+     */
+    public boolean unsubscribe(String filter, S subscriber) {
+        String[] levels = filter.split("/", -1);
+        Node<S>[] path = newPath(levels.length);
+        Node<S> node = root;
+        path[0] = node;
+        for (int i = 0; i < levels.length; i++) {
+            node = node.children.get(levels[i]);
+            if (node == null) {
+                return false;
+            }
+            path[i + 1] = node;
+        }
+        if (node.subscribers.remove(subscriber) == null) {
+            return false;
+        }
+        subscriptions.decrementAndGet();
+        for (int i = levels.length; i > 0; i--) {
+            if (!prune(path[i - 1], levels[i - 1], path[i])) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls {@code visitor} once for every subscription whose filter matches {@code topic}.
+     * A subscriber with several matching filters is visited once per filter.
+     */
+    public void match(String topic, BiConsumer<? super S, MqttQoS> visitor) {
+        // Wildcards at the first level do not match topics starting with '$'
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        match(root, topic.split("/", -1), 0, system, visitor);
+    }
+
+    public long size() {
+        return subscriptions.get();
+    }
+
+    private void match(Node<S> node, String[] levels, int level, boolean system,
+            BiConsumer<? super S, MqttQoS> visitor) {
+        if (!system) {
+            Node<S> multi = node.children.get(MULTI_LEVEL);
+            if (multi != null) {
+                // "a/#" also matches "a", so this holds once every level is consumed as well
+                multi.subscribers.forEach(visitor);
+            }
+        }
+        if (level == levels.length) {
+            node.subscribers.forEach(visitor);
+            return;
+        }
+        Node<S> exact = node.children.get(levels[level]);
+        if (exact != null) {
+            match(exact, levels, level + 1, false, visitor);
+        }
+        if (!system) {
+            Node<S> single = node.children.get(SINGLE_LEVEL);
+            if (single != null) {
+                match(single, levels, level + 1, false, visitor);
+            }
+        }
+    }
+
+    /**
+     * Detaches {@code node} from {@code parent} if it is empty.
+     *
+     * @return {@code true} if the node was detached, so its parent may now be empty too
+     */
+    private boolean prune(Node<S> parent, String level, Node<S> node) {
+        if (!node.isEmpty() || !node.removing.compareAndSet(false, true)) {
+            return false;
+        }
+        // Re-check after marking, a subscribe either sees the mark or its entry is seen here
+        if (!node.isEmpty()) {
+            node.removing.set(false);
+            return false;
+        }
+        return parent.children.remove(level, node);
+    }
+
+    private static <S> boolean isDetachable(Node<S>[] path) {
+        for (int i = 1; i < path.length; i++) {
+            if (path[i].removing.get()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> Node<S>[] newPath(int levels) {
+        return (Node<S>[]) new Node[levels + 1];
+    }
+
+    private static final class Node<S> {
+        private final ConcurrentHashMap<String, Node<S>> children = new ConcurrentHashMap<>(2);
+        private final ConcurrentHashMap<S, MqttQoS> subscribers = new ConcurrentHashMap<>(2);
+        private final AtomicBoolean removing = new AtomicBoolean();
+
+        private boolean isEmpty() {
+            return subscribers.isEmpty() && children.isEmpty();
+        }
+    }
+}
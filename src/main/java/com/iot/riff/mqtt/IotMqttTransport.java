@@ -0,0 +1,152 @@
+package com.iot.riff.mqtt;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.StandardSocketOptions;
+
+/**
+ * Netty transport backing the MQTT listener, selected with {@code mqtt.transport}.
+ * <p>
+ * The native transports need their JNI library to load on the running kernel. When it
+ * does not, {@link #resolve()} falls back to {@link #NIO} so the listener still starts.
+ */
+@Slf4j
+public enum IotMqttTransport {
+
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return NioIoHandler.newFactory();
+        }
+
+        @Override
+        Class<? extends ServerSocketChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        ChannelOption<Boolean> reusePortOption() {
+            return NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT);
+        }
+    },
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return Epoll.unavailabilityCause();
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return EpollIoHandler.newFactory();
+        }
+
+        @Override
+        Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    },
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            return IoUring.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return IoUring.unavailabilityCause();
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return IoUringIoHandler.newFactory();
+        }
+
+        @Override
+        Class<? extends ServerSocketChannel> serverChannelClass() {
+            return IoUringServerSocketChannel.class;
+        }
+    },
+    /**
+     * Prefers io_uring, then epoll, then NIO.
+     */
+    AUTO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        IotMqttTransport resolve() {
+            if (IO_URING.isAvailable()) {
+                return IO_URING;
+            }
+            if (EPOLL.isAvailable()) {
+                return EPOLL;
+            }
+            return NIO;
+        }
+
+        @Override
+        IoHandlerFactory ioHandlerFactory() {
+            return resolve().ioHandlerFactory();
+        }
+
+        @Override
+        Class<? extends ServerSocketChannel> serverChannelClass() {
+            return resolve().serverChannelClass();
+        }
+    };
+
+    abstract boolean isAvailable();
+
+    abstract IoHandlerFactory ioHandlerFactory();
+
+    abstract Class<? extends ServerSocketChannel> serverChannelClass();
+
+    Throwable unavailabilityCause() {
+        return null;
+    }
+
+    /**
+     * Socket option enabling {@code SO_REUSEPORT} on a server channel of this transport.
+     */
+    ChannelOption<Boolean> reusePortOption() {
+        return UnixChannelOption.SO_REUSEPORT;
+    }
+
+    /**
+     * Returns the transport to actually use, falling back to {@link #NIO} when the
+     * requested native transport cannot be loaded.
+     */
+    IotMqttTransport resolve() {
+        if (isAvailable()) {
+            return this;
+        }
+        log.warn("MQTT transport {} is not available, falling back to NIO: {}", this,
+                String.valueOf(unavailabilityCause()));
+        return NIO;
+    }
+}
@@ -0,0 +1,9 @@
+package com.iot.riff.service;
+
+import com.iot.riff.service.request.IotDeviceCommandSendRequest;
+import com.iot.riff.service.response.IotDeviceCommandSendResponse;
+
+public interface IotDeviceCommandService {
+
+    IotDeviceCommandSendResponse send(IotDeviceCommandSendRequest request);
+}
@@ -1,10 +1,51 @@
 package com.iot.riff.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.iot.riff.service.domain.TelemetryReading;
+
 import java.util.Map;
 
 public interface IotDeviceDataService {
     void processTelemetry(String deviceId, Map<String, Object> telemetryPayload);
 
+    /**
+     * Validates and stores telemetry already parsed into a tree, without converting it again. Returns once
+     * the reading is stored; a reading that can never be stored is logged and dropped, and the store's
+     * exception is thrown when it could not be stored now.
+     */
+    void processTelemetry(String deviceId, JsonNode telemetryPayload);
+
+    /**
+     * Validates and stores telemetry like {@link #processTelemetry(String, JsonNode)}, but reports failures
+     * instead of logging them: an {@link com.iot.riff.service.exception.IotTelemetryRejectedException} when
+     * the reading can never be stored, and the store's own exception when it could not be stored now.
+     * A reading carrying a message id is stored at most once, however often it is ingested.
+     */
+    void ingestTelemetry(TelemetryReading reading);
+
+    /**
+     * Validates a reading like {@link #ingestTelemetry(TelemetryReading)} and queues it for the next group
+     * write instead of waiting for its own.
+     *
+     * @return completes with {@code false} if the reading had already been stored, or fails with the same
+     *         exceptions {@link #ingestTelemetry(TelemetryReading)} throws
+     */
+    java.util.concurrent.CompletableFuture<Boolean> ingestTelemetryAsync(TelemetryReading reading);
+
+    /**
+     * Validates a batch of readings and stores the valid ones with a single write.
+     *
+     * @return the number of readings stored
+     */
+    int processTelemetryBatch(java.util.List<TelemetryReading> readings);
+
     java.util.List<com.iot.riff.service.domain.DeviceData> searchData(String deviceId, java.time.Instant start,
             java.time.Instant end, int limit, int page);
+
+    /**
+     * Searches like {@link #searchData(String, java.time.Instant, java.time.Instant, int, int)}, continuing after
+     * {@code continuationToken}, or from the newest reading when it is {@code null}.
+     */
+    com.iot.riff.service.domain.ContinuationPage<com.iot.riff.service.domain.DeviceData> searchData(String deviceId,
+            java.time.Instant start, java.time.Instant end, int limit, String continuationToken);
 }
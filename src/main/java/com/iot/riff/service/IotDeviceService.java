@@ -4,6 +4,7 @@ import com.iot.riff.service.request.IotDeviceCreateRequest;
 import com.iot.riff.service.request.IotDeviceDeleteRequest;
 import com.iot.riff.service.request.IotDeviceGetRequest;
 import com.iot.riff.service.request.IotDeviceListRequest;
+import com.iot.riff.service.request.IotDeviceRotateCredentialsRequest;
 import com.iot.riff.service.response.IotDeviceCreateResponse;
 import com.iot.riff.service.response.IotDeviceGetResponse;
 import com.iot.riff.service.response.IotDeviceListResponse;
@@ -17,4 +18,6 @@ public interface IotDeviceService {
     IotDeviceListResponse list(IotDeviceListRequest request);
 
     void delete(IotDeviceDeleteRequest request);
+
+    void rotateCredentials(IotDeviceRotateCredentialsRequest request);
 }
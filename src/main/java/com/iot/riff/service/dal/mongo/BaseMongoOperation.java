@@ -1,12 +1,21 @@
 package com.iot.riff.service.dal.mongo;
 
+import com.iot.riff.service.domain.ContinuationPage;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
 import jakarta.inject.Inject;
 import java.util.ArrayList;
 import java.util.List;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
 import org.bson.conversions.Bson;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.model.Sorts;
@@ -14,6 +23,8 @@ import org.bson.types.ObjectId;
 
 public abstract class BaseMongoOperation<T> {
 
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
     @Inject
     protected MongoClient mongoClient;
 
@@ -23,10 +34,69 @@ public abstract class BaseMongoOperation<T> {
 
     protected abstract Mapper<T> getMapper();
 
+    /**
+     * Decoder that reads documents of the collection straight into models, or {@code null} to read them as
+     * {@link Document}s converted by the {@link #getMapper() mapper}. Writes always go through the mapper.
+     */
+    protected Decoder<T> getDecoder() {
+        return null;
+    }
+
+    /**
+     * Another collection whose documents {@link #list(Bson, int, int, String, String) list} also reads, as if they
+     * were in this one, or {@code null}. Used while documents are moved between collections.
+     */
+    protected String getUnionCollectionName() {
+        return null;
+    }
+
     protected MongoCollection<Document> getCollection() {
         return mongoClient.getDatabase(getDatabaseName()).getCollection(getCollectionName());
     }
 
+    /**
+     * The collection as raw documents, which {@link #decode(RawBsonDocument)} turns into models.
+     */
+    protected MongoCollection<RawBsonDocument> getRawCollection() {
+        return getCollection().withDocumentClass(RawBsonDocument.class);
+    }
+
+    private T decode(RawBsonDocument doc) {
+        Decoder<T> decoder = getDecoder();
+        if (decoder != null) {
+            return decoder.decode(doc.asBsonReader(), DECODER_CONTEXT);
+        }
+        return getMapper().toModel().apply(doc.decode(getCollection().getCodecRegistry().get(Document.class)));
+    }
+
+    private List<T> decode(Iterable<RawBsonDocument> docs) {
+        List<T> items = new ArrayList<>();
+        for (RawBsonDocument doc : docs) {
+            items.add(decode(doc));
+        }
+        return items;
+    }
+
+    private List<T> toModels(Iterable<Document> docs) {
+        List<T> items = new ArrayList<>();
+        for (Document doc : docs) {
+            items.add(getMapper().toModel().apply(doc));
+        }
+        return items;
+    }
+
+    /**
+     * The first document matching {@code filter}, or {@code null}.
+     */
+    protected T findFirst(Bson filter) {
+        if (getDecoder() != null) {
+            RawBsonDocument doc = getRawCollection().find(filter).first();
+            return doc != null ? decode(doc) : null;
+        }
+        Document doc = getCollection().find(filter).first();
+        return doc != null ? getMapper().toModel().apply(doc) : null;
+    }
+
     protected Object parseId(String id) {
         if (ObjectId.isValid(id)) {
             return new ObjectId(id);
@@ -35,8 +105,7 @@ public abstract class BaseMongoOperation<T> {
     }
 
     public T get(String id) {
-        Document doc = getCollection().find(Filters.eq("_id", parseId(id))).first();
-        return doc != null ? getMapper().toModel().apply(doc) : null;
+        return findFirst(Filters.eq("_id", parseId(id)));
     }
 
     public T save(T model) {
@@ -52,11 +121,33 @@ public abstract class BaseMongoOperation<T> {
     }
 
     public List<T> list() {
+        if (getDecoder() != null) {
+            return decode(getRawCollection().find());
+        }
         return getCollection().find().map(getMapper().toModel()::apply).into(new ArrayList<>());
     }
 
     public List<T> list(Bson filter, int limit, int page, String sort, String sortBy) {
-        FindIterable<Document> query = getCollection().find(filter != null ? filter : new Document());
+        String union = getUnionCollectionName();
+        if (union != null) {
+            Bson order = sortBy != null && !sortBy.isEmpty()
+                    ? ("desc".equalsIgnoreCase(sort) ? Sorts.descending(sortBy) : Sorts.ascending(sortBy))
+                    : null;
+            int skip = limit > 0 && page > 0 ? page * limit : 0;
+            if (getDecoder() != null) {
+                return decode(union(getRawCollection(), union, filter, order, skip, limit));
+            }
+            return toModels(union(getCollection(), union, filter, order, skip, limit));
+        }
+        if (getDecoder() != null) {
+            return decode(page(getRawCollection().find(filter != null ? filter : new Document()), limit, page, sort,
+                    sortBy));
+        }
+        return page(getCollection().find(filter != null ? filter : new Document()), limit, page, sort, sortBy)
+                .map(getMapper().toModel()::apply).into(new ArrayList<>());
+    }
+
+    private static <D> FindIterable<D> page(FindIterable<D> query, int limit, int page, String sort, String sortBy) {
 
         if (limit > 0) {
             query.limit(limit);
@@ -72,8 +163,99 @@ public abstract class BaseMongoOperation<T> {
                 query.sort(Sorts.ascending(sortBy));
             }
         }
+        return query;
+    }
+
+    /**
+     * Lists the page of up to {@code limit} documents that follows {@code continuationToken}, or the first page
+     * when it is {@code null}. Instead of skipping the earlier pages, the query seeks past the last document
+     * returned on {@code (sortBy, _id)}, so a deep page costs the same as the first one when an index on those
+     * fields exists, see {@link #createKeysetIndex}. Without {@code sortBy} documents are listed by {@code _id}.
+     */
+    public ContinuationPage<T> list(Bson filter, int limit, String continuationToken, String sort, String sortBy) {
+        boolean descending = "desc".equalsIgnoreCase(sort);
+        String sortField = sortBy != null && !sortBy.isEmpty() ? sortBy : "_id";
+        Bson query = filter != null ? filter : new Document();
+        if (continuationToken != null) {
+            query = Filters.and(query, ContinuationToken.decode(continuationToken, sortField, descending).seek());
+        }
+        Bson order = descending ? Sorts.descending(sortField, "_id") : Sorts.ascending(sortField, "_id");
+        // Raw documents give the key of the last one without decoding it twice
+        MongoCollection<RawBsonDocument> raw = getRawCollection();
+        // One extra document tells whether another page follows
+        int fetch = limit > 0 ? limit + 1 : 0;
+        List<RawBsonDocument> docs;
+        String union = getUnionCollectionName();
+        if (union != null) {
+            docs = union(raw, union, query, order, 0, fetch);
+        } else {
+            FindIterable<RawBsonDocument> find = raw.find(query).sort(order);
+            if (fetch > 0) {
+                find.limit(fetch);
+            }
+            docs = find.into(new ArrayList<>());
+        }
+
+        String next = null;
+        if (limit > 0 && docs.size() > limit) {
+            docs = docs.subList(0, limit);
+            RawBsonDocument last = docs.get(limit - 1);
+            next = new ContinuationToken(sortField, descending, field(last, sortField), last.get("_id")).encode();
+        }
+        return new ContinuationPage<>(decode(docs), next);
+    }
+
+    /**
+     * Reads the matching documents of {@code collection} and of the collection named {@code other} as one
+     * sorted result. Each side is sorted and cut to the page on its own first, so both can use their indexes.
+     */
+    private static <D> List<D> union(MongoCollection<D> collection, String other, Bson filter, Bson order, int skip,
+            int limit) {
+        List<Bson> side = new ArrayList<>();
+        side.add(Aggregates.match(filter != null ? filter : new Document()));
+        if (order != null) {
+            side.add(Aggregates.sort(order));
+        }
+        if (limit > 0) {
+            side.add(Aggregates.limit(skip + limit));
+        }
+        List<Bson> pipeline = new ArrayList<>(side);
+        pipeline.add(Aggregates.unionWith(other, side));
+        if (order != null) {
+            pipeline.add(Aggregates.sort(order));
+        }
+        if (skip > 0) {
+            pipeline.add(Aggregates.skip(skip));
+        }
+        if (limit > 0) {
+            pipeline.add(Aggregates.limit(limit));
+        }
+        return collection.aggregate(pipeline).into(new ArrayList<>());
+    }
+
+    private static BsonValue field(BsonDocument doc, String path) {
+        BsonValue value = doc;
+        for (String name : path.split("\\.")) {
+            if (!(value instanceof BsonDocument document) || !document.containsKey(name)) {
+                return null;
+            }
+            value = document.get(name);
+        }
+        return value instanceof BsonNull ? null : value;
+    }
 
-        return query.map(getMapper().toModel()::apply).into(new ArrayList<>());
+    /**
+     * Creates the index that keyset pages sorted by {@code sortBy} seek on, after the fields of an equality
+     * filter listed in {@code prefix}.
+     */
+    protected void createKeysetIndex(String sortBy, String... prefix) {
+        List<Bson> keys = new ArrayList<>();
+        for (String field : prefix) {
+            keys.add(Indexes.ascending(field));
+        }
+        keys.add(Indexes.ascending(sortBy));
+        keys.add(Indexes.ascending("_id"));
+        getCollection().createIndex(Indexes.compoundIndex(keys));
     }
 
     public void delete(String id) {
@@ -0,0 +1,72 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.exception.IotException;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.Base64;
+
+/**
+ * Position after the last document of a keyset page: its sort value and {@code _id}, bound to the sort
+ * that produced it. Encoded as base64url BSON so values keep their types across calls.
+ */
+record ContinuationToken(String sortBy, boolean descending, Object value, Object id) {
+
+    private static final String ID = "_id";
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    String encode() {
+        Document doc = new Document("s", sortBy)
+                .append("d", descending)
+                .append("v", value)
+                .append("i", id);
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            CODEC.encode(writer, doc, EncoderContext.builder().build());
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.toByteArray());
+    }
+
+    /**
+     * Decodes a token, checking that it was issued for the same sort.
+     */
+    static ContinuationToken decode(String token, String sortBy, boolean descending) {
+        Document doc;
+        try {
+            doc = new RawBsonDocument(Base64.getUrlDecoder().decode(token)).decode(CODEC);
+        } catch (RuntimeException e) {
+            throw new IotException("Invalid continuation token", e);
+        }
+        if (!sortBy.equals(doc.getString("s")) || descending != Boolean.TRUE.equals(doc.getBoolean("d"))) {
+            throw new IotException("Continuation token was issued for a different sort than " + sortBy);
+        }
+        return new ContinuationToken(sortBy, descending, doc.get("v"), doc.get("i"));
+    }
+
+    /**
+     * Matches the documents that sort after this position on {@code (sortBy, _id)}. Documents without
+     * the sort field sort before all others, as Mongo orders them.
+     */
+    Bson seek() {
+        Bson afterId = descending ? Filters.lt(ID, id) : Filters.gt(ID, id);
+        if (ID.equals(sortBy)) {
+            return afterId;
+        }
+        if (value == null) {
+            return descending
+                    ? Filters.and(Filters.eq(sortBy, null), afterId)
+                    : Filters.or(Filters.and(Filters.eq(sortBy, null), afterId), Filters.ne(sortBy, null));
+        }
+        Bson afterValue = descending ? Filters.lt(sortBy, value) : Filters.gt(sortBy, value);
+        Bson tie = Filters.and(Filters.eq(sortBy, value), afterId);
+        return descending
+                ? Filters.or(afterValue, tie, Filters.eq(sortBy, null))
+                : Filters.or(afterValue, tie);
+    }
+}
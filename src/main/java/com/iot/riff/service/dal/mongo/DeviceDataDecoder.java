@@ -0,0 +1,54 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.DeviceData;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static com.iot.riff.service.dal.mongo.IotDeviceDataDal.FIELD_DEVICE_ID;
+import static com.iot.riff.service.dal.mongo.IotDeviceDataDal.FIELD_RECEIVED_AT;
+import static com.iot.riff.service.dal.mongo.IotDeviceDataDal.FIELD_TELEMETRY_PAYLOAD;
+
+/**
+ * Reads {@code device_data} documents into {@link DeviceData}, keeping the telemetry payload as raw bytes
+ * in a {@link LazyBsonMap} until it is read. Documents are written through the DAL's {@link Mapper}.
+ */
+final class DeviceDataDecoder implements Decoder<DeviceData> {
+
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+
+    @Override
+    public DeviceData decode(BsonReader reader, DecoderContext decoderContext) {
+        String id = null;
+        String deviceId = null;
+        Map<String, Object> payload = null;
+        Instant receivedAt = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "_id" -> id = DomainCodecs.readId(reader);
+                case FIELD_DEVICE_ID -> deviceId = DomainCodecs.readString(reader);
+                case FIELD_TELEMETRY_PAYLOAD -> payload = readPayload(reader, decoderContext);
+                case FIELD_RECEIVED_AT -> receivedAt = DomainCodecs.readInstant(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new DeviceData(id, deviceId, payload, receivedAt);
+    }
+
+    private static Map<String, Object> readPayload(BsonReader reader, DecoderContext decoderContext) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+        RawBsonDocument raw = RAW_CODEC.decode(reader, decoderContext);
+        return new LazyBsonMap(raw);
+    }
+}
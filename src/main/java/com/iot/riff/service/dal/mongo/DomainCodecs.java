@@ -0,0 +1,83 @@
+package com.iot.riff.service.dal.mongo;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+
+import java.time.Instant;
+
+/**
+ * Helpers shared by the decoders that read the domain records straight from the BSON stream, instead of
+ * building a {@link Document} and copying it through a {@link Mapper}.
+ * <p>
+ * The decoders follow the document layout of the mappers field for field, so both read the same
+ * collections; unknown fields are skipped. Writes go through the mappers.
+ */
+final class DomainCodecs {
+
+    private DomainCodecs() {
+    }
+
+    /**
+     * Reads an {@code _id} as the string the mappers expose: hex for ObjectIds, the UUID for UUID binaries.
+     */
+    static String readId(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case OBJECT_ID -> reader.readObjectId().toHexString();
+            case STRING -> reader.readString();
+            case BINARY -> {
+                BsonBinary binary = reader.readBinaryData();
+                yield binary.getType() == BsonBinarySubType.UUID_STANDARD.getValue()
+                        ? binary.asUuid().toString()
+                        : binary.toString();
+            }
+            case INT32 -> Integer.toString(reader.readInt32());
+            case INT64 -> Long.toString(reader.readInt64());
+            default -> {
+                reader.skipValue();
+                yield null;
+            }
+        };
+    }
+
+    static String readString(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.STRING) {
+            return reader.readString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    static double readNumber(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case DOUBLE -> reader.readDouble();
+            case INT32 -> reader.readInt32();
+            case INT64 -> reader.readInt64();
+            case DECIMAL128 -> reader.readDecimal128().doubleValue();
+            default -> {
+                reader.skipValue();
+                yield 0;
+            }
+        };
+    }
+
+    static Instant readInstant(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.DATE_TIME) {
+            return Instant.ofEpochMilli(reader.readDateTime());
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    static Document readDocument(BsonReader reader, Codec<Document> documentCodec, DecoderContext context) {
+        if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+            return documentCodec.decode(reader, context);
+        }
+        reader.skipValue();
+        return null;
+    }
+}
@@ -5,32 +5,36 @@ import com.iot.riff.service.domain.IotDevice;
 import com.iot.riff.service.domain.IotDeviceId;
 import com.iot.riff.service.domain.IotDeviceModelId;
 import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.model.Indexes;
 import io.micronaut.context.annotation.Property;
 import jakarta.annotation.PostConstruct;
 import jakarta.inject.Singleton;
 
 import org.bson.Document;
+import org.bson.codecs.Decoder;
 
 @Singleton
 public class IotDeviceDal extends BaseMongoOperation<IotDevice> {
 
     private final String databaseName;
+    private final Mapper<IotDevice> mapper = new Mapper<>(this::toModel, this::toDocument);
     private static final String COLLECTION_NAME = "device";
-    private static final String FIELD_ID = "_id";
-    private static final String FIELD_NAME = "name";
-    private static final String FIELD_DESCRIPTION = "description";
-    private static final String FIELD_IOT_DEVICE_MODEL_ID = "iot_device_model_id";
-    private static final String FIELD_METADATA = "metadata";
-    private static final String FIELD_MQTT = "mqtt_connection_details";
-    private static final String FIELD_STATUS = "status";
-    private static final String FIELD_CREATED_AT = "created_at";
-
-    private static final String FIELD_MQTT_HOST = "host";
-    private static final String FIELD_MQTT_PORT = "port";
-    private static final String FIELD_MQTT_TOPIC = "topic";
-    private static final String FIELD_MQTT_USERNAME = "username";
-    private static final String FIELD_MQTT_SECRET_PATH = "secretPath";
+    private static final Decoder<IotDevice> DECODER = new IotDeviceDecoder(MongoClientSettings.getDefaultCodecRegistry());
+    static final String FIELD_ID = "_id";
+    static final String FIELD_NAME = "name";
+    static final String FIELD_DESCRIPTION = "description";
+    static final String FIELD_IOT_DEVICE_MODEL_ID = "iot_device_model_id";
+    static final String FIELD_METADATA = "metadata";
+    static final String FIELD_MQTT = "mqtt_connection_details";
+    static final String FIELD_STATUS = "status";
+    static final String FIELD_CREATED_AT = "created_at";
+
+    static final String FIELD_MQTT_HOST = "host";
+    static final String FIELD_MQTT_PORT = "port";
+    static final String FIELD_MQTT_TOPIC = "topic";
+    static final String FIELD_MQTT_USERNAME = "username";
+    static final String FIELD_MQTT_SECRET_PATH = "secretPath";
 
     public IotDeviceDal(@Property(name = "mongodb.database") String databaseName) {
         this.databaseName = databaseName;
@@ -39,7 +43,9 @@ public class IotDeviceDal extends BaseMongoOperation<IotDevice> {
     @PostConstruct
     public void init() {
         getCollection().createIndex(Indexes.ascending(FIELD_IOT_DEVICE_MODEL_ID));
-        getCollection().createIndex(Indexes.ascending(FIELD_NAME));
+        // Keyset pages by name or creation time; the name index also serves lookups by name
+        createKeysetIndex(FIELD_NAME);
+        createKeysetIndex(FIELD_CREATED_AT);
     }
 
     @Override
@@ -54,7 +60,12 @@ public class IotDeviceDal extends BaseMongoOperation<IotDevice> {
 
     @Override
     protected Mapper<IotDevice> getMapper() {
-        return new Mapper<>(this::toModel, this::toDocument);
+        return mapper;
+    }
+
+    @Override
+    protected Decoder<IotDevice> getDecoder() {
+        return DECODER;
     }
 
     private IotDevice toModel(Document doc) {
@@ -94,8 +105,7 @@ public class IotDeviceDal extends BaseMongoOperation<IotDevice> {
         org.bson.conversions.Bson filter = com.mongodb.client.model.Filters.and(
                 com.mongodb.client.model.Filters.eq(FIELD_ID, parseId(username)),
                 com.mongodb.client.model.Filters.eq(FIELD_MQTT + "." + FIELD_MQTT_SECRET_PATH, secretPath));
-        Document doc = getCollection().find(filter).first();
-        return doc != null ? java.util.Optional.of(getMapper().toModel().apply(doc)) : java.util.Optional.empty();
+        return java.util.Optional.ofNullable(findFirst(filter));
     }
 
     private Document toDocument(IotDevice device) {
@@ -1,36 +1,159 @@
 package com.iot.riff.service.dal.mongo;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.iot.riff.service.domain.ContinuationPage;
 import com.iot.riff.service.domain.DeviceData;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.model.TimeSeriesOptions;
 import io.micronaut.context.annotation.Property;
 import jakarta.annotation.PostConstruct;
 import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
 import org.bson.Document;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 
+/**
+ * Stores telemetry readings in {@code device_data}, laid out according to {@code telemetry.storage.layout}.
+ * <p>
+ * The {@link IotTelemetryLayout#TIME_SERIES} layout creates the collection as a time-series collection
+ * with {@code device_id} as its metaField and {@code telemetry.storage.granularity} as its granularity,
+ * so readings of a device are stored together in compressed buckets and one compound index serves the
+ * range queries. An existing regular collection is left as it is until
+ * {@link IotTelemetryTimeSeriesMigration} converts it. While that migration still has readings to move,
+ * reads such as {@link #findByDeviceIdAndTimeRange} also read the collection they are moved from, so no
+ * history is missing from the results.
+ */
+@Slf4j
 @Singleton
 public class IotDeviceDataDal extends BaseMongoOperation<DeviceData> {
 
     private final String databaseName;
-    private static final String COLLECTION_NAME = "device_data";
+    private final Mapper<DeviceData> mapper = new Mapper<>(this::toModel, this::toDocument);
+    private final IotTelemetryDedupFilter iotTelemetryDedupFilter;
+    private final IotTelemetryLayout layout;
+    private final TimeSeriesGranularity granularity;
+    static final String COLLECTION_NAME = "device_data";
+    // Where a regular device_data is moved aside while it is migrated to the time-series layout
+    static final String LEGACY_COLLECTION_NAME = COLLECTION_NAME + "_standard";
+    private static final long MIGRATION_CHECK_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final Decoder<DeviceData> DECODER = new DeviceDataDecoder();
+    private static final String TIME_SERIES_TYPE = "timeseries";
 
-    private static final String FIELD_ID = "_id";
-    private static final String FIELD_DEVICE_ID = "device_id";
-    private static final String FIELD_TELEMETRY_PAYLOAD = "telemetry_payload";
-    private static final String FIELD_RECEIVED_AT = "received_at";
+    static final String FIELD_ID = "_id";
+    static final String FIELD_DEVICE_ID = "device_id";
+    static final String FIELD_TELEMETRY_PAYLOAD = "telemetry_payload";
+    static final String FIELD_RECEIVED_AT = "received_at";
 
-    public IotDeviceDataDal(@Property(name = "mongodb.database") String databaseName) {
+    // Collection that also encodes Jackson trees, created on first use
+    private volatile MongoCollection<Document> telemetryCollection;
+    // Re-checked now and then, the migration may be run by another instance
+    private volatile boolean migrating;
+    private volatile long migrationCheckedAt = System.nanoTime() - MIGRATION_CHECK_NANOS;
+
+    public IotDeviceDataDal(@Property(name = "mongodb.database") String databaseName,
+            IotTelemetryDedupFilter iotTelemetryDedupFilter,
+            @Property(name = "telemetry.storage.layout", defaultValue = "STANDARD") IotTelemetryLayout layout,
+            @Property(name = "telemetry.storage.granularity", defaultValue = "SECONDS") TimeSeriesGranularity granularity) {
         this.databaseName = databaseName;
+        this.iotTelemetryDedupFilter = iotTelemetryDedupFilter;
+        this.layout = layout;
+        this.granularity = granularity;
     }
 
     @PostConstruct
     public void init() {
+        if (layout == IotTelemetryLayout.TIME_SERIES) {
+            String type = collectionType(COLLECTION_NAME);
+            if (type == null) {
+                createTimeSeriesCollection();
+            } else if (!TIME_SERIES_TYPE.equals(type)) {
+                log.warn("{} is a regular collection, run the time-series migration to convert it", COLLECTION_NAME);
+                return;
+            }
+            createTimeSeriesIndex();
+            return;
+        }
         // Create index on received_at as requested
         getCollection().createIndex(Indexes.ascending(FIELD_RECEIVED_AT));
-        // Also indexing device_id for efficient lookups by device
-        getCollection().createIndex(Indexes.ascending(FIELD_DEVICE_ID));
+        // One device's readings in time order, also the keyset that searchData pages on
+        createKeysetIndex(FIELD_RECEIVED_AT, FIELD_DEVICE_ID);
+    }
+
+    /**
+     * Whether readings are still being moved out of {@link #LEGACY_COLLECTION_NAME}, so reads include it.
+     */
+    boolean isMigrating() {
+        if (layout != IotTelemetryLayout.TIME_SERIES) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - migrationCheckedAt >= MIGRATION_CHECK_NANOS) {
+            migrating = collectionType(LEGACY_COLLECTION_NAME) != null;
+            migrationCheckedAt = now;
+        }
+        return migrating;
+    }
+
+    void migrating(boolean migrating) {
+        this.migrating = migrating;
+        this.migrationCheckedAt = System.nanoTime();
+    }
+
+    IotTelemetryLayout layout() {
+        return layout;
+    }
+
+    MongoDatabase database() {
+        return mongoClient.getDatabase(databaseName);
+    }
+
+    /**
+     * Returns {@code collection} or {@code timeseries} for an existing collection, {@code null} when it does not exist.
+     */
+    String collectionType(String name) {
+        Document info = database().listCollections().filter(Filters.eq("name", name)).first();
+        return info != null ? info.getString("type") : null;
+    }
+
+    void createTimeSeriesCollection() {
+        database().createCollection(COLLECTION_NAME, new CreateCollectionOptions().timeSeriesOptions(
+                new TimeSeriesOptions(FIELD_RECEIVED_AT).metaField(FIELD_DEVICE_ID).granularity(granularity)));
+        log.info("Created {} as a time-series collection with {} granularity", COLLECTION_NAME, granularity);
+    }
+
+    void createTimeSeriesIndex() {
+        // One device's readings newest first, as findByDeviceIdAndTimeRange reads them
+        getCollection().createIndex(Indexes.compoundIndex(
+                Indexes.ascending(FIELD_DEVICE_ID), Indexes.descending(FIELD_RECEIVED_AT)));
+        // The keyset that searchData pages on, as in the regular layout
+        createKeysetIndex(FIELD_RECEIVED_AT, FIELD_DEVICE_ID);
     }
 
     @Override
@@ -43,9 +166,29 @@ public class IotDeviceDataDal extends BaseMongoOperation<DeviceData> {
         return COLLECTION_NAME;
     }
 
+    @Override
+    protected String getUnionCollectionName() {
+        return isMigrating() ? LEGACY_COLLECTION_NAME : null;
+    }
+
+    @Override
+    protected Object parseId(String id) {
+        // Readings stored under a message id are keyed by its UUID
+        try {
+            return new BsonBinary(UUID.fromString(id));
+        } catch (IllegalArgumentException e) {
+            return super.parseId(id);
+        }
+    }
+
     @Override
     protected Mapper<DeviceData> getMapper() {
-        return new Mapper<>(this::toModel, this::toDocument);
+        return mapper;
+    }
+
+    @Override
+    protected Decoder<DeviceData> getDecoder() {
+        return DECODER;
     }
 
     private DeviceData toModel(Document doc) {
@@ -53,12 +196,22 @@ public class IotDeviceDataDal extends BaseMongoOperation<DeviceData> {
         java.time.Instant receivedAt = receivedAtDate != null ? receivedAtDate.toInstant() : null;
 
         return new DeviceData(
-                doc.getObjectId(FIELD_ID).toHexString(),
+                toId(doc.get(FIELD_ID)),
                 doc.getString(FIELD_DEVICE_ID),
                 doc.get(FIELD_TELEMETRY_PAYLOAD, Map.class),
                 receivedAt);
     }
 
+    private static String toId(Object id) {
+        if (id instanceof ObjectId objectId) {
+            return objectId.toHexString();
+        }
+        if (id instanceof Binary binary && binary.getType() == BsonBinarySubType.UUID_STANDARD.getValue()) {
+            return new BsonBinary(binary.getType(), binary.getData()).asUuid().toString();
+        }
+        return String.valueOf(id);
+    }
+
     private Document toDocument(DeviceData data) {
         Document doc = new Document();
         if (data.id() != null) {
@@ -77,6 +230,160 @@ public class IotDeviceDataDal extends BaseMongoOperation<DeviceData> {
         return doc;
     }
 
+    /**
+     * Stores a telemetry reading whose payload is written straight from the parsed tree.
+     * <p>
+     * A reading with a message id is stored under a UUID derived from it, so a redelivered copy
+     * is either skipped by the {@link IotTelemetryDedupFilter} or rejected by the {@code _id}
+     * index instead of being stored twice. Time-series collections have no unique {@code _id}
+     * index, so there only the filter catches redeliveries.
+     *
+     * @return {@code false} if the reading had already been stored
+     */
+    public boolean saveTelemetry(TelemetryReading reading, java.time.Instant receivedAt) {
+        UUID id = storageId(reading);
+        if (id != null && iotTelemetryDedupFilter.contains(id)) {
+            return false;
+        }
+        try {
+            getTelemetryCollection().insertOne(toDocument(id, reading, Date.from(receivedAt)));
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+            iotTelemetryDedupFilter.onDuplicateKey();
+        }
+        if (id != null) {
+            iotTelemetryDedupFilter.add(id);
+        }
+        return true;
+    }
+
+    /**
+     * Stores a batch of readings with one unordered insert, so one bad document does not stop the
+     * rest from being written. Readings already stored are skipped like in
+     * {@link #saveTelemetry(TelemetryReading, java.time.Instant)}; throws if any other document
+     * failed, leaving the caller to retry the batch.
+     */
+    public void saveTelemetryBatch(List<TelemetryReading> readings, java.time.Instant receivedAt) {
+        Date received = Date.from(receivedAt);
+        List<UUID> ids = new ArrayList<>(readings.size());
+        List<Document> docs = new ArrayList<>(readings.size());
+        for (TelemetryReading reading : readings) {
+            UUID id = storageId(reading);
+            if (id != null) {
+                if (iotTelemetryDedupFilter.contains(id)) {
+                    continue;
+                }
+                ids.add(id);
+            }
+            docs.add(toDocument(id, reading, received));
+        }
+        if (docs.isEmpty()) {
+            return;
+        }
+        try {
+            getTelemetryCollection().insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                iotTelemetryDedupFilter.onDuplicateKey();
+            }
+        }
+        ids.forEach(iotTelemetryDedupFilter::add);
+    }
+
+    /**
+     * Stores readings queued by {@link IotTelemetryWriteBehind} with one unordered insert under
+     * {@code writeConcern}, completing each reading's future on its own: with {@code false} if it had
+     * already been stored, or with the exception that failed its document or the whole write.
+     */
+    void saveTelemetryGroup(List<IotTelemetryWriteBehind.Pending> group, WriteConcern writeConcern) {
+        List<IotTelemetryWriteBehind.Pending> written = new ArrayList<>(group.size());
+        List<UUID> ids = new ArrayList<>(group.size());
+        List<Document> docs = new ArrayList<>(group.size());
+        for (IotTelemetryWriteBehind.Pending pending : group) {
+            UUID id = storageId(pending.reading());
+            if (id != null && iotTelemetryDedupFilter.contains(id)) {
+                pending.result().complete(false);
+                continue;
+            }
+            written.add(pending);
+            ids.add(id);
+            docs.add(toDocument(id, pending.reading(), Date.from(pending.receivedAt())));
+        }
+        if (docs.isEmpty()) {
+            return;
+        }
+        Map<Integer, BulkWriteError> errors = Map.of();
+        try {
+            getTelemetryCollection().withWriteConcern(writeConcern)
+                    .insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            if (e.getWriteConcernError() != null) {
+                written.forEach(pending -> pending.result().completeExceptionally(e));
+                return;
+            }
+            errors = new java.util.HashMap<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error);
+            }
+        } catch (RuntimeException e) {
+            written.forEach(pending -> pending.result().completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < written.size(); i++) {
+            BulkWriteError error = errors.get(i);
+            boolean duplicate = error != null
+                    && ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY;
+            if (error != null && !duplicate) {
+                written.get(i).result().completeExceptionally(
+                        new MongoException(error.getCode(), "Failed to store telemetry: " + error.getMessage()));
+                continue;
+            }
+            if (duplicate) {
+                iotTelemetryDedupFilter.onDuplicateKey();
+            }
+            if (ids.get(i) != null) {
+                iotTelemetryDedupFilter.add(ids.get(i));
+            }
+            written.get(i).result().complete(!duplicate);
+        }
+    }
+
+    private static UUID storageId(TelemetryReading reading) {
+        return reading.messageId() != null
+                ? UUID.nameUUIDFromBytes(reading.messageId().getBytes(StandardCharsets.UTF_8))
+                : null;
+    }
+
+    private static Document toDocument(UUID id, TelemetryReading reading, Date receivedAt) {
+        Document doc = new Document();
+        if (id != null) {
+            doc.put(FIELD_ID, new BsonBinary(id));
+        }
+        return doc.append(FIELD_DEVICE_ID, reading.deviceId())
+                .append(FIELD_TELEMETRY_PAYLOAD, reading.payload())
+                .append(FIELD_RECEIVED_AT, receivedAt);
+    }
+
+    private MongoCollection<Document> getTelemetryCollection() {
+        MongoCollection<Document> collection = telemetryCollection;
+        if (collection == null) {
+            collection = getCollection();
+            collection = collection.withCodecRegistry(CodecRegistries.fromRegistries(
+                    CodecRegistries.fromProviders(JsonNodeCodec.PROVIDER), collection.getCodecRegistry()));
+            telemetryCollection = collection;
+        }
+        return collection;
+    }
+
+    /**
+     * Reads a device's readings newest first. On the time-series layout the device id selects the buckets
+     * and the time range prunes them by their bounds before any reading is unpacked.
+     */
     public java.util.List<DeviceData> findByDeviceIdAndTimeRange(String deviceId, java.time.Instant start,
             java.time.Instant end, int limit, int page) {
         org.bson.conversions.Bson filter = com.mongodb.client.model.Filters.and(
@@ -85,4 +392,17 @@ public class IotDeviceDataDal extends BaseMongoOperation<DeviceData> {
                 com.mongodb.client.model.Filters.lte(FIELD_RECEIVED_AT, end));
         return list(filter, limit, page, "desc", FIELD_RECEIVED_AT);
     }
+
+    /**
+     * Reads a device's readings newest first like {@link #findByDeviceIdAndTimeRange(String, java.time.Instant,
+     * java.time.Instant, int, int)}, continuing after {@code continuationToken} instead of skipping pages.
+     */
+    public ContinuationPage<DeviceData> findByDeviceIdAndTimeRange(String deviceId, java.time.Instant start,
+            java.time.Instant end, int limit, String continuationToken) {
+        org.bson.conversions.Bson filter = com.mongodb.client.model.Filters.and(
+                com.mongodb.client.model.Filters.eq(FIELD_DEVICE_ID, deviceId),
+                com.mongodb.client.model.Filters.gte(FIELD_RECEIVED_AT, start),
+                com.mongodb.client.model.Filters.lte(FIELD_RECEIVED_AT, end));
+        return list(filter, limit, continuationToken, "desc", FIELD_RECEIVED_AT);
+    }
 }
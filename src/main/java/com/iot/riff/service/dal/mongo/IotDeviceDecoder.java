@@ -0,0 +1,100 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_CREATED_AT;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_DESCRIPTION;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_IOT_DEVICE_MODEL_ID;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_METADATA;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT_HOST;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT_PORT;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT_SECRET_PATH;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT_TOPIC;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_MQTT_USERNAME;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_NAME;
+import static com.iot.riff.service.dal.mongo.IotDeviceDal.FIELD_STATUS;
+
+/**
+ * Reads {@code device} documents into {@link IotDevice}, decoding the MQTT details in place. Documents
+ * are written through the DAL's {@link Mapper}.
+ */
+final class IotDeviceDecoder implements Decoder<IotDevice> {
+
+    private final Codec<Document> documentCodec;
+
+    IotDeviceDecoder(CodecRegistry registry) {
+        this.documentCodec = registry.get(Document.class);
+    }
+
+    @Override
+    public IotDevice decode(BsonReader reader, DecoderContext decoderContext) {
+        String id = null;
+        String modelId = null;
+        String name = null;
+        String description = null;
+        MqttConnectionDetails mqtt = null;
+        Map<String, Object> metadata = null;
+        DeviceStatus status = null;
+        Instant createdAt = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "_id" -> id = DomainCodecs.readId(reader);
+                case FIELD_IOT_DEVICE_MODEL_ID -> modelId = DomainCodecs.readString(reader);
+                case FIELD_NAME -> name = DomainCodecs.readString(reader);
+                case FIELD_DESCRIPTION -> description = DomainCodecs.readString(reader);
+                case FIELD_MQTT -> mqtt = readMqtt(reader);
+                case FIELD_METADATA -> metadata = DomainCodecs.readDocument(reader, documentCodec, decoderContext);
+                case FIELD_STATUS -> {
+                    String value = DomainCodecs.readString(reader);
+                    status = value != null ? DeviceStatus.valueOf(value) : null;
+                }
+                case FIELD_CREATED_AT -> createdAt = DomainCodecs.readInstant(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new IotDevice(new IotDeviceId(id), new IotDeviceModelId(modelId), name, description, mqtt, metadata,
+                status, createdAt);
+    }
+
+    private static MqttConnectionDetails readMqtt(BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+        String host = null;
+        int port = 0;
+        String topic = null;
+        String username = null;
+        String secretPath = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case FIELD_MQTT_HOST -> host = DomainCodecs.readString(reader);
+                case FIELD_MQTT_PORT -> port = (int) DomainCodecs.readNumber(reader);
+                case FIELD_MQTT_TOPIC -> topic = DomainCodecs.readString(reader);
+                case FIELD_MQTT_USERNAME -> username = DomainCodecs.readString(reader);
+                case FIELD_MQTT_SECRET_PATH -> secretPath = DomainCodecs.readString(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new MqttConnectionDetails(host, port, topic, username, secretPath);
+    }
+}
@@ -2,26 +2,34 @@ package com.iot.riff.service.dal.mongo;
 
 import com.iot.riff.service.domain.IotDeviceModel;
 import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.RateLimit;
 
+import com.mongodb.MongoClientSettings;
 import org.bson.Document;
+import org.bson.codecs.Decoder;
 
 import jakarta.inject.Singleton;
 
 import jakarta.annotation.PostConstruct;
-import com.mongodb.client.model.Indexes;
 import io.micronaut.context.annotation.Property;
 
 @Singleton
 public class IotDeviceModelDal extends BaseMongoOperation<IotDeviceModel> {
 
     private final String databaseName;
+    private final Mapper<IotDeviceModel> mapper = new Mapper<>(this::toModel, this::toDocument);
     private static final String COLLECTION_NAME = "device_model";
-    private static final String FIELD_ID = "_id";
-    private static final String FIELD_NAME = "name";
-    private static final String FIELD_DESCRIPTION = "description";
-    private static final String FIELD_TELEMETRY_SCHEMA = "telemetry_schema";
-    private static final String FIELD_METADATA_SCHEMA = "metadata_schema";
-    private static final String FIELD_CREATED_AT = "created_at";
+    private static final Decoder<IotDeviceModel> DECODER = new IotDeviceModelDecoder(MongoClientSettings.getDefaultCodecRegistry());
+    static final String FIELD_ID = "_id";
+    static final String FIELD_NAME = "name";
+    static final String FIELD_DESCRIPTION = "description";
+    static final String FIELD_TELEMETRY_SCHEMA = "telemetry_schema";
+    static final String FIELD_METADATA_SCHEMA = "metadata_schema";
+    static final String FIELD_DEVICE_RATE_LIMIT = "device_rate_limit";
+    static final String FIELD_MODEL_RATE_LIMIT = "model_rate_limit";
+    static final String FIELD_MESSAGES_PER_SECOND = "messages_per_second";
+    static final String FIELD_BURST = "burst";
+    static final String FIELD_CREATED_AT = "created_at";
 
     public IotDeviceModelDal(@Property(name = "mongodb.database") String databaseName) {
         this.databaseName = databaseName;
@@ -29,7 +37,9 @@ public class IotDeviceModelDal extends BaseMongoOperation<IotDeviceModel> {
 
     @PostConstruct
     public void init() {
-        getCollection().createIndex(Indexes.ascending(FIELD_NAME));
+        // Keyset pages by name or creation time; the name index also serves lookups by name
+        createKeysetIndex(FIELD_NAME);
+        createKeysetIndex(FIELD_CREATED_AT);
     }
 
     @Override
@@ -44,7 +54,12 @@ public class IotDeviceModelDal extends BaseMongoOperation<IotDeviceModel> {
 
     @Override
     protected Mapper<IotDeviceModel> getMapper() {
-        return new Mapper<>(this::toModel, this::toDocument);
+        return mapper;
+    }
+
+    @Override
+    protected Decoder<IotDeviceModel> getDecoder() {
+        return DECODER;
     }
 
     private IotDeviceModel toModel(Document doc) {
@@ -57,9 +72,26 @@ public class IotDeviceModelDal extends BaseMongoOperation<IotDeviceModel> {
                 doc.getString(FIELD_DESCRIPTION),
                 doc.get(FIELD_TELEMETRY_SCHEMA, java.util.Map.class),
                 doc.get(FIELD_METADATA_SCHEMA, java.util.Map.class),
+                toRateLimit(doc.get(FIELD_DEVICE_RATE_LIMIT, Document.class)),
+                toRateLimit(doc.get(FIELD_MODEL_RATE_LIMIT, Document.class)),
                 createdAt);
     }
 
+    private RateLimit toRateLimit(Document doc) {
+        if (doc == null) {
+            return null;
+        }
+        Number messagesPerSecond = doc.get(FIELD_MESSAGES_PER_SECOND, Number.class);
+        Number burst = doc.get(FIELD_BURST, Number.class);
+        return new RateLimit(messagesPerSecond != null ? messagesPerSecond.doubleValue() : 0,
+                burst != null ? burst.intValue() : 0);
+    }
+
+    private Document toDocument(RateLimit rateLimit) {
+        return new Document(FIELD_MESSAGES_PER_SECOND, rateLimit.messagesPerSecond())
+                .append(FIELD_BURST, rateLimit.burst());
+    }
+
     private Document toDocument(IotDeviceModel model) {
         Document doc = new Document();
         if (model.id() != null) {
@@ -69,6 +101,12 @@ public class IotDeviceModelDal extends BaseMongoOperation<IotDeviceModel> {
         doc.put(FIELD_DESCRIPTION, model.description());
         doc.put(FIELD_TELEMETRY_SCHEMA, model.telemetrySchema());
         doc.put(FIELD_METADATA_SCHEMA, model.metadataSchema());
+        if (model.deviceRateLimit() != null) {
+            doc.put(FIELD_DEVICE_RATE_LIMIT, toDocument(model.deviceRateLimit()));
+        }
+        if (model.modelRateLimit() != null) {
+            doc.put(FIELD_MODEL_RATE_LIMIT, toDocument(model.modelRateLimit()));
+        }
         if (model.createdAt() != null) {
             doc.put(FIELD_CREATED_AT, java.util.Date.from(model.createdAt()));
         }
@@ -0,0 +1,88 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.RateLimit;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_BURST;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_CREATED_AT;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_DESCRIPTION;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_DEVICE_RATE_LIMIT;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_MESSAGES_PER_SECOND;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_METADATA_SCHEMA;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_MODEL_RATE_LIMIT;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_NAME;
+import static com.iot.riff.service.dal.mongo.IotDeviceModelDal.FIELD_TELEMETRY_SCHEMA;
+
+/**
+ * Reads {@code device_model} documents into {@link IotDeviceModel}, decoding the rate limits in place.
+ * Documents are written through the DAL's {@link Mapper}.
+ */
+final class IotDeviceModelDecoder implements Decoder<IotDeviceModel> {
+
+    private final Codec<Document> documentCodec;
+
+    IotDeviceModelDecoder(CodecRegistry registry) {
+        this.documentCodec = registry.get(Document.class);
+    }
+
+    @Override
+    public IotDeviceModel decode(BsonReader reader, DecoderContext decoderContext) {
+        String id = null;
+        String name = null;
+        String description = null;
+        Map<String, Object> telemetrySchema = null;
+        Map<String, Object> metadataSchema = null;
+        RateLimit deviceRateLimit = null;
+        RateLimit modelRateLimit = null;
+        Instant createdAt = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "_id" -> id = DomainCodecs.readId(reader);
+                case FIELD_NAME -> name = DomainCodecs.readString(reader);
+                case FIELD_DESCRIPTION -> description = DomainCodecs.readString(reader);
+                case FIELD_TELEMETRY_SCHEMA ->
+                        telemetrySchema = DomainCodecs.readDocument(reader, documentCodec, decoderContext);
+                case FIELD_METADATA_SCHEMA ->
+                        metadataSchema = DomainCodecs.readDocument(reader, documentCodec, decoderContext);
+                case FIELD_DEVICE_RATE_LIMIT -> deviceRateLimit = readRateLimit(reader);
+                case FIELD_MODEL_RATE_LIMIT -> modelRateLimit = readRateLimit(reader);
+                case FIELD_CREATED_AT -> createdAt = DomainCodecs.readInstant(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new IotDeviceModel(new IotDeviceModelId(id), name, description, telemetrySchema, metadataSchema,
+                deviceRateLimit, modelRateLimit, createdAt);
+    }
+
+    private static RateLimit readRateLimit(BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+        double messagesPerSecond = 0;
+        int burst = 0;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case FIELD_MESSAGES_PER_SECOND -> messagesPerSecond = DomainCodecs.readNumber(reader);
+                case FIELD_BURST -> burst = (int) DomainCodecs.readNumber(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return new RateLimit(messagesPerSecond, burst);
+    }
+}
@@ -0,0 +1,91 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.util.IotLoadingCache;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Read-through cache of the devices and models looked up for every telemetry message.
+ * <p>
+ * Concurrent misses for the same id share one Mongo read. Entries expire after
+ * {@code telemetry.lookupCache.ttl} and the oldest are evicted past
+ * {@code telemetry.lookupCache.maxSize} per kind. Ids that are not found are remembered for
+ * the shorter {@code telemetry.lookupCache.negativeTtl}, so a deleted device that keeps
+ * sending costs one read per interval instead of one per message. The services invalidate
+ * ids they create or delete.
+ */
+@Singleton
+public class IotLookupCache {
+
+    private final IotDeviceDal iotDeviceDal;
+    private final IotDeviceModelDal iotDeviceModelDal;
+    private final IotLoadingCache<String, IotDevice> devices;
+    private final IotLoadingCache<String, IotDeviceModel> models;
+
+    @Inject
+    public IotLookupCache(IotDeviceDal iotDeviceDal, IotDeviceModelDal iotDeviceModelDal,
+            @Property(name = "telemetry.lookupCache.maxSize", defaultValue = "100000") int maxSize,
+            @Property(name = "telemetry.lookupCache.ttl", defaultValue = "5m") Duration ttl,
+            @Property(name = "telemetry.lookupCache.negativeTtl", defaultValue = "30s") Duration negativeTtl) {
+        this(iotDeviceDal, iotDeviceModelDal, maxSize, ttl, negativeTtl, System::nanoTime);
+    }
+
+    /**
+     * @param ticker the time in nanoseconds that entries expire by
+     */
+    IotLookupCache(IotDeviceDal iotDeviceDal, IotDeviceModelDal iotDeviceModelDal, int maxSize, Duration ttl,
+            Duration negativeTtl, LongSupplier ticker) {
+        this.iotDeviceDal = iotDeviceDal;
+        this.iotDeviceModelDal = iotDeviceModelDal;
+        this.devices = new IotLoadingCache<>(maxSize, ttl, negativeTtl, ticker);
+        this.models = new IotLoadingCache<>(maxSize, ttl, negativeTtl, ticker);
+    }
+
+    /**
+     * Returns the device, or {@code null} when it does not exist.
+     */
+    public IotDevice getDevice(String deviceId) {
+        return devices.get(deviceId, iotDeviceDal::get);
+    }
+
+    /**
+     * Returns the device model, or {@code null} when it does not exist.
+     */
+    public IotDeviceModel getModel(String modelId) {
+        return models.get(modelId, iotDeviceModelDal::get);
+    }
+
+    public void invalidateDevice(String deviceId) {
+        devices.invalidate(deviceId);
+    }
+
+    public void invalidateModel(String modelId) {
+        models.invalidate(modelId);
+    }
+
+    public Stats stats() {
+        return new Stats(cacheStats(devices.stats()), cacheStats(models.stats()));
+    }
+
+    private static CacheStats cacheStats(IotLoadingCache.Stats stats) {
+        return new CacheStats(stats.size(), stats.hits(), stats.negativeHits(), stats.misses(), stats.evictions());
+    }
+
+    /**
+     * @param negativeHits lookups answered from a remembered miss, without reading Mongo
+     */
+    @Serdeable
+    public record CacheStats(int size, long hits, long negativeHits, long misses, long evictions) {
+    }
+
+    @Serdeable
+    public record Stats(CacheStats devices, CacheStats models) {
+    }
+}
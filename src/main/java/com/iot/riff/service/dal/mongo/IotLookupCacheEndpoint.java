@@ -0,0 +1,22 @@
+package com.iot.riff.service.dal.mongo;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes hit, miss and eviction counts of the {@link IotLookupCache} at {@code /telemetry-lookup-cache}.
+ */
+@Endpoint(id = "telemetry-lookup-cache")
+public class IotLookupCacheEndpoint {
+
+    private final IotLookupCache iotLookupCache;
+
+    public IotLookupCacheEndpoint(IotLookupCache iotLookupCache) {
+        this.iotLookupCache = iotLookupCache;
+    }
+
+    @Read
+    public IotLookupCache.Stats stats() {
+        return iotLookupCache.stats();
+    }
+}
@@ -0,0 +1,77 @@
+package com.iot.riff.service.dal.mongo;
+
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Singleton;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the ids of recently stored telemetry so obvious duplicates are skipped before they
+ * reach Mongo.
+ * <p>
+ * Ids are kept in a direct-mapped table of {@code telemetry.dedup.filterSize} slots, each id
+ * overwriting whatever shared its slot. A hit compares the whole 128-bit id, so a new reading is
+ * never mistaken for a duplicate; an evicted id is simply missed, and the duplicate then falls
+ * back to the unique {@code _id} index. Slots are written without locking: a torn slot only
+ * causes a miss.
+ */
+@Singleton
+public class IotTelemetryDedupFilter {
+
+    private final long[] slots;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder duplicateKeys = new LongAdder();
+
+    public IotTelemetryDedupFilter(
+            @Property(name = "telemetry.dedup.filterSize", defaultValue = "262144") int filterSize) {
+        int size = Integer.highestOneBit(Math.max(filterSize, 1));
+        this.slots = new long[size * 2];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns whether the id was stored recently, counting the skipped duplicate.
+     */
+    public boolean contains(UUID id) {
+        int slot = slot(id);
+        if (slots[slot] == id.getMostSignificantBits() && slots[slot + 1] == id.getLeastSignificantBits()) {
+            hits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public void add(UUID id) {
+        int slot = slot(id);
+        slots[slot] = id.getMostSignificantBits();
+        slots[slot + 1] = id.getLeastSignificantBits();
+    }
+
+    /**
+     * Counts a duplicate the filter missed, found by Mongo's unique {@code _id} index instead.
+     */
+    public void onDuplicateKey() {
+        duplicateKeys.increment();
+    }
+
+    public Stats stats() {
+        return new Stats(mask + 1, hits.sum(), duplicateKeys.sum());
+    }
+
+    private int slot(UUID id) {
+        // The name-based UUID's bits are already uniformly spread
+        return ((int) id.getLeastSignificantBits() & mask) << 1;
+    }
+
+    /**
+     * @param hits          duplicates skipped by the filter
+     * @param duplicateKeys duplicates the filter missed, rejected by the {@code _id} index
+     */
+    @Serdeable
+    public record Stats(int slots, long hits, long duplicateKeys) {
+    }
+}
@@ -0,0 +1,23 @@
+package com.iot.riff.service.dal.mongo;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes how many duplicate readings the {@link IotTelemetryDedupFilter} skipped and how many reached the
+ * {@code _id} index at {@code /telemetry-dedup}.
+ */
+@Endpoint(id = "telemetry-dedup")
+public class IotTelemetryDedupFilterEndpoint {
+
+    private final IotTelemetryDedupFilter iotTelemetryDedupFilter;
+
+    public IotTelemetryDedupFilterEndpoint(IotTelemetryDedupFilter iotTelemetryDedupFilter) {
+        this.iotTelemetryDedupFilter = iotTelemetryDedupFilter;
+    }
+
+    @Read
+    public IotTelemetryDedupFilter.Stats stats() {
+        return iotTelemetryDedupFilter.stats();
+    }
+}
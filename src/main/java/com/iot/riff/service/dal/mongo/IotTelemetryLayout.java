@@ -0,0 +1,11 @@
+package com.iot.riff.service.dal.mongo;
+
+/**
+ * How the {@code device_data} collection stores telemetry readings.
+ */
+public enum IotTelemetryLayout {
+    /** A regular collection with single-field indexes on {@code received_at} and {@code device_id}. */
+    STANDARD,
+    /** A time-series collection bucketed by {@code device_id} over {@code received_at}. */
+    TIME_SERIES
+}
@@ -0,0 +1,191 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.exception.IotException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Converts a regular {@code device_data} collection to the {@link IotTelemetryLayout#TIME_SERIES} layout
+ * while ingestion carries on.
+ * <p>
+ * The first call renames the regular collection to {@code device_data_standard} and creates
+ * {@code device_data} as a time-series collection, so new readings go straight to the new layout.
+ * Each call then moves readings over in batches of {@code telemetry.storage.migrationBatchSize}, deleting
+ * every batch from the old collection once it is inserted, and drops the old collection once it is empty.
+ * Until then reads of {@link IotDeviceDataDal} include the old collection, so searches see all history.
+ * <p>
+ * A reading written between the rename and the create makes {@code device_data} a regular collection
+ * again. That collection is renamed to {@code device_data_pending} in turn, its readings are added to the
+ * old collection and it is dropped before the create is tried again, so no reading is lost and the
+ * migration never gets stuck. An interrupted call is resumed by calling again. Time-series collections
+ * have no unique {@code _id}, so readings of the batch in flight that an interrupted call already copied
+ * are looked up in the target and left out, rather than relying on a duplicate key error.
+ */
+@Slf4j
+@Singleton
+public class IotTelemetryTimeSeriesMigration {
+
+    static final String LEGACY_COLLECTION_NAME = IotDeviceDataDal.LEGACY_COLLECTION_NAME;
+    static final String PENDING_COLLECTION_NAME = IotDeviceDataDal.COLLECTION_NAME + "_pending";
+    private static final String TIME_SERIES_TYPE = "timeseries";
+    private static final int NAMESPACE_EXISTS = 48;
+    private static final int MAX_CREATE_ATTEMPTS = 5;
+
+    private final IotDeviceDataDal iotDeviceDataDal;
+    private final int batchSize;
+
+    public IotTelemetryTimeSeriesMigration(IotDeviceDataDal iotDeviceDataDal,
+            @Property(name = "telemetry.storage.migrationBatchSize", defaultValue = "1000") int batchSize) {
+        this.iotDeviceDataDal = iotDeviceDataDal;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Moves up to {@code limit} readings from the regular collection to the time-series one.
+     */
+    public Progress migrate(int limit) {
+        if (iotDeviceDataDal.layout() != IotTelemetryLayout.TIME_SERIES) {
+            throw new IotException("Set telemetry.storage.layout to TIME_SERIES before migrating device data");
+        }
+        MongoDatabase database = iotDeviceDataDal.database();
+        convert(database);
+
+        MongoCollection<Document> source = database.getCollection(LEGACY_COLLECTION_NAME);
+        MongoCollection<Document> target = database.getCollection(IotDeviceDataDal.COLLECTION_NAME);
+        long moved = 0;
+        boolean complete = false;
+        while (moved < limit) {
+            int count = moveBatch(source, target, (int) Math.min(batchSize, limit - moved));
+            if (count == 0) {
+                complete = true;
+                break;
+            }
+            moved += count;
+        }
+        if (complete) {
+            source.drop();
+            iotDeviceDataDal.migrating(false);
+            log.info("Device data migrated to the time-series layout, dropped {}", LEGACY_COLLECTION_NAME);
+        }
+        long remaining = complete ? 0 : source.estimatedDocumentCount();
+        log.info("Moved {} device data readings to the time-series layout, about {} remaining", moved, remaining);
+        return new Progress(moved, remaining, complete);
+    }
+
+    /**
+     * Makes {@code device_data} a time-series collection, with every reading written to it so far in
+     * the old collection.
+     */
+    private void convert(MongoDatabase database) {
+        for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+            String type = iotDeviceDataDal.collectionType(IotDeviceDataDal.COLLECTION_NAME);
+            if (TIME_SERIES_TYPE.equals(type)) {
+                return;
+            }
+            if (type != null) {
+                moveAside(database);
+            }
+            try {
+                iotDeviceDataDal.createTimeSeriesCollection();
+                iotDeviceDataDal.createTimeSeriesIndex();
+                return;
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() != NAMESPACE_EXISTS) {
+                    throw e;
+                }
+                // A reading was inserted since the rename and created a regular collection again
+                log.info("{} was recreated by an insert during the migration, moving it aside again",
+                        IotDeviceDataDal.COLLECTION_NAME);
+            }
+        }
+        throw new IotException("Cannot create " + IotDeviceDataDal.COLLECTION_NAME
+                + " as a time-series collection while readings keep recreating it, call again to resume");
+    }
+
+    /**
+     * Renames the regular {@code device_data} to the old collection, or when that exists already, adds its
+     * readings to it through {@link #PENDING_COLLECTION_NAME}.
+     */
+    private void moveAside(MongoDatabase database) {
+        MongoCollection<Document> deviceData = database.getCollection(IotDeviceDataDal.COLLECTION_NAME);
+        if (iotDeviceDataDal.collectionType(LEGACY_COLLECTION_NAME) == null) {
+            deviceData.renameCollection(new MongoNamespace(database.getName(), LEGACY_COLLECTION_NAME));
+            iotDeviceDataDal.migrating(true);
+            return;
+        }
+        iotDeviceDataDal.migrating(true);
+        MongoCollection<Document> legacy = database.getCollection(LEGACY_COLLECTION_NAME);
+        MongoCollection<Document> pending = database.getCollection(PENDING_COLLECTION_NAME);
+        // Left over by an interrupted call; nothing writes to it, so it can be emptied first
+        if (iotDeviceDataDal.collectionType(PENDING_COLLECTION_NAME) != null) {
+            drain(pending, legacy);
+        }
+        deviceData.renameCollection(new MongoNamespace(database.getName(), PENDING_COLLECTION_NAME));
+        drain(pending, legacy);
+    }
+
+    private void drain(MongoCollection<Document> source, MongoCollection<Document> target) {
+        // Moved in batches so a large backlog is not held in memory
+        int moved;
+        do {
+            moved = moveBatch(source, target, batchSize);
+        } while (moved > 0);
+        source.drop();
+    }
+
+    /**
+     * Copies up to {@code max} readings from {@code source} to {@code target} and deletes them from
+     * {@code source}. A reading already copied by an interrupted call is not copied again.
+     *
+     * @return how many readings were moved, {@code 0} once {@code source} is empty
+     */
+    private int moveBatch(MongoCollection<Document> source, MongoCollection<Document> target, int max) {
+        List<Document> batch = source.find()
+                .batchSize(batchSize)
+                .limit(max)
+                .into(new ArrayList<>());
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<Object> ids = new ArrayList<>(batch.size());
+        for (Document doc : batch) {
+            ids.add(doc.get("_id"));
+        }
+        Set<Object> copied = new HashSet<>();
+        for (Document doc : target.find(Filters.in("_id", ids)).projection(Projections.include("_id"))
+                .into(new ArrayList<>())) {
+            copied.add(doc.get("_id"));
+        }
+        List<Document> missing = copied.isEmpty() ? batch
+                : batch.stream().filter(doc -> !copied.contains(doc.get("_id"))).toList();
+        if (!missing.isEmpty()) {
+            target.insertMany(missing, new InsertManyOptions().ordered(false));
+        }
+        source.deleteMany(Filters.in("_id", ids));
+        return batch.size();
+    }
+
+    /**
+     * @param moved     readings moved by this call
+     * @param remaining estimate of the readings still in the regular collection
+     * @param complete  whether the regular collection is empty and was dropped
+     */
+    @Serdeable
+    public record Progress(long moved, long remaining, boolean complete) {
+    }
+}
@@ -0,0 +1,227 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.exception.IotException;
+import com.mongodb.WriteConcern;
+import io.micronaut.context.annotation.Property;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group-commits telemetry: readings from concurrent callers are queued and written by one flusher
+ * with a single unordered {@code insertMany}, so each caller no longer waits a Mongo round trip of
+ * its own.
+ * <p>
+ * The flusher writes once {@code telemetry.writeBehind.maxBatchSize} readings are queued or the
+ * oldest has waited {@code telemetry.writeBehind.maxDelay}, under
+ * {@code telemetry.writeBehind.writeConcern}. Each caller gets a future completed when its reading
+ * is stored, with {@code false} for a reading already stored, or failed with the write's exception,
+ * so offsets can be committed only once the reading is safe. The queue holds at most
+ * {@code telemetry.writeBehind.capacity} readings; past that a caller writes its reading itself,
+ * which slows it to Mongo's pace instead of dropping anything. When disabled every reading is
+ * written on the caller's thread.
+ */
+@Slf4j
+@Singleton
+public class IotTelemetryWriteBehind {
+
+    private final IotDeviceDataDal iotDeviceDataDal;
+    private final boolean enabled;
+    private final int capacity;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final WriteConcern writeConcern;
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // Reserved before a reading is queued, so it bounds the queue without a lock
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Object flusherLock = new Object();
+    private volatile Thread flusher;
+    private volatile boolean closed;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAccumulator maxFlushSize = new LongAccumulator(Math::max, 0);
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAccumulator maxFlushNanos = new LongAccumulator(Math::max, 0);
+
+    public IotTelemetryWriteBehind(IotDeviceDataDal iotDeviceDataDal,
+            @Property(name = "telemetry.writeBehind.enabled", defaultValue = "true") boolean enabled,
+            @Property(name = "telemetry.writeBehind.capacity", defaultValue = "10000") int capacity,
+            @Property(name = "telemetry.writeBehind.maxBatchSize", defaultValue = "500") int maxBatchSize,
+            @Property(name = "telemetry.writeBehind.maxDelay", defaultValue = "5ms") Duration maxDelay,
+            @Property(name = "telemetry.writeBehind.writeConcern", defaultValue = "ACKNOWLEDGED") String writeConcern) {
+        this.iotDeviceDataDal = iotDeviceDataDal;
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.writeConcern = WriteConcern.valueOf(writeConcern);
+        if (this.writeConcern == null) {
+            throw new IotException("Unknown telemetry.writeBehind.writeConcern: " + writeConcern);
+        }
+    }
+
+    /**
+     * Queues a reading for the next group write.
+     *
+     * @return completes with {@code false} if the reading had already been stored
+     */
+    public CompletableFuture<Boolean> save(TelemetryReading reading, Instant receivedAt) {
+        if (!enabled || closed || !reserve()) {
+            if (enabled && !closed) {
+                overflows.increment();
+            }
+            return saveNow(reading, receivedAt);
+        }
+        if (closed) {
+            // Closed after the check above; the flusher may already have stopped, so it would never be written
+            depth.decrementAndGet();
+            return saveNow(reading, receivedAt);
+        }
+        Pending pending = new Pending(reading, receivedAt, System.nanoTime(), new CompletableFuture<>());
+        queue.offer(pending);
+        Thread thread = flusher();
+        if (queue.peek() == pending || depth.get() >= maxBatchSize) {
+            // The flusher parks while the queue is empty, or until the oldest reading is due
+            LockSupport.unpark(thread);
+        }
+        return pending.result();
+    }
+
+    public Stats stats() {
+        long count = flushes.sum();
+        return new Stats(depth.get(), capacity, count, flushed.sum(),
+                count > 0 ? (double) flushed.sum() / count : 0, maxFlushSize.get(),
+                count > 0 ? flushNanos.sum() / 1_000_000.0 / count : 0, maxFlushNanos.get() / 1_000_000.0,
+                overflows.sum());
+    }
+
+    /**
+     * Writes what is still queued before the application stops.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        Thread thread = flusher;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Whatever was still queued when the flusher stopped is written here, so no caller waits forever
+        while (!queue.isEmpty()) {
+            flush();
+        }
+    }
+
+    private CompletableFuture<Boolean> saveNow(TelemetryReading reading, Instant receivedAt) {
+        try {
+            return CompletableFuture.completedFuture(iotDeviceDataDal.saveTelemetry(reading, receivedAt));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private boolean reserve() {
+        int current;
+        do {
+            current = depth.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private Thread flusher() {
+        Thread thread = flusher;
+        if (thread == null) {
+            // Started on first use, so nothing runs until telemetry arrives
+            synchronized (flusherLock) {
+                thread = flusher;
+                if (thread == null) {
+                    thread = Thread.ofVirtual().name("telemetry-write-behind").start(this::run);
+                    flusher = thread;
+                }
+            }
+        }
+        return thread;
+    }
+
+    private void run() {
+        // Depth also counts readings reserved but not queued yet, so none is left behind on close
+        while (!closed || depth.get() > 0) {
+            Pending oldest = queue.peek();
+            if (oldest == null) {
+                // Idle until a reading becomes the head of the queue or the stage closes, both unpark it;
+                // an unpark that races ahead of this park leaves a permit, so the wake-up is never lost
+                LockSupport.park(this);
+                continue;
+            }
+            long wait = oldest.queuedAt() + maxDelayNanos - System.nanoTime();
+            if (!closed && wait > 0 && depth.get() < maxBatchSize) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            flush();
+        }
+    }
+
+    private void flush() {
+        List<Pending> group = new ArrayList<>(maxBatchSize);
+        Pending pending;
+        while (group.size() < maxBatchSize && (pending = queue.poll()) != null) {
+            group.add(pending);
+        }
+        depth.addAndGet(-group.size());
+        long start = System.nanoTime();
+        try {
+            iotDeviceDataDal.saveTelemetryGroup(group, writeConcern);
+        } catch (RuntimeException e) {
+            // Not expected, every failure is reported on the futures; never leave a caller waiting
+            log.error("Failed to write {} queued readings", group.size(), e);
+            group.forEach(p -> p.result().completeExceptionally(e));
+        }
+        long elapsed = System.nanoTime() - start;
+        flushes.increment();
+        flushed.add(group.size());
+        maxFlushSize.accumulate(group.size());
+        flushNanos.add(elapsed);
+        maxFlushNanos.accumulate(elapsed);
+    }
+
+    /**
+     * A queued reading and the future its caller waits on.
+     */
+    record Pending(TelemetryReading reading, Instant receivedAt, long queuedAt, CompletableFuture<Boolean> result) {
+    }
+
+    /**
+     * @param queueDepth         readings waiting for the next write
+     * @param meanFlushSize      readings per group write
+     * @param meanFlushLatencyMs time the {@code insertMany} of a group write took
+     * @param overflows          readings written by their caller because the queue was full
+     */
+    @Serdeable
+    public record Stats(int queueDepth, int capacity, long flushes, long flushed, double meanFlushSize,
+            long maxFlushSize, double meanFlushLatencyMs, double maxFlushLatencyMs, long overflows) {
+    }
+}
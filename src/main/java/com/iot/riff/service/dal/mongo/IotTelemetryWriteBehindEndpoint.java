@@ -0,0 +1,23 @@
+package com.iot.riff.service.dal.mongo;
+
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+/**
+ * Exposes the queue depth, group write sizes and write latency of the {@link IotTelemetryWriteBehind} at
+ * {@code /telemetry-write-behind}.
+ */
+@Endpoint(id = "telemetry-write-behind")
+public class IotTelemetryWriteBehindEndpoint {
+
+    private final IotTelemetryWriteBehind iotTelemetryWriteBehind;
+
+    public IotTelemetryWriteBehindEndpoint(IotTelemetryWriteBehind iotTelemetryWriteBehind) {
+        this.iotTelemetryWriteBehind = iotTelemetryWriteBehind;
+    }
+
+    @Read
+    public IotTelemetryWriteBehind.Stats stats() {
+        return iotTelemetryWriteBehind.stats();
+    }
+}
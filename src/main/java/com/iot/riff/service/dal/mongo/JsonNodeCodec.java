@@ -0,0 +1,144 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Decimal128;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes a Jackson tree straight to the BSON stream, so telemetry parsed once for schema
+ * validation is stored without being copied into maps first.
+ * <p>
+ * Integers keep the narrowest BSON type that holds them, other numbers become doubles unless
+ * they are {@link BigDecimal}s, which become Decimal128 when they fit.
+ */
+public class JsonNodeCodec implements Codec<JsonNode> {
+
+    public static final JsonNodeCodec INSTANCE = new JsonNodeCodec();
+
+    /**
+     * Provides the codec for every {@link JsonNode} subclass, as documents look codecs up by the value's class.
+     */
+    public static final CodecProvider PROVIDER = new CodecProvider() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+            return JsonNode.class.isAssignableFrom(clazz) ? (Codec<T>) INSTANCE : null;
+        }
+    };
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    @Override
+    public void encode(BsonWriter writer, JsonNode value, EncoderContext encoderContext) {
+        switch (value.getNodeType()) {
+            case OBJECT -> {
+                writer.writeStartDocument();
+                Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    writer.writeName(field.getKey());
+                    encode(writer, field.getValue(), encoderContext);
+                }
+                writer.writeEndDocument();
+            }
+            case ARRAY -> {
+                writer.writeStartArray();
+                for (JsonNode element : value) {
+                    encode(writer, element, encoderContext);
+                }
+                writer.writeEndArray();
+            }
+            case STRING -> writer.writeString(value.textValue());
+            case BOOLEAN -> writer.writeBoolean(value.booleanValue());
+            case NUMBER -> encodeNumber(writer, value);
+            case BINARY -> writer.writeBinaryData(new BsonBinary(((BinaryNode) value).binaryValue()));
+            default -> writer.writeNull();
+        }
+    }
+
+    private static void encodeNumber(BsonWriter writer, JsonNode value) {
+        if (value.isInt()) {
+            writer.writeInt32(value.intValue());
+        } else if (value.isLong()) {
+            writer.writeInt64(value.longValue());
+        } else if (value.isBigInteger()) {
+            BigInteger bigInteger = value.bigIntegerValue();
+            if (bigInteger.compareTo(LONG_MIN) >= 0 && bigInteger.compareTo(LONG_MAX) <= 0) {
+                writer.writeInt64(bigInteger.longValue());
+            } else {
+                writer.writeDouble(bigInteger.doubleValue());
+            }
+        } else if (value.isBigDecimal()) {
+            BigDecimal decimal = value.decimalValue();
+            try {
+                writer.writeDecimal128(new Decimal128(decimal));
+            } catch (NumberFormatException e) {
+                // Out of Decimal128's range or precision
+                writer.writeDouble(decimal.doubleValue());
+            }
+        } else {
+            writer.writeDouble(value.doubleValue());
+        }
+    }
+
+    @Override
+    public JsonNode decode(BsonReader reader, DecoderContext decoderContext) {
+        return switch (reader.getCurrentBsonType()) {
+            case DOCUMENT -> {
+                ObjectNode object = JsonNodeFactory.instance.objectNode();
+                reader.readStartDocument();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    String name = reader.readName();
+                    object.set(name, decode(reader, decoderContext));
+                }
+                reader.readEndDocument();
+                yield object;
+            }
+            case ARRAY -> {
+                ArrayNode array = JsonNodeFactory.instance.arrayNode();
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    array.add(decode(reader, decoderContext));
+                }
+                reader.readEndArray();
+                yield array;
+            }
+            case STRING -> JsonNodeFactory.instance.textNode(reader.readString());
+            case BOOLEAN -> JsonNodeFactory.instance.booleanNode(reader.readBoolean());
+            case INT32 -> JsonNodeFactory.instance.numberNode(reader.readInt32());
+            case INT64 -> JsonNodeFactory.instance.numberNode(reader.readInt64());
+            case DOUBLE -> JsonNodeFactory.instance.numberNode(reader.readDouble());
+            case DECIMAL128 -> JsonNodeFactory.instance.numberNode(reader.readDecimal128().bigDecimalValue());
+            case BINARY -> JsonNodeFactory.instance.binaryNode(reader.readBinaryData().getData());
+            case DATE_TIME -> JsonNodeFactory.instance.numberNode(reader.readDateTime());
+            case OBJECT_ID -> JsonNodeFactory.instance.textNode(reader.readObjectId().toHexString());
+            default -> {
+                reader.skipValue();
+                yield JsonNodeFactory.instance.nullNode();
+            }
+        };
+    }
+
+    @Override
+    public Class<JsonNode> getEncoderClass() {
+        return JsonNode.class;
+    }
+}
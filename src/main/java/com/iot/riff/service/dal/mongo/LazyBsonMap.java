@@ -0,0 +1,64 @@
+package com.iot.riff.service.dal.mongo;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+import java.util.AbstractMap;
+import java.util.Set;
+
+/**
+ * Read-only map over the raw bytes of an embedded document, decoded the first time an entry is read.
+ * Readings that are only counted, paged past or passed on are never decoded.
+ */
+final class LazyBsonMap extends AbstractMap<String, Object> {
+
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    private final RawBsonDocument raw;
+    private volatile Document decoded;
+
+    LazyBsonMap(RawBsonDocument raw) {
+        this.raw = raw;
+    }
+
+    boolean isDecoded() {
+        return decoded != null;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return document().entrySet();
+    }
+
+    @Override
+    public Object get(Object key) {
+        return document().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        // Scans the field names without decoding any value
+        return raw.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return decoded != null ? decoded.size() : raw.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return decoded != null ? decoded.isEmpty() : raw.isEmpty();
+    }
+
+    private Document document() {
+        Document document = decoded;
+        if (document == null) {
+            // Decoding twice under a race is harmless, both copies are equal
+            document = raw.decode(DOCUMENT_CODEC);
+            decoded = document;
+        }
+        return document;
+    }
+}
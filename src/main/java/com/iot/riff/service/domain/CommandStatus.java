@@ -0,0 +1,14 @@
+package com.iot.riff.service.domain;
+
+import io.micronaut.serde.annotation.Serdeable;
+
+/**
+ * Outcome of handing a command to the MQTT downlink.
+ */
+@Serdeable
+public enum CommandStatus {
+    /** Queued on the device's connection and written on its next flush. */
+    QUEUED,
+    /** The device is offline, the command is delivered when it reconnects. */
+    PARKED
+}
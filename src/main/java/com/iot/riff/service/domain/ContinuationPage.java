@@ -0,0 +1,16 @@
+package com.iot.riff.service.domain;
+
+import io.micronaut.serde.annotation.Serdeable;
+
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated listing.
+ *
+ * @param continuationToken opaque token that lists the next page, or {@code null} after the last one
+ */
+@Serdeable
+public record ContinuationPage<T>(
+                List<T> items,
+                String continuationToken) {
+}
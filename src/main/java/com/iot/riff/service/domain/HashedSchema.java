@@ -0,0 +1,55 @@
+package com.iot.riff.service.domain;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of a schema map that hashes its content only once, however often the model's
+ * compiled schema is looked up by it.
+ */
+final class HashedSchema extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> schema;
+    private int hash;
+
+    private HashedSchema(Map<String, Object> schema) {
+        this.schema = schema;
+    }
+
+    static Map<String, Object> of(Map<String, Object> schema) {
+        return schema == null || schema instanceof HashedSchema ? schema : new HashedSchema(schema);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(schema).entrySet();
+    }
+
+    @Override
+    public int size() {
+        return schema.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return schema.get(key);
+    }
+
+    @Override
+    public int hashCode() {
+        // Racy but benign like String's, every thread computes the same value
+        int h = hash;
+        if (h == 0) {
+            h = schema.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+}
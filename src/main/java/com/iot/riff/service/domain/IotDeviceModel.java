@@ -2,10 +2,22 @@ package com.iot.riff.service.domain;
 
 import io.micronaut.serde.annotation.Serdeable;
 
+import jakarta.annotation.Nullable;
+
 import java.time.Instant;
 import java.util.Map;
 
+/**
+ * @param deviceRateLimit PUBLISH limit of each device of the model, {@code null} for the configured default
+ * @param modelRateLimit  PUBLISH limit shared by all devices of the model, {@code null} for the configured default
+ * @param telemetrySchema read-only, its content is hashed once per model so compiled schemas can be looked up by it
+ */
 @Serdeable
 public record IotDeviceModel(IotDeviceModelId id, String name, String description, Map<String, Object> telemetrySchema,
-        Map<String, Object> metadataSchema, Instant createdAt) {
+        Map<String, Object> metadataSchema, @Nullable RateLimit deviceRateLimit, @Nullable RateLimit modelRateLimit,
+        Instant createdAt) {
+
+    public IotDeviceModel {
+        telemetrySchema = HashedSchema.of(telemetrySchema);
+    }
 }
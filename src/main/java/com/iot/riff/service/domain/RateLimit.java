@@ -0,0 +1,14 @@
+package com.iot.riff.service.domain;
+
+import io.micronaut.serde.annotation.Serdeable;
+
+/**
+ * Sustained PUBLISH rate and burst size of a token bucket; a rate of {@code 0} means unlimited.
+ */
+@Serdeable
+public record RateLimit(double messagesPerSecond, int burst) {
+
+    public boolean isUnlimited() {
+        return messagesPerSecond <= 0;
+    }
+}
@@ -0,0 +1,15 @@
+package com.iot.riff.service.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A telemetry payload parsed from one Kafka record, before it is validated and stored.
+ *
+ * @param messageId id the reading is stored under so a redelivered copy is stored once, or {@code null}
+ *                  to let Mongo generate one
+ */
+public record TelemetryReading(
+                String messageId,
+                String deviceId,
+                JsonNode payload) {
+}
@@ -0,0 +1,31 @@
+package com.iot.riff.service.exception;
+
+/**
+ * Thrown for telemetry that can never be stored, such as a payload failing its model's schema,
+ * as opposed to a failure that may succeed when retried.
+ */
+public class IotTelemetryRejectedException extends IotException {
+
+    /**
+     * Why the telemetry was rejected, stable across messages so rejections can be counted by it.
+     */
+    public enum Reason {
+        MALFORMED, DEVICE_NOT_FOUND, MODEL_NOT_FOUND, SCHEMA_INVALID
+    }
+
+    private final Reason reason;
+
+    public IotTelemetryRejectedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public IotTelemetryRejectedException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
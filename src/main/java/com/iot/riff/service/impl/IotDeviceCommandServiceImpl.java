@@ -0,0 +1,62 @@
+package com.iot.riff.service.impl;
+
+import com.iot.riff.mqtt.IotMqttDownlink;
+import com.iot.riff.service.IotDeviceCommandService;
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.domain.CommandStatus;
+import com.iot.riff.service.exception.IotException;
+import com.iot.riff.service.request.IotDeviceCommandSendRequest;
+import com.iot.riff.service.response.IotDeviceCommandSendResponse;
+import io.micronaut.json.JsonMapper;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+
+@Slf4j
+@Singleton
+public class IotDeviceCommandServiceImpl implements IotDeviceCommandService {
+
+    private final IotDeviceDal iotDeviceDal;
+    private final JsonMapper objectMapper;
+    private final IotMqttDownlink iotMqttDownlink;
+
+    public IotDeviceCommandServiceImpl(IotDeviceDal iotDeviceDal, JsonMapper objectMapper,
+            IotMqttDownlink iotMqttDownlink) {
+        this.iotDeviceDal = iotDeviceDal;
+        this.objectMapper = objectMapper;
+        this.iotMqttDownlink = iotMqttDownlink;
+    }
+
+    /**
+     * Publishes the command to {@code devices/<deviceId>/commands/<command>} with the payload as JSON.
+     */
+    @Override
+    public IotDeviceCommandSendResponse send(IotDeviceCommandSendRequest request) {
+        String command = request.command();
+        if (command == null || command.isEmpty() || command.contains("/") || command.contains("+")
+                || command.contains("#")) {
+            throw new IotException("Command must be a single topic level without wildcards: " + command);
+        }
+        if (request.qos() != 0 && request.qos() != 1) {
+            throw new IotException("Commands support QoS 0 or 1, got: " + request.qos());
+        }
+        String deviceId = request.id().id();
+        if (iotDeviceDal.get(deviceId) == null) {
+            throw new IotException("IotDevice not found for id: " + deviceId);
+        }
+
+        byte[] payload;
+        try {
+            payload = objectMapper.writeValueAsBytes(request.payload() != null ? request.payload() : Map.of());
+        } catch (IOException e) {
+            throw new IotException("Error serializing command payload", e);
+        }
+        String topic = "devices/" + deviceId + "/commands/" + command;
+        CommandStatus status = iotMqttDownlink.send(deviceId, topic, payload, MqttQoS.valueOf(request.qos()));
+        log.info("Command {} for device {} {}", command, deviceId, status);
+        return new IotDeviceCommandSendResponse(request.requestId(), deviceId, topic, status);
+    }
+}
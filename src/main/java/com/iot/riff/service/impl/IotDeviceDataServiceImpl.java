@@ -1,86 +1,150 @@
 package com.iot.riff.service.impl;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.iot.riff.service.IotDeviceDataService;
-import com.iot.riff.service.dal.mongo.IotDeviceDal;
 import com.iot.riff.service.dal.mongo.IotDeviceDataDal;
-import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.dal.mongo.IotLookupCache;
+import com.iot.riff.service.dal.mongo.IotTelemetryWriteBehind;
+import com.iot.riff.service.domain.ContinuationPage;
 import com.iot.riff.service.domain.DeviceData;
 import com.iot.riff.service.domain.IotDevice;
 import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.exception.IotTelemetryRejectedException;
+import com.iot.riff.service.exception.IotTelemetryRejectedException.Reason;
 import com.iot.riff.service.util.IotJsonSchemaValidator;
 import com.networknt.schema.ValidationMessage;
-import io.micronaut.serde.ObjectMapper;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Singleton
 public class IotDeviceDataServiceImpl implements IotDeviceDataService {
 
     private final IotDeviceDataDal iotDeviceDataDal;
-    private final IotDeviceDal iotDeviceDal;
-    private final IotDeviceModelDal iotDeviceModelDal;
+    private final IotLookupCache iotLookupCache;
     private final IotJsonSchemaValidator iotJsonSchemaValidator;
-    private final ObjectMapper objectMapper;
+    private final IotTelemetryWriteBehind iotTelemetryWriteBehind;
 
     public IotDeviceDataServiceImpl(IotDeviceDataDal iotDeviceDataDal,
-            IotDeviceDal iotDeviceDal,
-            IotDeviceModelDal iotDeviceModelDal,
+            IotLookupCache iotLookupCache,
             IotJsonSchemaValidator iotJsonSchemaValidator,
-            ObjectMapper objectMapper) {
+            IotTelemetryWriteBehind iotTelemetryWriteBehind) {
         this.iotDeviceDataDal = iotDeviceDataDal;
-        this.iotDeviceDal = iotDeviceDal;
-        this.iotDeviceModelDal = iotDeviceModelDal;
+        this.iotLookupCache = iotLookupCache;
         this.iotJsonSchemaValidator = iotJsonSchemaValidator;
-        this.objectMapper = objectMapper;
+        this.iotTelemetryWriteBehind = iotTelemetryWriteBehind;
     }
 
     @Override
     public void processTelemetry(String deviceId, Map<String, Object> telemetryPayload) {
-        // Fetch Device
-        IotDevice device = iotDeviceDal.get(deviceId);
+        processTelemetry(deviceId, iotJsonSchemaValidator.toJsonNode(telemetryPayload));
+    }
+
+    @Override
+    public void processTelemetry(String deviceId, JsonNode telemetryPayload) {
+        // Shares the next group write with concurrent callers, but returns only once it is stored
+        try {
+            ingestTelemetryAsync(new TelemetryReading(null, deviceId, telemetryPayload)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IotTelemetryRejectedException rejection) {
+                log.error(rejection.getMessage()); // Drop message
+            } else if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void ingestTelemetry(TelemetryReading reading) {
+        IotTelemetryRejectedException rejection = rejection(reading.deviceId(), reading.payload());
+        if (rejection != null) {
+            throw rejection;
+        }
+        // The tree is encoded straight to BSON, it is never copied into a Map
+        if (iotDeviceDataDal.saveTelemetry(reading, Instant.now())) {
+            log.debug("Saved device data for device: {}", reading.deviceId());
+        } else {
+            log.debug("Skipped duplicate message {} for device: {}", reading.messageId(), reading.deviceId());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> ingestTelemetryAsync(TelemetryReading reading) {
+        IotTelemetryRejectedException rejection;
+        try {
+            rejection = rejection(reading.deviceId(), reading.payload());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (rejection != null) {
+            return CompletableFuture.failedFuture(rejection);
+        }
+        return iotTelemetryWriteBehind.save(reading, Instant.now());
+    }
+
+    @Override
+    public int processTelemetryBatch(List<TelemetryReading> readings) {
+        List<TelemetryReading> valid = new ArrayList<>(readings.size());
+        for (TelemetryReading reading : readings) {
+            IotTelemetryRejectedException rejection = rejection(reading.deviceId(), reading.payload());
+            if (rejection == null) {
+                valid.add(reading);
+            } else {
+                log.error(rejection.getMessage()); // Drop message
+            }
+        }
+        iotDeviceDataDal.saveTelemetryBatch(valid, Instant.now());
+        log.debug("Saved {} of {} device data readings", valid.size(), readings.size());
+        return valid.size();
+    }
+
+    /**
+     * Checks that the device and its model exist and that the payload matches the model's schema.
+     *
+     * @return why the reading can never be stored, or {@code null} if it is valid; lookup failures are thrown
+     */
+    private IotTelemetryRejectedException rejection(String deviceId, JsonNode telemetryPayload) {
+        // Fetch Device, cached along with unknown ids
+        IotDevice device = iotLookupCache.getDevice(deviceId);
         if (device == null) {
-            log.error("Device not found: {}", deviceId);
-            return;
+            return new IotTelemetryRejectedException(Reason.DEVICE_NOT_FOUND, "Device not found: " + deviceId);
         }
 
         // Fetch Device Model
-        IotDeviceModel deviceModel = iotDeviceModelDal.get(device.iotDeviceModelId().id());
+        IotDeviceModel deviceModel = iotLookupCache.getModel(device.iotDeviceModelId().id());
         if (deviceModel == null) {
-            log.error("Device Model not found for device: {}", deviceId);
-            return;
+            return new IotTelemetryRejectedException(Reason.MODEL_NOT_FOUND,
+                    "Device Model not found for device: " + deviceId);
         }
 
-        // Validate Payload against Schema
+        // Validate the parsed Payload against the model's compiled Schema
         try {
-            String payloadJson = objectMapper.writeValueAsString(telemetryPayload);
             Map<String, Object> schemaMap = deviceModel.telemetrySchema();
             if (schemaMap != null && !schemaMap.isEmpty()) {
-                String schemaJson = objectMapper.writeValueAsString(schemaMap);
-                Set<ValidationMessage> validationMessages = iotJsonSchemaValidator.validate(payloadJson, schemaJson);
+                Set<ValidationMessage> validationMessages = iotJsonSchemaValidator.validate(
+                        device.iotDeviceModelId().id(), schemaMap, telemetryPayload);
                 if (!validationMessages.isEmpty()) {
-                    log.error("Payload validation failed for device {}: {}", deviceId, validationMessages);
-                    return; // Drop message
+                    return new IotTelemetryRejectedException(Reason.SCHEMA_INVALID,
+                            "Payload validation failed for device " + deviceId + ": " + validationMessages);
                 }
             }
         } catch (Exception e) {
             log.error("Error validating payload for device: {}", deviceId, e);
-            return;
+            return new IotTelemetryRejectedException(Reason.SCHEMA_INVALID,
+                    "Error validating payload for device " + deviceId + ": " + e.getMessage(), e);
         }
-
-        DeviceData deviceData = new DeviceData(
-                null, // ID generated by DB
-                deviceId,
-                telemetryPayload,
-                Instant.now() // received_at
-        );
-
-        iotDeviceDataDal.save(deviceData);
-        log.info("Saved device data for device: {}", deviceId);
+        return null;
     }
 
     @Override
@@ -90,4 +154,12 @@ public class IotDeviceDataServiceImpl implements IotDeviceDataService {
                 limit, page);
         return iotDeviceDataDal.findByDeviceIdAndTimeRange(deviceId, start, end, limit, page);
     }
+
+    @Override
+    public ContinuationPage<DeviceData> searchData(String deviceId, java.time.Instant start, java.time.Instant end,
+            int limit, String continuationToken) {
+        log.info("Searching device data for device: {}, range: [{}, {}], limit: {}, continuing: {}", deviceId, start,
+                end, limit, continuationToken != null);
+        return iotDeviceDataDal.findByDeviceIdAndTimeRange(deviceId, start, end, limit, continuationToken);
+    }
 }
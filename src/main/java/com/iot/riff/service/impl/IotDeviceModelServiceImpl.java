@@ -5,7 +5,9 @@ import org.bson.conversions.Bson;
 import com.iot.riff.service.IotDeviceModelService;
 import com.iot.riff.service.dal.mongo.BaseMongoOperation;
 import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.dal.mongo.IotLookupCache;
 import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.RateLimit;
 import com.iot.riff.service.exception.IotException;
 import com.iot.riff.service.request.IotDeviceModelCreateRequest;
 import com.iot.riff.service.request.IotDeviceModelDeleteRequest;
@@ -27,13 +29,16 @@ class IotDeviceModelServiceImpl implements IotDeviceModelService {
     private final BaseMongoOperation<IotDeviceModel> mongoOperation;
     private final IotJsonSchemaValidator jsonSchemaValidator;
     private final IotDeviceDal iotDeviceDal;
+    private final IotLookupCache iotLookupCache;
 
     public IotDeviceModelServiceImpl(BaseMongoOperation<IotDeviceModel> mongoOperation,
             IotJsonSchemaValidator jsonSchemaValidator,
-            IotDeviceDal iotDeviceDal) {
+            IotDeviceDal iotDeviceDal,
+            IotLookupCache iotLookupCache) {
         this.mongoOperation = mongoOperation;
         this.jsonSchemaValidator = jsonSchemaValidator;
         this.iotDeviceDal = iotDeviceDal;
+        this.iotLookupCache = iotLookupCache;
     }
 
     @Override
@@ -44,13 +49,23 @@ class IotDeviceModelServiceImpl implements IotDeviceModelService {
         if (!jsonSchemaValidator.validateSchema(request.telemetrySchema())) {
             throw new IotException("Invalid telemetry schema");
         }
+        validateRateLimit(request.deviceRateLimit(), "device");
+        validateRateLimit(request.modelRateLimit(), "model");
 
         var savedModel = mongoOperation.save(new IotDeviceModel(null, request.name(), request.description(),
-                request.telemetrySchema(), request.metadataSchema(), java.time.Instant.now()));
+                request.telemetrySchema(), request.metadataSchema(), request.deviceRateLimit(),
+                request.modelRateLimit(), java.time.Instant.now()));
 
+        iotLookupCache.invalidateModel(savedModel.id().id());
         return new IotDeviceModelCreateResponse(request.requestId(), savedModel);
     }
 
+    private void validateRateLimit(RateLimit rateLimit, String scope) {
+        if (rateLimit != null && (rateLimit.messagesPerSecond() < 0 || rateLimit.burst() < 0)) {
+            throw new IotException("Invalid " + scope + " rate limit, rate and burst must not be negative");
+        }
+    }
+
     @Override
     public IotDeviceModelGetResponse get(IotDeviceModelGetRequest request) {
         var model = mongoOperation.get(request.id().id());
@@ -63,8 +78,13 @@ class IotDeviceModelServiceImpl implements IotDeviceModelService {
         if (request.name() != null) {
             filter = Filters.and(filter, Filters.eq("name", request.name()));
         }
-        var models = mongoOperation.list(filter, request.limit(), request.page(), request.sort(), request.sortBy());
-        return new IotDeviceModelListResponse(request.requestId(), models);
+        if (request.continuationToken() == null && request.page() > 0) {
+            var models = mongoOperation.list(filter, request.limit(), request.page(), request.sort(), request.sortBy());
+            return new IotDeviceModelListResponse(request.requestId(), models, null);
+        }
+        var models = mongoOperation.list(filter, request.limit(), request.continuationToken(), request.sort(),
+                request.sortBy());
+        return new IotDeviceModelListResponse(request.requestId(), models.items(), models.continuationToken());
     }
 
     @Override
@@ -77,5 +97,7 @@ class IotDeviceModelServiceImpl implements IotDeviceModelService {
             throw new IotException("Cannot delete device model as it is being used by one or more devices");
         }
         mongoOperation.delete(request.id().id());
+        jsonSchemaValidator.invalidate(request.id().id());
+        iotLookupCache.invalidateModel(request.id().id());
     }
 }
@@ -1,13 +1,16 @@
 package com.iot.riff.service.impl;
 
+import com.iot.riff.mqtt.IotCredentialCache;
 import com.iot.riff.mqtt.IotMqttConfig;
 import com.iot.riff.service.IotDeviceService;
 import com.iot.riff.service.dal.mongo.IotDeviceDal;
 import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.dal.mongo.IotLookupCache;
 import com.iot.riff.service.request.IotDeviceCreateRequest;
 import com.iot.riff.service.request.IotDeviceDeleteRequest;
 import com.iot.riff.service.request.IotDeviceGetRequest;
 import com.iot.riff.service.request.IotDeviceListRequest;
+import com.iot.riff.service.request.IotDeviceRotateCredentialsRequest;
 import com.iot.riff.service.response.IotDeviceCreateResponse;
 import com.iot.riff.service.response.IotDeviceGetResponse;
 import com.iot.riff.service.response.IotDeviceListResponse;
@@ -38,16 +41,21 @@ public class IotDeviceServiceImpl implements IotDeviceService {
     private final JsonMapper objectMapper;
     private final IotMqttConfig iotMqttConfig;
     private final IotVaultService iotVaultService;
+    private final IotCredentialCache iotCredentialCache;
+    private final IotLookupCache iotLookupCache;
 
     public IotDeviceServiceImpl(IotDeviceDal iotDeviceDal, IotDeviceModelDal iotDeviceModelDal,
             IotJsonSchemaValidator jsonSchemaValidator, JsonMapper objectMapper,
-            IotMqttConfig iotMqttConfig, IotVaultService iotVaultService) {
+            IotMqttConfig iotMqttConfig, IotVaultService iotVaultService, IotCredentialCache iotCredentialCache,
+            IotLookupCache iotLookupCache) {
         this.iotDeviceDal = iotDeviceDal;
         this.iotDeviceModelDal = iotDeviceModelDal;
         this.jsonSchemaValidator = jsonSchemaValidator;
         this.objectMapper = objectMapper;
         this.iotMqttConfig = iotMqttConfig;
         this.iotVaultService = iotVaultService;
+        this.iotCredentialCache = iotCredentialCache;
+        this.iotLookupCache = iotLookupCache;
     }
 
     @Override
@@ -95,6 +103,8 @@ public class IotDeviceServiceImpl implements IotDeviceService {
                     savedDevice.createdAt());
 
             iotDeviceDal.update(updatedDevice);
+            // Telemetry may have arrived for the id before the device existed
+            iotLookupCache.invalidateDevice(updatedDevice.id().id());
             return new IotDeviceCreateResponse(request.requestId(), updatedDevice);
         } catch (Exception e) {
             log.error("Error securing device with Vault", e);
@@ -130,8 +140,13 @@ public class IotDeviceServiceImpl implements IotDeviceService {
         if (request.iotDeviceModelId() != null) {
             filter = Filters.and(filter, Filters.eq("iotDeviceModelId", request.iotDeviceModelId()));
         }
-        return new IotDeviceListResponse(request.requestId(),
-                iotDeviceDal.list(filter, request.limit(), request.page(), request.sort(), request.sortBy()));
+        if (request.continuationToken() == null && request.page() > 0) {
+            return new IotDeviceListResponse(request.requestId(),
+                    iotDeviceDal.list(filter, request.limit(), request.page(), request.sort(), request.sortBy()), null);
+        }
+        var devices = iotDeviceDal.list(filter, request.limit(), request.continuationToken(), request.sort(),
+                request.sortBy());
+        return new IotDeviceListResponse(request.requestId(), devices.items(), devices.continuationToken());
     }
 
     @Override
@@ -140,6 +155,23 @@ public class IotDeviceServiceImpl implements IotDeviceService {
             throw new IotException("IotDevice not found for id: " + request.id().id());
         }
         iotDeviceDal.delete(request.id().id());
+        iotCredentialCache.invalidate(request.id().id());
+        iotLookupCache.invalidateDevice(request.id().id());
+    }
+
+    @Override
+    public void rotateCredentials(IotDeviceRotateCredentialsRequest request) {
+        if (iotDeviceDal.get(request.id().id()) == null) {
+            throw new IotException("IotDevice not found for id: " + request.id().id());
+        }
+        try {
+            // Overwrites the password at the device's existing secret path
+            iotVaultService.generateAndStoreSecretPath(request.id().id());
+        } catch (Exception e) {
+            log.error("Error rotating credentials with Vault", e);
+            throw new IotException("Error during credential rotation: " + e.getMessage(), e);
+        }
+        iotCredentialCache.invalidate(request.id().id());
     }
 
 }
@@ -0,0 +1,9 @@
+package com.iot.riff.service.request;
+
+import com.iot.riff.service.domain.IotDeviceId;
+
+import java.util.Map;
+
+public record IotDeviceCommandSendRequest(String requestId, IotDeviceId id, String command,
+        Map<String, Object> payload, int qos) implements BaseRequest {
+}
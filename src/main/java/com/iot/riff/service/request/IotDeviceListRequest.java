@@ -1,6 +1,10 @@
 package com.iot.riff.service.request;
 
+/**
+ * @param continuationToken token from the previous response to list the next page, replacing {@code page};
+ *                          a request for page 0 without one starts keyset paging
+ */
 public record IotDeviceListRequest(String requestId, String name, String iotDeviceModelId, int limit, int page,
-                String sort, String sortBy)
+                String sort, String sortBy, String continuationToken)
                 implements BaseRequest {
 }
@@ -2,10 +2,14 @@ package com.iot.riff.service.request;
 
 import java.util.Map;
 
+import com.iot.riff.service.domain.RateLimit;
+
+import jakarta.annotation.Nullable;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
 
 public record IotDeviceModelCreateRequest(String requestId, String name, String description,
-        @NotNull @NotEmpty Map<String, Object> metadataSchema, @NotNull @NotEmpty Map<String, Object> telemetrySchema)
+        @NotNull @NotEmpty Map<String, Object> metadataSchema, @NotNull @NotEmpty Map<String, Object> telemetrySchema,
+        @Nullable RateLimit deviceRateLimit, @Nullable RateLimit modelRateLimit)
         implements BaseRequest {
 }
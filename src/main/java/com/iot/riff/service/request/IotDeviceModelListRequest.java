@@ -1,5 +1,10 @@
 package com.iot.riff.service.request;
 
-public record IotDeviceModelListRequest(String requestId, String name, int limit, int page, String sort, String sortBy)
+/**
+ * @param continuationToken token from the previous response to list the next page, replacing {@code page};
+ *                          a request for page 0 without one starts keyset paging
+ */
+public record IotDeviceModelListRequest(String requestId, String name, int limit, int page, String sort, String sortBy,
+        String continuationToken)
         implements BaseRequest {
 }
@@ -0,0 +1,6 @@
+package com.iot.riff.service.request;
+
+import com.iot.riff.service.domain.IotDeviceId;
+
+public record IotDeviceRotateCredentialsRequest(String requestId, IotDeviceId id) implements BaseRequest {
+}
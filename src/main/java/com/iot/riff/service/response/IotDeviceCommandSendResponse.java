@@ -0,0 +1,10 @@
+package com.iot.riff.service.response;
+
+import com.iot.riff.service.domain.CommandStatus;
+import io.micronaut.serde.annotation.Serdeable;
+
+@Serdeable
+public record IotDeviceCommandSendResponse(String requestId, String deviceId, String topic, CommandStatus status)
+        implements BaseResponse {
+
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import com.iot.riff.service.domain.IotDevice;
 
 @Serdeable
-public record IotDeviceListResponse(String requestId, List<IotDevice> iotDevices) implements BaseResponse {
+public record IotDeviceListResponse(String requestId, List<IotDevice> iotDevices, String continuationToken)
+        implements BaseResponse {
 
 }
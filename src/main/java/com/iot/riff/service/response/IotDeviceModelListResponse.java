@@ -5,7 +5,8 @@ import java.util.List;
 import com.iot.riff.service.domain.IotDeviceModel;
 
 @Serdeable
-public record IotDeviceModelListResponse(String requestId, List<IotDeviceModel> iotDeviceModels)
+public record IotDeviceModelListResponse(String requestId, List<IotDeviceModel> iotDeviceModels,
+        String continuationToken)
         implements BaseResponse {
 
 }
@@ -7,24 +7,49 @@ import com.networknt.schema.JsonSchema;
 import com.networknt.schema.JsonSchemaFactory;
 import com.networknt.schema.SpecVersion;
 import com.networknt.schema.ValidationMessage;
+import io.micronaut.context.annotation.Property;
 import jakarta.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Validates JSON documents against JSON schemas.
+ * <p>
+ * Telemetry schemas are compiled once and cached by model id plus the hash of the schema's
+ * content, so a model whose schema changes gets a fresh entry while devices still on the old
+ * one keep theirs until it is evicted. A hit is confirmed by comparing the cached schema's
+ * source with the given one, which short-circuits on the same map instance. The oldest entries
+ * are evicted once the cache grows past {@code telemetry.schemaCache.maxSize}.
+ * <p>
+ * A model hashes its schema's content only once, so looking up the schema of a model the
+ * lookup cache hands out again costs no more than the map lookup.
+ */
 @Slf4j
 @Singleton
 public class IotJsonSchemaValidator {
 
     private final ObjectMapper objectMapper;
+    private final Map<SpecVersion.VersionFlag, JsonSchemaFactory> factories = new EnumMap<>(
+            SpecVersion.VersionFlag.class);
 
-    public IotJsonSchemaValidator() {
+    private final IotLoadingCache<SchemaKey, CachedSchema> schemas;
+
+    public IotJsonSchemaValidator(
+            @Property(name = "telemetry.schemaCache.maxSize", defaultValue = "1024") int maxSize) {
         this.objectMapper = new ObjectMapper();
+        this.schemas = new IotLoadingCache<>(maxSize);
+        for (SpecVersion.VersionFlag versionFlag : SpecVersion.VersionFlag.values()) {
+            factories.put(versionFlag, JsonSchemaFactory.getInstance(versionFlag));
+        }
     }
 
     public Set<ValidationMessage> validate(String json, String schema) {
         SpecVersion.VersionFlag versionFlag = detectVersion(schema);
-        JsonSchemaFactory factory = JsonSchemaFactory.getInstance(versionFlag);
+        JsonSchemaFactory factory = factories.get(versionFlag);
         JsonSchema jsonSchema = factory.getSchema(schema);
         try {
             JsonNode jsonNode = objectMapper.readTree(json);
@@ -34,9 +59,64 @@ public class IotJsonSchemaValidator {
         }
     }
 
+    /**
+     * Validates a parsed document against the model's schema, compiling the schema only on its first use.
+     */
+    public Set<ValidationMessage> validate(String modelId, Map<String, Object> schemaMap, JsonNode json) {
+        return getSchema(modelId, schemaMap).validate(json);
+    }
+
+    /**
+     * Validates a JSON document read from the stream against a compiled schema.
+     */
+    public Set<ValidationMessage> validate(InputStream json, JsonSchema jsonSchema) {
+        return jsonSchema.validate(readTree(json));
+    }
+
+    /**
+     * Returns the compiled schema of a model, compiling and caching it if its content has not been seen yet.
+     */
+    public JsonSchema getSchema(String modelId, Map<String, Object> schemaMap) {
+        CachedSchema cached = schemas.get(new SchemaKey(modelId, schemaMap.hashCode()),
+                key -> new CachedSchema(schemaMap, compile(schemaMap)));
+        // A different schema with the same hash is compiled without being cached
+        return cached.source().equals(schemaMap) ? cached.schema() : compile(schemaMap);
+    }
+
+    /**
+     * Drops every compiled schema of the model, for when the model is changed or deleted.
+     */
+    public void invalidate(String modelId) {
+        schemas.invalidateIf(key -> key.modelId().equals(modelId));
+    }
+
+    /**
+     * Compiles a schema once so it can validate many documents.
+     */
+    public JsonSchema compile(Map<String, Object> schemaMap) {
+        try {
+            JsonNode schemaNode = objectMapper.valueToTree(schemaMap);
+            return factories.get(detectVersion(schemaNode)).getSchema(schemaNode);
+        } catch (Exception e) {
+            throw new IotException("Failed to compile JSON schema", e);
+        }
+    }
+
+    public JsonNode toJsonNode(Map<String, Object> json) {
+        return objectMapper.valueToTree(json);
+    }
+
+    public JsonNode readTree(InputStream json) {
+        try {
+            return objectMapper.readTree(json);
+        } catch (Exception e) {
+            throw new IotException("Failed to parse JSON", e);
+        }
+    }
+
     public boolean validateSchema(String schema) {
         SpecVersion.VersionFlag versionFlag = detectVersion(schema);
-        JsonSchemaFactory factory = JsonSchemaFactory.getInstance(versionFlag);
+        JsonSchemaFactory factory = factories.get(versionFlag);
         try {
             factory.getSchema(schema);
             return true;
@@ -46,7 +126,7 @@ public class IotJsonSchemaValidator {
         return false;
     }
 
-    public boolean validateSchema(java.util.Map<String, Object> schemaMap) {
+    public boolean validateSchema(Map<String, Object> schemaMap) {
         try {
             String schemaString = objectMapper.writeValueAsString(schemaMap);
             return validateSchema(schemaString);
@@ -58,25 +138,35 @@ public class IotJsonSchemaValidator {
 
     private SpecVersion.VersionFlag detectVersion(String schema) {
         try {
-            JsonNode schemaNode = objectMapper.readTree(schema);
-            JsonNode metaSchema = schemaNode.get("$schema");
-            if (metaSchema != null && metaSchema.isTextual()) {
-                String schemaUri = metaSchema.asText();
-                if (schemaUri.contains("json-schema.org/draft/2020-12/schema")) {
-                    return SpecVersion.VersionFlag.V202012;
-                } else if (schemaUri.contains("json-schema.org/draft/2019-09/schema")) {
-                    return SpecVersion.VersionFlag.V201909;
-                } else if (schemaUri.contains("json-schema.org/draft-07/schema")) {
-                    return SpecVersion.VersionFlag.V7;
-                } else if (schemaUri.contains("json-schema.org/draft-06/schema")) {
-                    return SpecVersion.VersionFlag.V6;
-                } else if (schemaUri.contains("json-schema.org/draft-04/schema")) {
-                    return SpecVersion.VersionFlag.V4;
-                }
-            }
+            return detectVersion(objectMapper.readTree(schema));
         } catch (Exception e) {
             log.warn("Failed to parse schema for version detection, defaulting to V7", e);
         }
         return SpecVersion.VersionFlag.V7;
     }
+
+    private static SpecVersion.VersionFlag detectVersion(JsonNode schemaNode) {
+        JsonNode metaSchema = schemaNode.get("$schema");
+        if (metaSchema != null && metaSchema.isTextual()) {
+            String schemaUri = metaSchema.asText();
+            if (schemaUri.contains("json-schema.org/draft/2020-12/schema")) {
+                return SpecVersion.VersionFlag.V202012;
+            } else if (schemaUri.contains("json-schema.org/draft/2019-09/schema")) {
+                return SpecVersion.VersionFlag.V201909;
+            } else if (schemaUri.contains("json-schema.org/draft-07/schema")) {
+                return SpecVersion.VersionFlag.V7;
+            } else if (schemaUri.contains("json-schema.org/draft-06/schema")) {
+                return SpecVersion.VersionFlag.V6;
+            } else if (schemaUri.contains("json-schema.org/draft-04/schema")) {
+                return SpecVersion.VersionFlag.V4;
+            }
+        }
+        return SpecVersion.VersionFlag.V7;
+    }
+
+    private record SchemaKey(String modelId, int contentHash) {
+    }
+
+    private record CachedSchema(Map<String, Object> source, JsonSchema schema) {
+    }
 }
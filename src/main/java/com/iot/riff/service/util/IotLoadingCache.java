@@ -0,0 +1,266 @@
+package com.iot.riff.service.util;
+
+import io.micronaut.serde.annotation.Serdeable;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Bounded read-through cache behind the lookups made for every connection and message.
+ * <p>
+ * Concurrent misses for the same key share one load, which {@link #get} runs on the caller's
+ * thread and {@link #getAsync} leaves to the loader. Values expire after {@code ttl}, and keys
+ * a load found nothing for ({@code null}) after {@code negativeTtl}; a zero TTL keeps them until
+ * they are evicted or invalidated. The oldest entries are evicted once the cache grows past
+ * {@code maxSize}, and failed loads are not cached. Entries are only added and removed under a
+ * lock that also keeps their insertion order, so an entry that expires or is invalidated leaves
+ * nothing behind; hits take no lock. Invalidating a key bumps the generation of
+ * its entry, so a load that was already in flight is discarded and the callers waiting on it get
+ * a fresh load instead.
+ */
+public final class IotLoadingCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final LongSupplier ticker;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    // Insertion order used for size-based eviction, holds exactly the entries in the map
+    private final LinkedHashSet<Entry<K, V>> insertionOrder = new LinkedHashSet<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cache whose entries only leave when evicted or invalidated.
+     */
+    public IotLoadingCache(int maxSize) {
+        this(maxSize, Duration.ZERO, Duration.ZERO);
+    }
+
+    public IotLoadingCache(int maxSize, Duration ttl, Duration negativeTtl) {
+        this(maxSize, ttl, negativeTtl, System::nanoTime);
+    }
+
+    /**
+     * @param ticker the time in nanoseconds that entries expire by
+     */
+    public IotLoadingCache(int maxSize, Duration ttl, Duration negativeTtl, LongSupplier ticker) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the cached value, loading it on the caller's thread on a miss. A load's exception is
+     * thrown as is; a caller that joined a load which failed tries one of its own.
+     */
+    public V get(K key, Function<K, V> loader) {
+        while (true) {
+            boolean[] loaded = new boolean[1];
+            CompletableFuture<V> value = getAsync(key, k -> {
+                loaded[0] = true;
+                try {
+                    return CompletableFuture.completedFuture(loader.apply(k));
+                } catch (RuntimeException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            });
+            try {
+                return value.join();
+            } catch (CompletionException e) {
+                if (loaded[0]) {
+                    throw e.getCause() instanceof RuntimeException cause ? cause : e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached value, or starts a load with {@code loader} that every concurrent caller shares.
+     */
+    public CompletableFuture<V> getAsync(K key, Function<K, CompletableFuture<V>> loader) {
+        while (true) {
+            Entry<K, V> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.isExpired(ticker.getAsLong())) {
+                    remove(entry);
+                    continue;
+                }
+                CompletableFuture<V> value = entry.value();
+                boolean negative = value.isDone() && !value.isCompletedExceptionally() && value.join() == null;
+                (negative ? negativeHits : hits).increment();
+                return value;
+            }
+
+            Entry<K, V> loading = new Entry<>(key);
+            synchronized (insertionOrder) {
+                if (entries.putIfAbsent(key, loading) != null) {
+                    // Another caller started the load first, join it
+                    continue;
+                }
+                insertionOrder.add(loading);
+                evictIfNeeded();
+            }
+            misses.increment();
+            load(loading, loader);
+            return loading.value();
+        }
+    }
+
+    public void invalidate(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry != null) {
+            entry.invalidate();
+            remove(entry);
+        }
+    }
+
+    public void invalidateIf(Predicate<K> keys) {
+        for (K key : entries.keySet()) {
+            if (keys.test(key)) {
+                invalidate(key);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        invalidateIf(key -> true);
+    }
+
+    public Stats stats() {
+        long loads = loadSuccesses.sum() + loadFailures.sum();
+        double averageLoadMillis = loads == 0 ? 0 : totalLoadNanos.sum() / (double) loads / 1_000_000.0;
+        return new Stats(entries.size(), hits.sum(), negativeHits.sum(), misses.sum(), loadSuccesses.sum(),
+                loadFailures.sum(), averageLoadMillis, evictions.sum());
+    }
+
+    private void load(Entry<K, V> entry, Function<K, CompletableFuture<V>> loader) {
+        long startNanos = ticker.getAsLong();
+        int generation = entry.generation();
+        CompletableFuture<V> loaded;
+        try {
+            loaded = loader.apply(entry.key());
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((value, error) -> {
+            long now = ticker.getAsLong();
+            totalLoadNanos.add(now - startNanos);
+            if (entry.generation() != generation) {
+                // Invalidated while loading, the value may predate the change
+                getAsync(entry.key(), loader).whenComplete((fresh, freshError) -> {
+                    if (freshError != null) {
+                        entry.value().completeExceptionally(freshError);
+                    } else {
+                        entry.value().complete(fresh);
+                    }
+                });
+            } else if (error != null) {
+                // Failed loads are not cached so the next lookup retries
+                loadFailures.increment();
+                remove(entry);
+                entry.value().completeExceptionally(error);
+            } else {
+                loadSuccesses.increment();
+                long lifetime = value != null ? ttlNanos : negativeTtlNanos;
+                if (lifetime > 0) {
+                    entry.expiresAt(now + lifetime);
+                }
+                entry.value().complete(value);
+            }
+        });
+    }
+
+    /**
+     * Entries kept for eviction, which are exactly the cached ones.
+     */
+    int retained() {
+        synchronized (insertionOrder) {
+            return insertionOrder.size();
+        }
+    }
+
+    /**
+     * Called holding the insertion order lock.
+     */
+    private void evictIfNeeded() {
+        Iterator<Entry<K, V>> oldest = insertionOrder.iterator();
+        while (insertionOrder.size() > maxSize && oldest.hasNext()) {
+            Entry<K, V> entry = oldest.next();
+            oldest.remove();
+            entries.remove(entry.key(), entry);
+            evictions.increment();
+        }
+    }
+
+    private void remove(Entry<K, V> entry) {
+        synchronized (insertionOrder) {
+            if (entries.remove(entry.key(), entry)) {
+                insertionOrder.remove(entry);
+            }
+        }
+    }
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private final CompletableFuture<V> value = new CompletableFuture<>();
+        // Zero while the load is in flight or without a TTL, such an entry never expires
+        private volatile long expiresAt;
+        private final AtomicInteger generation = new AtomicInteger();
+
+        private Entry(K key) {
+            this.key = key;
+        }
+
+        K key() {
+            return key;
+        }
+
+        CompletableFuture<V> value() {
+            return value;
+        }
+
+        void expiresAt(long nanos) {
+            this.expiresAt = nanos;
+        }
+
+        int generation() {
+            return generation.get();
+        }
+
+        void invalidate() {
+            generation.incrementAndGet();
+        }
+
+        boolean isExpired(long now) {
+            long expiry = expiresAt;
+            return expiry != 0 && now - expiry >= 0;
+        }
+    }
+
+    /**
+     * @param negativeHits lookups answered from a remembered miss, without loading
+     */
+    @Serdeable
+    public record Stats(int size, long hits, long negativeHits, long misses, long loadSuccesses, long loadFailures,
+            double averageLoadMillis, long evictions) {
+    }
+}
@@ -0,0 +1,73 @@
+package com.iot.riff.service.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.iot.riff.service.exception.IotTelemetryRejectedException;
+import jakarta.inject.Singleton;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses telemetry from Kafka record values into the one tree that is validated and stored.
+ * <p>
+ * Payloads that are not a JSON object are kept as text under {@code raw}, as before.
+ */
+@Singleton
+public class IotTelemetryJson {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Parses a raw MQTT payload.
+     */
+    public ObjectNode parsePayload(byte[] payload) {
+        try {
+            if (objectMapper.readTree(payload) instanceof ObjectNode object) {
+                return object;
+            }
+        } catch (Exception e) {
+            // Not JSON, stored as raw text below
+        }
+        return raw(new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a legacy envelope {deviceId, topic, payload} and returns its payload. A payload sent as a
+     * JSON string still needs a parse of its own.
+     */
+    public ObjectNode parseEnvelopePayload(byte[] envelope) {
+        JsonNode message;
+        try {
+            message = objectMapper.readTree(envelope);
+        } catch (Exception e) {
+            throw new IotTelemetryRejectedException(IotTelemetryRejectedException.Reason.MALFORMED,
+                    "Failed to parse telemetry envelope", e);
+        }
+        JsonNode payload = message.get("payload");
+        if (payload instanceof ObjectNode object) {
+            return object;
+        }
+        if (payload != null && payload.isTextual()) {
+            String text = payload.textValue();
+            try {
+                if (objectMapper.readTree(text) instanceof ObjectNode object) {
+                    return object;
+                }
+            } catch (Exception e) {
+                // Not JSON, stored as raw text below
+            }
+            return raw(text);
+        }
+        ObjectNode value = JsonNodeFactory.instance.objectNode();
+        value.set("value", payload != null ? payload : JsonNodeFactory.instance.nullNode());
+        return value;
+    }
+
+    private static ObjectNode raw(String text) {
+        ObjectNode raw = JsonNodeFactory.instance.objectNode();
+        raw.put("raw", text);
+        return raw;
+    }
+}
@@ -1,6 +1,7 @@
 package com.iot.riff;
 
 import com.iot.riff.kafka.IotKafkaConsumer;
+import com.iot.riff.kafka.IotKafkaRetryConsumer;
 import com.iot.riff.mqtt.IotMqttListener;
 import com.mongodb.client.MongoClient;
 import io.micronaut.context.annotation.Factory;
@@ -23,11 +24,17 @@ public class TestMocks {
         return Mockito.mock(IotKafkaConsumer.class);
     }
 
+    @Singleton
+    @Replaces(IotKafkaRetryConsumer.class)
+    public IotKafkaRetryConsumer iotKafkaRetryConsumer() {
+        return Mockito.mock(IotKafkaRetryConsumer.class);
+    }
+
     @Singleton
     @Replaces(IotMqttListener.class)
     public IotMqttListener iotMqttListener() {
-        com.iot.riff.mqtt.IotMqttConfig config = new com.iot.riff.mqtt.IotMqttConfig("localhost", 1883, "secretPath");
-        return new IotMqttListener(config, null, null, null) {
+        com.iot.riff.mqtt.IotMqttConfig config = new com.iot.riff.mqtt.IotMqttConfig("localhost", 1883, "secretPath", 16);
+        return new IotMqttListener(config, null, null, null, null, null, null, null) {
             @Override
             public void onApplicationEvent(io.micronaut.context.event.StartupEvent event) {
                 // Do nothing
@@ -0,0 +1,63 @@
+package com.iot.riff.kafka;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.exception.IotException;
+import com.iot.riff.service.util.IotTelemetryJson;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IotKafkaBatchConsumerTest {
+
+    @Mock
+    private IotDeviceDataService iotDeviceDataService;
+
+    private IotKafkaBatchConsumer iotKafkaBatchConsumer;
+
+    @BeforeEach
+    void setUp() {
+        iotKafkaBatchConsumer = new IotKafkaBatchConsumer(iotDeviceDataService, new IotTelemetryJson());
+    }
+
+    @Test
+    void receive_pollOfRecords_isProcessedAsOneBatch_skippingUnparseableEnvelopes() {
+        ConsumerRecord<String, byte[]> passthrough = record(0, "device1", "{\"temp\": 25}");
+        passthrough.headers().add(IotKafkaHeaders.DEVICE_ID, "device1".getBytes(StandardCharsets.UTF_8));
+        ConsumerRecord<String, byte[]> envelope = record(1, "device2", "{\"payload\": {\"temp\": 26}}");
+        ConsumerRecord<String, byte[]> garbage = record(2, "device3", "not json");
+
+        iotKafkaBatchConsumer.receive(List.of(passthrough, envelope, garbage));
+
+        verify(iotDeviceDataService).processTelemetryBatch(List.of(
+                new TelemetryReading("iot-device-data-0@0", "device1",
+                        JsonNodeFactory.instance.objectNode().put("temp", 25)),
+                new TelemetryReading("iot-device-data-0@1", "device2",
+                        JsonNodeFactory.instance.objectNode().put("temp", 26))));
+    }
+
+    @Test
+    void receive_failedWrite_isThrownSoTheOffsetsAreNotCommitted() {
+        when(iotDeviceDataService.processTelemetryBatch(anyList())).thenThrow(new IotException("Mongo is down"));
+
+        assertThrows(IotException.class,
+                () -> iotKafkaBatchConsumer.receive(List.of(record(0, "device1", "{\"payload\": {}}"))));
+    }
+
+    private static ConsumerRecord<String, byte[]> record(long offset, String key, String value) {
+        return new ConsumerRecord<>("iot-device-data", 0, offset, key, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,46 +1,118 @@
 package com.iot.riff.kafka;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.iot.riff.service.IotDeviceDataService;
-import io.micronaut.serde.ObjectMapper;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.util.IotTelemetryJson;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
 
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class IotKafkaConsumerTest {
 
+    private static final JsonNode TEMP_25 = JsonNodeFactory.instance.objectNode().put("temp", 25);
+    // Records produced without a messageId header are identified by their coordinates
+    private static final String MESSAGE_ID = "iot-device-data-0@0";
+
     @Mock
     private IotDeviceDataService iotDeviceDataService;
     @Mock
-    private ObjectMapper objectMapper;
+    private IotKafkaFailureRouter iotKafkaFailureRouter;
 
     private IotKafkaConsumer iotKafkaConsumer;
 
     @BeforeEach
     void setUp() {
-        iotKafkaConsumer = new IotKafkaConsumer(iotDeviceDataService, objectMapper);
+        iotKafkaConsumer = new IotKafkaConsumer(iotDeviceDataService, new IotTelemetryJson(), iotKafkaFailureRouter);
+    }
+
+    @Test
+    void receive_envelopeWithPayloadString_parsesThePayload() {
+        String deviceId = "device123";
+        String message = "{\"deviceId\": \"device123\", \"topic\": \"t\", \"payload\": \"{\\\"temp\\\": 25}\"}";
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId,
+                message.getBytes(StandardCharsets.UTF_8));
+
+        iotKafkaConsumer.receive(record);
+
+        verify(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId, TEMP_25));
     }
 
     @Test
-    void receive_validMessage_callsService() throws Exception {
+    void receive_passthroughRecord_parsesRawPayload() {
+        String deviceId = "device123";
+        byte[] payload = "{\"temp\": 25}".getBytes(StandardCharsets.UTF_8);
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId, payload);
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+
+        iotKafkaConsumer.receive(record);
+
+        verify(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId, TEMP_25));
+    }
+
+    @Test
+    void receive_passthroughRecordThatIsNotAnObject_isKeptAsRawText() {
+        String deviceId = "device123";
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId,
+                "21.5C".getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+
+        iotKafkaConsumer.receive(record);
+
+        verify(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId,
+                JsonNodeFactory.instance.objectNode().put("raw", "21.5C")));
+    }
+
+    @Test
+    void receive_recordWithoutHeaders_isTreatedAsEnvelope() {
         String deviceId = "device123";
         String message = "{\"payload\": {\"temp\": 25}}";
-        Map<String, Object> payloadMap = Map.of("temp", 25);
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId,
+                message.getBytes(StandardCharsets.UTF_8));
+
+        iotKafkaConsumer.receive(record);
+
+        verify(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId, TEMP_25));
+    }
 
-        // Mock ObjectMapper behavior
-        when(objectMapper.readValue(eq(message), any(io.micronaut.core.type.Argument.class)))
-                .thenReturn(Map.of("payload", payloadMap));
+    @Test
+    void receive_failedRecord_isRoutedInsteadOfDropped() {
+        String deviceId = "device123";
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId,
+                "{\"temp\": 25}".getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+        IllegalStateException failure = new IllegalStateException("Mongo is down");
+        doThrow(failure).when(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId, TEMP_25));
 
-        iotKafkaConsumer.receive(deviceId, message);
+        iotKafkaConsumer.receive(record);
+
+        verify(iotKafkaFailureRouter).route(record, failure);
+    }
+
+    @Test
+    void receive_recordThatCannotBeRouted_isNotAcknowledged() {
+        String deviceId = "device123";
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data", 0, 0L, deviceId,
+                "{\"temp\": 25}".getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+        IllegalStateException failure = new IllegalStateException("Mongo is down");
+        doThrow(failure).when(iotDeviceDataService).ingestTelemetry(new TelemetryReading(MESSAGE_ID, deviceId, TEMP_25));
+        CompletionException unroutable = new CompletionException(new IllegalStateException("Kafka is down"));
+        doThrow(unroutable).when(iotKafkaFailureRouter).route(record, failure);
 
-        verify(iotDeviceDataService).processTelemetry(deviceId, payloadMap);
+        // Escaping the listener makes the record be polled again instead of committed
+        assertSame(unroutable, assertThrows(CompletionException.class, () -> iotKafkaConsumer.receive(record)));
     }
 }
@@ -0,0 +1,108 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.exception.IotException;
+import com.iot.riff.service.exception.IotTelemetryRejectedException;
+import com.mongodb.MongoException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IotKafkaFailureRouterTest {
+
+    @Mock
+    private IotKafkaProducer iotKafkaProducer;
+
+    private IotKafkaFailureRouter router;
+
+    @BeforeEach
+    void setUp() {
+        router = new IotKafkaFailureRouter(iotKafkaProducer, List.of(Duration.ofSeconds(10), Duration.ofMinutes(1)));
+        when(iotKafkaProducer.sendTo(anyString(), anyString(), any(), any()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+    }
+
+    @Test
+    void transientFailures_climbTheRetryTiers_thenGoToTheDeadLetterTopic() {
+        ConsumerRecord<String, byte[]> record = record("iot-device-data");
+        long before = System.currentTimeMillis();
+
+        router.route(record, new IllegalStateException("Mongo is down"));
+        Headers first = sent("iot-device-data-retry-1");
+        assertEquals("1", header(first, IotKafkaHeaders.ATTEMPT));
+        assertEquals(IotKafkaFailureRouter.PROCESSING_FAILED, header(first, IotKafkaHeaders.FAILURE_CODE));
+        assertEquals("Mongo is down", header(first, IotKafkaHeaders.FAILURE_REASON));
+        assertTrue(Long.parseLong(header(first, IotKafkaHeaders.RETRY_AT)) >= before + 10_000);
+        assertEquals("device1", header(first, IotKafkaHeaders.DEVICE_ID));
+
+        router.route(retried(first), new IllegalStateException("Mongo is down"));
+        Headers second = sent("iot-device-data-retry-2");
+        assertEquals("2", header(second, IotKafkaHeaders.ATTEMPT));
+
+        router.route(retried(second), new IotException("Mongo is still down", new MongoException("timeout")));
+        Headers last = sent(IotKafkaFailureRouter.DEAD_LETTER_TOPIC);
+        assertEquals("3", header(last, IotKafkaHeaders.ATTEMPT));
+        assertEquals(IotKafkaFailureRouter.STORE_FAILED, header(last, IotKafkaHeaders.FAILURE_CODE));
+        assertEquals("Mongo is still down", header(last, IotKafkaHeaders.FAILURE_REASON));
+        assertNull(last.lastHeader(IotKafkaHeaders.RETRY_AT));
+
+        IotKafkaFailureRouter.Stats stats = router.stats();
+        assertArrayEquals(new long[] { 1, 1 }, stats.retried());
+        assertEquals(1, stats.deadLettered());
+    }
+
+    @Test
+    void rejectedTelemetry_goesStraightToTheDeadLetterTopic() {
+        router.route(record("iot-device-data"), new IotTelemetryRejectedException(
+                IotTelemetryRejectedException.Reason.DEVICE_NOT_FOUND, "Device not found: device1"));
+
+        Headers headers = sent(IotKafkaFailureRouter.DEAD_LETTER_TOPIC);
+        assertEquals("1", header(headers, IotKafkaHeaders.ATTEMPT));
+        assertEquals("DEVICE_NOT_FOUND", header(headers, IotKafkaHeaders.FAILURE_CODE));
+        assertEquals("Device not found: device1", header(headers, IotKafkaHeaders.FAILURE_REASON));
+    }
+
+    private Headers sent(String topic) {
+        ArgumentCaptor<Headers> headers = ArgumentCaptor.forClass(Headers.class);
+        verify(iotKafkaProducer).sendTo(eq(topic), eq("device1"), any(), headers.capture());
+        return headers.getValue();
+    }
+
+    private static ConsumerRecord<String, byte[]> record(String topic) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(topic, 0, 0L, "device1",
+                "{}".getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, "device1".getBytes(StandardCharsets.UTF_8));
+        return record;
+    }
+
+    private static ConsumerRecord<String, byte[]> retried(Headers headers) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>("iot-device-data-retry", 0, 0L, "device1",
+                "{}".getBytes(StandardCharsets.UTF_8));
+        headers.forEach(record.headers()::add);
+        return record;
+    }
+
+    private static String header(Headers headers, String name) {
+        return new String(headers.lastHeader(name).value(), StandardCharsets.UTF_8);
+    }
+}
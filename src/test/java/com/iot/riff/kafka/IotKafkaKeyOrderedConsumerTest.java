@@ -0,0 +1,169 @@
+package com.iot.riff.kafka;
+
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.util.IotTelemetryJson;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class IotKafkaKeyOrderedConsumerTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("iot-device-data", 0);
+
+    @Mock
+    private IotDeviceDataService iotDeviceDataService;
+    @Mock
+    private Consumer<String, byte[]> kafkaConsumer;
+    @Mock
+    private IotKafkaFailureRouter iotKafkaFailureRouter;
+
+    private IotKafkaKeyOrderedConsumer consumer;
+
+    @BeforeEach
+    void setUp() {
+        consumer = new IotKafkaKeyOrderedConsumer(iotDeviceDataService, new IotTelemetryJson(),
+                iotKafkaFailureRouter, 4, 100, Duration.ofSeconds(5), Duration.ofMillis(50));
+        consumer.setKafkaConsumer(kafkaConsumer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        consumer.close();
+    }
+
+    @Test
+    void receive_keepsOrderPerDevice() throws Exception {
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(200);
+        doAnswer(invocation -> {
+            TelemetryReading reading = invocation.getArgument(0);
+            seen.computeIfAbsent(reading.deviceId(), k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(reading.payload().get("seq").intValue());
+            done.countDown();
+            return CompletableFuture.completedFuture(true);
+        }).when(iotDeviceDataService).ingestTelemetryAsync(any(TelemetryReading.class));
+
+        List<ConsumerRecord<String, byte[]>> records = new ArrayList<>();
+        for (int seq = 0; seq < 200; seq++) {
+            records.add(record(seq, "device" + (seq % 8), "{\"seq\": " + seq + "}"));
+        }
+        consumer.receive(records);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(8, seen.size());
+        seen.values().forEach(seqs -> {
+            List<Integer> sorted = new ArrayList<>(seqs);
+            Collections.sort(sorted);
+            assertEquals(sorted, seqs);
+        });
+    }
+
+    @Test
+    void offsets_areCommittedOnlyUpToTheLowestRecordInFlight() throws Exception {
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CompletableFuture<Boolean> slowWrite = new CompletableFuture<>();
+        CountDownLatch fastDone = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            if ("slow".equals(((TelemetryReading) invocation.getArgument(0)).deviceId())) {
+                slowStarted.countDown();
+                return slowWrite;
+            }
+            fastDone.countDown();
+            return CompletableFuture.completedFuture(true);
+        }).when(iotDeviceDataService).ingestTelemetryAsync(any(TelemetryReading.class));
+
+        consumer.receive(List.of(record(10, "slow", "{}"), record(11, "fast", "{}"), record(12, "fast", "{}")));
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+
+        // Offset 10 is still in flight, so nothing past it may be committed
+        consumer.receive(List.of());
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(10)));
+        verify(kafkaConsumer, never()).commitSync(Map.of(PARTITION, new OffsetAndMetadata(13)));
+
+        slowWrite.complete(true);
+        consumer.onPartitionsRevoked(List.of(PARTITION));
+        verify(kafkaConsumer, timeout(5000)).commitSync(eq(Map.of(PARTITION, new OffsetAndMetadata(13))));
+    }
+
+    @Test
+    void recordThatCouldNotBeRouted_isDispatchedAgain_beforeItsOffsetIsCommitted() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocation -> attempts.incrementAndGet() == 1
+                ? CompletableFuture.failedFuture(new IllegalStateException("Mongo is down"))
+                : CompletableFuture.completedFuture(true))
+                .when(iotDeviceDataService).ingestTelemetryAsync(any(TelemetryReading.class));
+        doThrow(new IllegalStateException("Kafka is down")).when(iotKafkaFailureRouter)
+                .route(any(), any(Exception.class));
+
+        consumer.receive(List.of(record(20, "device1", "{}")));
+
+        // The second attempt stores the reading, which lets the offset move past it
+        verify(iotDeviceDataService, timeout(5000).times(2)).ingestTelemetryAsync(any(TelemetryReading.class));
+        consumer.onPartitionsRevoked(List.of(PARTITION));
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(21)));
+    }
+
+    @Test
+    void recordThatFailsOnce_isStoredBeforeTheNextRecordOfItsDevice() throws Exception {
+        List<Integer> attempts = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch stored = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            int seq = ((TelemetryReading) invocation.getArgument(0)).payload().get("seq").intValue();
+            attempts.add(seq);
+            if (seq == 30 && attempts.size() == 1) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Mongo is down"));
+            }
+            stored.countDown();
+            return CompletableFuture.completedFuture(true);
+        }).when(iotDeviceDataService).ingestTelemetryAsync(any(TelemetryReading.class));
+        doThrow(new IllegalStateException("Kafka is down")).when(iotKafkaFailureRouter)
+                .route(any(), any(Exception.class));
+
+        consumer.receive(List.of(record(30, "device1", "{\"seq\": 30}"), record(31, "device1", "{\"seq\": 31}")));
+
+        // The lane waits for record 30 to be done with before it takes record 31
+        assertTrue(stored.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(30, 30, 31), attempts);
+        consumer.onPartitionsRevoked(List.of(PARTITION));
+        verify(kafkaConsumer).commitSync(Map.of(PARTITION, new OffsetAndMetadata(32)));
+    }
+
+    private static ConsumerRecord<String, byte[]> record(long offset, String deviceId, String payload) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(PARTITION.topic(), PARTITION.partition(),
+                offset, deviceId, payload.getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+        return record;
+    }
+}
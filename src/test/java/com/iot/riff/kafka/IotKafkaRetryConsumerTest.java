@@ -0,0 +1,86 @@
+package com.iot.riff.kafka;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.iot.riff.service.IotDeviceDataService;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.util.IotTelemetryJson;
+import io.micronaut.configuration.kafka.ConsumerRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class IotKafkaRetryConsumerTest {
+
+    private static final TopicPartition TIER_1 = new TopicPartition("iot-device-data-retry-1", 0);
+    private static final TopicPartition TIER_2 = new TopicPartition("iot-device-data-retry-2", 0);
+
+    @Mock
+    private IotDeviceDataService iotDeviceDataService;
+    @Mock
+    private IotKafkaFailureRouter iotKafkaFailureRouter;
+    @Mock
+    private ConsumerRegistry consumerRegistry;
+    @Mock
+    private Consumer<String, byte[]> kafkaConsumer;
+
+    private IotKafkaRetryConsumer consumer;
+
+    @BeforeEach
+    void setUp() {
+        consumer = new IotKafkaRetryConsumer(iotDeviceDataService, new IotTelemetryJson(), iotKafkaFailureRouter,
+                consumerRegistry);
+        consumer.setKafkaConsumer(kafkaConsumer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        consumer.close();
+    }
+
+    @Test
+    void dueRecords_areRetried_andAPartitionWaitsAtItsFirstRecordNotDue() {
+        long now = System.currentTimeMillis();
+        consumer.receive(List.of(
+                record(TIER_1, 5, "device1", now - 1),
+                record(TIER_1, 6, "device2", now + 200),
+                record(TIER_1, 7, "device3", now - 1),
+                record(TIER_2, 0, "device4", now - 1)));
+
+        verify(iotDeviceDataService).ingestTelemetry(
+                new TelemetryReading("iot-device-data-retry-1-0@5", "device1", JsonNodeFactory.instance.objectNode()));
+        verify(iotDeviceDataService).ingestTelemetry(
+                new TelemetryReading("iot-device-data-retry-2-0@0", "device4", JsonNodeFactory.instance.objectNode()));
+        // Behind a record that is not due, even an older retryAt waits for the rewind
+        verify(iotDeviceDataService, never()).ingestTelemetry(argThat(reading -> "device3".equals(reading.deviceId())));
+        verify(kafkaConsumer).seek(TIER_1, 6);
+        verify(consumerRegistry).pause(IotKafkaRetryConsumer.CLIENT_ID, List.of(TIER_1));
+        verify(kafkaConsumer).commitSync(Map.of(TIER_1, new OffsetAndMetadata(6), TIER_2, new OffsetAndMetadata(1)));
+        verify(consumerRegistry, timeout(2000)).resume(IotKafkaRetryConsumer.CLIENT_ID, List.of(TIER_1));
+    }
+
+    private static ConsumerRecord<String, byte[]> record(TopicPartition tp, long offset, String deviceId,
+            long retryAt) {
+        ConsumerRecord<String, byte[]> record = new ConsumerRecord<>(tp.topic(), tp.partition(), offset, deviceId,
+                "{}".getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.DEVICE_ID, deviceId.getBytes(StandardCharsets.UTF_8));
+        record.headers().add(IotKafkaHeaders.RETRY_AT, Long.toString(retryAt).getBytes(StandardCharsets.UTF_8));
+        return record;
+    }
+}
@@ -0,0 +1,158 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.iot.riff.vault.IotVaultService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class IotCredentialCacheTest {
+
+    @Mock
+    private IotDeviceDal iotDeviceDal;
+    @Mock
+    private IotVaultService iotVaultService;
+
+    private IotCredentialCache iotCredentialCache;
+
+    @AfterEach
+    void tearDown() {
+        iotCredentialCache.close();
+    }
+
+    @Test
+    void concurrentMisses_forSameDevice_loadOnce() throws Exception {
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 100);
+        CountDownLatch release = new CountDownLatch(1);
+        when(iotDeviceDal.get("device1")).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return device("device1");
+        });
+        when(iotVaultService.readSecret("secret/device1")).thenReturn("password");
+
+        List<CompletableFuture<String>> secrets = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            secrets.add(iotCredentialCache.getSecret("device1"));
+        }
+        release.countDown();
+
+        for (CompletableFuture<String> secret : secrets) {
+            assertEquals("password", secret.get(5, TimeUnit.SECONDS));
+        }
+        verify(iotDeviceDal, times(1)).get("device1");
+        verify(iotVaultService, times(1)).readSecret("secret/device1");
+        assertEquals(1, iotCredentialCache.stats().missCount());
+        assertEquals(499, iotCredentialCache.stats().hitCount());
+    }
+
+    @Test
+    void expiredEntry_isReloaded() throws Exception {
+        AtomicLong now = new AtomicLong();
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMillis(20), 100,
+                now::get);
+        when(iotDeviceDal.get("device1")).thenReturn(device("device1"));
+        when(iotVaultService.readSecret("secret/device1")).thenReturn("password");
+
+        iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS);
+        now.addAndGet(Duration.ofMillis(50).toNanos());
+        iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS);
+
+        verify(iotDeviceDal, times(2)).get("device1");
+    }
+
+    @Test
+    void invalidate_forcesReload() throws Exception {
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 100);
+        when(iotDeviceDal.get("device1")).thenReturn(device("device1"));
+        when(iotVaultService.readSecret("secret/device1")).thenReturn("old", "new");
+
+        assertEquals("old", iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS));
+        iotCredentialCache.invalidate("device1");
+        assertEquals("new", iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void invalidate_duringLoad_discardsThePreRotationSecret() throws Exception {
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 100);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(iotDeviceDal.get("device1")).thenReturn(device("device1"));
+        when(iotVaultService.readSecret("secret/device1")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "old";
+        }).thenReturn("new");
+
+        CompletableFuture<String> joined = iotCredentialCache.getSecret("device1");
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        iotCredentialCache.invalidate("device1");
+        release.countDown();
+
+        assertEquals("new", joined.get(5, TimeUnit.SECONDS));
+        assertEquals("new", iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void sizeBound_evictsOldestEntries() throws Exception {
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 2);
+        when(iotDeviceDal.get(anyString())).thenAnswer(invocation -> device(invocation.getArgument(0)));
+        when(iotVaultService.readSecret(anyString())).thenReturn("password");
+
+        for (String deviceId : List.of("device1", "device2", "device3")) {
+            iotCredentialCache.getSecret(deviceId).get(5, TimeUnit.SECONDS);
+        }
+        iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, iotCredentialCache.stats().size());
+        assertEquals(2, iotCredentialCache.stats().evictionCount());
+        verify(iotDeviceDal, times(2)).get("device1");
+    }
+
+    @Test
+    void failedLoad_isNotCached() throws Exception {
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 100);
+        when(iotDeviceDal.get("device1")).thenThrow(new RuntimeException("mongo down"))
+                .thenReturn(device("device1"));
+        when(iotVaultService.readSecret("secret/device1")).thenReturn("password");
+
+        CompletableFuture<String> failed = iotCredentialCache.getSecret("device1");
+        assertThrows(Exception.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertEquals("password", iotCredentialCache.getSecret("device1").get(5, TimeUnit.SECONDS));
+        assertEquals(1, iotCredentialCache.stats().loadFailureCount());
+    }
+
+    private static IotDevice device(String deviceId) {
+        return new IotDevice(new IotDeviceId(deviceId), new IotDeviceModelId("model1"), deviceId, null,
+                new MqttConnectionDetails("localhost", 1883, "iot/any", deviceId, "secret/" + deviceId),
+                Map.of(), DeviceStatus.ACTIVE, Instant.now());
+    }
+}
@@ -0,0 +1,73 @@
+package com.iot.riff.mqtt;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttBackpressureTest {
+
+    private IotMqttBackpressure backpressure;
+    private List<Object> events;
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    void setUp() {
+        backpressure = new IotMqttBackpressure(3, 1, 1000, 500);
+        events = new ArrayList<>();
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                events.add(evt);
+            }
+        });
+        backpressure.register(channel);
+    }
+
+    @Test
+    void pendingSendsAboveHighWatermark_pauseUntilLowWatermark() {
+        for (int i = 0; i < 4; i++) {
+            backpressure.onSend(10);
+        }
+        assertTrue(backpressure.isPaused());
+        assertEquals(List.of(IotMqttBackpressure.Event.PAUSE), events);
+
+        // Hysteresis: dropping below the high watermark is not enough to resume
+        backpressure.onComplete(10);
+        backpressure.onComplete(10);
+        assertTrue(backpressure.isPaused());
+
+        backpressure.onComplete(10);
+        assertFalse(backpressure.isPaused());
+        assertEquals(List.of(IotMqttBackpressure.Event.PAUSE, IotMqttBackpressure.Event.RESUME), events);
+
+        IotMqttBackpressure.Stats stats = backpressure.stats();
+        assertEquals(1, stats.pauseCount());
+        assertEquals(1, stats.pendingSends());
+        assertEquals(1, stats.connections());
+    }
+
+    @Test
+    void pendingBytesAboveHighWatermark_pause() {
+        backpressure.onSend(1001);
+        assertTrue(backpressure.isPaused());
+
+        backpressure.onComplete(1001);
+        assertFalse(backpressure.isPaused());
+        assertEquals(0, backpressure.stats().pendingBytes());
+    }
+
+    @Test
+    void closedChannels_areNoLongerTracked() {
+        channel.close();
+        assertEquals(0, backpressure.stats().connections());
+    }
+}
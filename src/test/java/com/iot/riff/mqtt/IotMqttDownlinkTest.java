@@ -0,0 +1,243 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.domain.CommandStatus;
+import com.iot.riff.service.exception.IotException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttDownlinkTest {
+
+    private static final String TOPIC = "devices/device-1/commands/reboot";
+
+    @TempDir
+    Path sessionDirectory;
+
+    private int flushes;
+    private EmbeddedChannel channel;
+    private IotMqttSessionStore sessionStore;
+
+    @BeforeEach
+    void setUp() {
+        sessionStore = new IotMqttSessionStore(sessionDirectory.toString(), 1 << 20, 100, 0.25);
+        flushes = 0;
+        channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                flushes++;
+                ctx.flush();
+            }
+        });
+    }
+
+    @Test
+    void burstToOneDevice_isWrittenWithOneFlush() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.REJECT, 1000, 32);
+        downlink.register("device-1", channel, false);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(CommandStatus.QUEUED,
+                    downlink.send("device-1", TOPIC, ("{\"n\":" + i + "}").getBytes(), MqttQoS.AT_MOST_ONCE));
+        }
+        channel.runPendingTasks();
+
+        List<String> payloads = readPayloads();
+        assertEquals(100, payloads.size());
+        assertEquals("{\"n\":0}", payloads.get(0));
+        assertEquals("{\"n\":99}", payloads.get(99));
+        assertEquals(1, flushes);
+        assertEquals(1, downlink.stats().flushCount());
+        assertEquals(100, downlink.stats().sentCount());
+    }
+
+    @Test
+    void offlineDevice_isRejectedOrParkedByPolicy() {
+        IotMqttDownlink rejecting = downlink(IotMqttOfflinePolicy.REJECT, 1000, 32);
+        assertThrows(IotException.class,
+                () -> rejecting.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_LEAST_ONCE));
+        assertEquals(1, rejecting.stats().rejectedCount());
+
+        IotMqttDownlink parking = downlink(IotMqttOfflinePolicy.PARK, 1000, 32);
+        assertEquals(CommandStatus.PARKED,
+                parking.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_LEAST_ONCE));
+        assertEquals(1, parking.stats().parkedCommands());
+
+        parking.register("device-1", channel, false);
+        channel.runPendingTasks();
+
+        assertEquals(List.of("{}"), readPayloads());
+        assertEquals(0, parking.stats().parkedCommands());
+    }
+
+    @Test
+    void fullOutboundQueue_rejectsTheCommand() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.PARK, 2, 32);
+        downlink.register("device-1", channel, false);
+
+        downlink.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_MOST_ONCE);
+        downlink.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_MOST_ONCE);
+        assertThrows(IotException.class,
+                () -> downlink.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_MOST_ONCE));
+
+        channel.runPendingTasks();
+        assertEquals(2, readPayloads().size());
+    }
+
+    @Test
+    void forwardedPayload_isSharedByTheWrites_andReleasedOnceDelivered() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.REJECT, 1000, 32);
+        ByteBuf payload = Unpooled.copiedBuffer("{\"v\":1}", CharsetUtil.UTF_8);
+        assertFalse(downlink.forward(channel, TOPIC, payload.retainedDuplicate(), MqttQoS.AT_MOST_ONCE));
+        assertEquals(1, payload.refCnt());
+        downlink.register("device-1", channel, false);
+
+        assertTrue(downlink.forward(channel, TOPIC, payload.retainedDuplicate(), MqttQoS.AT_MOST_ONCE));
+        assertTrue(downlink.forward(channel, TOPIC, payload.retainedDuplicate(), MqttQoS.AT_LEAST_ONCE));
+        channel.runPendingTasks();
+
+        // Both writes and the unacknowledged QoS 1 command hold a reference, the QoS 0 command let go of its own
+        List<MqttPublishMessage> published = readPublishes();
+        assertEquals(2, published.size());
+        assertEquals(4, payload.refCnt());
+        published.forEach(MqttPublishMessage::release);
+        downlink.acknowledge(channel, published.get(1).variableHeader().packetId());
+        assertEquals(1, payload.refCnt());
+        payload.release();
+    }
+
+    @Test
+    void inflightWindow_waitsForPubAck_andUnackedCommandsAreParkedOnDisconnect() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.PARK, 1000, 2);
+        downlink.register("device-1", channel, false);
+
+        for (int i = 0; i < 5; i++) {
+            downlink.send("device-1", TOPIC, ("{\"n\":" + i + "}").getBytes(), MqttQoS.AT_LEAST_ONCE);
+        }
+        channel.runPendingTasks();
+        List<MqttPublishMessage> published = readPublishes();
+        assertEquals(List.of(1, 2), published.stream().map(message -> message.variableHeader().packetId()).toList());
+        assertFalse(published.get(0).fixedHeader().isDup());
+        published.forEach(MqttPublishMessage::release);
+
+        downlink.acknowledge(channel, 1);
+        published = readPublishes();
+        assertEquals(List.of(3), published.stream().map(message -> message.variableHeader().packetId()).toList());
+        published.forEach(MqttPublishMessage::release);
+
+        // Packets 2 and 3 are unacknowledged, the last two still queued
+        channel.close();
+        downlink.unregister("device-1", channel);
+        assertEquals(4, downlink.stats().parkedCommands());
+        assertEquals(0, downlink.stats().connectedDevices());
+
+        // Only the two that were written go out again as redeliveries
+        channel = new EmbeddedChannel();
+        downlink.register("device-1", channel, false);
+        channel.runPendingTasks();
+        published = readPublishes();
+        assertEquals(List.of(true, true), published.stream().map(message -> message.fixedHeader().isDup()).toList());
+        published.forEach(MqttPublishMessage::release);
+        downlink.acknowledge(channel, published.get(0).variableHeader().packetId());
+        downlink.acknowledge(channel, published.get(1).variableHeader().packetId());
+        published = readPublishes();
+        assertEquals(List.of(false, false), published.stream().map(message -> message.fixedHeader().isDup())
+                .toList());
+        published.forEach(MqttPublishMessage::release);
+    }
+
+    @Test
+    void reconnect_returnsThePreviousConnection() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.REJECT, 1000, 32);
+        EmbeddedChannel second = new EmbeddedChannel();
+
+        assertNull(downlink.register("device-1", channel, false));
+        assertSame(channel, downlink.register("device-1", second, false));
+
+        // The old connection closing must not unregister the new one
+        downlink.unregister("device-1", channel);
+        assertEquals(1, downlink.stats().connectedDevices());
+    }
+
+    @Test
+    void persistentSession_keepsQos1CommandsInTheStoreUntilAcknowledged() {
+        IotMqttDownlink downlink = downlink(IotMqttOfflinePolicy.REJECT, 1000, 32);
+        assertFalse(downlink.openSession("device-1", false));
+
+        // Offline devices with a persistent session get their commands stored regardless of the policy
+        assertEquals(CommandStatus.PARKED, downlink.send("device-1", TOPIC, "{}".getBytes(), MqttQoS.AT_LEAST_ONCE));
+        assertEquals(1, sessionStore.stats().pendingMessages());
+
+        downlink.register("device-1", channel, true);
+        channel.runPendingTasks();
+        List<MqttPublishMessage> published = readPublishes();
+        assertEquals(1, published.size());
+        int packetId = published.get(0).variableHeader().packetId();
+        assertFalse(published.get(0).fixedHeader().isDup());
+        published.forEach(MqttPublishMessage::release);
+
+        // A reconnect before the PUBACK redelivers it
+        channel.close();
+        downlink.unregister("device-1", channel);
+        assertEquals(1, sessionStore.stats().pendingMessages());
+        channel = new EmbeddedChannel();
+        assertTrue(downlink.openSession("device-1", false));
+        downlink.register("device-1", channel, true);
+        channel.runPendingTasks();
+        published = readPublishes();
+        assertEquals(1, published.size());
+        assertTrue(published.get(0).fixedHeader().isDup());
+        packetId = published.get(0).variableHeader().packetId();
+        published.forEach(MqttPublishMessage::release);
+
+        downlink.acknowledge(channel, packetId);
+        assertEquals(0, sessionStore.stats().pendingMessages());
+    }
+
+    @AfterEach
+    void tearDown() {
+        sessionStore.close();
+    }
+
+    private IotMqttDownlink downlink(IotMqttOfflinePolicy policy, int queueCapacity, int inflightWindow) {
+        return new IotMqttDownlink(sessionStore, policy, queueCapacity, inflightWindow, 100, Duration.ofHours(1));
+    }
+
+    private List<MqttPublishMessage> readPublishes() {
+        List<MqttPublishMessage> published = new ArrayList<>();
+        MqttPublishMessage message;
+        while ((message = channel.readOutbound()) != null) {
+            published.add(message);
+        }
+        return published;
+    }
+
+    private List<String> readPayloads() {
+        List<String> payloads = new ArrayList<>();
+        for (MqttPublishMessage message : readPublishes()) {
+            payloads.add(message.payload().toString(CharsetUtil.UTF_8));
+            message.release();
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,187 @@
+package com.iot.riff.mqtt;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.CharsetUtil;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QoS 1 PUBLISH throughput of one MQTT session against a Kafka stand-in that
+ * acknowledges every record after a fixed latency, for several in-flight windows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IotMqttInflightWindowBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final long KAFKA_ACK_LATENCY_MICROS = 1000;
+
+    @Param({ "1", "16", "256" })
+    public int inflightWindow;
+
+    private ScheduledExecutorService kafkaAcks;
+    private IotMqttListener iotMqttListener;
+    private EventLoopGroup clientGroup;
+    private Channel channel;
+    private volatile CountDownLatch pubAcks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        kafkaAcks = Executors.newSingleThreadScheduledExecutor();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        iotMqttListener = new IotMqttListener(new IotMqttConfig("localhost", port, "secretPath", inflightWindow),
+                new AcceptAllAuthenticator(), new DelayedAckProcessor(kafkaAcks),
+                new IotMqttBackpressure(10_000, 5_000, 16 << 20, 8 << 20), new IotMqttSubscriptions(List.of("broadcast/#")),
+                new IotMqttDownlink(new IotMqttSessionStore(Files.createTempDirectory("mqtt-sessions").toString(),
+                        1 << 20, 100, 0.25), IotMqttOfflinePolicy.REJECT, 1000, 32, 100_000, Duration.ofHours(1)),
+                new IotMqttConnections(Duration.ofSeconds(30), 1.5, Duration.ofMillis(200)),
+                new UnlimitedRateLimiter());
+        iotMqttListener.bind();
+
+        CountDownLatch connAck = new CountDownLatch(1);
+        clientGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+        channel = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE,
+                                new SimpleChannelInboundHandler<MqttMessage>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                                        if (msg instanceof MqttConnAckMessage) {
+                                            connAck.countDown();
+                                        } else if (msg instanceof MqttPubAckMessage) {
+                                            pubAcks.countDown();
+                                        }
+                                    }
+                                });
+                    }
+                })
+                .connect("localhost", port)
+                .sync()
+                .channel();
+        channel.writeAndFlush(MqttMessageBuilders.connect()
+                .clientId("bench-device")
+                .username("bench-device")
+                .password("secret".getBytes(CharsetUtil.UTF_8))
+                .protocolVersion(MqttVersion.MQTT_3_1_1)
+                .build());
+        connAck.await(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.close();
+        clientGroup.shutdownGracefully();
+        iotMqttListener.stop();
+        kafkaAcks.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void publishQos1() throws InterruptedException {
+        pubAcks = new CountDownLatch(BATCH_SIZE);
+        for (int i = 1; i <= BATCH_SIZE; i++) {
+            channel.write(MqttMessageBuilders.publish()
+                    .topicName("iot/any")
+                    .qos(MqttQoS.AT_LEAST_ONCE)
+                    .messageId(i)
+                    .payload(Unpooled.copiedBuffer("{\"temp\": 25}", CharsetUtil.UTF_8))
+                    .build());
+        }
+        channel.flush();
+        pubAcks.await();
+    }
+
+    private static final class AcceptAllAuthenticator extends IotMqttAuthenticator {
+
+        AcceptAllAuthenticator() {
+            super(null);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> authenticate(String deviceId, String password) {
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+
+    private static final class UnlimitedRateLimiter extends IotMqttRateLimiter {
+
+        UnlimitedRateLimiter() {
+            super(null, null, IotMqttRateLimitAction.DROP, 0, 0, 0, 0, Duration.ofMinutes(5));
+        }
+
+        @Override
+        public void attach(Channel channel, String deviceId) {
+        }
+    }
+
+    private static final class DelayedAckProcessor extends IotMqttMessageProcessor {
+
+        private final ScheduledExecutorService kafkaAcks;
+
+        DelayedAckProcessor(ScheduledExecutorService kafkaAcks) {
+            super(null, null, null, IotMqttIngestMode.PASSTHROUGH, null, null, false, Duration.ofMinutes(10));
+            this.kafkaAcks = kafkaAcks;
+        }
+
+        @Override
+        public CompletableFuture<RecordMetadata> process(String deviceId, String topic, MqttQoS qos,
+                String messageId, ByteBuf payload) {
+            CompletableFuture<RecordMetadata> sent = new CompletableFuture<>();
+            kafkaAcks.schedule(() -> sent.complete(null), KAFKA_ACK_LATENCY_MICROS, TimeUnit.MICROSECONDS);
+            return sent;
+        }
+    }
+}
@@ -0,0 +1,650 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.domain.CommandStatus;
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.iot.riff.service.domain.RateLimit;
+import com.iot.riff.vault.IotVaultService;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttPubReplyMessageVariableHeader;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttReasonCodes;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NettyRuntime;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class IotMqttListenerTest {
+
+    private static final long LOOKUP_LATENCY_MS = 100;
+    private static final String PASSWORD = "secret";
+
+    @Mock
+    private IotDeviceDal iotDeviceDal;
+    @Mock
+    private IotVaultService iotVaultService;
+    @Mock
+    private IotMqttMessageProcessor mqttMessageProcessor;
+    @Mock
+    private IotDeviceModelDal iotDeviceModelDal;
+
+    private final IotMqttSubscriptions subscriptions = new IotMqttSubscriptions(List.of("broadcast/#"));
+    @TempDir
+    Path sessionDirectory;
+
+    private IotMqttSessionStore sessionStore;
+    private IotMqttDownlink downlink;
+    private IotMqttConnections connections;
+    private IotMqttRateLimiter rateLimiter;
+    private IotCredentialCache iotCredentialCache;
+    private IotMqttListener iotMqttListener;
+    private EventLoopGroup clientGroup;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // Every lookup pays a Mongo-like round trip
+        when(iotDeviceDal.get(anyString())).thenAnswer(invocation -> {
+            Thread.sleep(LOOKUP_LATENCY_MS);
+            return device(invocation.getArgument(0));
+        });
+        when(iotVaultService.readSecret(anyString())).thenReturn(PASSWORD);
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        when(mqttMessageProcessor.process(anyString(), anyString(), any(MqttQoS.class), any(), any(ByteBuf.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 100_000);
+        sessionStore = new IotMqttSessionStore(sessionDirectory.toString(), 1 << 20, 100, 0.25);
+        downlink = new IotMqttDownlink(sessionStore, IotMqttOfflinePolicy.PARK, 1000, 32, 100_000, Duration.ofHours(1));
+        connections = new IotMqttConnections(Duration.ofSeconds(2), 1.5, Duration.ofMillis(10));
+        rateLimiter = new IotMqttRateLimiter(iotCredentialCache, iotDeviceModelDal, IotMqttRateLimitAction.DROP, 0, 0,
+                0, 0, Duration.ofMinutes(5));
+        clientGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+    }
+
+    @AfterEach
+    void tearDown() {
+        clientGroup.shutdownGracefully();
+        if (iotMqttListener != null) {
+            iotMqttListener.stop();
+        }
+        iotCredentialCache.close();
+        sessionStore.close();
+        connections.close();
+        rateLimiter.close();
+    }
+
+    private List<Channel> startListener(int inflightWindow) throws InterruptedException {
+        return startListener(new IotMqttConfig("localhost", port, "secretPath", inflightWindow));
+    }
+
+    private List<Channel> startListener(IotMqttConfig config) throws InterruptedException {
+        iotMqttListener = new IotMqttListener(config, new IotMqttAuthenticator(iotCredentialCache),
+                mqttMessageProcessor, new IotMqttBackpressure(10_000, 5_000, 16 << 20, 8 << 20), subscriptions,
+                downlink, connections, rateLimiter);
+        return iotMqttListener.bind();
+    }
+
+    @Test
+    void reusePort_bindsEveryAcceptorOnTheResolvedTransport() throws Exception {
+        List<Channel> serverChannels = startListener(new IotMqttConfig("localhost", port, "secretPath", 16,
+                IotMqttTransport.AUTO, true, 4, 1, 2, 1024));
+
+        assertEquals(4, serverChannels.size());
+        Class<?> serverChannelClass = IotMqttTransport.AUTO.resolve().serverChannelClass();
+        serverChannels.forEach(channel -> assertTrue(serverChannelClass.isInstance(channel)));
+        // A single configured boss thread is raised so every acceptor accepts on its own loop
+        assertEquals(4, serverChannels.stream().map(Channel::eventLoop).distinct().count());
+
+        int connections = 20;
+        CountDownLatch connAcks = new CountDownLatch(connections);
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Channel channel = connect(message -> {
+                if (message instanceof MqttConnAckMessage) {
+                    connAcks.countDown();
+                }
+            });
+            channel.writeAndFlush(connectMessage("device-" + i));
+            channels.add(channel);
+        }
+        assertTrue(connAcks.await(10, TimeUnit.SECONDS), "Timed out waiting for CONNACKs");
+
+        channels.forEach(Channel::close);
+    }
+
+    @Test
+    void reconnectStorm_authenticationDoesNotBlockEventLoop() throws Exception {
+        startListener(16);
+        CountDownLatch livePong = new CountDownLatch(1);
+        CountDownLatch liveConnAck = new CountDownLatch(1);
+        Channel live = connect(message -> {
+            if (message instanceof MqttConnAckMessage) {
+                liveConnAck.countDown();
+            } else if (message.fixedHeader().messageType() == MqttMessageType.PINGRESP) {
+                livePong.countDown();
+            }
+        });
+        live.writeAndFlush(connectMessage("live"));
+        assertTrue(liveConnAck.await(10, TimeUnit.SECONDS), "Timed out waiting for the live CONNACK");
+
+        // Park every storm lookup, more of them than there are event-loop threads
+        CountDownLatch releaseLookups = new CountDownLatch(1);
+        CountDownLatch lookupsStarted = new CountDownLatch(1);
+        when(iotDeviceDal.get(startsWith("storm-"))).thenAnswer(invocation -> {
+            lookupsStarted.countDown();
+            releaseLookups.await();
+            return device(invocation.getArgument(0));
+        });
+        int connections = NettyRuntime.availableProcessors() * 4;
+        CountDownLatch connAcks = new CountDownLatch(connections);
+        AtomicInteger accepted = new AtomicInteger();
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Channel channel = connect(message -> {
+                if (message instanceof MqttConnAckMessage connAck) {
+                    if (connAck.variableHeader().connectReturnCode() == MqttConnectReturnCode.CONNECTION_ACCEPTED) {
+                        accepted.incrementAndGet();
+                    }
+                    connAcks.countDown();
+                }
+            });
+            channel.writeAndFlush(connectMessage("storm-" + i));
+            channels.add(channel);
+        }
+        assertTrue(lookupsStarted.await(10, TimeUnit.SECONDS), "Timed out waiting for the storm lookups");
+
+        // With lookups on the event loop, the live connection would get no answer until they finish
+        live.writeAndFlush(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE,
+                false, 0)));
+        assertTrue(livePong.await(5, TimeUnit.SECONDS), "Event loop stalled behind blocked lookups");
+        assertEquals(connections, connAcks.getCount());
+
+        releaseLookups.countDown();
+        assertTrue(connAcks.await(30, TimeUnit.SECONDS), "Timed out waiting for CONNACKs");
+        assertEquals(connections, accepted.get());
+
+        live.close();
+        channels.forEach(Channel::close);
+    }
+
+    @Test
+    void publishBeforeConnAck_isQueuedAndHandledInOrder() throws Exception {
+        List<String> payloads = new CopyOnWriteArrayList<>();
+        CountDownLatch processed = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            // The buffer is released once the handler returns, read it while it is still live
+            ByteBuf payload = invocation.getArgument(4);
+            payloads.add(invocation.getArgument(0) + ":" + payload.toString(CharsetUtil.UTF_8));
+            processed.countDown();
+            return CompletableFuture.completedFuture(null);
+        }).when(mqttMessageProcessor).process(anyString(), anyString(), any(MqttQoS.class), any(), any(ByteBuf.class));
+
+        startListener(16);
+        Channel channel = connect(message -> {
+        });
+
+        // CONNECT and both PUBLISH frames arrive in the same read, before the CONNACK is decided
+        channel.write(connectMessage("device-1"));
+        channel.write(publishMessage("first", 1));
+        channel.writeAndFlush(publishMessage("second", 2));
+
+        assertTrue(processed.await(5, TimeUnit.SECONDS), "Timed out waiting for PUBLISH processing");
+        assertEquals(List.of("device-1:first", "device-1:second"), payloads);
+
+        channel.close();
+    }
+
+    @Test
+    void pubAck_isWrittenOnlyAfterKafkaAcknowledges_andWindowLimitsInFlight() throws Exception {
+        List<CompletableFuture<RecordMetadata>> sends = new CopyOnWriteArrayList<>();
+        when(mqttMessageProcessor.process(anyString(), anyString(), any(MqttQoS.class), any(), any(ByteBuf.class)))
+                .thenAnswer(invocation -> {
+                    CompletableFuture<RecordMetadata> sent = new CompletableFuture<>();
+                    sends.add(sent);
+                    return sent;
+                });
+        List<Integer> pubAcks = new CopyOnWriteArrayList<>();
+        CountDownLatch allAcked = new CountDownLatch(2);
+        startListener(1);
+        Channel channel = connect(message -> {
+            if (message instanceof MqttPubAckMessage pubAck) {
+                pubAcks.add(pubAck.variableHeader().messageId());
+                allAcked.countDown();
+            }
+        });
+
+        channel.write(connectMessage("device-1"));
+        channel.write(publishMessage("first", 1));
+        channel.writeAndFlush(publishMessage("second", 2));
+
+        // With a window of one the second PUBLISH waits for the first acknowledgement
+        verify(mqttMessageProcessor, timeout(5000).times(1))
+                .process(anyString(), anyString(), any(MqttQoS.class), any(), any(ByteBuf.class));
+        // Read and held back rather than not sent yet
+        assertTrue(waitFor(() -> connections.stats().queuedInboundBytes() > 0), "Second PUBLISH was not read");
+        assertEquals(1, sends.size());
+        assertTrue(pubAcks.isEmpty());
+
+        sends.get(0).complete(null);
+        verify(mqttMessageProcessor, timeout(5000).times(2))
+                .process(anyString(), anyString(), any(MqttQoS.class), any(), any(ByteBuf.class));
+        // The invocation is recorded before the answer has added its future
+        assertTrue(waitFor(() -> sends.size() == 2), "Second PUBLISH was not sent");
+        sends.get(1).complete(null);
+
+        assertTrue(allAcked.await(5, TimeUnit.SECONDS), "Timed out waiting for PUBACKs");
+        assertEquals(List.of(1, 2), pubAcks);
+
+        channel.close();
+    }
+
+    @Test
+    void subscribe_grantsValidFilters_andClosingTheConnectionDropsThem() throws Exception {
+        startListener(16);
+        List<MqttSubAckMessage> subAcks = new CopyOnWriteArrayList<>();
+        CountDownLatch subAcked = new CountDownLatch(2);
+        Channel channel = connect(message -> {
+            if (message instanceof MqttSubAckMessage subAck) {
+                subAcks.add(subAck);
+                subAcked.countDown();
+            }
+        });
+
+        // Before CONNECT nothing is granted
+        channel.writeAndFlush(subscribeMessage(1, "devices/device-1/commands"));
+        assertTrue(waitFor(() -> subAcks.size() == 1), "Timed out waiting for SUBACK");
+        channel.write(connectMessage("device-1"));
+        // Other devices' topics are not the device's to read, only its own and the shared ones
+        channel.writeAndFlush(subscribeMessage(2, "devices/device-1/commands", "broadcast/#",
+                "devices/+/telemetry", "devices/device-2/commands", "devices/bad#"));
+
+        assertTrue(subAcked.await(5, TimeUnit.SECONDS), "Timed out waiting for SUBACKs");
+        assertEquals(List.of(MqttQoS.FAILURE.value()), subAcks.get(0).payload().grantedQoSLevels());
+        assertEquals(List.of(MqttQoS.AT_LEAST_ONCE.value(), MqttQoS.AT_LEAST_ONCE.value(), MqttQoS.FAILURE.value(),
+                MqttQoS.FAILURE.value(), MqttQoS.FAILURE.value()), subAcks.get(1).payload().grantedQoSLevels());
+
+        List<Channel> matched = new CopyOnWriteArrayList<>();
+        subscriptions.match("broadcast/firmware", (subscriber, qos) -> matched.add(subscriber));
+        assertEquals(1, matched.size());
+        assertEquals(2, subscriptions.stats().subscriptions());
+
+        channel.close().sync();
+        assertTrue(waitFor(() -> subscriptions.stats().subscriptions() == 0), "Subscriptions were not dropped");
+        assertEquals(0, subscriptions.stats().channels());
+    }
+
+    @Test
+    void publish_isForwardedOnceToEverySubscriber_atTheLowerQos() throws Exception {
+        startListener(16);
+        List<MqttPublishMessage> forwarded = new CopyOnWriteArrayList<>();
+        CountDownLatch subAcked = new CountDownLatch(1);
+        Channel subscriber = connect(message -> {
+            if (message instanceof MqttSubAckMessage) {
+                subAcked.countDown();
+            } else if (message instanceof MqttPublishMessage publish) {
+                forwarded.add(publish.retain());
+            }
+        });
+        subscriber.write(connectMessage("device-2"));
+        // Both filters match, the device still gets a single copy
+        subscriber.writeAndFlush(subscribeMessage(1, "broadcast/#", "broadcast/firmware"));
+        assertTrue(subAcked.await(5, TimeUnit.SECONDS), "Timed out waiting for SUBACK");
+        assertTrue(waitFor(() -> downlink.stats().connectedDevices() == 1), "Subscriber was not registered");
+
+        Channel publisher = connect(message -> {
+        });
+        publisher.write(connectMessage("device-1"));
+        publisher.write(MqttMessageBuilders.publish()
+                .topicName("broadcast/firmware")
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .payload(Unpooled.copiedBuffer("{\"version\":2}", CharsetUtil.UTF_8))
+                .build());
+        // Forwarded in order, so a second copy of the first would arrive before this one
+        publisher.writeAndFlush(MqttMessageBuilders.publish()
+                .topicName("broadcast/firmware")
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .payload(Unpooled.copiedBuffer("{\"version\":3}", CharsetUtil.UTF_8))
+                .build());
+
+        assertTrue(waitFor(() -> forwarded.size() >= 2), "PUBLISH was not forwarded");
+        assertEquals(2, forwarded.size());
+        MqttPublishMessage publish = forwarded.get(0);
+        assertEquals("broadcast/firmware", publish.variableHeader().topicName());
+        assertEquals(MqttQoS.AT_MOST_ONCE, publish.fixedHeader().qosLevel());
+        assertEquals("{\"version\":2}", publish.payload().toString(CharsetUtil.UTF_8));
+        assertEquals("{\"version\":3}", forwarded.get(1).payload().toString(CharsetUtil.UTF_8));
+        forwarded.forEach(MqttPublishMessage::release);
+
+        publisher.close();
+        subscriber.close();
+    }
+
+    @Test
+    void command_parkedWhileOffline_isDeliveredOnConnectAndAcknowledged() throws Exception {
+        startListener(16);
+        assertEquals(CommandStatus.PARKED, downlink.send("device-1", "devices/device-1/commands/reboot",
+                "{\"delay\":5}".getBytes(CharsetUtil.UTF_8), MqttQoS.AT_LEAST_ONCE));
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch commands = new CountDownLatch(2);
+        AtomicReference<Channel> client = new AtomicReference<>();
+        client.set(connect(message -> {
+            if (message instanceof MqttPublishMessage publish) {
+                received.add(publish.variableHeader().topicName() + " " + publish.payload().toString(CharsetUtil.UTF_8));
+                client.get().writeAndFlush(MqttMessageBuilders.pubAck().packetId(publish.variableHeader().packetId()).build());
+                commands.countDown();
+            }
+        }));
+        client.get().writeAndFlush(connectMessage("device-1"));
+        assertTrue(waitFor(() -> downlink.stats().connectedDevices() == 1), "Device was not registered");
+        assertEquals(CommandStatus.QUEUED, downlink.send("device-1", "devices/device-1/commands/ping",
+                "{}".getBytes(CharsetUtil.UTF_8), MqttQoS.AT_LEAST_ONCE));
+
+        assertTrue(commands.await(5, TimeUnit.SECONDS), "Timed out waiting for commands");
+        assertEquals(List.of("devices/device-1/commands/reboot {\"delay\":5}", "devices/device-1/commands/ping {}"),
+                received);
+
+        client.get().close().sync();
+        assertTrue(waitFor(() -> downlink.stats().connectedDevices() == 0), "Device was not unregistered");
+        // Both were acknowledged, so nothing is parked again
+        assertEquals(0, downlink.stats().parkedCommands());
+    }
+
+    @Test
+    void silentConnections_areClosedAfterOneAndAHalfKeepAlives() throws Exception {
+        startListener(16);
+        Channel pinging = connect(message -> {
+        });
+        Channel silent = connect(message -> {
+        });
+        Channel neverConnected = connect(message -> {
+        });
+        pinging.writeAndFlush(connectMessage("device-1", 1));
+        silent.writeAndFlush(connectMessage("device-2", 1));
+        assertTrue(waitFor(() -> connections.stats().authenticatedConnections() == 2), "Devices did not connect");
+        assertEquals(3, connections.stats().connections());
+
+        long startNanos = System.nanoTime();
+        while (silent.isActive() && System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5)) {
+            pinging.writeAndFlush(MqttMessage.PINGREQ);
+            Thread.sleep(250);
+        }
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        assertFalse(silent.isActive(), "Silent connection was not closed");
+        assertTrue(silentMillis >= 1000, "Closed before 1.5x the keepalive: " + silentMillis + " ms");
+        assertTrue(pinging.isActive());
+        // Without a CONNECT the connect timeout applies instead
+        assertTrue(waitFor(() -> !neverConnected.isActive()), "Connection without CONNECT was not closed");
+        assertTrue(waitFor(() -> connections.stats().connections() == 1), "Closed connections were not removed");
+        assertEquals(2, connections.stats().reapedCount());
+        assertEquals("device-1", connections.stats().topBufferedConnections().get(0).deviceId());
+
+        pinging.close();
+    }
+
+    @Test
+    void publishOverTheRateLimit_isDroppedButAcknowledged() throws Exception {
+        rateLimiter = rateLimiter(IotMqttRateLimitAction.DROP);
+        startListener(16);
+        List<Integer> pubAcks = new CopyOnWriteArrayList<>();
+        Channel channel = connect(message -> {
+            if (message instanceof MqttPubAckMessage pubAck) {
+                pubAcks.add(pubAck.variableHeader().messageId());
+            }
+        });
+
+        channel.writeAndFlush(connectMessage("device-1"));
+        // The model lookup runs after the CONNACK, wait for its limit to apply
+        assertTrue(waitFor(() -> rateLimiter.stats().modelLimitsApplied() == 1), "Model limits were not applied");
+        for (int i = 1; i <= 5; i++) {
+            channel.write(publishMessage("reading-" + i, i));
+        }
+        channel.flush();
+
+        assertTrue(waitFor(() -> pubAcks.size() == 5), "Timed out waiting for PUBACKs");
+        assertEquals(List.of(1, 2, 3, 4, 5), pubAcks);
+        verify(mqttMessageProcessor, times(2)).process(anyString(), anyString(), any(MqttQoS.class), any(),
+                any(ByteBuf.class));
+        assertEquals(3, rateLimiter.stats().droppedCount());
+        assertEquals(Map.of("model1", 3L), rateLimiter.stats().throttledByModel());
+
+        channel.close();
+    }
+
+    @Test
+    void publishOverTheRateLimit_isDelayedWithDelayRead() throws Exception {
+        rateLimiter = rateLimiter(IotMqttRateLimitAction.DELAY_READ);
+        startListener(16);
+        List<Integer> pubAcks = new CopyOnWriteArrayList<>();
+        Channel channel = connect(message -> {
+            if (message instanceof MqttPubAckMessage pubAck) {
+                pubAcks.add(pubAck.variableHeader().messageId());
+            }
+        });
+
+        channel.writeAndFlush(connectMessage("device-1"));
+        assertTrue(waitFor(() -> rateLimiter.stats().modelLimitsApplied() == 1), "Model limits were not applied");
+        long startNanos = System.nanoTime();
+        for (int i = 1; i <= 5; i++) {
+            channel.write(publishMessage("reading-" + i, i));
+        }
+        channel.flush();
+
+        assertTrue(waitFor(() -> pubAcks.size() == 5), "Timed out waiting for PUBACKs");
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        // A burst of two passes, the other three wait 100 ms each for a token
+        assertTrue(elapsedMillis >= 250, "Expected the PUBLISH packets to be spread out but took " + elapsedMillis);
+        assertEquals(List.of(1, 2, 3, 4, 5), pubAcks);
+        verify(mqttMessageProcessor, times(5)).process(anyString(), anyString(), any(MqttQoS.class), any(),
+                any(ByteBuf.class));
+        assertTrue(rateLimiter.stats().delayedCount() >= 3);
+
+        channel.close();
+    }
+
+    @Test
+    void publishRejectedAtTheEdge_isNotProduced_andMqtt5IsToldWhy() throws Exception {
+        when(mqttMessageProcessor.validate(any(Channel.class), any(ByteBuf.class))).thenAnswer(invocation -> {
+            ByteBuf payload = invocation.getArgument(1);
+            return payload.toString(CharsetUtil.UTF_8).startsWith("bad") ? "temperature: is missing" : null;
+        });
+        startListener(16);
+        List<MqttPubAckMessage> mqtt5PubAcks = new CopyOnWriteArrayList<>();
+        List<MqttPubAckMessage> mqtt311PubAcks = new CopyOnWriteArrayList<>();
+        Channel mqtt5 = connect(message -> {
+            if (message instanceof MqttPubAckMessage pubAck) {
+                mqtt5PubAcks.add(pubAck);
+            }
+        });
+        Channel mqtt311 = connect(message -> {
+            if (message instanceof MqttPubAckMessage pubAck) {
+                mqtt311PubAcks.add(pubAck);
+            }
+        });
+
+        mqtt5.writeAndFlush(connectMessage("device-1", 0, MqttVersion.MQTT_5));
+        mqtt311.writeAndFlush(connectMessage("device-2"));
+        for (Channel channel : List.of(mqtt5, mqtt311)) {
+            channel.write(publishMessage("good-1", 1));
+            channel.write(publishMessage("bad-2", 2));
+            channel.write(publishMessage("good-3", 3));
+            channel.flush();
+        }
+
+        assertTrue(waitFor(() -> mqtt5PubAcks.size() == 3 && mqtt311PubAcks.size() == 3),
+                "Timed out waiting for PUBACKs");
+        verify(mqttMessageProcessor).onConnect(any(Channel.class), eq("device-1"));
+        verify(mqttMessageProcessor, times(4)).process(anyString(), anyString(), any(MqttQoS.class), any(),
+                any(ByteBuf.class));
+        // Rejected packets are acknowledged in order with the others
+        assertEquals(List.of(1, 2, 3), mqtt5PubAcks.stream().map(pubAck -> pubAck.variableHeader().messageId())
+                .toList());
+        assertEquals(List.of(1, 2, 3), mqtt311PubAcks.stream().map(pubAck -> pubAck.variableHeader().messageId())
+                .toList());
+        MqttPubReplyMessageVariableHeader rejected = (MqttPubReplyMessageVariableHeader) mqtt5PubAcks.get(1)
+                .variableHeader();
+        assertEquals(MqttReasonCodes.PubAck.PAYLOAD_FORMAT_INVALID.byteValue(), rejected.reasonCode());
+        assertEquals("temperature: is missing", rejected.properties()
+                .getProperty(MqttProperties.MqttPropertyType.REASON_STRING.value()).value());
+        assertFalse(mqtt311PubAcks.get(1).variableHeader() instanceof MqttPubReplyMessageVariableHeader reply
+                && reply.reasonCode() != 0);
+
+        mqtt5.close();
+        mqtt311.close();
+    }
+
+    private IotMqttRateLimiter rateLimiter(IotMqttRateLimitAction action) {
+        if (rateLimiter != null) {
+            rateLimiter.close();
+        }
+        // model1 limits each device to 10 messages per second with a burst of 2
+        when(iotDeviceModelDal.get("model1")).thenReturn(new IotDeviceModel(new IotDeviceModelId("model1"), "model1",
+                null, Map.of(), Map.of(), new RateLimit(10, 2), null, Instant.now()));
+        return new IotMqttRateLimiter(iotCredentialCache, iotDeviceModelDal, action, 0, 0, 0, 0,
+                Duration.ofMinutes(5));
+    }
+
+    private Channel connect(java.util.function.Consumer<MqttMessage> onMessage) throws InterruptedException {
+        return new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE,
+                                new SimpleChannelInboundHandler<MqttMessage>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                                        onMessage.accept(msg);
+                                    }
+                                });
+                    }
+                })
+                .connect("localhost", port)
+                .sync()
+                .channel();
+    }
+
+    private static MqttMessage connectMessage(String deviceId) {
+        return connectMessage(deviceId, 0);
+    }
+
+    private static MqttMessage connectMessage(String deviceId, int keepAliveSeconds) {
+        return connectMessage(deviceId, keepAliveSeconds, MqttVersion.MQTT_3_1_1);
+    }
+
+    private static MqttMessage connectMessage(String deviceId, int keepAliveSeconds, MqttVersion version) {
+        return MqttMessageBuilders.connect()
+                .keepAlive(keepAliveSeconds)
+                .clientId(deviceId)
+                .username(deviceId)
+                .password(PASSWORD.getBytes(CharsetUtil.UTF_8))
+                .protocolVersion(version)
+                .build();
+    }
+
+    private static MqttMessage subscribeMessage(int messageId, String... topics) {
+        MqttMessageBuilders.SubscribeBuilder builder = MqttMessageBuilders.subscribe().messageId(messageId);
+        for (String topic : topics) {
+            builder.addSubscription(MqttQoS.EXACTLY_ONCE, topic);
+        }
+        return builder.build();
+    }
+
+    private static boolean waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static MqttMessage publishMessage(String payload, int messageId) {
+        return MqttMessageBuilders.publish()
+                .topicName("iot/any")
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .messageId(messageId)
+                .payload(Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8))
+                .build();
+    }
+
+    private static IotDevice device(String deviceId) {
+        return new IotDevice(new IotDeviceId(deviceId), new IotDeviceModelId("model1"), deviceId, null,
+                new MqttConnectionDetails("localhost", 1883, "iot/any", deviceId, "secret/" + deviceId),
+                Map.of(), DeviceStatus.ACTIVE, Instant.now());
+    }
+}
@@ -0,0 +1,623 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.iot.riff.vault.IotVaultService;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Connection density and throughput of one in-process {@link IotMqttListener}.
+ * <p>
+ * Opens N device connections over loopback, authenticating each through the real
+ * {@link IotMqttAuthenticator} and {@link IotCredentialCache} against in-process stand-ins
+ * for the device store and Vault, then has every device publish at a fixed rate while a
+ * Kafka stand-in acknowledges each record after a configurable latency. Reports connects
+ * per second, publish throughput, PUBACK latency percentiles and memory per connection.
+ * <p>
+ * Runs through the {@code loadtest} profile, options are {@code name=value} pairs:
+ * <pre>
+ * ./mvnw -Ploadtest test -Dloadtest="devices=100000 publishRate=0.2 payloadSize=256 qos=1 duration=60s"
+ * </pre>
+ * Heap per connection covers both ends of each loopback connection since the simulated
+ * devices live in the same JVM; direct memory is the listener's alone, the devices use their
+ * own allocator. Beyond ~28k devices per source address the loopback ephemeral ports run
+ * out, so connections spread over {@code sourceAddresses} addresses in 127.0.0.0/8, and the
+ * open file limit has to allow two descriptors per device.
+ */
+public final class IotMqttLoadGenerator {
+
+    private static final String PASSWORD = "secret";
+
+    private final Options options;
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder pubAcks = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LatencyHistogram pubAckLatency = new LatencyHistogram();
+    private final List<Device> devices = new ArrayList<>();
+
+    public IotMqttLoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        // Connect and authentication logging would dominate what is measured
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                .setLevel(ch.qos.logback.classic.Level.toLevel(options.logLevel));
+        System.out.println("Load generator options: " + options);
+        Report report = new IotMqttLoadGenerator(options).run();
+        report.print(System.out);
+        System.exit(0);
+    }
+
+    public Report run() throws Exception {
+        Path sessionDirectory = Files.createTempDirectory("mqtt-sessions");
+        ScheduledExecutorService kafkaAcks = Executors.newScheduledThreadPool(2);
+        IotCredentialCache credentialCache = new IotCredentialCache(new InMemoryDeviceDal(options.lookupLatency),
+                new InMemoryVaultService(), Duration.ofMinutes(30), options.devices + 1);
+        IotMqttSessionStore sessionStore = new IotMqttSessionStore(sessionDirectory.toString(), 1 << 20, 100, 0.25);
+        IotMqttConnections connections = new IotMqttConnections(Duration.ofSeconds(30), 1.5, Duration.ofMillis(200));
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        IotMqttListener listener = new IotMqttListener(
+                new IotMqttConfig("localhost", port, "secretPath", options.inflightWindow, options.transport, false, 1,
+                        1, options.serverThreads, 8192),
+                new IotMqttAuthenticator(credentialCache), new StandInKafkaProcessor(kafkaAcks),
+                new IotMqttBackpressure(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE),
+                new IotMqttSubscriptions(List.of("broadcast/#")),
+                new IotMqttDownlink(sessionStore, IotMqttOfflinePolicy.REJECT, 1000, 32, 100_000, Duration.ofHours(1)),
+                connections,
+                new IotMqttRateLimiter(credentialCache, new InMemoryDeviceModelDal(), options.rateLimitAction,
+                        options.rateLimit, (int) Math.ceil(options.rateLimit), 0, 0, Duration.ofMinutes(5)));
+        EventLoopGroup clientGroup = new MultiThreadIoEventLoopGroup(options.clientThreads, NioIoHandler.newFactory());
+        ByteBufAllocator clientAllocator = new PooledByteBufAllocator(true);
+        ByteBuf payload = clientAllocator.directBuffer(options.payloadSize);
+        payload.writeBytes(payloadBytes(options.payloadSize));
+        try {
+            listener.bind();
+            Memory baseline = Memory.measure();
+
+            long connectNanos = connectAll(clientGroup, clientAllocator, port);
+            Memory connected = Memory.measure();
+            int live = connections.stats().authenticatedConnections();
+
+            long publishNanos = publishAll(payload);
+            IotMqttConnections.Stats afterPublish = connections.stats();
+
+            return new Report(options.devices, live, connectFailures.sum(), refused.sum(),
+                    options.devices / (connectNanos / 1e9), published.sum() / (publishNanos / 1e9),
+                    processed.sum() / (publishNanos / 1e9), pubAcks.sum() / (publishNanos / 1e9), throttled.sum(),
+                    pubAckLatency.percentile(0.5), pubAckLatency.percentile(0.99), pubAckLatency.percentile(0.999),
+                    pubAckLatency.max(), live > 0 ? (connected.heap - baseline.heap) / live : 0,
+                    live > 0 ? (connected.serverDirect - baseline.serverDirect) / live : 0,
+                    live > 0 ? (connected.jvmDirect - baseline.jvmDirect) / live : 0,
+                    afterPublish.pendingWriteBytes(), afterPublish.allocatorDirectMemory());
+        } finally {
+            devices.forEach(device -> device.channel.close());
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            listener.stop();
+            payload.release();
+            kafkaAcks.shutdownNow();
+            credentialCache.close();
+            sessionStore.close();
+            connections.close();
+            try (Stream<Path> files = Files.walk(sessionDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Opens every device connection with at most {@code connectConcurrency} CONNECTs awaiting
+     * their CONNACK, returning the time until the last one was answered.
+     */
+    private long connectAll(EventLoopGroup clientGroup, ByteBufAllocator clientAllocator, int port)
+            throws InterruptedException {
+        Semaphore outstanding = new Semaphore(options.connectConcurrency);
+        CountDownLatch answered = new CountDownLatch(options.devices);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, clientAllocator)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30_000);
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < options.devices; i++) {
+            outstanding.acquire();
+            Device device = new Device("load-device-" + i, outstanding, answered);
+            devices.add(device);
+            InetSocketAddress source = new InetSocketAddress("127.0.0." + (1 + i % options.sourceAddresses), 0);
+            ChannelFuture connect = bootstrap.clone()
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new MqttDecoder(), MqttEncoder.INSTANCE, device);
+                        }
+                    })
+                    .connect(new InetSocketAddress("127.0.0.1", port), source);
+            device.channel = connect.channel();
+            connect.addListener(future -> {
+                if (future.isSuccess()) {
+                    device.channel.writeAndFlush(MqttMessageBuilders.connect()
+                            .clientId(device.id)
+                            .username(device.id)
+                            .password(PASSWORD.getBytes(CharsetUtil.UTF_8))
+                            .keepAlive(options.keepAliveSeconds)
+                            .protocolVersion(MqttVersion.MQTT_3_1_1)
+                            .build());
+                } else {
+                    connectFailures.increment();
+                    device.answered();
+                }
+            });
+        }
+        if (!answered.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(answered.getCount() + " devices never received a CONNACK");
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Has every connected device publish at {@code publishRate}, staggered over the first period,
+     * for {@code duration}; PUBACKs still in flight get a second to arrive.
+     */
+    private long publishAll(ByteBuf payload) throws InterruptedException {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.publishRate);
+        long pingNanos = TimeUnit.SECONDS.toNanos(options.keepAliveSeconds) / 2;
+        long startNanos = System.nanoTime();
+        for (Device device : devices) {
+            if (device.connected) {
+                device.channel.eventLoop().execute(() -> device.start(payload, periodNanos, pingNanos));
+            }
+        }
+        Thread.sleep(options.duration.toMillis());
+        for (Device device : devices) {
+            device.channel.eventLoop().execute(device::stop);
+        }
+        long publishNanos = System.nanoTime() - startNanos;
+        Thread.sleep(1000);
+        return publishNanos;
+    }
+
+    private static byte[] payloadBytes(int size) {
+        byte[] bytes = new byte[size];
+        byte[] json = "{\"temp\":25.0,\"pad\":\"".getBytes(CharsetUtil.UTF_8);
+        for (int i = 0; i < size; i++) {
+            bytes[i] = i < json.length ? json[i] : (byte) 'x';
+        }
+        if (size > json.length + 1) {
+            bytes[size - 2] = '"';
+            bytes[size - 1] = '}';
+        }
+        return bytes;
+    }
+
+    /**
+     * One simulated device; all its state is touched on its channel's event loop only.
+     */
+    private final class Device extends SimpleChannelInboundHandler<MqttMessage> {
+        private final String id;
+        private final String topic;
+        private final Semaphore outstanding;
+        private final CountDownLatch answered;
+        private final long[] sentAt;
+        private Channel channel;
+        private volatile boolean connected;
+        private boolean released;
+        private int nextPacketId;
+        private int inFlight;
+        private ScheduledFuture<?> publisher;
+        private ScheduledFuture<?> pinger;
+
+        private Device(String id, Semaphore outstanding, CountDownLatch answered) {
+            this.id = id;
+            this.topic = "devices/" + id + "/telemetry";
+            this.outstanding = outstanding;
+            this.answered = answered;
+            this.sentAt = new long[options.inflightWindow];
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+            if (msg instanceof MqttConnAckMessage connAck) {
+                if (connAck.variableHeader().connectReturnCode() == MqttConnectReturnCode.CONNECTION_ACCEPTED) {
+                    connected = true;
+                } else {
+                    refused.increment();
+                }
+                answered();
+            } else if (msg instanceof MqttPubAckMessage pubAck) {
+                int packetId = pubAck.variableHeader().messageId();
+                pubAckLatency.record(System.nanoTime() - sentAt[packetId - 1]);
+                pubAcks.increment();
+                inFlight--;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            connected = false;
+            answered();
+            super.channelInactive(ctx);
+        }
+
+        private void answered() {
+            if (!released) {
+                released = true;
+                outstanding.release();
+                answered.countDown();
+            }
+        }
+
+        private void start(ByteBuf payload, long periodNanos, long pingNanos) {
+            long initialDelay = ThreadLocalRandom.current().nextLong(periodNanos);
+            publisher = channel.eventLoop().scheduleAtFixedRate(() -> publish(payload), initialDelay, periodNanos,
+                    TimeUnit.NANOSECONDS);
+            if (pingNanos > 0 && periodNanos > pingNanos) {
+                pinger = channel.eventLoop().scheduleAtFixedRate(() -> channel.writeAndFlush(MqttMessage.PINGREQ),
+                        pingNanos, pingNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stop() {
+            if (publisher != null) {
+                publisher.cancel(false);
+            }
+            if (pinger != null) {
+                pinger.cancel(false);
+            }
+        }
+
+        private void publish(ByteBuf payload) {
+            if (!channel.isActive()) {
+                stop();
+                return;
+            }
+            MqttMessageBuilders.PublishBuilder publish = MqttMessageBuilders.publish()
+                    .topicName(topic)
+                    .qos(options.qos)
+                    .payload(payload.retainedDuplicate());
+            if (options.qos == MqttQoS.AT_LEAST_ONCE) {
+                // Packet ids cycle through the window, the listener acknowledges a session in order
+                if (inFlight >= sentAt.length) {
+                    throttled.increment();
+                    return;
+                }
+                nextPacketId = nextPacketId % sentAt.length + 1;
+                sentAt[nextPacketId - 1] = System.nanoTime();
+                inFlight++;
+                publish.messageId(nextPacketId);
+            }
+            channel.writeAndFlush(publish.build());
+            published.increment();
+        }
+    }
+
+    /**
+     * Kafka stand-in acknowledging every record after {@code kafkaLatency}.
+     */
+    private final class StandInKafkaProcessor extends IotMqttMessageProcessor {
+
+        private final ScheduledExecutorService kafkaAcks;
+
+        StandInKafkaProcessor(ScheduledExecutorService kafkaAcks) {
+            super(null, null, null, IotMqttIngestMode.PASSTHROUGH, null, null, false, Duration.ofMinutes(10));
+            this.kafkaAcks = kafkaAcks;
+        }
+
+        @Override
+        public CompletableFuture<RecordMetadata> process(String deviceId, String topic, MqttQoS qos,
+                String messageId, ByteBuf payload) {
+            processed.increment();
+            if (options.kafkaLatency.isZero()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<RecordMetadata> sent = new CompletableFuture<>();
+            kafkaAcks.schedule(() -> sent.complete(null), options.kafkaLatency.toNanos(), TimeUnit.NANOSECONDS);
+            return sent;
+        }
+    }
+
+    /**
+     * Device store stand-in that knows every device, after a simulated lookup latency.
+     */
+    private static final class InMemoryDeviceDal extends IotDeviceDal {
+
+        private final Duration lookupLatency;
+
+        InMemoryDeviceDal(Duration lookupLatency) {
+            super(null);
+            this.lookupLatency = lookupLatency;
+        }
+
+        @Override
+        public IotDevice get(String deviceId) {
+            if (!lookupLatency.isZero()) {
+                try {
+                    Thread.sleep(lookupLatency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new IotDevice(new IotDeviceId(deviceId), new IotDeviceModelId("load-model"), deviceId, null,
+                    new MqttConnectionDetails("localhost", 1883, "devices/" + deviceId + "/telemetry", deviceId,
+                            "secret/" + deviceId),
+                    Map.of(), DeviceStatus.ACTIVE, Instant.now());
+        }
+    }
+
+    /**
+     * Device store stand-in for models, none of which sets its own rate limits.
+     */
+    private static final class InMemoryDeviceModelDal extends IotDeviceModelDal {
+
+        InMemoryDeviceModelDal() {
+            super(null);
+        }
+
+        @Override
+        public IotDeviceModel get(String modelId) {
+            return null;
+        }
+    }
+
+    /**
+     * Vault stand-in handing out the same secret for every device.
+     */
+    private static final class InMemoryVaultService extends IotVaultService {
+
+        InMemoryVaultService() {
+            super(null, null);
+        }
+
+        @Override
+        public String readSecret(String secretPath) {
+            return PASSWORD;
+        }
+    }
+
+    /**
+     * Log-linear histogram of microseconds, 32 buckets per power of two for about 3% precision.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private static final int LINEAR = 2 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (Long.SIZE - 6) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private volatile long max;
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            counts.incrementAndGet(index(micros));
+            total.increment();
+            if (micros > max) {
+                max = micros;
+            }
+        }
+
+        /**
+         * Lower bound in microseconds of the bucket holding the given quantile, {@code 0} without samples.
+         */
+        long percentile(double quantile) {
+            long target = (long) Math.ceil(total.sum() * quantile);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 6) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+            int subBucket = (index - LINEAR) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + subBucket) << (exponent - 5);
+        }
+    }
+
+    private record Memory(long heap, long serverDirect, long jvmDirect) {
+
+        static Memory measure() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(200);
+            }
+            long serverDirect = ByteBufAllocator.DEFAULT instanceof ByteBufAllocatorMetricProvider provider
+                    ? provider.metric().usedDirectMemory() : 0;
+            long jvmDirect = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    jvmDirect = pool.getMemoryUsed();
+                }
+            }
+            return new Memory(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), serverDirect,
+                    jvmDirect);
+        }
+    }
+
+    /**
+     * @param devices         simulated devices
+     * @param publishRate     PUBLISH packets per second and device
+     * @param payloadSize     bytes per PUBLISH payload
+     * @param qos             0 or 1
+     * @param duration        length of the publish phase
+     * @param inflightWindow  unacknowledged QoS 1 PUBLISHes per device, on both ends
+     * @param keepAliveSeconds keepalive sent in CONNECT, devices ping when they publish less often
+     * @param connectConcurrency CONNECTs awaiting their CONNACK at any time
+     * @param sourceAddresses loopback source addresses to spread the connections over
+     * @param kafkaLatency    delay of the Kafka stand-in's acknowledgements
+     * @param lookupLatency   delay of the device store stand-in
+     * @param transport       transport of the listener, the devices always use NIO
+     * @param serverThreads   listener worker threads, {@code 0} for Netty's default
+     * @param clientThreads   device event loop threads, {@code 0} for Netty's default
+     * @param rateLimit       PUBLISH limit per device in messages per second, {@code 0} for none
+     * @param rateLimitAction what the listener does with PUBLISH packets over the limit
+     * @param logLevel        root log level while the load runs
+     */
+    public record Options(int devices, double publishRate, int payloadSize, MqttQoS qos, Duration duration,
+            int inflightWindow, int keepAliveSeconds, int connectConcurrency, int sourceAddresses,
+            Duration kafkaLatency, Duration lookupLatency, IotMqttTransport transport, int serverThreads,
+            int clientThreads, double rateLimit, IotMqttRateLimitAction rateLimitAction, String logLevel) {
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                for (String pair : arg.trim().split("[\\s,]+")) {
+                    if (pair.isEmpty()) {
+                        continue;
+                    }
+                    int separator = pair.indexOf('=');
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Expected name=value but got " + pair);
+                    }
+                    values.put(pair.substring(0, separator), pair.substring(separator + 1));
+                }
+            }
+            int devices = Integer.parseInt(values.getOrDefault("devices", "10000"));
+            Options options = new Options(devices,
+                    Double.parseDouble(values.getOrDefault("publishRate", "1")),
+                    Integer.parseInt(values.getOrDefault("payloadSize", "128")),
+                    MqttQoS.valueOf(Integer.parseInt(values.getOrDefault("qos", "1"))),
+                    duration(values.getOrDefault("duration", "30s")),
+                    Integer.parseInt(values.getOrDefault("inflightWindow", "16")),
+                    Integer.parseInt(values.getOrDefault("keepAlive", "60")),
+                    Integer.parseInt(values.getOrDefault("connectConcurrency", "1000")),
+                    Integer.parseInt(values.getOrDefault("sourceAddresses",
+                            String.valueOf(Math.max(1, (devices + 24_999) / 25_000)))),
+                    duration(values.getOrDefault("kafkaLatency", "1ms")),
+                    duration(values.getOrDefault("lookupLatency", "0ms")),
+                    IotMqttTransport.valueOf(values.getOrDefault("transport", "AUTO")),
+                    Integer.parseInt(values.getOrDefault("serverThreads", "0")),
+                    Integer.parseInt(values.getOrDefault("clientThreads", "0")),
+                    Double.parseDouble(values.getOrDefault("rateLimit", "0")),
+                    IotMqttRateLimitAction.valueOf(values.getOrDefault("rateLimitAction", "DROP")),
+                    values.getOrDefault("logLevel", "WARN"));
+            if (options.qos != MqttQoS.AT_MOST_ONCE && options.qos != MqttQoS.AT_LEAST_ONCE) {
+                throw new IllegalArgumentException("qos must be 0 or 1");
+            }
+            return options;
+        }
+
+        private static Duration duration(String value) {
+            if (value.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+            }
+            if (value.endsWith("us")) {
+                return Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value.substring(0,
+                        value.length() - 2))));
+            }
+            if (value.endsWith("s")) {
+                return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+            }
+            if (value.endsWith("m")) {
+                return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+            }
+            return Duration.ofMillis(Long.parseLong(value));
+        }
+    }
+
+    public record Report(int devices, int connected, long connectFailures, long refused, double connectsPerSecond,
+            double publishesPerSecond, double processedPerSecond, double pubAcksPerSecond, long throttled,
+            long p50Micros, long p99Micros, long p999Micros, long maxMicros, long heapBytesPerConnection,
+            long serverDirectBytesPerConnection, long jvmDirectBytesPerConnection, long pendingWriteBytes,
+            long serverDirectMemory) {
+
+        void print(PrintStream out) {
+            out.printf("%nDevices connected      %,d of %,d (%,d failed, %,d refused)%n", connected, devices,
+                    connectFailures, refused);
+            out.printf("Connects/sec           %,.0f%n", connectsPerSecond);
+            out.printf("PUBLISH/sec            %,.0f sent, %,.0f to Kafka, %,.0f acknowledged (%,d throttled)%n",
+                    publishesPerSecond, processedPerSecond, pubAcksPerSecond, throttled);
+            out.printf("PUBACK latency (us)    p50 %,d  p99 %,d  p999 %,d  max %,d%n", p50Micros, p99Micros,
+                    p999Micros, maxMicros);
+            out.printf("Heap per connection    %,d bytes (both ends)%n", heapBytesPerConnection);
+            out.printf("Direct per connection  %,d bytes listener allocator, %,d bytes JVM direct buffers%n",
+                    serverDirectBytesPerConnection, jvmDirectBytesPerConnection);
+            out.printf("Listener direct memory %,d bytes, %,d bytes pending writes%n", serverDirectMemory,
+                    pendingWriteBytes);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.iot.riff.mqtt;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class IotMqttMessageProcessorTest {
+
+    @Test
+    void dupRetransmitAfterReconnect_reusesTheFirstMessageId_once() {
+        IotMqttMessageProcessor processor = processor(Duration.ofMinutes(10));
+        String first = processor.messageId("device1", 7, false);
+
+        processor.onUnacked("device1", 7, first);
+
+        assertEquals(first, processor.messageId("device1", 7, true));
+        // A later reuse of the packet id is a new message
+        assertNotEquals(first, processor.messageId("device1", 7, true));
+        assertNotEquals(first, processor.messageId("device1", 7, false));
+    }
+
+    @Test
+    void dupRetransmitAfterTheTtl_getsANewMessageId() throws Exception {
+        IotMqttMessageProcessor processor = processor(Duration.ofMillis(10));
+        String first = processor.messageId("device1", 7, false);
+        processor.onUnacked("device1", 7, first);
+
+        Thread.sleep(20);
+
+        assertNotEquals(first, processor.messageId("device1", 7, true));
+    }
+
+    @Test
+    void unackedIds_areCapped_byForgettingTheOldest() {
+        IotMqttMessageProcessor processor = processor(Duration.ofMinutes(10));
+        String first = processor.messageId("device0", 1, false);
+        processor.onUnacked("device0", 1, first);
+
+        for (int i = 1; i <= 100_000; i++) {
+            processor.onUnacked("device" + i, 1, "id" + i);
+        }
+
+        assertEquals(100_000, processor.unackedSize());
+        assertNotEquals(first, processor.messageId("device0", 1, true));
+        assertEquals("id1", processor.messageId("device1", 1, true));
+    }
+
+    private static IotMqttMessageProcessor processor(Duration retransmitTtl) {
+        return new IotMqttMessageProcessor(null, null, null, IotMqttIngestMode.PASSTHROUGH, null, null, false,
+                retransmitTtl);
+    }
+}
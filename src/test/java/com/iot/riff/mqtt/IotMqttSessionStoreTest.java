@@ -0,0 +1,206 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.exception.IotException;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttSessionStoreTest {
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @TempDir
+    Path directory;
+
+    private IotMqttSessionStore store;
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void sessionsAndUnacknowledgedMessages_surviveRestart() {
+        store = newStore(1 << 20, 0.25);
+        assertFalse(store.openSession("device-1", false));
+        long first = store.append("device-1", "devices/device-1/commands/a", bytes("1"), MqttQoS.AT_LEAST_ONCE, NEVER);
+        store.append("device-1", "devices/device-1/commands/b", bytes("2"), MqttQoS.AT_LEAST_ONCE, NEVER);
+        store.append("device-1", "devices/device-1/commands/c", bytes("3"), MqttQoS.AT_LEAST_ONCE, NEVER);
+        store.ack("device-1", first);
+        store.close();
+
+        store = newStore(1 << 20, 0.25);
+        assertTrue(store.hasSession("device-1"));
+        assertEquals(List.of("devices/device-1/commands/b=2", "devices/device-1/commands/c=3"), read("device-1"));
+        assertTrue(store.openSession("device-1", false));
+
+        // New messages continue the sequence rather than reuse acknowledged numbers
+        long next = store.append("device-1", "devices/device-1/commands/d", bytes("4"), MqttQoS.AT_LEAST_ONCE,
+                NEVER);
+        assertTrue(next > first + 2);
+    }
+
+    @Test
+    void cleanSession_discardsStoredMessages() {
+        store = newStore(1 << 20, 0.25);
+        store.openSession("device-1", false);
+        store.append("device-1", "t", bytes("1"), MqttQoS.AT_LEAST_ONCE, NEVER);
+
+        assertFalse(store.openSession("device-1", true));
+        assertFalse(store.hasSession("device-1"));
+        assertThrows(IotException.class, () -> store.append("device-1", "t", bytes("2"), MqttQoS.AT_LEAST_ONCE, NEVER));
+        store.close();
+
+        store = newStore(1 << 20, 0.25);
+        assertFalse(store.hasSession("device-1"));
+    }
+
+    @Test
+    void acknowledgedSegments_areDeletedAfterRolling() throws IOException {
+        store = newStore(1024, 0.25);
+        store.openSession("device-1", false);
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            seqs.add(store.append("device-1", "devices/device-1/commands/x", bytes("payload-" + i),
+                    MqttQoS.AT_LEAST_ONCE, NEVER));
+        }
+        assertTrue(segmentFiles() > 2);
+        // Let the compactions of the rolls finish first, the segments they saw were fully live
+        store.awaitStoreThread();
+
+        seqs.forEach(seq -> store.ack("device-1", seq));
+        store.awaitStoreThread();
+
+        // Left are the first segment, still holding the session record, and the active one,
+        // plus the spare the next roll switches to
+        assertEquals(2, store.stats().segments());
+        assertEquals(3, segmentFiles());
+        assertEquals(0, store.stats().pendingMessages());
+    }
+
+    @Test
+    void sparseSegments_areCompactedIntoTheActiveSegment() {
+        store = newStore(1024, 0.5);
+        store.openSession("device-1", false);
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            seqs.add(store.append("device-1", "devices/device-1/commands/x", bytes("payload-" + i),
+                    MqttQoS.AT_LEAST_ONCE, NEVER));
+        }
+        // Keep every tenth message, leaving the sealed segments mostly acknowledged
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < seqs.size(); i++) {
+            if (i % 10 == 0) {
+                kept.add("devices/device-1/commands/x=payload-" + i);
+            } else {
+                store.ack("device-1", seqs.get(i));
+            }
+        }
+        int segmentsBefore = store.stats().segments();
+        for (int i = 0; i < 20; i++) {
+            store.ack("device-1", store.append("device-1", "devices/device-1/commands/y", bytes("filler"),
+                    MqttQoS.AT_LEAST_ONCE, NEVER));
+        }
+        store.awaitStoreThread();
+
+        assertTrue(store.stats().compactionCount() > 0);
+        assertTrue(store.stats().segments() <= segmentsBefore);
+        assertEquals(kept, read("device-1"));
+
+        store.close();
+        store = newStore(1024, 0.5);
+        assertEquals(kept, read("device-1"));
+    }
+
+    @Test
+    void expiredMessages_areSkippedAndAcknowledged() {
+        store = newStore(1 << 20, 0.25);
+        store.openSession("device-1", false);
+        store.append("device-1", "t", bytes("expired"), MqttQoS.AT_LEAST_ONCE, System.currentTimeMillis() - 1);
+        store.append("device-1", "t", bytes("live"), MqttQoS.AT_LEAST_ONCE, NEVER);
+
+        assertEquals(List.of("t=live"), read("device-1"));
+        assertEquals(1, store.stats().pendingMessages());
+    }
+
+    @Test
+    void devicesAppendingConcurrently_keepTheirOwnMessagesInOrder() throws Exception {
+        store = newStore(4096, 0.5);
+        int devices = 8;
+        int messages = 200;
+        for (int d = 0; d < devices; d++) {
+            store.openSession("device-" + d, false);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            String deviceId = "device-" + d;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < messages; i++) {
+                    long seq = store.append(deviceId, "t", bytes(Integer.toString(i)), MqttQoS.AT_LEAST_ONCE, NEVER);
+                    // Acknowledge most of them, so segments are rolled, compacted and deleted meanwhile
+                    if (i % 10 != 0) {
+                        store.ack(deviceId, seq);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        store.awaitStoreThread();
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < messages; i += 10) {
+            expected.add("t=" + i);
+        }
+        for (int d = 0; d < devices; d++) {
+            assertEquals(expected, read("device-" + d));
+        }
+        assertTrue(store.stats().deletedSegmentCount() > 0);
+
+        store.close();
+        store = newStore(4096, 0.5);
+        for (int d = 0; d < devices; d++) {
+            assertEquals(expected, read("device-" + d));
+        }
+    }
+
+    private IotMqttSessionStore newStore(int segmentSize, double compactionThreshold) {
+        IotMqttSessionStore sessionStore = new IotMqttSessionStore(directory.toString(), segmentSize, 1000,
+                compactionThreshold);
+        sessionStore.open();
+        return sessionStore;
+    }
+
+    private List<String> read(String deviceId) {
+        List<String> messages = new ArrayList<>();
+        for (IotMqttSessionStore.StoredMessage message : store.read(deviceId, 0, Integer.MAX_VALUE)) {
+            messages.add(message.topic() + "=" + new String(message.payload(), StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
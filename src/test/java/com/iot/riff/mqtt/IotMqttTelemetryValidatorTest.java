@@ -0,0 +1,122 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.dal.mongo.IotDeviceDal;
+import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.iot.riff.service.util.IotJsonSchemaValidator;
+import com.iot.riff.vault.IotVaultService;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IotMqttTelemetryValidatorTest {
+
+    private final IotDeviceDal iotDeviceDal = mock(IotDeviceDal.class);
+    private final IotVaultService iotVaultService = mock(IotVaultService.class);
+    private final IotDeviceModelDal iotDeviceModelDal = mock(IotDeviceModelDal.class);
+    private IotCredentialCache iotCredentialCache;
+    private IotMqttTelemetryValidator validator;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(iotDeviceDal.get(anyString())).thenAnswer(invocation -> device(invocation.getArgument(0)));
+        when(iotVaultService.readSecret(anyString())).thenReturn("secret");
+        when(iotDeviceModelDal.get("model1")).thenReturn(new IotDeviceModel(new IotDeviceModelId("model1"), "model1",
+                null, Map.of("type", "object", "required", List.of("temperature"), "properties",
+                        Map.of("temperature", Map.of("type", "number"))),
+                Map.of(), null, null, Instant.now()));
+        iotCredentialCache = new IotCredentialCache(iotDeviceDal, iotVaultService, Duration.ofMinutes(5), 1000);
+        validator = new IotMqttTelemetryValidator(iotCredentialCache, iotDeviceModelDal, new IotJsonSchemaValidator(16),
+                Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        validator.close();
+        iotCredentialCache.close();
+    }
+
+    @Test
+    void payloads_areValidatedAgainstTheSchemaResolvedAtConnect() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        // Nothing to validate against until the schema is resolved
+        assertNull(validator.validate(channel, payload("{}")));
+
+        validator.attach(channel, "device-1");
+        assertTrue(waitFor(() -> validator.validate(channel, payload("{}")) != null), "Schema was not resolved");
+
+        assertNull(validator.validate(channel, payload("{\"temperature\": 21.5}")));
+        assertNotNull(validator.validate(channel, payload("{\"temperature\": \"warm\"}")));
+        assertEquals("Payload is not valid JSON", validator.validate(channel, payload("{\"temperature\"")));
+
+        // The empty object that proved the schema resolved counts as well
+        IotMqttTelemetryValidator.Stats stats = validator.stats();
+        assertEquals(4, stats.validatedCount());
+        assertEquals(3, stats.rejectedCount());
+        assertTrue(stats.skippedCount() >= 1);
+        assertEquals(Map.of("model1", 3L), stats.rejectedByModel());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void devicesOfAModel_shareOneSchemaLookup() throws Exception {
+        EmbeddedChannel first = new EmbeddedChannel();
+        EmbeddedChannel second = new EmbeddedChannel();
+        validator.attach(first, "device-1");
+        verify(iotDeviceModelDal, timeout(5000)).get("model1");
+        assertTrue(waitFor(() -> validator.validate(first, payload("{}")) != null), "Schema was not resolved");
+
+        validator.attach(second, "device-2");
+        assertTrue(waitFor(() -> validator.validate(second, payload("{}")) != null), "Schema was not resolved");
+        verify(iotDeviceModelDal, times(1)).get("model1");
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+    }
+
+    private static ByteBuf payload(String json) {
+        return Unpooled.copiedBuffer(json, CharsetUtil.UTF_8);
+    }
+
+    private static boolean waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static IotDevice device(String deviceId) {
+        return new IotDevice(new IotDeviceId(deviceId), new IotDeviceModelId("model1"), deviceId, null,
+                new MqttConnectionDetails("localhost", 1883, "iot/any", deviceId, "secret/" + deviceId),
+                Map.of(), DeviceStatus.ACTIVE, Instant.now());
+    }
+}
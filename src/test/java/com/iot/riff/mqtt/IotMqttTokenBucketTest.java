@@ -0,0 +1,76 @@
+package com.iot.riff.mqtt;
+
+import com.iot.riff.service.domain.RateLimit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttTokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burst_passesAtOnce_andTokensRefillAtTheRate() {
+        IotMqttTokenBucket bucket = new IotMqttTokenBucket(new RateLimit(10, 3));
+        long now = System.nanoTime();
+
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        assertEquals(0, bucket.tryAcquire(now));
+        long waitNanos = bucket.tryAcquire(now);
+        assertTrue(waitNanos > 0 && waitNanos <= SECOND / 10, "Unexpected wait " + waitNanos);
+
+        // One interval later exactly one more token is available
+        assertEquals(0, bucket.tryAcquire(now + SECOND / 10));
+        assertTrue(bucket.tryAcquire(now + SECOND / 10) > 0);
+    }
+
+    @Test
+    void refund_returnsTheToken() {
+        IotMqttTokenBucket bucket = new IotMqttTokenBucket(new RateLimit(1, 1));
+        long now = System.nanoTime();
+
+        assertEquals(0, bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now) > 0);
+        bucket.refund();
+        assertEquals(0, bucket.tryAcquire(now));
+    }
+
+    @Test
+    void sharedBucket_neverGrantsMoreThanBurstPlusRate() throws Exception {
+        IotMqttTokenBucket bucket = new IotMqttTokenBucket(new RateLimit(1000, 100));
+        long now = System.nanoTime();
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Every thread sees the same clock: first the full bucket, then 50 ms of refill
+                for (int i = 0; i < 10_000; i++) {
+                    if (bucket.tryAcquire(i < 5_000 ? now : now + SECOND / 20) == 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The burst of 100 plus 50 ms of refill at 1000 per second
+        assertEquals(150, granted.get());
+    }
+}
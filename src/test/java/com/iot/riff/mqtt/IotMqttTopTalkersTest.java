@@ -0,0 +1,90 @@
+package com.iot.riff.mqtt;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttTopTalkersTest {
+
+    @Test
+    void heavyHitters_standOutOfALongTail() {
+        IotMqttTopTalkers topTalkers = new IotMqttTopTalkers(3, List.of(Duration.ofMinutes(1)), Duration.ofSeconds(10),
+                1024, 4, 64);
+        String[] tail = new String[20_000];
+        for (int i = 0; i < tail.length; i++) {
+            tail[i] = "device-" + i;
+        }
+        // Three chatty devices hidden between 20k devices sending a few messages each
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < tail.length; i++) {
+                topTalkers.record(tail[i], 100);
+                if (i % 20 == 0) {
+                    topTalkers.record("chatty-1", 10);
+                    topTalkers.record("chatty-2", 10);
+                }
+                if (i % 40 == 0) {
+                    topTalkers.record("bulky", 100_000);
+                }
+            }
+        }
+
+        IotMqttTopTalkers.Window window = topTalkers.top().get(0);
+        List<String> byMessages = window.byMessages().stream().map(IotMqttTopTalkers.TopTalker::deviceId).toList();
+        // Both chatty devices send as many messages, collisions decide which one ranks first
+        assertEquals(Set.of("chatty-1", "chatty-2"), Set.copyOf(byMessages.subList(0, 2)));
+        assertEquals("bulky", byMessages.get(2));
+        assertEquals("bulky", window.byBytes().get(0).deviceId());
+        // Count-Min never underestimates and the tail adds little at this width
+        long chattyMessages = window.byMessages().get(0).messages();
+        assertTrue(chattyMessages >= 5_000 && chattyMessages < 5_500, "Estimated " + chattyMessages);
+    }
+
+    @Test
+    void counts_leaveTheWindowAsBucketsExpire() {
+        AtomicLong now = new AtomicLong();
+        IotMqttTopTalkers topTalkers = new IotMqttTopTalkers(5, List.of(Duration.ofMillis(200)),
+                Duration.ofMillis(100), 256, 4, 16, now::get);
+        for (int i = 0; i < 100; i++) {
+            topTalkers.record("device-1", 10);
+        }
+        assertEquals(100, topTalkers.top().get(0).byMessages().get(0).messages());
+
+        now.addAndGet(Duration.ofMillis(350).toNanos());
+        topTalkers.record("device-2", 10);
+
+        List<IotMqttTopTalkers.TopTalker> top = topTalkers.top().get(0).byMessages();
+        assertEquals(1, top.size());
+        assertEquals("device-2", top.get(0).deviceId());
+    }
+
+    @Test
+    void record_doesNotAllocate() {
+        IotMqttTopTalkers topTalkers = new IotMqttTopTalkers(10, List.of(Duration.ofMinutes(1)),
+                Duration.ofSeconds(10), 1024, 4, 256);
+        String[] devices = new String[1_000];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = "device-" + i;
+            devices[i].hashCode();
+        }
+        for (int i = 0; i < 200_000; i++) {
+            topTalkers.record(devices[i % devices.length], i);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1_000_000; i++) {
+            topTalkers.record(devices[i % devices.length], i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated < 1024, "Recording allocated " + allocated + " bytes");
+    }
+}
@@ -0,0 +1,66 @@
+package com.iot.riff.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Cost of matching one device topic against a growing number of per-device subscriptions
+ * plus a few fleet-wide wildcard filters that match every topic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IotMqttTopicTrieBenchmark {
+
+    private static final int TOPICS = 1024;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int subscriptions;
+
+    private IotMqttTopicTrie<Integer> trie;
+    private String[] topics;
+    private int next;
+    private Blackhole blackhole;
+    private BiConsumer<Integer, MqttQoS> visitor;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        this.visitor = (subscriber, qos) -> this.blackhole.consume(subscriber);
+        trie = new IotMqttTopicTrie<>();
+        for (int i = 0; i < subscriptions; i++) {
+            trie.subscribe("devices/d" + i + "/commands/+", i, MqttQoS.AT_LEAST_ONCE);
+        }
+        trie.subscribe("devices/#", -1, MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("devices/+/commands/#", -2, MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("+/+/commands/reboot", -3, MqttQoS.AT_MOST_ONCE);
+
+        topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = "devices/d" + ThreadLocalRandom.current().nextInt(subscriptions) + "/commands/reboot";
+        }
+    }
+
+    @Benchmark
+    public void match() {
+        trie.match(topics[next++ & (TOPICS - 1)], visitor);
+    }
+}
@@ -0,0 +1,113 @@
+package com.iot.riff.mqtt;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotMqttTopicTrieTest {
+
+    private final IotMqttTopicTrie<String> trie = new IotMqttTopicTrie<>();
+
+    @Test
+    void match_followsExactAndWildcardFilters() {
+        trie.subscribe("devices/d1/commands", "exact", MqttQoS.AT_LEAST_ONCE);
+        trie.subscribe("devices/+/commands", "single", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("devices/#", "multi", MqttQoS.AT_LEAST_ONCE);
+        trie.subscribe("#", "all", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("devices/d2/commands", "other", MqttQoS.AT_LEAST_ONCE);
+        trie.subscribe("+/+", "twoLevels", MqttQoS.AT_LEAST_ONCE);
+
+        assertEquals(List.of("all", "exact", "multi", "single"), match("devices/d1/commands"));
+        assertEquals(List.of("all", "multi", "twoLevels"), match("devices/d1"));
+        // "devices/#" also matches its parent level
+        assertEquals(List.of("all", "multi"), match("devices"));
+        assertEquals(List.of("all"), match("fleet/f1/commands"));
+    }
+
+    @Test
+    void match_wildcardsAtFirstLevelSkipSystemTopics() {
+        trie.subscribe("#", "all", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("+/broker/load", "single", MqttQoS.AT_MOST_ONCE);
+        trie.subscribe("$SYS/#", "system", MqttQoS.AT_MOST_ONCE);
+
+        assertEquals(List.of("system"), match("$SYS/broker/load"));
+    }
+
+    @Test
+    void isValidFilter_rejectsMisplacedWildcards() {
+        assertTrue(IotMqttTopicTrie.isValidFilter("devices/+/commands/#"));
+        assertTrue(IotMqttTopicTrie.isValidFilter("/"));
+        assertFalse(IotMqttTopicTrie.isValidFilter(""));
+        assertFalse(IotMqttTopicTrie.isValidFilter("devices/#/commands"));
+        assertFalse(IotMqttTopicTrie.isValidFilter("devices/d1+"));
+        assertFalse(IotMqttTopicTrie.isValidFilter("devices#"));
+    }
+
+    @Test
+    void unsubscribe_removesOnlyThatSubscription() {
+        assertTrue(trie.subscribe("devices/+/commands", "a", MqttQoS.AT_LEAST_ONCE));
+        assertTrue(trie.subscribe("devices/+/commands", "b", MqttQoS.AT_LEAST_ONCE));
+        assertFalse(trie.subscribe("devices/+/commands", "a", MqttQoS.AT_MOST_ONCE));
+
+        assertTrue(trie.unsubscribe("devices/+/commands", "a"));
+        assertFalse(trie.unsubscribe("devices/+/commands", "a"));
+        assertFalse(trie.unsubscribe("devices/d1/commands", "b"));
+
+        assertEquals(List.of("b"), match("devices/d1/commands"));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    void concurrentSubscribeAndUnsubscribe_keepsEverySurvivingSubscription() throws Exception {
+        int threads = 8;
+        int perThread = 5_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        // Threads share paths so pruning races with subscribes on the same nodes
+                        String filter = "devices/d" + (i % 64) + "/commands";
+                        String subscriber = thread + "-" + i;
+                        trie.subscribe(filter, subscriber, MqttQoS.AT_LEAST_ONCE);
+                        if (i % 2 == 0) {
+                            trie.unsubscribe(filter, subscriber);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        int expected = threads * perThread / 2;
+        assertEquals(expected, trie.size());
+        List<String> matched = new ArrayList<>();
+        for (int d = 0; d < 64; d++) {
+            trie.match("devices/d" + d + "/commands", (subscriber, qos) -> matched.add(subscriber));
+        }
+        assertEquals(expected, matched.size());
+    }
+
+    private List<String> match(String topic) {
+        List<String> matched = new ArrayList<>();
+        trie.match(topic, (subscriber, qos) -> matched.add(subscriber));
+        matched.sort(null);
+        return matched;
+    }
+}
@@ -1,16 +1,20 @@
 package com.iot.riff.service;
 
-import com.iot.riff.service.dal.mongo.IotDeviceDal;
 import com.iot.riff.service.dal.mongo.IotDeviceDataDal;
-import com.iot.riff.service.dal.mongo.IotDeviceModelDal;
+import com.iot.riff.service.dal.mongo.IotLookupCache;
+import com.iot.riff.service.dal.mongo.IotTelemetryWriteBehind;
+import com.iot.riff.service.domain.ContinuationPage;
 import com.iot.riff.service.domain.DeviceData;
 import com.iot.riff.service.domain.IotDevice;
 import com.iot.riff.service.domain.IotDeviceModel;
 import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.iot.riff.service.exception.IotTelemetryRejectedException;
 import com.iot.riff.service.impl.IotDeviceDataServiceImpl;
 import com.iot.riff.service.util.IotJsonSchemaValidator;
 import com.networknt.schema.ValidationMessage;
-import io.micronaut.serde.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -19,11 +23,14 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -34,20 +41,18 @@ class IotDeviceDataServiceImplTest {
     @Mock
     private IotDeviceDataDal iotDeviceDataDal;
     @Mock
-    private IotDeviceDal iotDeviceDal;
-    @Mock
-    private IotDeviceModelDal iotDeviceModelDal;
+    private IotLookupCache iotLookupCache;
     @Mock
     private IotJsonSchemaValidator iotJsonSchemaValidator;
-    @Mock
-    private ObjectMapper objectMapper;
 
     private IotDeviceDataServiceImpl iotDeviceDataService;
 
     @BeforeEach
     void setUp() {
-        iotDeviceDataService = new IotDeviceDataServiceImpl(iotDeviceDataDal, iotDeviceDal, iotDeviceModelDal,
-                iotJsonSchemaValidator, objectMapper);
+        // Disabled, the write-behind stage writes each reading on the caller's thread
+        iotDeviceDataService = new IotDeviceDataServiceImpl(iotDeviceDataDal, iotLookupCache,
+                iotJsonSchemaValidator, new IotTelemetryWriteBehind(iotDeviceDataDal, false, 1, 1, Duration.ZERO,
+                        "ACKNOWLEDGED"));
     }
 
     @Test
@@ -55,24 +60,22 @@ class IotDeviceDataServiceImplTest {
         String deviceId = "device123";
         Map<String, Object> payloadMap = Map.of("temp", 25);
         Map<String, Object> schemaMap = Map.of("type", "object");
-        String payloadJson = "{\"temp\": 25}";
-        String schemaJson = "{\"type\": \"object\"}";
+        JsonNode payloadNode = JsonNodeFactory.instance.objectNode().put("temp", 25);
 
         IotDevice device = Mockito.mock(IotDevice.class);
         IotDeviceModel deviceModel = Mockito.mock(IotDeviceModel.class);
         IotDeviceModelId modelId = new IotDeviceModelId("model1");
 
-        when(iotDeviceDal.get(deviceId)).thenReturn(device);
+        when(iotLookupCache.getDevice(deviceId)).thenReturn(device);
         when(device.iotDeviceModelId()).thenReturn(modelId);
-        when(iotDeviceModelDal.get(modelId.id())).thenReturn(deviceModel);
+        when(iotLookupCache.getModel(modelId.id())).thenReturn(deviceModel);
         when(deviceModel.telemetrySchema()).thenReturn(schemaMap);
-        when(objectMapper.writeValueAsString(payloadMap)).thenReturn(payloadJson);
-        when(objectMapper.writeValueAsString(schemaMap)).thenReturn(schemaJson);
-        when(iotJsonSchemaValidator.validate(payloadJson, schemaJson)).thenReturn(Collections.emptySet());
+        when(iotJsonSchemaValidator.toJsonNode(payloadMap)).thenReturn(payloadNode);
+        when(iotJsonSchemaValidator.validate("model1", schemaMap, payloadNode)).thenReturn(Collections.emptySet());
 
         iotDeviceDataService.processTelemetry(deviceId, payloadMap);
 
-        verify(iotDeviceDataDal).save(any(DeviceData.class));
+        verify(iotDeviceDataDal).saveTelemetry(eq(new TelemetryReading(null, deviceId, payloadNode)), any(Instant.class));
     }
 
     @Test
@@ -80,26 +83,85 @@ class IotDeviceDataServiceImplTest {
         String deviceId = "device123";
         Map<String, Object> payloadMap = Map.of("temp", "bad");
         Map<String, Object> schemaMap = Map.of("type", "object");
-        String payloadJson = "{\"temp\": \"bad\"}";
-        String schemaJson = "{\"type\": \"object\"}";
+        JsonNode payloadNode = JsonNodeFactory.instance.objectNode().put("temp", "bad");
 
         IotDevice device = Mockito.mock(IotDevice.class);
         IotDeviceModel deviceModel = Mockito.mock(IotDeviceModel.class);
         IotDeviceModelId modelId = new IotDeviceModelId("model1");
 
-        when(iotDeviceDal.get(deviceId)).thenReturn(device);
+        when(iotLookupCache.getDevice(deviceId)).thenReturn(device);
         when(device.iotDeviceModelId()).thenReturn(modelId);
-        when(iotDeviceModelDal.get(modelId.id())).thenReturn(deviceModel);
+        when(iotLookupCache.getModel(modelId.id())).thenReturn(deviceModel);
         when(deviceModel.telemetrySchema()).thenReturn(schemaMap);
-        when(objectMapper.writeValueAsString(payloadMap)).thenReturn(payloadJson);
-        when(objectMapper.writeValueAsString(schemaMap)).thenReturn(schemaJson);
+        when(iotJsonSchemaValidator.toJsonNode(payloadMap)).thenReturn(payloadNode);
 
         ValidationMessage validationMessage = Mockito.mock(ValidationMessage.class);
-        when(iotJsonSchemaValidator.validate(payloadJson, schemaJson)).thenReturn(Set.of(validationMessage));
+        when(iotJsonSchemaValidator.validate("model1", schemaMap, payloadNode)).thenReturn(Set.of(validationMessage));
 
         iotDeviceDataService.processTelemetry(deviceId, payloadMap);
 
-        verify(iotDeviceDataDal, never()).save(any(DeviceData.class));
+        verify(iotDeviceDataDal, never()).saveTelemetry(any(), any());
+    }
+
+    @Test
+    void processTelemetry_storeFailure_isThrown() {
+        String deviceId = "device123";
+        Map<String, Object> schemaMap = Map.of("type", "object");
+        JsonNode payloadNode = JsonNodeFactory.instance.objectNode().put("temp", 25);
+
+        IotDevice device = Mockito.mock(IotDevice.class);
+        IotDeviceModel deviceModel = Mockito.mock(IotDeviceModel.class);
+        IotDeviceModelId modelId = new IotDeviceModelId("model1");
+
+        when(iotLookupCache.getDevice(deviceId)).thenReturn(device);
+        when(device.iotDeviceModelId()).thenReturn(modelId);
+        when(iotLookupCache.getModel(modelId.id())).thenReturn(deviceModel);
+        when(deviceModel.telemetrySchema()).thenReturn(schemaMap);
+        when(iotJsonSchemaValidator.validate("model1", schemaMap, payloadNode)).thenReturn(Collections.emptySet());
+        IllegalStateException failure = new IllegalStateException("mongo down");
+        when(iotDeviceDataDal.saveTelemetry(any(), any())).thenThrow(failure);
+
+        Assertions.assertSame(failure, Assertions.assertThrows(IllegalStateException.class,
+                () -> iotDeviceDataService.processTelemetry(deviceId, payloadNode)));
+    }
+
+    @Test
+    void ingestTelemetry_unknownDevice_isRejected() {
+        JsonNode payload = JsonNodeFactory.instance.objectNode().put("temp", 25);
+        when(iotLookupCache.getDevice("unknown")).thenReturn(null);
+
+        Assertions.assertThrows(IotTelemetryRejectedException.class,
+                () -> iotDeviceDataService.ingestTelemetry(new TelemetryReading("m1", "unknown", payload)));
+        verify(iotDeviceDataDal, never()).saveTelemetry(any(), any());
+    }
+
+    @Test
+    void processTelemetryBatch_storesOnlyValidReadings_withOneWrite() {
+        Map<String, Object> schemaMap = Map.of("type", "object");
+        JsonNode good = JsonNodeFactory.instance.objectNode().put("temp", 25);
+        JsonNode bad = JsonNodeFactory.instance.objectNode().put("temp", "bad");
+
+        IotDevice device = Mockito.mock(IotDevice.class);
+        IotDeviceModel deviceModel = Mockito.mock(IotDeviceModel.class);
+        IotDeviceModelId modelId = new IotDeviceModelId("model1");
+
+        when(iotLookupCache.getDevice("device1")).thenReturn(device);
+        when(iotLookupCache.getDevice("unknown")).thenReturn(null);
+        when(device.iotDeviceModelId()).thenReturn(modelId);
+        when(iotLookupCache.getModel(modelId.id())).thenReturn(deviceModel);
+        when(deviceModel.telemetrySchema()).thenReturn(schemaMap);
+        when(iotJsonSchemaValidator.validate("model1", schemaMap, good)).thenReturn(Collections.emptySet());
+        when(iotJsonSchemaValidator.validate("model1", schemaMap, bad))
+                .thenReturn(Set.of(Mockito.mock(ValidationMessage.class)));
+
+        int stored = iotDeviceDataService.processTelemetryBatch(java.util.List.of(
+                new TelemetryReading(null, "device1", good),
+                new TelemetryReading(null, "device1", bad),
+                new TelemetryReading(null, "unknown", good)));
+
+        Assertions.assertEquals(1, stored);
+        verify(iotDeviceDataDal).saveTelemetryBatch(eq(java.util.List.of(new TelemetryReading(null, "device1", good))),
+                any(Instant.class));
     }
 
     @Test
@@ -118,4 +180,15 @@ class IotDeviceDataServiceImplTest {
         Assertions.assertEquals(expected, actual);
         verify(iotDeviceDataDal).findByDeviceIdAndTimeRange(deviceId, start, end, limit, page);
     }
+
+    @Test
+    void searchData_withContinuationToken_delegatesToTheKeysetQuery() {
+        java.time.Instant start = java.time.Instant.now().minusSeconds(3600);
+        java.time.Instant end = java.time.Instant.now();
+        ContinuationPage<DeviceData> expected = new ContinuationPage<>(Collections.emptyList(), null);
+
+        when(iotDeviceDataDal.findByDeviceIdAndTimeRange("device123", start, end, 10, "token")).thenReturn(expected);
+
+        Assertions.assertSame(expected, iotDeviceDataService.searchData("device123", start, end, 10, "token"));
+    }
 }
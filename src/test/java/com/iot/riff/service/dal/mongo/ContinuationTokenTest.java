@@ -0,0 +1,30 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.exception.IotException;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ContinuationTokenTest {
+
+    @Test
+    void token_keepsTheTypesOfTheSortValueAndId() {
+        ContinuationToken token = new ContinuationToken("received_at", true, new Date(1_700_000_000_000L),
+                new ObjectId());
+
+        assertEquals(token, ContinuationToken.decode(token.encode(), "received_at", true));
+    }
+
+    @Test
+    void tokenOfAnotherSort_orGarbage_isRejected() {
+        String token = new ContinuationToken("name", false, "Beta", "b").encode();
+
+        assertThrows(IotException.class, () -> ContinuationToken.decode(token, "name", true));
+        assertThrows(IotException.class, () -> ContinuationToken.decode(token, "created_at", false));
+        assertThrows(IotException.class, () -> ContinuationToken.decode("not-a-token", "name", false));
+    }
+}
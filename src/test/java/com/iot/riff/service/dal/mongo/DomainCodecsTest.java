@@ -0,0 +1,87 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.DeviceData;
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.MqttConnectionDetails;
+import com.iot.riff.service.domain.RateLimit;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DomainCodecsTest {
+
+    private static final Instant NOW = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+    @Test
+    void deviceData_keepsThePayloadUndecodedUntilItIsRead() {
+        Document stored = new Document("_id", new ObjectId())
+                .append("device_id", "device1")
+                .append("telemetry_payload", new Document("temp", 25.5).append("nested", new Document("a", 1)))
+                .append("received_at", Date.from(NOW));
+        IotDeviceDataDal dal = new IotDeviceDataDal("iot", new IotTelemetryDedupFilter(16),
+                IotTelemetryLayout.STANDARD, TimeSeriesGranularity.SECONDS);
+        DeviceData expected = dal.getMapper().toModel().apply(stored);
+
+        DeviceData data = decode(new DeviceDataDecoder(), stored);
+
+        assertEquals(expected.id(), data.id());
+        assertEquals(expected.deviceId(), data.deviceId());
+        assertEquals(expected.receivedAt(), data.receivedAt());
+        LazyBsonMap payload = assertInstanceOf(LazyBsonMap.class, data.telemetryPayload());
+        assertTrue(payload.containsKey("temp"));
+        assertEquals(2, payload.size());
+        assertFalse(payload.isDecoded());
+
+        assertEquals(25.5, payload.get("temp"));
+        assertTrue(payload.isDecoded());
+        assertEquals(payload, expected.telemetryPayload());
+    }
+
+    @Test
+    void devicesAndModels_decodeLikeTheirMappers() {
+        IotDeviceDal deviceDal = new IotDeviceDal("iot");
+        IotDevice device = new IotDevice(new IotDeviceId(new ObjectId().toHexString()), new IotDeviceModelId("model1"),
+                "Thermostat", null, new MqttConnectionDetails("broker", 1883, "t/1", "user", "secret/1"),
+                new Document("room", "kitchen"), DeviceStatus.values()[0], NOW);
+        Document deviceDoc = deviceDal.getMapper().toDocument().apply(device);
+
+        IotDevice decodedDevice = decode(new IotDeviceDecoder(MongoClientSettings.getDefaultCodecRegistry()), deviceDoc);
+
+        assertEquals(deviceDal.getMapper().toModel().apply(deviceDoc), decodedDevice);
+
+        IotDeviceModelDal modelDal = new IotDeviceModelDal("iot");
+        IotDeviceModel model = new IotDeviceModel(new IotDeviceModelId("model1"), "Thermostat", "Description",
+                new Document("temp", "double"), null, new RateLimit(10, 20), null, NOW);
+        Document modelDoc = modelDal.getMapper().toDocument().apply(model);
+
+        IotDeviceModel decodedModel = decode(new IotDeviceModelDecoder(MongoClientSettings.getDefaultCodecRegistry()),
+                modelDoc);
+
+        assertEquals(modelDal.getMapper().toModel().apply(modelDoc), decodedModel);
+    }
+
+    private static <T> T decode(Decoder<T> decoder, Document doc) {
+        // Decode from raw bytes, as documents arrive from the server
+        RawBsonDocument raw = new RawBsonDocument(doc, new DocumentCodec());
+        return decoder.decode(raw.asBsonReader(), DecoderContext.builder().build());
+    }
+}
@@ -0,0 +1,180 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.iot.riff.service.domain.DeviceData;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.ListCollectionsIterable;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.model.TimeSeriesOptions;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IotDeviceDataDalTest {
+
+    private static final TelemetryReading READING = new TelemetryReading("device1:7:1700000000000:1", "device1",
+            JsonNodeFactory.instance.objectNode().put("temp", 25));
+
+    @Mock
+    private MongoClient mongoClient;
+    @Mock
+    private MongoDatabase mongoDatabase;
+    @Mock
+    private MongoCollection<Document> mongoCollection;
+
+    private IotTelemetryDedupFilter filter;
+    private IotDeviceDataDal iotDeviceDataDal;
+
+    @BeforeEach
+    void setUp() {
+        filter = new IotTelemetryDedupFilter(1024);
+        iotDeviceDataDal = new IotDeviceDataDal("iot", filter, IotTelemetryLayout.STANDARD, TimeSeriesGranularity.SECONDS);
+        iotDeviceDataDal.mongoClient = mongoClient;
+
+        when(mongoClient.getDatabase("iot")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getCollection("device_data")).thenReturn(mongoCollection);
+    }
+
+    @Test
+    void redeliveredReading_isStoredOnceUnderItsMessageId() {
+        telemetryCollection();
+
+        assertTrue(iotDeviceDataDal.saveTelemetry(READING, Instant.now()));
+        assertFalse(iotDeviceDataDal.saveTelemetry(READING, Instant.now()));
+
+        ArgumentCaptor<Document> captor = ArgumentCaptor.forClass(Document.class);
+        verify(mongoCollection, times(1)).insertOne(captor.capture());
+        UUID id = UUID.nameUUIDFromBytes(READING.messageId().getBytes());
+        assertEquals(new BsonBinary(id), captor.getValue().get("_id"));
+        assertEquals(1, filter.stats().hits());
+    }
+
+    @Test
+    void duplicateKey_missedByTheFilter_isTolerated() {
+        telemetryCollection();
+        doThrow(new MongoWriteException(new WriteError(11000, "E11000 duplicate key", new BsonDocument()),
+                new ServerAddress())).when(mongoCollection).insertOne(any(Document.class));
+
+        assertTrue(iotDeviceDataDal.saveTelemetry(READING, Instant.now()));
+        assertEquals(1, filter.stats().duplicateKeys());
+    }
+
+    @Test
+    void readingsStoredUnderAMessageId_areReadBackWithItsUuid() {
+        UUID id = UUID.nameUUIDFromBytes(READING.messageId().getBytes());
+        BsonBinary binary = new BsonBinary(id);
+        Document stored = new Document("_id", new Binary(binary.getType(), binary.getData()))
+                .append("device_id", "device1")
+                .append("received_at", new Date());
+        @SuppressWarnings("unchecked")
+        MongoCollection<RawBsonDocument> dataCollection = org.mockito.Mockito.mock(MongoCollection.class);
+        when(mongoCollection.withDocumentClass(RawBsonDocument.class)).thenReturn(dataCollection);
+        @SuppressWarnings("unchecked")
+        FindIterable<RawBsonDocument> found = org.mockito.Mockito.mock(FindIterable.class);
+        when(dataCollection.find(any(Bson.class))).thenReturn(found);
+        when(found.first()).thenReturn(new RawBsonDocument(stored, new DocumentCodec()));
+
+        DeviceData data = iotDeviceDataDal.get(id.toString());
+
+        assertEquals(id.toString(), data.id());
+    }
+
+    @Test
+    void timeSeriesLayout_createsTheCollectionWithDeviceIdAsMetaField() {
+        @SuppressWarnings("unchecked")
+        ListCollectionsIterable<Document> collections = org.mockito.Mockito.mock(ListCollectionsIterable.class);
+        when(mongoDatabase.listCollections()).thenReturn(collections);
+        when(collections.filter(any())).thenReturn(collections);
+        IotDeviceDataDal dal = new IotDeviceDataDal("iot", filter, IotTelemetryLayout.TIME_SERIES,
+                TimeSeriesGranularity.MINUTES);
+        dal.mongoClient = mongoClient;
+
+        dal.init();
+
+        ArgumentCaptor<CreateCollectionOptions> options = ArgumentCaptor.forClass(CreateCollectionOptions.class);
+        verify(mongoDatabase).createCollection(eq("device_data"), options.capture());
+        TimeSeriesOptions timeSeries = options.getValue().getTimeSeriesOptions();
+        assertEquals("received_at", timeSeries.getTimeField());
+        assertEquals("device_id", timeSeries.getMetaField());
+        assertEquals(TimeSeriesGranularity.MINUTES, timeSeries.getGranularity());
+        ArgumentCaptor<Bson> index = ArgumentCaptor.forClass(Bson.class);
+        verify(mongoCollection, times(2)).createIndex(index.capture());
+        assertEquals(new Document("device_id", 1).append("received_at", -1).toBsonDocument(),
+                index.getAllValues().get(0).toBsonDocument());
+        // Continuation pages seek on the same keyset as in the regular layout
+        assertEquals(new Document("device_id", 1).append("received_at", 1).append("_id", 1).toBsonDocument(),
+                index.getAllValues().get(1).toBsonDocument());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void duringTheTimeSeriesMigration_readsIncludeTheCollectionBeingMoved() {
+        ListCollectionsIterable<Document> collections = org.mockito.Mockito.mock(ListCollectionsIterable.class);
+        when(mongoDatabase.listCollections()).thenReturn(collections);
+        when(collections.filter(any())).thenReturn(collections);
+        // device_data_standard still exists
+        when(collections.first()).thenReturn(new Document("type", "collection"));
+        IotDeviceDataDal dal = new IotDeviceDataDal("iot", filter, IotTelemetryLayout.TIME_SERIES,
+                TimeSeriesGranularity.SECONDS);
+        dal.mongoClient = mongoClient;
+        MongoCollection<RawBsonDocument> dataCollection = org.mockito.Mockito.mock(MongoCollection.class);
+        when(mongoCollection.withDocumentClass(RawBsonDocument.class)).thenReturn(dataCollection);
+        AggregateIterable<RawBsonDocument> aggregated = org.mockito.Mockito.mock(AggregateIterable.class);
+        when(dataCollection.aggregate(anyList())).thenReturn(aggregated);
+        when(aggregated.into(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        dal.findByDeviceIdAndTimeRange("device1", Instant.EPOCH, Instant.now(), 10, 2);
+
+        ArgumentCaptor<List<Bson>> pipeline = ArgumentCaptor.forClass(List.class);
+        verify(dataCollection).aggregate(pipeline.capture());
+        List<BsonDocument> stages = pipeline.getValue().stream().map(Bson::toBsonDocument).toList();
+        BsonDocument union = stages.get(3).getDocument("$unionWith");
+        assertEquals("device_data_standard", union.getString("coll").getValue());
+        // Each side is cut to the pages up to this one, then the merged result to the page itself
+        assertEquals(30, stages.get(2).getInt32("$limit").getValue());
+        assertEquals(20, stages.get(5).getInt32("$skip").getValue());
+        assertEquals(10, stages.get(6).getInt32("$limit").getValue());
+    }
+
+    private void telemetryCollection() {
+        when(mongoCollection.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+        when(mongoCollection.withCodecRegistry(any())).thenReturn(mongoCollection);
+    }
+}
@@ -2,18 +2,29 @@ package com.iot.riff.service.dal.mongo;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.iot.riff.service.domain.ContinuationPage;
 import com.iot.riff.service.domain.IotDeviceModel;
 import com.iot.riff.service.domain.IotDeviceModelId;
+import com.iot.riff.service.domain.RateLimit;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import java.util.List;
+import java.util.Map;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -52,7 +63,7 @@ class IotDeviceModelDalTest {
         Document telemetrySchema = new Document("temp", "double");
         Document metadataSchema = new Document("location", "string");
         IotDeviceModel model = new IotDeviceModel(id, "Test Model", "Description", telemetrySchema, metadataSchema,
-                java.time.Instant.now());
+                new RateLimit(10, 20), null, java.time.Instant.now());
 
         // When
         iotDeviceModelDal.save(model);
@@ -65,8 +76,12 @@ class IotDeviceModelDalTest {
         assertEquals("test-id", capturedDoc.getString("_id"));
         assertEquals("Test Model", capturedDoc.getString("name"));
         assertEquals("Description", capturedDoc.getString("description"));
-        assertEquals(telemetrySchema, capturedDoc.get("telemetry_schema"));
+        // The model holds a read-only view of the schema, a Document only equals another Document
+        assertEquals(telemetrySchema, new Document(capturedDoc.get("telemetry_schema", Map.class)));
         assertEquals(metadataSchema, capturedDoc.get("metadata_schema"));
+        assertEquals(new Document("messages_per_second", 10.0).append("burst", 20),
+                capturedDoc.get("device_rate_limit"));
+        assertNull(capturedDoc.get("model_rate_limit"));
     }
 
     @Test
@@ -80,11 +95,15 @@ class IotDeviceModelDalTest {
                 .append("name", "Test Model")
                 .append("description", "Description")
                 .append("telemetry_schema", telemetrySchema)
-                .append("metadata_schema", metadataSchema);
+                .append("metadata_schema", metadataSchema)
+                .append("model_rate_limit", new Document("messages_per_second", 500.0).append("burst", 1000));
 
-        FindIterable<Document> findIterable = mock(FindIterable.class);
-        when(mongoCollection.find(any(org.bson.conversions.Bson.class))).thenReturn(findIterable);
-        when(findIterable.first()).thenReturn(doc);
+        // The stored document is read raw, then through the model decoder
+        MongoCollection<RawBsonDocument> rawCollection = mock(MongoCollection.class);
+        when(mongoCollection.withDocumentClass(RawBsonDocument.class)).thenReturn(rawCollection);
+        FindIterable<RawBsonDocument> findIterable = mock(FindIterable.class);
+        when(rawCollection.find(any(org.bson.conversions.Bson.class))).thenReturn(findIterable);
+        when(findIterable.first()).thenReturn(new RawBsonDocument(doc, new DocumentCodec()));
 
         // When
         IotDeviceModel result = iotDeviceModelDal.get(id);
@@ -93,8 +112,48 @@ class IotDeviceModelDalTest {
         assertNotNull(result);
         assertEquals(id, result.id().id());
         assertEquals("Test Model", result.name());
+        assertNull(result.deviceRateLimit());
+        assertEquals(new RateLimit(500, 1000), result.modelRateLimit());
         assertEquals("Description", result.description());
-        assertEquals(telemetrySchema, result.telemetrySchema());
+        assertEquals(telemetrySchema, new Document(result.telemetrySchema()));
         assertEquals(metadataSchema, result.metadataSchema());
     }
+
+    @Test
+    void testListByContinuationToken() {
+        // Given
+        MongoCollection<RawBsonDocument> rawCollection = mock(MongoCollection.class);
+        when(mongoCollection.withDocumentClass(RawBsonDocument.class)).thenReturn(rawCollection);
+        FindIterable<RawBsonDocument> findIterable = mock(FindIterable.class);
+        when(rawCollection.find(any(org.bson.conversions.Bson.class))).thenReturn(findIterable);
+        when(findIterable.sort(any())).thenReturn(findIterable);
+        when(findIterable.into(anyList())).thenAnswer(invocation -> {
+            List<RawBsonDocument> target = invocation.getArgument(0);
+            target.addAll(List.of(model("a", "Alpha"), model("b", "Beta"), model("c", "Gamma")));
+            return target;
+        });
+
+        // When
+        ContinuationPage<IotDeviceModel> page = iotDeviceModelDal.list(null, 2, null, "asc", "name");
+
+        // Then one document past the page was read to know that another page follows
+        verify(findIterable).limit(3);
+        assertEquals(List.of("a", "b"), page.items().stream().map(model -> model.id().id()).toList());
+        assertNotNull(page.continuationToken());
+
+        // When the next page is requested, it seeks past (Beta, b) instead of skipping
+        iotDeviceModelDal.list(null, 2, page.continuationToken(), "asc", "name");
+
+        // Then
+        ArgumentCaptor<org.bson.conversions.Bson> filter = ArgumentCaptor.forClass(org.bson.conversions.Bson.class);
+        verify(rawCollection, org.mockito.Mockito.times(2)).find(filter.capture());
+        assertEquals(Filters.and(new Document(), Filters.or(Filters.gt("name", "Beta"),
+                Filters.and(Filters.eq("name", "Beta"), Filters.gt("_id", "b")))).toBsonDocument(),
+                filter.getValue().toBsonDocument());
+        verify(findIterable, never()).skip(anyInt());
+    }
+
+    private static RawBsonDocument model(String id, String name) {
+        return new RawBsonDocument(new Document("_id", id).append("name", name), new DocumentCodec());
+    }
 }
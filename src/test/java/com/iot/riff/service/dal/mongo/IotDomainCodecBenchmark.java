@@ -0,0 +1,137 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.DeviceData;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading one stored document into its domain record: decoding the BSON into a
+ * {@link Document} and copying it through the DAL's {@link Mapper}, versus decoding straight from
+ * the BSON stream with the DAL's decoder. Telemetry is also read with its payload touched, which
+ * forces the lazy payload to decode. Run with {@code -Dbenchmark="IotDomainCodecBenchmark -prof gc"}
+ * to see bytes allocated per document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IotDomainCodecBenchmark {
+
+    private static final DecoderContext CONTEXT = DecoderContext.builder().build();
+
+    private final DocumentCodec documentCodec = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+
+    private final IotDeviceDataDal deviceDataDal = new IotDeviceDataDal("iot", new IotTelemetryDedupFilter(16),
+            IotTelemetryLayout.STANDARD, TimeSeriesGranularity.SECONDS);
+    private final IotDeviceDal deviceDal = new IotDeviceDal("iot");
+    private final IotDeviceModelDal deviceModelDal = new IotDeviceModelDal("iot");
+
+    private final DeviceDataDecoder deviceDataDecoder = new DeviceDataDecoder();
+    private final IotDeviceDecoder deviceDecoder = new IotDeviceDecoder(MongoClientSettings.getDefaultCodecRegistry());
+    private final IotDeviceModelDecoder deviceModelDecoder =
+            new IotDeviceModelDecoder(MongoClientSettings.getDefaultCodecRegistry());
+
+    private final byte[] deviceData = bytes(new Document("_id", new ObjectId())
+            .append("device_id", "device1")
+            .append("telemetry_payload", new Document("temperature", 21.5).append("humidity", 40)
+                    .append("status", "OK")
+                    .append("battery", new Document("voltage", 3.7).append("level", 88))
+                    .append("samples", List.of(1, 2, 3, 4, 5, 6, 7, 8)))
+            .append("received_at", new Date()));
+
+    private final byte[] device = bytes(new Document("_id", new ObjectId())
+            .append("iot_device_model_id", "model1")
+            .append("name", "Thermostat")
+            .append("description", "Kitchen thermostat")
+            .append("metadata", new Document("room", "kitchen").append("floor", 1))
+            .append("status", "ACTIVE")
+            .append("created_at", Date.from(Instant.now()))
+            .append("mqtt", new Document("host", "broker").append("port", 1883).append("topic", "t/1")
+                    .append("username", "device1").append("secret_path", "secret/device1")));
+
+    private final byte[] deviceModel = bytes(new Document("_id", "model1")
+            .append("name", "Thermostat")
+            .append("description", "Reports temperature and humidity")
+            .append("telemetry_schema", new Document("type", "object").append("required",
+                    List.of("temperature", "humidity")).append("properties",
+                    new Document("temperature", new Document("type", "number"))
+                            .append("humidity", new Document("type", "number"))))
+            .append("metadata_schema", new Document("type", "object"))
+            .append("device_rate_limit", new Document("messages_per_second", 10.0).append("burst", 20))
+            .append("created_at", Date.from(Instant.now())));
+
+    @Benchmark
+    public DeviceData deviceDataMapper() {
+        return deviceDataDal.getMapper().toModel().apply(documentCodec.decode(reader(deviceData), CONTEXT));
+    }
+
+    @Benchmark
+    public DeviceData deviceDataDecoder() {
+        return deviceDataDecoder.decode(reader(deviceData), CONTEXT);
+    }
+
+    /**
+     * The decoder path when the payload is read after all.
+     */
+    @Benchmark
+    public Object deviceDataCodecPayloadRead() {
+        return deviceDataDecoder.decode(reader(deviceData), CONTEXT).telemetryPayload().get("temperature");
+    }
+
+    @Benchmark
+    public IotDevice deviceMapper() {
+        return deviceDal.getMapper().toModel().apply(documentCodec.decode(reader(device), CONTEXT));
+    }
+
+    @Benchmark
+    public IotDevice deviceDecoder() {
+        return deviceDecoder.decode(reader(device), CONTEXT);
+    }
+
+    @Benchmark
+    public IotDeviceModel deviceModelMapper() {
+        return deviceModelDal.getMapper().toModel().apply(documentCodec.decode(reader(deviceModel), CONTEXT));
+    }
+
+    @Benchmark
+    public IotDeviceModel deviceModelDecoder() {
+        return deviceModelDecoder.decode(reader(deviceModel), CONTEXT);
+    }
+
+    private static BsonBinaryReader reader(byte[] bytes) {
+        // The driver decodes each reply document from a fresh reader over the received bytes
+        return new BsonBinaryReader(ByteBuffer.wrap(bytes));
+    }
+
+    private static byte[] bytes(Document document) {
+        ByteBuffer buffer = new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,118 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.domain.DeviceStatus;
+import com.iot.riff.service.domain.IotDevice;
+import com.iot.riff.service.domain.IotDeviceId;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IotLookupCacheTest {
+
+    private final IotDeviceDal iotDeviceDal = mock(IotDeviceDal.class);
+    private final IotDeviceModelDal iotDeviceModelDal = mock(IotDeviceModelDal.class);
+
+    @Test
+    void devices_areReadOnce_untilInvalidated() {
+        IotDevice device = device("device-1");
+        when(iotDeviceDal.get("device-1")).thenReturn(device);
+        IotLookupCache cache = new IotLookupCache(iotDeviceDal, iotDeviceModelDal, 100, Duration.ofMinutes(5),
+                Duration.ofSeconds(30));
+
+        assertSame(device, cache.getDevice("device-1"));
+        assertSame(device, cache.getDevice("device-1"));
+        verify(iotDeviceDal, times(1)).get("device-1");
+
+        cache.invalidateDevice("device-1");
+        cache.getDevice("device-1");
+        verify(iotDeviceDal, times(2)).get("device-1");
+        assertEquals(1, cache.stats().devices().hits());
+    }
+
+    @Test
+    void unknownDevices_areCachedForTheNegativeTtl() {
+        AtomicLong now = new AtomicLong();
+        IotLookupCache cache = new IotLookupCache(iotDeviceDal, iotDeviceModelDal, 100, Duration.ofMinutes(5),
+                Duration.ofMillis(100), now::get);
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.getDevice("deleted"));
+        }
+        verify(iotDeviceDal, times(1)).get("deleted");
+        assertEquals(999, cache.stats().devices().negativeHits());
+
+        now.addAndGet(Duration.ofMillis(150).toNanos());
+        cache.getDevice("deleted");
+        verify(iotDeviceDal, times(2)).get("deleted");
+    }
+
+    @Test
+    void concurrentMisses_shareOneRead_andFailuresAreNotCached() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(iotDeviceDal.get("device-1")).thenAnswer(invocation -> {
+            loading.countDown();
+            release.await();
+            return device("device-1");
+        });
+        IotLookupCache cache = new IotLookupCache(iotDeviceDal, iotDeviceModelDal, 100, Duration.ofMinutes(5),
+                Duration.ofSeconds(30));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<?>[] lookups = new Future<?>[16];
+            for (int i = 0; i < lookups.length; i++) {
+                lookups[i] = executor.submit(() -> cache.getDevice("device-1"));
+            }
+            // Lookups arriving after the read completes hit the cached device, so only the first must wait
+            loading.await();
+            release.countDown();
+            for (Future<?> lookup : lookups) {
+                lookup.get();
+            }
+        }
+        verify(iotDeviceDal, times(1)).get("device-1");
+
+        when(iotDeviceModelDal.get(anyString())).thenThrow(new IllegalStateException("Mongo unavailable"));
+        assertThrows(IllegalStateException.class, () -> cache.getModel("model1"));
+        assertThrows(IllegalStateException.class, () -> cache.getModel("model1"));
+        verify(iotDeviceModelDal, times(2)).get("model1");
+    }
+
+    @Test
+    void oldestEntries_areEvictedPastMaxSize() {
+        when(iotDeviceDal.get(anyString())).thenAnswer(invocation -> device(invocation.getArgument(0)));
+        IotLookupCache cache = new IotLookupCache(iotDeviceDal, iotDeviceModelDal, 2, Duration.ofMinutes(5),
+                Duration.ofSeconds(30));
+
+        cache.getDevice("device-1");
+        cache.getDevice("device-2");
+        cache.getDevice("device-3");
+
+        assertEquals(2, cache.stats().devices().size());
+        assertEquals(1, cache.stats().devices().evictions());
+        cache.getDevice("device-1");
+        verify(iotDeviceDal, times(2)).get("device-1");
+    }
+
+    private static IotDevice device(String deviceId) {
+        return new IotDevice(new IotDeviceId(deviceId), new IotDeviceModelId("model1"), deviceId, null, null,
+                Map.of(), DeviceStatus.ACTIVE, Instant.now());
+    }
+}
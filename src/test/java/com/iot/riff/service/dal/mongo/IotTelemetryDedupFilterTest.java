@@ -0,0 +1,36 @@
+package com.iot.riff.service.dal.mongo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotTelemetryDedupFilterTest {
+
+    @Test
+    void storedIds_areRecognised_andCounted() {
+        IotTelemetryDedupFilter filter = new IotTelemetryDedupFilter(1024);
+        UUID id = UUID.nameUUIDFromBytes("device1:7:1:1".getBytes());
+
+        assertFalse(filter.contains(id));
+        filter.add(id);
+        assertTrue(filter.contains(id));
+        assertEquals(1, filter.stats().hits());
+    }
+
+    @Test
+    void anIdSharingASlot_evictsTheOldOne_butIsNeverMistakenForIt() {
+        IotTelemetryDedupFilter filter = new IotTelemetryDedupFilter(1);
+        UUID first = new UUID(1, 42);
+        UUID second = new UUID(2, 42);
+
+        filter.add(first);
+        assertFalse(filter.contains(second));
+        filter.add(second);
+        assertFalse(filter.contains(first));
+        assertTrue(filter.contains(second));
+    }
+}
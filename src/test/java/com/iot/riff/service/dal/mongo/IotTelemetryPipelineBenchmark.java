@@ -0,0 +1,110 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iot.riff.service.util.IotJsonSchemaValidator;
+import com.iot.riff.service.util.IotTelemetryJson;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of taking one passthrough telemetry record from Kafka bytes to the BSON sent to Mongo:
+ * parsing into maps, converting them to a tree for validation and encoding the maps, versus
+ * parsing once into a tree that is validated and encoded directly. Run with
+ * {@code -Dbenchmark="IotTelemetryPipelineBenchmark -prof gc"} to see bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IotTelemetryPipelineBenchmark {
+
+    static final Map<String, Object> SCHEMA = Map.of(
+            "type", "object",
+            "required", List.of("temperature", "humidity"),
+            "properties", Map.of(
+                    "temperature", Map.of("type", "number"),
+                    "humidity", Map.of("type", "number"),
+                    "status", Map.of("type", "string")));
+
+    static final byte[] PAYLOAD = ("{\"temperature\": 21.5, \"humidity\": 40, \"status\": \"OK\", "
+            + "\"battery\": {\"voltage\": 3.7, \"level\": 88}, \"samples\": [1, 2, 3, 4, 5, 6, 7, 8]}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final TypeReference<Map<String, Object>> MAP = new TypeReference<>() {
+    };
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final IotJsonSchemaValidator validator = new IotJsonSchemaValidator(1024);
+    private final IotTelemetryJson telemetryJson = new IotTelemetryJson();
+    private final CodecRegistry registry = CodecRegistries.fromRegistries(
+            CodecRegistries.fromProviders(JsonNodeCodec.PROVIDER), MongoClientSettings.getDefaultCodecRegistry());
+    private final DocumentCodec documentCodec = new DocumentCodec(registry);
+    private final Date receivedAt = new Date();
+
+    @Setup
+    public void setUp() {
+        validator.getSchema("model1", SCHEMA);
+    }
+
+    /**
+     * Bytes to a Map, the Map to a tree for validation, the Map into the document.
+     */
+    @Benchmark
+    public int mapPipeline() throws Exception {
+        Map<String, Object> telemetry = objectMapper.readValue(PAYLOAD, MAP);
+        JsonNode tree = validator.toJsonNode(telemetry);
+        if (!validator.validate("model1", SCHEMA, tree).isEmpty()) {
+            throw new IllegalStateException("Invalid telemetry");
+        }
+        return encode(telemetry);
+    }
+
+    /**
+     * Bytes to a tree once, validated and encoded as is.
+     */
+    @Benchmark
+    public int singleParse() {
+        JsonNode telemetry = telemetryJson.parsePayload(PAYLOAD);
+        if (!validator.validate("model1", SCHEMA, telemetry).isEmpty()) {
+            throw new IllegalStateException("Invalid telemetry");
+        }
+        return encode(telemetry);
+    }
+
+    private int encode(Object telemetry) {
+        Document doc = new Document("device_id", "device-1")
+                .append("telemetry_payload", telemetry)
+                .append("received_at", receivedAt);
+        BasicOutputBuffer buffer = new BasicOutputBuffer(512);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            documentCodec.encode(writer, doc, EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+        }
+        return buffer.getPosition();
+    }
+}
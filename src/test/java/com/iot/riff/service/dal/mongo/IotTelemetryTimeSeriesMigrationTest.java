@@ -0,0 +1,219 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.iot.riff.service.exception.IotException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListCollectionsIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IotTelemetryTimeSeriesMigrationTest {
+
+    @Mock
+    private MongoClient mongoClient;
+    @Mock
+    private MongoDatabase mongoDatabase;
+    @Mock
+    private MongoCollection<Document> deviceData;
+    @Mock
+    private MongoCollection<Document> legacy;
+    @Mock
+    private ListCollectionsIterable<Document> collections;
+    @Mock
+    private FindIterable<Document> found;
+
+    private IotDeviceDataDal iotDeviceDataDal;
+
+    @BeforeEach
+    void setUp() {
+        iotDeviceDataDal = new IotDeviceDataDal("iot", new IotTelemetryDedupFilter(16),
+                IotTelemetryLayout.TIME_SERIES, TimeSeriesGranularity.SECONDS);
+        iotDeviceDataDal.mongoClient = mongoClient;
+    }
+
+    @Test
+    void regularCollection_isRenamedAside_andMovedInBatches_untilDropped() {
+        when(mongoClient.getDatabase("iot")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getName()).thenReturn("iot");
+        when(mongoDatabase.getCollection("device_data")).thenReturn(deviceData);
+        when(mongoDatabase.getCollection("device_data_standard")).thenReturn(legacy);
+        when(mongoDatabase.listCollections()).thenReturn(collections);
+        when(collections.filter(any())).thenReturn(collections);
+        // device_data is regular, device_data_standard does not exist yet
+        when(collections.first()).thenReturn(new Document("type", "collection"), (Document) null);
+
+        List<Document> readings = List.of(reading(), reading(), reading());
+        when(legacy.find()).thenReturn(found);
+        when(found.batchSize(anyInt())).thenReturn(found);
+        when(found.limit(anyInt())).thenReturn(found);
+        when(found.into(anyList())).thenAnswer(invocation -> {
+            List<Document> target = invocation.getArgument(0);
+            target.addAll(readings);
+            return target;
+        }).thenAnswer(invocation -> invocation.getArgument(0));
+        alreadyCopied(deviceData);
+
+        IotTelemetryTimeSeriesMigration.Progress progress = new IotTelemetryTimeSeriesMigration(iotDeviceDataDal, 2)
+                .migrate(100);
+
+        verify(deviceData).renameCollection(new MongoNamespace("iot", "device_data_standard"));
+        verify(mongoDatabase).createCollection(eq("device_data"), any(CreateCollectionOptions.class));
+        verify(deviceData).insertMany(eq(readings), any(InsertManyOptions.class));
+        verify(legacy).deleteMany(any(Bson.class));
+        verify(legacy).drop();
+        assertEquals(3, progress.moved());
+        assertTrue(progress.complete());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void readingInsertedBetweenRenameAndCreate_isMovedAside_andTheMigrationCarriesOn() {
+        MongoCollection<Document> pending = org.mockito.Mockito.mock(MongoCollection.class);
+        FindIterable<Document> pendingFound = org.mockito.Mockito.mock(FindIterable.class);
+        when(mongoClient.getDatabase("iot")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getName()).thenReturn("iot");
+        when(mongoDatabase.getCollection("device_data")).thenReturn(deviceData);
+        when(mongoDatabase.getCollection("device_data_standard")).thenReturn(legacy);
+        when(mongoDatabase.getCollection("device_data_pending")).thenReturn(pending);
+        when(mongoDatabase.listCollections()).thenReturn(collections);
+        when(collections.filter(any())).thenReturn(collections);
+        Document regular = new Document("type", "collection");
+        // First attempt: device_data is regular, device_data_standard does not exist yet.
+        // Second attempt: an insert recreated device_data, device_data_standard exists, device_data_pending not
+        when(collections.first()).thenReturn(regular, null, regular, regular, null);
+        doThrow(new MongoCommandException(new BsonDocument("code", new BsonInt32(48))
+                .append("errmsg", new BsonString("Collection already exists")), new ServerAddress()))
+                .doNothing()
+                .when(mongoDatabase).createCollection(eq("device_data"), any(CreateCollectionOptions.class));
+
+        Document inserted = reading();
+        when(pending.find()).thenReturn(pendingFound);
+        when(pendingFound.batchSize(anyInt())).thenReturn(pendingFound);
+        when(pendingFound.limit(anyInt())).thenReturn(pendingFound);
+        when(pendingFound.into(anyList())).thenAnswer(invocation -> {
+            List<Document> target = invocation.getArgument(0);
+            target.add(inserted);
+            return target;
+        }).thenAnswer(invocation -> invocation.getArgument(0));
+        when(legacy.find()).thenReturn(found);
+        when(found.batchSize(anyInt())).thenReturn(found);
+        when(found.limit(anyInt())).thenReturn(found);
+        when(found.into(anyList())).thenAnswer(invocation -> {
+            List<Document> target = invocation.getArgument(0);
+            target.add(inserted);
+            return target;
+        }).thenAnswer(invocation -> invocation.getArgument(0));
+        alreadyCopied(legacy);
+        alreadyCopied(deviceData);
+
+        IotTelemetryTimeSeriesMigration.Progress progress = new IotTelemetryTimeSeriesMigration(iotDeviceDataDal, 2)
+                .migrate(100);
+
+        InOrder order = inOrder(deviceData, pending, legacy);
+        order.verify(deviceData).renameCollection(new MongoNamespace("iot", "device_data_standard"));
+        order.verify(deviceData).renameCollection(new MongoNamespace("iot", "device_data_pending"));
+        // The stray reading joins the others before the pending collection is dropped
+        order.verify(legacy).insertMany(eq(List.of(inserted)), any(InsertManyOptions.class));
+        order.verify(pending).drop();
+        order.verify(deviceData).insertMany(eq(List.of(inserted)), any(InsertManyOptions.class));
+        order.verify(legacy).drop();
+        assertEquals(1, progress.moved());
+        assertTrue(progress.complete());
+    }
+
+    @Test
+    void readingCopiedByAnInterruptedCall_isNotCopiedAgain() {
+        when(mongoClient.getDatabase("iot")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getCollection("device_data")).thenReturn(deviceData);
+        when(mongoDatabase.getCollection("device_data_standard")).thenReturn(legacy);
+        when(mongoDatabase.listCollections()).thenReturn(collections);
+        when(collections.filter(any())).thenReturn(collections);
+        // device_data is already a time-series collection
+        when(collections.first()).thenReturn(new Document("type", "timeseries"));
+
+        Document copied = reading();
+        Document notCopied = reading();
+        when(legacy.find()).thenReturn(found);
+        when(found.batchSize(anyInt())).thenReturn(found);
+        when(found.limit(anyInt())).thenReturn(found);
+        when(found.into(anyList())).thenAnswer(invocation -> {
+            List<Document> target = invocation.getArgument(0);
+            target.addAll(List.of(copied, notCopied));
+            return target;
+        }).thenAnswer(invocation -> invocation.getArgument(0));
+        // Time-series collections have no unique _id, an insert of the copied reading would not fail
+        alreadyCopied(deviceData, new Document("_id", copied.get("_id")));
+
+        IotTelemetryTimeSeriesMigration.Progress progress = new IotTelemetryTimeSeriesMigration(iotDeviceDataDal, 2)
+                .migrate(100);
+
+        verify(deviceData).insertMany(eq(List.of(notCopied)), any(InsertManyOptions.class));
+        verify(legacy).deleteMany(Filters.in("_id", List.of(copied.get("_id"), notCopied.get("_id"))));
+        assertEquals(2, progress.moved());
+        assertTrue(progress.complete());
+    }
+
+    @Test
+    void standardLayout_refusesToMigrate() {
+        IotDeviceDataDal standard = new IotDeviceDataDal("iot", new IotTelemetryDedupFilter(16),
+                IotTelemetryLayout.STANDARD, TimeSeriesGranularity.SECONDS);
+
+        assertThrows(IotException.class, () -> new IotTelemetryTimeSeriesMigration(standard, 2).migrate(100));
+    }
+
+    /**
+     * Makes {@code target} hold {@code ids} of the readings about to be copied to it.
+     */
+    @SuppressWarnings("unchecked")
+    private static void alreadyCopied(MongoCollection<Document> target, Document... ids) {
+        FindIterable<Document> copied = org.mockito.Mockito.mock(FindIterable.class);
+        when(target.find(any(Bson.class))).thenReturn(copied);
+        when(copied.projection(any())).thenReturn(copied);
+        when(copied.into(anyList())).thenAnswer(invocation -> {
+            List<Document> into = invocation.getArgument(0);
+            into.addAll(List.of(ids));
+            return into;
+        });
+    }
+
+    private static Document reading() {
+        return new Document("_id", new ObjectId())
+                .append("device_id", "device1")
+                .append("received_at", new Date());
+    }
+}
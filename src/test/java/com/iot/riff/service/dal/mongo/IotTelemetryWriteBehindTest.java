@@ -0,0 +1,152 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.iot.riff.service.domain.TelemetryReading;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IotTelemetryWriteBehindTest {
+
+    @Mock
+    private MongoClient mongoClient;
+    @Mock
+    private MongoDatabase mongoDatabase;
+    @Mock
+    private MongoCollection<Document> mongoCollection;
+
+    private IotDeviceDataDal iotDeviceDataDal;
+    private IotTelemetryWriteBehind writeBehind;
+
+    @BeforeEach
+    void setUp() {
+        iotDeviceDataDal = new IotDeviceDataDal("iot", new IotTelemetryDedupFilter(1024), IotTelemetryLayout.STANDARD,
+                TimeSeriesGranularity.SECONDS);
+        iotDeviceDataDal.mongoClient = mongoClient;
+
+        when(mongoClient.getDatabase("iot")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getCollection("device_data")).thenReturn(mongoCollection);
+        when(mongoCollection.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+        when(mongoCollection.withCodecRegistry(any())).thenReturn(mongoCollection);
+        when(mongoCollection.withWriteConcern(WriteConcern.MAJORITY)).thenReturn(mongoCollection);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeBehind.close();
+    }
+
+    @Test
+    void readingsFromSeveralCallers_areWrittenWithOneInsert() throws Exception {
+        writeBehind = new IotTelemetryWriteBehind(iotDeviceDataDal, true, 100, 3, Duration.ofMinutes(1), "MAJORITY");
+
+        List<CompletableFuture<Boolean>> results = List.of(
+                writeBehind.save(reading("m1"), Instant.now()),
+                writeBehind.save(reading("m2"), Instant.now()),
+                writeBehind.save(reading("m3"), Instant.now()));
+
+        // The third reading fills the group, long before the delay is up
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS));
+        }
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Document>> docs = ArgumentCaptor.forClass(List.class);
+        verify(mongoCollection).insertMany(docs.capture(), any(InsertManyOptions.class));
+        assertEquals(3, docs.getValue().size());
+        IotTelemetryWriteBehind.Stats stats = writeBehind.stats();
+        assertEquals(0, stats.queueDepth());
+        assertEquals(1, stats.flushes());
+        assertEquals(3, stats.maxFlushSize());
+    }
+
+    @Test
+    void eachCaller_learnsTheOutcomeOfItsOwnReading() throws Exception {
+        writeBehind = new IotTelemetryWriteBehind(iotDeviceDataDal, true, 100, 10, Duration.ofMillis(200), "MAJORITY");
+        MongoBulkWriteException failure = new MongoBulkWriteException(BulkWriteResult.unacknowledged(),
+                List.of(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0),
+                        new BulkWriteError(121, "document failed validation", new BsonDocument(), 1)),
+                null, new ServerAddress(), Set.of());
+        doThrow(failure).when(mongoCollection).insertMany(anyList(), any(InsertManyOptions.class));
+
+        // Three readings never fill the group, they are written once the first has waited maxDelay
+        CompletableFuture<Boolean> duplicate = writeBehind.save(reading("m1"), Instant.now());
+        CompletableFuture<Boolean> invalid = writeBehind.save(reading("m2"), Instant.now());
+        CompletableFuture<Boolean> stored = writeBehind.save(reading("m3"), Instant.now());
+
+        assertFalse(duplicate.get(5, TimeUnit.SECONDS));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> invalid.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(com.mongodb.MongoException.class, e.getCause());
+        assertEquals(121, ((com.mongodb.MongoException) e.getCause()).getCode());
+        assertTrue(stored.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void readingQueuedOnceTheFlusherIsIdle_wakesItUp() throws Exception {
+        writeBehind = new IotTelemetryWriteBehind(iotDeviceDataDal, true, 100, 10, Duration.ofMillis(50), "MAJORITY");
+
+        assertTrue(writeBehind.save(reading("m1"), Instant.now()).get(5, TimeUnit.SECONDS));
+        // The flusher now parks without a timeout, only the next reading can wake it
+        assertTrue(writeBehind.save(reading("m2"), Instant.now()).get(5, TimeUnit.SECONDS));
+
+        verify(mongoCollection, times(2)).insertMany(anyList(), any(InsertManyOptions.class));
+    }
+
+    @Test
+    void close_writesWhatIsQueued_andLaterReadingsAreWrittenByTheirCaller() throws Exception {
+        writeBehind = new IotTelemetryWriteBehind(iotDeviceDataDal, true, 100, 10, Duration.ofMinutes(1), "MAJORITY");
+        CompletableFuture<Boolean> queued = writeBehind.save(reading("m1"), Instant.now());
+
+        writeBehind.close();
+
+        assertTrue(queued.isDone());
+        assertTrue(queued.get());
+        verify(mongoCollection).insertMany(anyList(), any(InsertManyOptions.class));
+        CompletableFuture<Boolean> late = writeBehind.save(reading("m2"), Instant.now());
+        assertTrue(late.isDone());
+        assertTrue(late.get());
+        verify(mongoCollection).insertOne(any(Document.class));
+        assertEquals(0, writeBehind.stats().queueDepth());
+    }
+
+    private static TelemetryReading reading(String messageId) {
+        return new TelemetryReading(messageId, "device1", JsonNodeFactory.instance.objectNode().put("temp", 25));
+    }
+}
@@ -0,0 +1,68 @@
+package com.iot.riff.service.dal.mongo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.ThreadMXBean;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonType;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonNodeCodecTest {
+
+    @Test
+    void tree_isEncodedWithMatchingBsonTypes_andDecodesBack() throws Exception {
+        JsonNode tree = new ObjectMapper().readTree("{\"int\": 1, \"long\": 12345678901, \"double\": 2.5, "
+                + "\"text\": \"a\", \"flag\": true, \"none\": null, \"list\": [1, \"b\"], \"nested\": {\"x\": 1}}");
+
+        BsonDocument document = new BsonDocument();
+        JsonNodeCodec.INSTANCE.encode(new BsonDocumentWriter(document), tree, EncoderContext.builder().build());
+
+        assertEquals(BsonType.INT32, document.get("int").getBsonType());
+        assertEquals(BsonType.INT64, document.get("long").getBsonType());
+        assertEquals(BsonType.DOUBLE, document.get("double").getBsonType());
+        assertEquals(BsonType.STRING, document.get("text").getBsonType());
+        assertEquals(BsonType.BOOLEAN, document.get("flag").getBsonType());
+        assertEquals(BsonType.NULL, document.get("none").getBsonType());
+        assertEquals(BsonType.ARRAY, document.get("list").getBsonType());
+        assertEquals(1, document.getDocument("nested").getInt32("x").getValue());
+
+        BsonDocumentReader reader = new BsonDocumentReader(document);
+        reader.readBsonType();
+        assertEquals(tree, JsonNodeCodec.INSTANCE.decode(reader, DecoderContext.builder().build()));
+    }
+
+    @Test
+    void singleParsePipeline_allocatesMuchLessThanTheMapPipeline() throws Exception {
+        IotTelemetryPipelineBenchmark pipeline = new IotTelemetryPipelineBenchmark();
+        pipeline.setUp();
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20_000; i++) {
+            pipeline.mapPipeline();
+            pipeline.singleParse();
+        }
+
+        int messages = 10_000;
+        long start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < messages; i++) {
+            pipeline.mapPipeline();
+        }
+        long mapBytes = (threads.getCurrentThreadAllocatedBytes() - start) / messages;
+        start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < messages; i++) {
+            pipeline.singleParse();
+        }
+        long singleParseBytes = (threads.getCurrentThreadAllocatedBytes() - start) / messages;
+
+        assertTrue(singleParseBytes < mapBytes * 0.75, "Expected at least a quarter fewer bytes per message, map "
+                + "pipeline " + mapBytes + " B, single parse " + singleParseBytes + " B");
+    }
+}
@@ -0,0 +1,63 @@
+package com.iot.riff.service.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.networknt.schema.ValidationMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telemetry validations per second, compiling the schema for every message as the
+ * telemetry path used to versus validating a tree against the cached compiled schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IotJsonSchemaValidatorBenchmark {
+
+    private static final Map<String, Object> SCHEMA = Map.of(
+            "$schema", "http://json-schema.org/draft-07/schema#",
+            "type", "object",
+            "required", List.of("temperature", "humidity"),
+            "properties", Map.of(
+                    "temperature", Map.of("type", "number", "minimum", -50, "maximum", 150),
+                    "humidity", Map.of("type", "number", "minimum", 0, "maximum", 100),
+                    "status", Map.of("type", "string", "enum", List.of("OK", "WARN", "FAIL"))));
+
+    private static final Map<String, Object> PAYLOAD = Map.of("temperature", 21.5, "humidity", 40, "status", "OK");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private IotJsonSchemaValidator validator;
+
+    @Setup
+    public void setUp() {
+        validator = new IotJsonSchemaValidator(1024);
+    }
+
+    @Benchmark
+    public Set<ValidationMessage> compilePerMessage() throws Exception {
+        String payloadJson = objectMapper.writeValueAsString(PAYLOAD);
+        String schemaJson = objectMapper.writeValueAsString(SCHEMA);
+        return validator.validate(payloadJson, schemaJson);
+    }
+
+    @Benchmark
+    public Set<ValidationMessage> cachedSchema() {
+        return validator.validate("model1", SCHEMA, validator.toJsonNode(PAYLOAD));
+    }
+}
@@ -0,0 +1,52 @@
+package com.iot.riff.service.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IotLoadingCacheTest {
+
+    @Test
+    void expiredInvalidatedAndFailedEntries_leaveNothingBehind() {
+        AtomicLong now = new AtomicLong();
+        IotLoadingCache<String, String> cache = new IotLoadingCache<>(1000, Duration.ofSeconds(1),
+                Duration.ofSeconds(1), now::get);
+
+        // A working set well below maxSize, churned by expiry, invalidation and failed loads
+        for (int round = 0; round < 1000; round++) {
+            for (int key = 0; key < 10; key++) {
+                cache.get("key-" + key, k -> k);
+            }
+            cache.invalidate("key-" + round % 10);
+            cache.getAsync("failing", k -> CompletableFuture.failedFuture(new IllegalStateException()));
+            now.addAndGet(Duration.ofSeconds(2).toNanos());
+        }
+
+        assertTrue(cache.retained() <= 10, "Retained " + cache.retained() + " entries");
+        assertEquals(cache.stats().size(), cache.retained());
+        assertEquals(0, cache.stats().evictions());
+    }
+
+    @Test
+    void oldestEntries_areEvictedPastMaxSize() {
+        IotLoadingCache<String, String> cache = new IotLoadingCache<>(2);
+
+        cache.get("a", k -> k);
+        cache.get("b", k -> k);
+        cache.invalidate("a");
+        cache.get("c", k -> k);
+        cache.get("d", k -> k);
+
+        assertEquals(2, cache.retained());
+        assertEquals(1, cache.stats().evictions());
+        assertThrows(IllegalStateException.class, () -> cache.get("b", k -> {
+            throw new IllegalStateException("evicted, so loaded again");
+        }));
+    }
+}
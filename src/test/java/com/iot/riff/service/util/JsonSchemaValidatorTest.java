@@ -1,11 +1,20 @@
 package com.iot.riff.service.util;
 
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.iot.riff.service.domain.IotDeviceModel;
+import com.iot.riff.service.domain.IotDeviceModelId;
+import com.networknt.schema.JsonSchema;
 import com.networknt.schema.ValidationMessage;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -15,7 +24,7 @@ class JsonSchemaValidatorTest {
 
     @BeforeEach
     void setUp() {
-        jsonSchemaValidator = new IotJsonSchemaValidator();
+        jsonSchemaValidator = new IotJsonSchemaValidator(2);
     }
 
     @Test
@@ -68,4 +77,57 @@ class JsonSchemaValidatorTest {
         Set<ValidationMessage> errors = jsonSchemaValidator.validate(json, schema);
         assertTrue(errors.isEmpty());
     }
+
+    @Test
+    void testCompiledSchemaIsCachedByModelAndContent() {
+        Map<String, Object> schema = new HashMap<>(Map.of("type", "object", "required", List.of("temp")));
+        JsonSchema compiled = jsonSchemaValidator.getSchema("model1", schema);
+
+        // An equal schema loaded again, e.g. by another Mongo read, hits the same entry
+        assertSame(compiled, jsonSchemaValidator.getSchema("model1", new HashMap<>(schema)));
+        assertNotSame(compiled, jsonSchemaValidator.getSchema("model2", schema));
+
+        // A changed schema comes with the model's next read, as a new map
+        schema = new HashMap<>(Map.of("type", "object", "required", List.of("humidity")));
+        JsonSchema changed = jsonSchemaValidator.getSchema("model1", schema);
+        assertNotSame(compiled, changed);
+        assertFalse(jsonSchemaValidator.validate("model1", schema,
+                JsonNodeFactory.instance.objectNode().put("temp", 21)).isEmpty());
+        assertTrue(jsonSchemaValidator.validate("model1", schema,
+                JsonNodeFactory.instance.objectNode().put("humidity", 40)).isEmpty());
+    }
+
+    @Test
+    void testSchemaOfTheSameModel_isNotHashedAgain() {
+        AtomicInteger hashes = new AtomicInteger();
+        Map<String, Object> schema = new HashMap<>(Map.of("type", "object")) {
+            @Override
+            public int hashCode() {
+                hashes.incrementAndGet();
+                return super.hashCode();
+            }
+        };
+        IotDeviceModel model = new IotDeviceModel(new IotDeviceModelId("model1"), "model", null, schema, null, null,
+                null, Instant.now());
+        JsonSchema compiled = jsonSchemaValidator.getSchema("model1", model.telemetrySchema());
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(compiled, jsonSchemaValidator.getSchema("model1", model.telemetrySchema()));
+        }
+        assertEquals(1, hashes.get());
+    }
+
+    @Test
+    void testInvalidateAndEvictionDropCompiledSchemas() {
+        Map<String, Object> schema = Map.of("type", "object");
+        JsonSchema compiled = jsonSchemaValidator.getSchema("model1", schema);
+        jsonSchemaValidator.invalidate("model1");
+        JsonSchema recompiled = jsonSchemaValidator.getSchema("model1", schema);
+        assertNotSame(compiled, recompiled);
+
+        // The cache holds two schemas, a third evicts the oldest
+        jsonSchemaValidator.getSchema("model2", schema);
+        jsonSchemaValidator.getSchema("model3", schema);
+        assertNotSame(recompiled, jsonSchemaValidator.getSchema("model1", schema));
+    }
 }